@@ -0,0 +1,87 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the stream copy loop used by {@link AbstractS3DownloadOperation} against in-memory streams, isolating it
+ * from network and disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class DownloadCopyBenchmark {
+
+    @Param( { "4096", "1048576", "67108864" })
+    private int size;
+
+    private byte[] data;
+
+    private OutputStream out;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        this.data = new byte[this.size];
+        new Random(42).nextBytes(this.data);
+        this.out = new BlackholeOutputStream(blackhole);
+    }
+
+    @Benchmark
+    public long copy() throws IOException {
+        return TransferUtils.copy(new ByteArrayInputStream(this.data), this.out);
+    }
+
+    private static final class BlackholeOutputStream extends OutputStream {
+
+        private final Blackhole blackhole;
+
+        private BlackholeOutputStream(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        public void write(int b) {
+            this.blackhole.consume(b);
+        }
+
+        public void write(byte[] b, int off, int len) {
+            this.blackhole.consume(b);
+            this.blackhole.consume(len);
+        }
+    }
+
+}
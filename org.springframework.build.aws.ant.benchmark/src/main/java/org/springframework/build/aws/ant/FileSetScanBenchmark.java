@@ -0,0 +1,119 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.FileSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares walking a large fileset with Ant's {@link org.apache.tools.ant.DirectoryScanner} and with
+ * {@link ParallelDirectoryScanner}, both for the whole walk and for the time until the first file is available to
+ * upload. The tree is generated from a fixed seed in a temporary directory, laid out like a Maven repository.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileSetScanBenchmark {
+
+    private static final String[] EXTENSIONS = { ".jar", "-sources.jar", ".pom", ".jar.sha1", ".pom.sha1", ".xml" };
+
+    @Param( { "10000", "100000" })
+    private int fileCount;
+
+    private File root;
+
+    private Project project;
+
+    private FileSet fileSet;
+
+    @Setup
+    public void setUp() throws IOException {
+        this.root = File.createTempFile("fileset-scan", "");
+        this.root.delete();
+        Random random = new Random(42);
+        for (int i = 0; i < this.fileCount; i++) {
+            File file = new File(this.root, "org/springframework/module" + random.nextInt(500) + "/" + random.nextInt(20) + "."
+                + random.nextInt(10) + ".RELEASE/artifact" + i + EXTENSIONS[random.nextInt(EXTENSIONS.length)]);
+            file.getParentFile().mkdirs();
+            file.createNewFile();
+        }
+        this.project = new Project();
+        this.project.init();
+        this.fileSet = new FileSet();
+        this.fileSet.setProject(this.project);
+        this.fileSet.setDir(this.root);
+        this.fileSet.setIncludes("**/*.jar,**/*.pom");
+        this.fileSet.setExcludes("**/*-sources.jar,**/module1*/**");
+    }
+
+    @TearDown
+    public void tearDown() {
+        delete(this.root);
+    }
+
+    @Benchmark
+    public String[] directoryScanner() {
+        // A new fileset each time, as a fileset caches its scanner
+        return ((FileSet) this.fileSet.clone()).getDirectoryScanner(this.project).getIncludedFiles();
+    }
+
+    @Benchmark
+    public String[] parallelDirectoryScanner() throws IOException {
+        return ParallelDirectoryScanner.getIncludedFiles(this.fileSet, this.project);
+    }
+
+    @Benchmark
+    public String parallelDirectoryScannerFirstFile() throws IOException {
+        ParallelDirectoryScanner scanner = ParallelDirectoryScanner.start(this.fileSet, this.project);
+        try {
+            return scanner.next();
+        } finally {
+            scanner.stop();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+}
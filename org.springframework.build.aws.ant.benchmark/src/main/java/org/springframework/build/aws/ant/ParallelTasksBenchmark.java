@@ -0,0 +1,263 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.taskdefs.Parallel;
+import org.apache.tools.ant.types.FileSet;
+
+/**
+ * A stress benchmark of several <code>&lt;aws:s3&gt;</code> tasks run at once with <code>&lt;parallel&gt;</code>, each
+ * uploading and then downloading its own files on virtual threads, against an in-process {@link S3StandIn} that
+ * answers <code>503 SlowDown</code> whenever too many requests are in flight. The tasks are run once without a
+ * transfer budget and once with <code>maxRequests</code>, so that the effect of the JVM-wide budget on throughput,
+ * throttling and fairness between the tasks can be compared. It is configured with system properties:
+ *
+ * <pre>
+ * benchmark.tasks            Number of tasks run at once (default 4)
+ * benchmark.files            Number of files uploaded and downloaded by each task (default 500)
+ * benchmark.file.size        Size of each file in bytes (default 65536)
+ * benchmark.latency          Latency added to each request in milliseconds (default 20)
+ * benchmark.concurrency      Concurrency limit on the virtual threads of each task (default 64)
+ * benchmark.max.concurrent   Number of requests in flight above which the stand-in throttles (default 32)
+ * benchmark.max.requests     The maxRequests of the governed run (default: benchmark.max.concurrent)
+ * </pre>
+ *
+ * For each run the wall time, the combined throughput, the slowest and fastest task, the peak number of requests in
+ * flight and the number of requests of each type, including throttled ones, are reported, along with any task that
+ * failed.
+ */
+public final class ParallelTasksBenchmark {
+
+    private static final String BUCKET = "benchmark";
+
+    // Held so that the level is not lost when the logger is collected
+    private static final Logger JETS3T_LOGGER = Logger.getLogger("org.jets3t");
+
+    private final S3StandIn standIn;
+
+    private final Project project;
+
+    private final File workDir;
+
+    private final int tasks;
+
+    private final int files;
+
+    private final long fileSize;
+
+    private final int concurrency;
+
+    private ParallelTasksBenchmark(S3StandIn standIn, File workDir, int tasks, int files, long fileSize, int concurrency) {
+        this.standIn = standIn;
+        this.workDir = workDir;
+        this.tasks = tasks;
+        this.files = files;
+        this.fileSize = fileSize;
+        this.concurrency = concurrency;
+
+        this.project = new Project();
+        this.project.setBaseDir(workDir);
+        Properties properties = standIn.getJets3tProperties();
+        for (String name : properties.stringPropertyNames()) {
+            this.project.setProperty(name, properties.getProperty(name));
+        }
+        // Enough connections for every task at once, so that the connection pool is not what limits the requests
+        this.project.setProperty("httpclient.max-connections", Integer.toString(tasks * concurrency));
+    }
+
+    public static void main(String[] args) throws Exception {
+        // jets3t logs every throttled request, which would drown the results
+        JETS3T_LOGGER.setLevel(Level.SEVERE);
+        int maxConcurrent = Integer.getInteger("benchmark.max.concurrent", 32);
+        S3StandIn standIn = new S3StandIn();
+        standIn.setLatency(Long.getLong("benchmark.latency", 20));
+        standIn.setMaxConcurrentRequests(maxConcurrent);
+        standIn.start();
+
+        File workDir = File.createTempFile("s3-benchmark", "");
+        workDir.delete();
+        workDir.mkdirs();
+        try {
+            ParallelTasksBenchmark benchmark = new ParallelTasksBenchmark(standIn, workDir, Integer.getInteger("benchmark.tasks", 4),
+                Integer.getInteger("benchmark.files", 500), Long.getLong("benchmark.file.size", 65536), Integer.getInteger(
+                    "benchmark.concurrency", 64));
+            benchmark.generate();
+            benchmark.run("ungoverned", 0);
+            benchmark.run("governed", Integer.getInteger("benchmark.max.requests", maxConcurrent));
+        } finally {
+            standIn.stop();
+            delete(workDir);
+        }
+    }
+
+    private void run(String name, int maxRequests) {
+        System.out.println(name + ": " + this.tasks + " tasks of " + this.files + " files of "
+            + TransferUtils.getFormattedSize(this.fileSize) + ", concurrency " + this.concurrency + " per task"
+            + (maxRequests == 0 ? "" : ", maxRequests " + maxRequests));
+        TransferGovernor.get().setMaxRequests(0);
+        measure("  upload", maxRequests, true);
+        measure("  download", maxRequests, false);
+    }
+
+    private void measure(String name, int maxRequests, boolean upload) {
+        Parallel parallel = new Parallel();
+        parallel.setProject(this.project);
+        S3Task[] tasks = new S3Task[this.tasks];
+        for (int i = 0; i < this.tasks; i++) {
+            tasks[i] = new S3Task(createTask(i, maxRequests, upload));
+            tasks[i].setProject(this.project);
+            parallel.addTask(tasks[i]);
+        }
+
+        this.standIn.resetRequestCounts();
+        long startTime = System.currentTimeMillis();
+        parallel.execute();
+        long time = Math.max(1, System.currentTimeMillis() - startTime);
+
+        long fastest = Long.MAX_VALUE;
+        long slowest = 0;
+        for (S3Task task : tasks) {
+            fastest = Math.min(fastest, task.time);
+            slowest = Math.max(slowest, task.time);
+        }
+        long objects = (long) this.tasks * this.files;
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-11s %10s %10.1f objects/s  %s  tasks %s-%s  peak=%d", name, TransferUtils.getFormattedTime(time),
+            (objects * 1000.0) / time, TransferUtils.getFormattedSpeed(objects * this.fileSize, time), TransferUtils.getFormattedTime(fastest),
+            TransferUtils.getFormattedTime(slowest), this.standIn.getPeakConcurrentRequests()));
+        for (Map.Entry<String, Long> count : this.standIn.getRequestCounts().entrySet()) {
+            sb.append("  ").append(count.getKey()).append('=').append(count.getValue());
+        }
+        System.out.println(sb);
+        for (int i = 0; i < this.tasks; i++) {
+            if (tasks[i].failure != null) {
+                System.out.println("    task " + i + " failed: " + tasks[i].failure);
+            }
+        }
+    }
+
+    private SimpleStorageService createTask(int index, int maxRequests, boolean upload) {
+        SimpleStorageService task = new SimpleStorageService();
+        task.setProject(this.project);
+        task.setAccessKey("benchmark");
+        task.setSecretKey("benchmark");
+        if (maxRequests > 0) {
+            task.setMaxRequests(maxRequests);
+        }
+        if (upload) {
+            Upload operation = new Upload();
+            operation.setProject(this.project);
+            operation.setBucketName(BUCKET);
+            operation.addFileSet(createFileSet(new File(this.workDir, "upload/t" + index)));
+            operation.setToDir("t" + index);
+            configure(operation);
+            operation.init();
+            task.addConfiguredUpload(operation);
+        } else {
+            Download operation = new Download();
+            operation.setProject(this.project);
+            operation.setBucketName(BUCKET);
+            operation.addFileSet(createFileSet(new File(this.workDir, "t" + index)));
+            operation.setToDir(new File(this.workDir, "download/t" + index));
+            configure(operation);
+            operation.init();
+            task.addConfiguredDownload(operation);
+        }
+        return task;
+    }
+
+    private void configure(AbstractS3Operation operation) {
+        operation.setVirtualThreads(true);
+        operation.setMaxConcurrency(this.concurrency);
+    }
+
+    private FileSet createFileSet(File dir) {
+        FileSet fileSet = new FileSet();
+        fileSet.setProject(this.project);
+        fileSet.setDir(dir);
+        return fileSet;
+    }
+
+    private void generate() throws IOException {
+        Random random = new Random(42);
+        byte[] buffer = new byte[(int) this.fileSize];
+        for (int t = 0; t < this.tasks; t++) {
+            for (int i = 0; i < this.files; i++) {
+                File file = new File(this.workDir, "upload/t" + t + "/f" + i + ".bin");
+                file.getParentFile().mkdirs();
+                random.nextBytes(buffer);
+                OutputStream out = new FileOutputStream(file);
+                try {
+                    out.write(buffer);
+                } finally {
+                    out.close();
+                }
+            }
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Runs an <code>&lt;aws:s3&gt;</code> task as a nested task of <code>&lt;parallel&gt;</code>, recording its time
+     * and failure. Public, as Ant executes nested tasks reflectively.
+     */
+    public static final class S3Task extends Task {
+
+        private final SimpleStorageService task;
+
+        private volatile long time;
+
+        private volatile String failure;
+
+        private S3Task(SimpleStorageService task) {
+            this.task = task;
+        }
+
+        public void execute() {
+            long startTime = System.currentTimeMillis();
+            try {
+                this.task.execute();
+            } catch (BuildException e) {
+                this.failure = String.valueOf(e.getMessage());
+            }
+            this.time = System.currentTimeMillis() - startTime;
+        }
+    }
+
+}
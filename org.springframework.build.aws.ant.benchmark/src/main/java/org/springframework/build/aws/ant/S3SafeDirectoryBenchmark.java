@@ -0,0 +1,71 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tools.ant.Project;
+import org.jets3t.service.S3Service;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link AbstractS3Operation#getS3SafeDirectory(File)}, which is called for every key of a fileset based
+ * download.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class S3SafeDirectoryBenchmark {
+
+    private AbstractS3Operation operation;
+
+    private File directory;
+
+    @Setup
+    public void setUp() {
+        Project project = new Project();
+        project.setBaseDir(new File(System.getProperty("java.io.tmpdir")));
+
+        this.operation = new AbstractS3Operation() {
+
+            public void execute(S3Service service) {
+            }
+        };
+        this.operation.setProject(project);
+        this.directory = new File(project.getBaseDir(), "release/org/springframework/spring-core/3.0.5.RELEASE");
+    }
+
+    @Benchmark
+    public String getS3SafeDirectory() throws IOException {
+        return this.operation.getS3SafeDirectory(this.directory);
+    }
+
+}
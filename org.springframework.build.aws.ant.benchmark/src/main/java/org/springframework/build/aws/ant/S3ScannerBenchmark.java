@@ -0,0 +1,78 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.jets3t.service.model.S3Bucket;
+import org.jets3t.service.model.S3Object;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the include/exclude filtering that {@link S3Scanner} applies to a bucket listing. Listings are synthetic and
+ * generated from a fixed seed so that results are comparable between runs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class S3ScannerBenchmark {
+
+    private static final String BASE_DIRECTORY = "release/org/springframework/";
+
+    private static final String[] EXTENSIONS = { ".jar", "-sources.jar", ".pom", ".jar.sha1", ".pom.sha1", ".xml" };
+
+    @Param( { "10000", "100000", "1000000" })
+    private int keyCount;
+
+    private S3Object[] listing;
+
+    private S3Scanner scanner;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        this.listing = new S3Object[this.keyCount];
+        for (int i = 0; i < this.keyCount; i++) {
+            String key = BASE_DIRECTORY + "module" + random.nextInt(500) + "/" + random.nextInt(20) + "." + random.nextInt(10)
+                + ".RELEASE/artifact" + i + EXTENSIONS[random.nextInt(EXTENSIONS.length)];
+            this.listing[i] = new S3Object(key);
+        }
+        this.scanner = new S3Scanner(new S3Bucket("benchmark"), BASE_DIRECTORY, new String[] { "**/*.jar", "**/*.pom" },
+            new String[] { "**/*-sources.jar", "module1*/**" });
+    }
+
+    @Benchmark
+    public List<String> filter() {
+        return this.scanner.getQualifiyingKeys(this.listing);
+    }
+
+}
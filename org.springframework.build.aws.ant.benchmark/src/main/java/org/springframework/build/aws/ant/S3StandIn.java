@@ -0,0 +1,1150 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.SortedMap;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An in-process stand-in for the S3 REST API. It understands just enough of the protocol
+ * for the S3 operations of this task: object GET (including ranges), HEAD, PUT, DELETE and copy, bucket listings and
+ * multipart uploads. Each request can be delayed by a fixed latency, throttled to a bandwidth and failed with a
+ * <code>503 SlowDown</code> at a configurable rate, or whenever too many requests are in flight at once. A fraction of
+ * requests can also be made to stall, for the long tail of latency seen from S3. Requests are counted by type so that benchmarks can report request
+ * counts next to throughput.
+ * <p/>
+ * The stand-in speaks HTTP/1.1 over plain sockets rather than using the JDK's HTTP server, as the latter rewrites the
+ * case of header names and jets3t looks up response headers such as <code>ETag</code> case-sensitively. Small bodies
+ * are held in memory and larger ones spooled to temporary files, so that objects of several gigabytes can be stored
+ * without a heap to match.
+ */
+final class S3StandIn {
+
+    private static final Logger LOGGER = Logger.getLogger(S3StandIn.class.getName());
+
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    private static final int MEMORY_THRESHOLD = 4 * 1024;
+
+    private static final int DEFAULT_MAX_KEYS = 1000;
+
+    private static final Pattern COMPLETED_PART = Pattern.compile("<PartNumber>(\\d+)</PartNumber>\\s*<ETag>([^<]*)</ETag>");
+
+    // S3 lists keys in the binary order of their UTF-8 encodings, which differs from String order for some characters
+    private static final Comparator<String> KEY_ORDER = new Comparator<String>() {
+
+        public int compare(String a, String b) {
+            return SortedFileWalker.compareKeys(a, b);
+        }
+    };
+
+    private final ConcurrentMap<String, ConcurrentSkipListMap<String, StoredObject>> buckets = new ConcurrentHashMap<String, ConcurrentSkipListMap<String, StoredObject>>();
+
+    private final ConcurrentMap<String, MultipartState> multipartUploads = new ConcurrentHashMap<String, MultipartState>();
+
+    private final AtomicLong multipartUploadIds = new AtomicLong();
+
+    private final ConcurrentMap<String, AtomicLong> requestCounts = new ConcurrentHashMap<String, AtomicLong>();
+
+    private long latency = 0;
+
+    private long bandwidth = 0;
+
+    private double errorRate = 0;
+
+    private int maxConcurrentRequests = 0;
+
+    private double stallRate = 0;
+
+    private long stallTime = 0;
+
+    private final AtomicLong stalledRequests = new AtomicLong();
+
+    private final AtomicInteger concurrentRequests = new AtomicInteger();
+
+    private final AtomicInteger peakConcurrentRequests = new AtomicInteger();
+
+    private File spoolDirectory;
+
+    private ServerSocket serverSocket;
+
+    private ExecutorService executor;
+
+    /**
+     * Sets the latency added to every request
+     *
+     * @param latency The latency in milliseconds
+     */
+    public void setLatency(long latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * Sets the bandwidth available to each request body, in both directions. Zero means unlimited.
+     *
+     * @param bandwidth The bandwidth in bytes per second
+     */
+    public void setBandwidth(long bandwidth) {
+        this.bandwidth = bandwidth;
+    }
+
+    /**
+     * Sets the fraction of requests that fail with a <code>503 SlowDown</code>
+     *
+     * @param errorRate A rate between 0 and 1
+     */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * Sets the number of requests in flight at once above which further requests fail with a <code>503 SlowDown</code>,
+     * as S3 does when a prefix is sent more requests than it can take. Zero means unlimited.
+     *
+     * @param maxConcurrentRequests The maximum number of requests in flight
+     */
+    public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+        this.maxConcurrentRequests = maxConcurrentRequests;
+    }
+
+    /**
+     * Sets the fraction of requests that stall before they are answered, and for how long
+     *
+     * @param stallRate A rate between 0 and 1
+     * @param stallTime The time a stalled request waits, in milliseconds
+     */
+    public void setStall(double stallRate, long stallTime) {
+        this.stallRate = stallRate;
+        this.stallTime = stallTime;
+    }
+
+    public void start() throws IOException {
+        this.spoolDirectory = File.createTempFile("s3-stand-in", "");
+        if (!this.spoolDirectory.delete() || !this.spoolDirectory.mkdir()) {
+            throw new IOException("Unable to create " + this.spoolDirectory);
+        }
+        this.serverSocket = new ServerSocket(0, 512, InetAddress.getByName("127.0.0.1"));
+        this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "s3-stand-in");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.executor.execute(new Runnable() {
+
+            public void run() {
+                accept();
+            }
+        });
+    }
+
+    public void stop() throws IOException {
+        this.serverSocket.close();
+        this.executor.shutdownNow();
+        File[] files = this.spoolDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        this.spoolDirectory.delete();
+    }
+
+    public int getPort() {
+        return this.serverSocket.getLocalPort();
+    }
+
+    /**
+     * Returns the jets3t properties that point an S3 service at this stand-in
+     *
+     * @return The jets3t properties
+     */
+    public Properties getJets3tProperties() {
+        Properties properties = new Properties();
+        properties.setProperty("s3service.s3-endpoint", "127.0.0.1");
+        properties.setProperty("s3service.s3-endpoint-http-port", Integer.toString(getPort()));
+        properties.setProperty("s3service.https-only", "false");
+        properties.setProperty("s3service.disable-dns-buckets", "true");
+        return properties;
+    }
+
+    /**
+     * Returns a snapshot of the number of requests served, keyed by request type
+     *
+     * @return The request counts
+     */
+    public SortedMap<String, Long> getRequestCounts() {
+        SortedMap<String, Long> counts = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : this.requestCounts.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return counts;
+    }
+
+    /**
+     * Returns the largest number of requests that were in flight at once since the counts were last reset
+     *
+     * @return The peak number of requests in flight
+     */
+    public int getPeakConcurrentRequests() {
+        return this.peakConcurrentRequests.get();
+    }
+
+    /**
+     * Returns the number of requests that stalled since the counts were last reset
+     *
+     * @return The number of stalled requests
+     */
+    public long getStalledRequests() {
+        return this.stalledRequests.get();
+    }
+
+    public void resetRequestCounts() {
+        this.requestCounts.clear();
+        this.peakConcurrentRequests.set(0);
+        this.stalledRequests.set(0);
+    }
+
+    private void accept() {
+        try {
+            while (true) {
+                final Socket socket = this.serverSocket.accept();
+                this.executor.execute(new Runnable() {
+
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            }
+        } catch (IOException e) {
+            // Server socket closed
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            Request request;
+            while ((request = Request.read(in, out)) != null) {
+                int concurrent = this.concurrentRequests.incrementAndGet();
+                try {
+                    for (int peak = this.peakConcurrentRequests.get(); concurrent > peak; peak = this.peakConcurrentRequests.get()) {
+                        if (this.peakConcurrentRequests.compareAndSet(peak, concurrent)) {
+                            break;
+                        }
+                    }
+                    request.readBody(in, this.bandwidth, this.spoolDirectory);
+                    Response response;
+                    if ((this.maxConcurrentRequests > 0) && (concurrent > this.maxConcurrentRequests)) {
+                        pause(this.latency);
+                        count("503");
+                        response = Response.error(503, "SlowDown");
+                    } else {
+                        response = handle(request);
+                    }
+                    response.write(out, this.bandwidth);
+                    out.flush();
+                } finally {
+                    this.concurrentRequests.decrementAndGet();
+                }
+                if ("close".equalsIgnoreCase(request.headers.get("connection"))) {
+                    break;
+                }
+            }
+        } catch (SocketException e) {
+            // Client went away
+        } catch (EOFException e) {
+            // Client went away
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to serve request", e);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing to do at this point
+            }
+        }
+    }
+
+    private Response handle(Request request) {
+        pause(this.latency);
+
+        if ((this.stallRate > 0) && (ThreadLocalRandom.current().nextDouble() < this.stallRate)) {
+            this.stalledRequests.incrementAndGet();
+            pause(this.stallTime);
+        }
+
+        if ((this.errorRate > 0) && (ThreadLocalRandom.current().nextDouble() < this.errorRate)) {
+            count("503");
+            return Response.error(503, "SlowDown");
+        }
+
+        String path = request.path.substring(1);
+        int slash = path.indexOf('/');
+        String bucketName = slash == -1 ? path : path.substring(0, slash);
+        String key = slash == -1 ? "" : path.substring(slash + 1);
+
+        try {
+            if ((key.length() == 0) && "GET".equals(request.method) && request.query.containsKey("uploads")) {
+                count("LIST");
+                return listMultipartUploads(bucketName);
+            } else if ((key.length() > 0) && (request.query.containsKey("uploads") || request.query.containsKey("uploadId"))) {
+                return handleMultipart(request, bucketName, key);
+            } else if (key.length() == 0) {
+                if ("GET".equals(request.method)) {
+                    count("LIST");
+                    return list(getBucket(bucketName), request.query);
+                } else if ("PUT".equals(request.method)) {
+                    count("PUT");
+                    getBucket(bucketName);
+                    return new Response(200);
+                }
+            } else if ("GET".equals(request.method) || "HEAD".equals(request.method)) {
+                count(request.method);
+                return get(request, getBucket(bucketName).get(key));
+            } else if ("PUT".equals(request.method) && request.headers.containsKey("x-amz-copy-source")) {
+                count("COPY");
+                return copy(request, getBucket(bucketName), key);
+            } else if ("PUT".equals(request.method)) {
+                count("PUT");
+                return put(request, getBucket(bucketName), key);
+            } else if ("DELETE".equals(request.method)) {
+                count("DELETE");
+                getBucket(bucketName).remove(key);
+                return new Response(204);
+            }
+            return Response.error(405, "MethodNotAllowed");
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to handle " + request.method + " " + request.path, e);
+            return Response.error(500, "InternalError");
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to handle " + request.method + " " + request.path, e);
+            return Response.error(500, "InternalError");
+        }
+    }
+
+    private Response get(Request request, StoredObject object) {
+        if (object == null) {
+            return Response.error(404, "NoSuchKey");
+        }
+
+        long start = 0;
+        long end = object.data.length() - 1;
+        Response response = new Response(200);
+        String range = request.headers.get("range");
+        if ((range != null) && range.startsWith("bytes=")) {
+            String[] bounds = range.substring("bytes=".length()).split("-", 2);
+            start = Long.parseLong(bounds[0]);
+            if (bounds[1].length() > 0) {
+                end = Math.min(end, Long.parseLong(bounds[1]));
+            }
+            response = new Response(206);
+            response.headers.put("Content-Range", "bytes " + start + "-" + end + "/" + object.data.length());
+        }
+
+        response.headers.put("ETag", object.etag);
+        response.headers.put("Last-Modified", formatDate("EEE, dd MMM yyyy HH:mm:ss z", object.lastModified));
+        response.headers.put("Content-Type", "application/octet-stream");
+        response.headers.putAll(object.metadata);
+        response.setBody(object.data, start, end - start + 1, "HEAD".equals(request.method));
+        return response;
+    }
+
+    private Response put(Request request, ConcurrentSkipListMap<String, StoredObject> bucket, String key) {
+        StoredObject object = new StoredObject(request.body, getMetadata(request), request.getBodyETag());
+        bucket.put(key, object);
+
+        Response response = new Response(200);
+        response.headers.put("ETag", object.etag);
+        return response;
+    }
+
+    private Response copy(Request request, ConcurrentSkipListMap<String, StoredObject> bucket, String key) throws IOException {
+        StoredObject sourceObject = getCopySource(request);
+        if (sourceObject == null) {
+            return Response.error(404, "NoSuchKey");
+        }
+        Map<String, String> metadata = "REPLACE".equalsIgnoreCase(request.headers.get("x-amz-metadata-directive")) ? getMetadata(request)
+            : sourceObject.metadata;
+        StoredObject object = new StoredObject(sourceObject.data, metadata, StoredObject.etag(sourceObject.data));
+        bucket.put(key, object);
+        return Response.xml(200, "<?xml version=\"1.0\" encoding=\"UTF-8\"?><CopyObjectResult><LastModified>"
+            + formatDate("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", object.lastModified) + "</LastModified><ETag>" + escape(object.etag)
+            + "</ETag></CopyObjectResult>");
+    }
+
+    private StoredObject getCopySource(Request request) throws UnsupportedEncodingException {
+        String source = URLDecoder.decode(request.headers.get("x-amz-copy-source"), "UTF-8");
+        if (source.startsWith("/")) {
+            source = source.substring(1);
+        }
+        int slash = source.indexOf('/');
+        return slash == -1 ? null : getBucket(source.substring(0, slash)).get(source.substring(slash + 1));
+    }
+
+    private Response copyPart(Request request, MultipartState upload) throws IOException {
+        StoredObject sourceObject = getCopySource(request);
+        if (sourceObject == null) {
+            return Response.error(404, "NoSuchKey");
+        }
+        String ifMatch = request.headers.get("x-amz-copy-source-if-match");
+        if ((ifMatch != null) && !unquote(ifMatch).equals(unquote(sourceObject.etag))) {
+            return Response.error(412, "PreconditionFailed");
+        }
+        long start = 0;
+        long end = sourceObject.data.length() - 1;
+        String range = request.headers.get("x-amz-copy-source-range");
+        if ((range != null) && range.startsWith("bytes=")) {
+            String[] bounds = range.substring("bytes=".length()).split("-", 2);
+            start = Long.parseLong(bounds[0]);
+            end = Long.parseLong(bounds[1]);
+            if ((start > end) || (end >= sourceObject.data.length())) {
+                return Response.error(416, "InvalidRange");
+            }
+        }
+        MessageDigest digest = StoredObject.md5();
+        Data data;
+        InputStream in = sourceObject.data.open(start);
+        try {
+            data = Data.read(in, (end - start) + 1, 0, this.spoolDirectory, digest);
+        } finally {
+            in.close();
+        }
+        StoredObject part = new StoredObject(data, new HashMap<String, String>(), StoredObject.quote(digest.digest()));
+        upload.parts.put(Integer.valueOf(request.query.get("partNumber")), part);
+        return Response.xml(200, "<?xml version=\"1.0\" encoding=\"UTF-8\"?><CopyPartResult><LastModified>"
+            + formatDate("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", part.lastModified) + "</LastModified><ETag>" + escape(part.etag)
+            + "</ETag></CopyPartResult>");
+    }
+
+    private Response handleMultipart(Request request, String bucketName, String key) throws IOException {
+        if ("POST".equals(request.method) && request.query.containsKey("uploads")) {
+            count("POST");
+            String uploadId = "upload-" + this.multipartUploadIds.incrementAndGet();
+            this.multipartUploads.put(uploadId, new MultipartState(bucketName, key, getMetadata(request)));
+            return Response.xml(200, "<?xml version=\"1.0\" encoding=\"UTF-8\"?><InitiateMultipartUploadResult><Bucket>" + escape(bucketName)
+                + "</Bucket><Key>" + escape(key) + "</Key><UploadId>" + uploadId + "</UploadId></InitiateMultipartUploadResult>");
+        }
+
+        String uploadId = request.query.get("uploadId");
+        MultipartState upload = this.multipartUploads.get(uploadId);
+        if ((upload == null) || !upload.bucketName.equals(bucketName) || !upload.key.equals(key)) {
+            count(request.method);
+            return Response.error(404, "NoSuchUpload");
+        }
+
+        if ("PUT".equals(request.method) && request.headers.containsKey("x-amz-copy-source")) {
+            count("COPY");
+            return copyPart(request, upload);
+        } else if ("PUT".equals(request.method)) {
+            count("PUT");
+            StoredObject part = new StoredObject(request.body, new HashMap<String, String>(), request.getBodyETag());
+            upload.parts.put(Integer.valueOf(request.query.get("partNumber")), part);
+            Response response = new Response(200);
+            response.headers.put("ETag", part.etag);
+            return response;
+        } else if ("GET".equals(request.method)) {
+            count("LIST");
+            StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?><ListPartsResult><Bucket>");
+            xml.append(escape(bucketName)).append("</Bucket><Key>").append(escape(key)).append("</Key><UploadId>").append(uploadId);
+            xml.append("</UploadId><IsTruncated>false</IsTruncated>");
+            for (Map.Entry<Integer, StoredObject> part : upload.parts.entrySet()) {
+                xml.append("<Part><PartNumber>").append(part.getKey()).append("</PartNumber><LastModified>");
+                xml.append(formatDate("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", part.getValue().lastModified)).append("</LastModified><ETag>");
+                xml.append(escape(part.getValue().etag)).append("</ETag><Size>").append(part.getValue().data.length()).append("</Size></Part>");
+            }
+            return Response.xml(200, xml.append("</ListPartsResult>").toString());
+        } else if ("DELETE".equals(request.method)) {
+            count("DELETE");
+            this.multipartUploads.remove(uploadId);
+            return new Response(204);
+        } else if ("POST".equals(request.method)) {
+            count("POST");
+            return completeMultipartUpload(request, uploadId, upload);
+        }
+        return Response.error(405, "MethodNotAllowed");
+    }
+
+    private Response completeMultipartUpload(Request request, String uploadId, MultipartState upload) throws IOException {
+        String body = new String(request.body.toByteArray(), "UTF-8");
+        List<Data> data = new ArrayList<Data>();
+        MessageDigest digest = StoredObject.md5();
+        int parts = 0;
+        Matcher matcher = COMPLETED_PART.matcher(body);
+        while (matcher.find()) {
+            StoredObject part = upload.parts.get(Integer.valueOf(matcher.group(1)));
+            // S3 accepts part ETags with or without their quotes
+            if ((part == null) || !unquote(part.etag).equals(unquote(matcher.group(2).replace("&quot;", "\"")))) {
+                return Response.error(400, "InvalidPart");
+            }
+            data.add(part.data);
+            digest.update(StoredObject.fromHex(unquote(part.etag)));
+            parts++;
+        }
+        if (parts == 0) {
+            return Response.error(400, "MalformedXML");
+        }
+
+        String etag = "\"" + StoredObject.toHex(digest.digest()) + "-" + parts + "\"";
+        getBucket(upload.bucketName).put(upload.key, new StoredObject(new CompositeData(data), upload.metadata, etag));
+        this.multipartUploads.remove(uploadId);
+        return Response.xml(200, "<?xml version=\"1.0\" encoding=\"UTF-8\"?><CompleteMultipartUploadResult><Location>http://standin/"
+            + escape(upload.bucketName) + "/" + escape(upload.key) + "</Location><Bucket>" + escape(upload.bucketName) + "</Bucket><Key>"
+            + escape(upload.key) + "</Key><ETag>" + escape(etag) + "</ETag></CompleteMultipartUploadResult>");
+    }
+
+    private Response listMultipartUploads(String bucketName) {
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?><ListMultipartUploadsResult><Bucket>");
+        xml.append(escape(bucketName)).append("</Bucket><IsTruncated>false</IsTruncated>");
+        for (Map.Entry<String, MultipartState> entry : this.multipartUploads.entrySet()) {
+            MultipartState upload = entry.getValue();
+            if (upload.bucketName.equals(bucketName)) {
+                xml.append("<Upload><Key>").append(escape(upload.key)).append("</Key><UploadId>").append(entry.getKey());
+                xml.append("</UploadId><Initiator><ID>standin</ID><DisplayName>standin</DisplayName></Initiator>");
+                xml.append("<Owner><ID>standin</ID><DisplayName>standin</DisplayName></Owner><StorageClass>STANDARD</StorageClass>");
+                xml.append("<Initiated>").append(formatDate("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", upload.initiated)).append("</Initiated></Upload>");
+            }
+        }
+        return Response.xml(200, xml.append("</ListMultipartUploadsResult>").toString());
+    }
+
+    private static String unquote(String etag) {
+        return etag.startsWith("\"") && etag.endsWith("\"") ? etag.substring(1, etag.length() - 1) : etag;
+    }
+
+    private static Map<String, String> getMetadata(Request request) {
+        Map<String, String> metadata = new HashMap<String, String>();
+        for (Map.Entry<String, String> header : request.headers.entrySet()) {
+            if (header.getKey().startsWith("x-amz-meta-")) {
+                metadata.put(header.getKey(), header.getValue());
+            }
+        }
+        return metadata;
+    }
+
+    private Response list(ConcurrentSkipListMap<String, StoredObject> bucket, Map<String, String> query) {
+        String prefix = query.containsKey("prefix") ? query.get("prefix") : "";
+        String marker = query.get("marker");
+        String delimiter = query.get("delimiter");
+        if ((delimiter != null) && (delimiter.length() == 0)) {
+            delimiter = null;
+        }
+        int maxKeys = query.containsKey("max-keys") ? Integer.parseInt(query.get("max-keys")) : DEFAULT_MAX_KEYS;
+
+        SortedMap<String, StoredObject> candidates;
+        if ((marker != null) && (SortedFileWalker.compareKeys(marker, prefix) >= 0)) {
+            candidates = bucket.tailMap(marker, false);
+        } else {
+            candidates = bucket.tailMap(prefix, true);
+        }
+
+        StringBuilder contents = new StringBuilder();
+        StringBuilder commonPrefixes = new StringBuilder();
+        String lastCommonPrefix = null;
+        String lastKey = null;
+        int count = 0;
+        boolean truncated = false;
+        for (Map.Entry<String, StoredObject> entry : candidates.entrySet()) {
+            String key = entry.getKey();
+            if (!key.startsWith(prefix)) {
+                break;
+            }
+            if (count == maxKeys) {
+                truncated = true;
+                break;
+            }
+            int delimiterIndex = delimiter == null ? -1 : key.indexOf(delimiter, prefix.length());
+            if (delimiterIndex != -1) {
+                String commonPrefix = key.substring(0, delimiterIndex + delimiter.length());
+                if (!commonPrefix.equals(lastCommonPrefix)) {
+                    commonPrefixes.append("<CommonPrefixes><Prefix>").append(escape(commonPrefix)).append("</Prefix></CommonPrefixes>");
+                    lastCommonPrefix = commonPrefix;
+                    count++;
+                }
+            } else {
+                StoredObject object = entry.getValue();
+                contents.append("<Contents><Key>").append(escape(key)).append("</Key><LastModified>");
+                contents.append(formatDate("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", object.lastModified));
+                contents.append("</LastModified><ETag>").append(escape(object.etag)).append("</ETag><Size>");
+                contents.append(object.data.length()).append("</Size><Owner><ID>standin</ID><DisplayName>standin</DisplayName>");
+                contents.append("</Owner><StorageClass>STANDARD</StorageClass></Contents>");
+                count++;
+            }
+            lastKey = key;
+        }
+
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        xml.append("<ListBucketResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\"><Name>standin</Name>");
+        xml.append("<Prefix>").append(escape(prefix)).append("</Prefix>");
+        xml.append("<Marker>").append(marker == null ? "" : escape(marker)).append("</Marker>");
+        if (truncated && (lastKey != null)) {
+            xml.append("<NextMarker>").append(escape(lastKey)).append("</NextMarker>");
+        }
+        xml.append("<MaxKeys>").append(maxKeys).append("</MaxKeys>");
+        xml.append("<IsTruncated>").append(truncated).append("</IsTruncated>");
+        xml.append(contents).append(commonPrefixes).append("</ListBucketResult>");
+        return Response.xml(200, xml.toString());
+    }
+
+    private void count(String type) {
+        AtomicLong counter = this.requestCounts.get(type);
+        if (counter == null) {
+            AtomicLong candidate = new AtomicLong();
+            counter = this.requestCounts.putIfAbsent(type, candidate);
+            if (counter == null) {
+                counter = candidate;
+            }
+        }
+        counter.incrementAndGet();
+    }
+
+    private ConcurrentSkipListMap<String, StoredObject> getBucket(String name) {
+        ConcurrentSkipListMap<String, StoredObject> bucket = this.buckets.get(name);
+        if (bucket == null) {
+            ConcurrentSkipListMap<String, StoredObject> candidate = new ConcurrentSkipListMap<String, StoredObject>(KEY_ORDER);
+            bucket = this.buckets.putIfAbsent(name, candidate);
+            if (bucket == null) {
+                bucket = candidate;
+            }
+        }
+        return bucket;
+    }
+
+    private static String escape(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    private static String formatDate(String pattern, Date date) {
+        DateFormat format = new SimpleDateFormat(pattern, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(date);
+    }
+
+    private static void throttle(long bandwidth, long startTime, long bytes) {
+        if (bandwidth > 0) {
+            long expectedMillis = (bytes * 1000) / bandwidth;
+            long elapsedMillis = (System.nanoTime() - startTime) / 1000000;
+            pause(expectedMillis - elapsedMillis);
+        }
+    }
+
+    private static void pause(long millis) {
+        if (millis > 0) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static final class Request {
+
+        private final String method;
+
+        private final String path;
+
+        private final Map<String, String> query;
+
+        private final Map<String, String> headers;
+
+        private Data body = new MemoryData(new byte[0]);
+
+        private byte[] bodyDigest = StoredObject.md5().digest();
+
+        private Request(String method, String path, Map<String, String> query, Map<String, String> headers) {
+            this.method = method;
+            this.path = path;
+            this.query = query;
+            this.headers = headers;
+        }
+
+        private static Request read(InputStream in, OutputStream out) throws IOException {
+            String requestLine = readLine(in);
+            if ((requestLine == null) || (requestLine.length() == 0)) {
+                return null;
+            }
+            String[] parts = requestLine.split(" ");
+            String target = parts[1];
+            int queryIndex = target.indexOf('?');
+            String path = URLDecoder.decode(queryIndex == -1 ? target : target.substring(0, queryIndex), "UTF-8");
+            Map<String, String> query = parseQuery(queryIndex == -1 ? null : target.substring(queryIndex + 1));
+
+            Map<String, String> headers = new HashMap<String, String>();
+            String line;
+            while (((line = readLine(in)) != null) && (line.length() > 0)) {
+                int colon = line.indexOf(':');
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ENGLISH), line.substring(colon + 1).trim());
+            }
+
+            if ("100-continue".equalsIgnoreCase(headers.get("expect"))) {
+                out.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes("US-ASCII"));
+                out.flush();
+            }
+            return new Request(parts[0], path, query, headers);
+        }
+
+        private void readBody(InputStream in, long bandwidth, File spoolDirectory) throws IOException {
+            String contentLength = this.headers.get("content-length");
+            if (contentLength == null) {
+                return;
+            }
+            MessageDigest digest = StoredObject.md5();
+            this.body = Data.read(in, Long.parseLong(contentLength), bandwidth, spoolDirectory, digest);
+            this.bodyDigest = digest.digest();
+        }
+
+        private String getBodyETag() {
+            return StoredObject.quote(this.bodyDigest);
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+            int b;
+            while ((b = in.read()) != -1) {
+                if (b == '\n') {
+                    break;
+                }
+                if (b != '\r') {
+                    line.write(b);
+                }
+            }
+            if ((b == -1) && (line.size() == 0)) {
+                return null;
+            }
+            return line.toString("US-ASCII");
+        }
+
+        private static Map<String, String> parseQuery(String rawQuery) throws UnsupportedEncodingException {
+            Map<String, String> query = new HashMap<String, String>();
+            if (rawQuery != null) {
+                for (String parameter : rawQuery.split("&")) {
+                    int equals = parameter.indexOf('=');
+                    if (equals == -1) {
+                        query.put(URLDecoder.decode(parameter, "UTF-8"), "");
+                    } else {
+                        query.put(URLDecoder.decode(parameter.substring(0, equals), "UTF-8"),
+                            URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+                    }
+                }
+            }
+            return query;
+        }
+    }
+
+    private static final class Response {
+
+        private final int status;
+
+        private final Map<String, String> headers = new LinkedHashMap<String, String>();
+
+        private Data body = new MemoryData(new byte[0]);
+
+        private long offset = 0;
+
+        private long length = 0;
+
+        private boolean headOnly = false;
+
+        private Response(int status) {
+            this.status = status;
+        }
+
+        private static Response xml(int status, String xml) {
+            Response response = new Response(status);
+            response.headers.put("Content-Type", "application/xml");
+            try {
+                byte[] body = xml.getBytes("UTF-8");
+                response.setBody(new MemoryData(body), 0, body.length, false);
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+            return response;
+        }
+
+        private static Response error(int status, String code) {
+            return xml(status, "<?xml version=\"1.0\" encoding=\"UTF-8\"?><Error><Code>" + code + "</Code><Message>" + code
+                + "</Message><RequestId>standin</RequestId></Error>");
+        }
+
+        private void setBody(Data body, long offset, long length, boolean headOnly) {
+            this.body = body;
+            this.offset = offset;
+            this.length = length;
+            this.headOnly = headOnly;
+        }
+
+        private void write(OutputStream out, long bandwidth) throws IOException {
+            StringBuilder head = new StringBuilder();
+            head.append("HTTP/1.1 ").append(this.status).append(' ').append(reason(this.status)).append("\r\n");
+            head.append("Date: ").append(formatDate("EEE, dd MMM yyyy HH:mm:ss z", new Date())).append("\r\n");
+            head.append("x-amz-request-id: standin\r\n");
+            for (Map.Entry<String, String> header : this.headers.entrySet()) {
+                head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+            }
+            if (this.status != 204) {
+                head.append("Content-Length: ").append(this.length).append("\r\n");
+            }
+            head.append("\r\n");
+            out.write(head.toString().getBytes("UTF-8"));
+
+            if (!this.headOnly && (this.length > 0)) {
+                InputStream in = this.body.open(this.offset);
+                try {
+                    byte[] buffer = new byte[CHUNK_SIZE];
+                    long startTime = System.nanoTime();
+                    long written = 0;
+                    while (written < this.length) {
+                        int count = in.read(buffer, 0, (int) Math.min(CHUNK_SIZE, this.length - written));
+                        if (count == -1) {
+                            throw new IOException("Stored data ended after " + written + " of " + this.length + " bytes");
+                        }
+                        out.write(buffer, 0, count);
+                        written += count;
+                        if (bandwidth > 0) {
+                            out.flush();
+                            throttle(bandwidth, startTime, written);
+                        }
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+        }
+
+        private static String reason(int status) {
+            switch (status) {
+                case 200:
+                    return "OK";
+                case 204:
+                    return "No Content";
+                case 206:
+                    return "Partial Content";
+                case 400:
+                    return "Bad Request";
+                case 404:
+                    return "Not Found";
+                case 405:
+                    return "Method Not Allowed";
+                case 412:
+                    return "Precondition Failed";
+                case 416:
+                    return "Requested Range Not Satisfiable";
+                case 503:
+                    return "Service Unavailable";
+                default:
+                    return "Internal Server Error";
+            }
+        }
+    }
+
+    private static final class StoredObject {
+
+        private final Data data;
+
+        private final Map<String, String> metadata;
+
+        private final String etag;
+
+        private final Date lastModified = new Date();
+
+        private StoredObject(Data data, Map<String, String> metadata, String etag) {
+            this.data = data;
+            this.metadata = metadata;
+            this.etag = etag;
+        }
+
+        private static String etag(Data data) throws IOException {
+            MessageDigest digest = md5();
+            InputStream in = data.open(0);
+            try {
+                byte[] buffer = new byte[CHUNK_SIZE];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, count);
+                }
+            } finally {
+                in.close();
+            }
+            return quote(digest.digest());
+        }
+
+        private static String quote(byte[] digest) {
+            return "\"" + toHex(digest) + "\"";
+        }
+
+        private static MessageDigest md5() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static String toHex(byte[] bytes) {
+            StringBuilder sb = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        }
+
+        private static byte[] fromHex(String hex) {
+            byte[] bytes = new byte[hex.length() / 2];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, (i * 2) + 2), 16);
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * The bytes of a request body, an object or a part
+     */
+    private abstract static class Data {
+
+        abstract long length();
+
+        abstract InputStream open(long offset) throws IOException;
+
+        byte[] toByteArray() throws IOException {
+            byte[] bytes = new byte[(int) length()];
+            InputStream in = open(0);
+            try {
+                int read = 0;
+                while (read < bytes.length) {
+                    int count = in.read(bytes, read, bytes.length - read);
+                    if (count == -1) {
+                        throw new EOFException();
+                    }
+                    read += count;
+                }
+            } finally {
+                in.close();
+            }
+            return bytes;
+        }
+
+        /**
+         * Reads a number of bytes into memory, or into a file in the spool directory when there are more than a few
+         * kilobytes of them
+         */
+        static Data read(InputStream in, long length, long bandwidth, File spoolDirectory, MessageDigest digest) throws IOException {
+            File file = null;
+            OutputStream out;
+            ByteArrayOutputStream memory = null;
+            if (length > MEMORY_THRESHOLD) {
+                file = File.createTempFile("object", ".data", spoolDirectory);
+                out = new BufferedOutputStream(new FileOutputStream(file), CHUNK_SIZE);
+            } else {
+                memory = new ByteArrayOutputStream((int) length);
+                out = memory;
+            }
+
+            boolean success = false;
+            try {
+                byte[] buffer = new byte[CHUNK_SIZE];
+                long startTime = System.nanoTime();
+                long read = 0;
+                while (read < length) {
+                    int count = in.read(buffer, 0, (int) Math.min(CHUNK_SIZE, length - read));
+                    if (count == -1) {
+                        throw new EOFException();
+                    }
+                    out.write(buffer, 0, count);
+                    digest.update(buffer, 0, count);
+                    read += count;
+                    throttle(bandwidth, startTime, read);
+                }
+                out.close();
+                success = true;
+            } finally {
+                if (!success) {
+                    out.close();
+                    if (file != null) {
+                        file.delete();
+                    }
+                }
+            }
+            return file == null ? new MemoryData(memory.toByteArray()) : new FileData(file, length);
+        }
+    }
+
+    private static final class MemoryData extends Data {
+
+        private final byte[] bytes;
+
+        private MemoryData(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        long length() {
+            return this.bytes.length;
+        }
+
+        InputStream open(long offset) {
+            return new ByteArrayInputStream(this.bytes, (int) offset, this.bytes.length - (int) offset);
+        }
+    }
+
+    private static final class FileData extends Data {
+
+        private final File file;
+
+        private final long length;
+
+        private FileData(File file, long length) {
+            this.file = file;
+            this.length = length;
+        }
+
+        long length() {
+            return this.length;
+        }
+
+        InputStream open(long offset) throws IOException {
+            FileInputStream in = new FileInputStream(this.file);
+            in.getChannel().position(offset);
+            return new BufferedInputStream(in, CHUNK_SIZE);
+        }
+    }
+
+    /**
+     * The data of a completed multipart upload, read from its parts in turn rather than copied out of them
+     */
+    private static final class CompositeData extends Data {
+
+        private final List<Data> parts;
+
+        private final long length;
+
+        private CompositeData(List<Data> parts) {
+            this.parts = parts;
+            long total = 0;
+            for (Data part : parts) {
+                total += part.length();
+            }
+            this.length = total;
+        }
+
+        long length() {
+            return this.length;
+        }
+
+        InputStream open(long offset) throws IOException {
+            int first = 0;
+            long skip = offset;
+            while ((first < this.parts.size() - 1) && (skip >= this.parts.get(first).length())) {
+                skip -= this.parts.get(first).length();
+                first++;
+            }
+            final InputStream firstStream = this.parts.get(first).open(skip);
+            final int firstIndex = first;
+            // Parts are opened as they are reached, so that an object of many parts does not hold a file open for each
+            return new SequenceInputStream(new Enumeration<InputStream>() {
+
+                private int next = firstIndex;
+
+                public boolean hasMoreElements() {
+                    return this.next < CompositeData.this.parts.size();
+                }
+
+                public InputStream nextElement() {
+                    int index = this.next++;
+                    if (index == firstIndex) {
+                        return firstStream;
+                    }
+                    try {
+                        return CompositeData.this.parts.get(index).open(0);
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            });
+        }
+    }
+
+    private static final class MultipartState {
+
+        private final String bucketName;
+
+        private final String key;
+
+        private final Map<String, String> metadata;
+
+        private final Date initiated = new Date();
+
+        private final ConcurrentSkipListMap<Integer, StoredObject> parts = new ConcurrentSkipListMap<Integer, StoredObject>();
+
+        private MultipartState(String bucketName, String key, Map<String, String> metadata) {
+            this.bucketName = bucketName;
+            this.key = key;
+            this.metadata = metadata;
+        }
+    }
+
+}
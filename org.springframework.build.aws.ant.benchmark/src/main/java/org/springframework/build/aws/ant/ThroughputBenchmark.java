@@ -0,0 +1,330 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+import org.apache.tools.ant.DefaultLogger;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.FileSet;
+
+/**
+ * An end-to-end throughput benchmark that runs the <code>upload</code>, <code>download</code>,
+ * <code>downloadLatest</code> and <code>delete</code> operations against an in-process {@link S3StandIn}, along with
+ * a second upload of the unchanged files using <code>skipUnchanged</code>. It is configured with system properties:
+ *
+ * <pre>
+ * benchmark.files            Number of files to generate (default 1000)
+ * benchmark.file.size        Size of each file in bytes (default 4096)
+ * benchmark.latency          Latency added to each request in milliseconds (default 0)
+ * benchmark.bandwidth        Bandwidth of each request in bytes per second, 0 for unlimited (default 0)
+ * benchmark.error.rate       Fraction of requests failed with a 503 (default 0)
+ * benchmark.multithreaded    Whether the upload is multithreaded (default false)
+ * benchmark.virtual          Whether the upload, download and delete run on virtual threads (default false)
+ * benchmark.concurrency      Number of threads for multithreaded uploads, the concurrency limit on virtual threads
+ *                            and the number of HTTP connections (default: jets3t and operation defaults)
+ * benchmark.packed           Whether small files are packed on upload and download (default false)
+ * benchmark.stall.rate       Fraction of requests that stall (default 0)
+ * benchmark.stall.time       Time a stalled request waits in milliseconds (default 2000)
+ * benchmark.hedge            Whether downloads and listings are hedged (default false)
+ * </pre>
+ *
+ * Wall time, throughput and the number of requests of each type are reported for every operation, along with the
+ * number of stalled requests and, when hedging, the number of hedges sent and won. Downloaded files are
+ * compared with the generated ones so that a faster but broken transfer path cannot go unnoticed.
+ */
+public final class ThroughputBenchmark {
+
+    private static final String BUCKET = "benchmark";
+
+    private static final String PREFIX = "data";
+
+    private final S3StandIn standIn;
+
+    private final Project project;
+
+    private final File workDir;
+
+    private final int files;
+
+    private final long fileSize;
+
+    private final boolean multithreaded;
+
+    private final boolean packed;
+
+    private final boolean virtual;
+
+    private final Integer concurrency;
+
+    private final boolean hedge;
+
+    private ThroughputBenchmark(S3StandIn standIn, File workDir, int files, long fileSize, boolean multithreaded, boolean packed,
+        boolean virtual, Integer concurrency, boolean hedge) {
+        this.standIn = standIn;
+        this.workDir = workDir;
+        this.files = files;
+        this.fileSize = fileSize;
+        this.multithreaded = multithreaded;
+        this.packed = packed;
+        this.virtual = virtual;
+        this.concurrency = concurrency;
+        this.hedge = hedge;
+
+        this.project = new Project();
+        this.project.setBaseDir(workDir);
+        Properties properties = standIn.getJets3tProperties();
+        for (String name : properties.stringPropertyNames()) {
+            this.project.setProperty(name, properties.getProperty(name));
+        }
+        if (concurrency != null) {
+            this.project.setProperty("httpclient.max-connections", concurrency.toString());
+            this.project.setProperty("threaded-service.max-thread-count", concurrency.toString());
+            this.project.setProperty("threaded-service.admin-max-thread-count", concurrency.toString());
+        }
+        DefaultLogger logger = new DefaultLogger();
+        logger.setOutputPrintStream(System.out);
+        logger.setErrorPrintStream(System.err);
+        logger.setMessageOutputLevel(Project.MSG_WARN);
+        this.project.addBuildListener(logger);
+    }
+
+    public static void main(String[] args) throws Exception {
+        S3StandIn standIn = new S3StandIn();
+        standIn.setLatency(Long.getLong("benchmark.latency", 0));
+        standIn.setBandwidth(Long.getLong("benchmark.bandwidth", 0));
+        standIn.setErrorRate(Double.parseDouble(System.getProperty("benchmark.error.rate", "0")));
+        standIn.setStall(Double.parseDouble(System.getProperty("benchmark.stall.rate", "0")), Long.getLong("benchmark.stall.time", 2000));
+        standIn.start();
+
+        File workDir = File.createTempFile("s3-benchmark", "");
+        workDir.delete();
+        workDir.mkdirs();
+        try {
+            new ThroughputBenchmark(standIn, workDir, Integer.getInteger("benchmark.files", 1000), Long.getLong("benchmark.file.size", 4096),
+                Boolean.getBoolean("benchmark.multithreaded"), Boolean.getBoolean("benchmark.packed"), Boolean.getBoolean("benchmark.virtual"),
+                Integer.getInteger("benchmark.concurrency"), Boolean.getBoolean("benchmark.hedge")).run();
+        } finally {
+            standIn.stop();
+            delete(workDir);
+        }
+    }
+
+    private void run() throws IOException {
+        File uploadDir = new File(this.workDir, "upload");
+        generate(uploadDir);
+        long totalBytes = this.files * this.fileSize;
+
+        System.out.println("Mode: " + (this.virtual ? "virtual threads" : this.multithreaded ? "multithreaded upload" : "sequential")
+            + (VirtualThreadExecutor.isSupported() || !this.virtual ? "" : " (unsupported by this JVM, using platform threads)")
+            + (this.concurrency == null ? "" : ", concurrency: " + this.concurrency));
+        System.out.println("Files: " + this.files + ", file size: " + TransferUtils.getFormattedSize(this.fileSize) + ", total: "
+            + TransferUtils.getFormattedSize(totalBytes));
+
+        Upload upload = new Upload();
+        upload.setProject(this.project);
+        upload.setBucketName(BUCKET);
+        upload.addFileSet(createFileSet(uploadDir));
+        upload.setToDir(PREFIX);
+        upload.setMultithreaded(this.multithreaded);
+        upload.setPacked(this.packed);
+        configureConcurrency(upload);
+        upload.init();
+        SimpleStorageService uploadTask = createTask();
+        uploadTask.addConfiguredUpload(upload);
+        measure("upload", uploadTask, this.files, totalBytes);
+
+        if (!this.packed) {
+            Upload reupload = new Upload();
+            reupload.setProject(this.project);
+            reupload.setBucketName(BUCKET);
+            reupload.addFileSet(createFileSet(uploadDir));
+            reupload.setToDir(PREFIX);
+            reupload.setMultithreaded(this.multithreaded);
+            reupload.setSkipUnchanged(true);
+            configureConcurrency(reupload);
+            reupload.init();
+            SimpleStorageService reuploadTask = createTask();
+            reuploadTask.addConfiguredUpload(reupload);
+            measure("upload unchanged", reuploadTask, this.files, totalBytes);
+        }
+
+        Download download = new Download();
+        download.setProject(this.project);
+        download.setBucketName(BUCKET);
+        download.addFileSet(createFileSet(new File(this.workDir, PREFIX)));
+        download.setToDir(new File(this.workDir, "download"));
+        download.setPacked(this.packed);
+        download.setHedgeRequests(this.hedge);
+        configureConcurrency(download);
+        download.init();
+        SimpleStorageService downloadTask = createTask();
+        downloadTask.addConfiguredDownload(download);
+        measure("download", downloadTask, this.files, totalBytes);
+        reportHedging(download);
+        verify(uploadDir, new File(this.workDir, "download"));
+
+        DownloadLatest downloadLatest = new DownloadLatest();
+        downloadLatest.setProject(this.project);
+        downloadLatest.setBucketName(BUCKET);
+        downloadLatest.addFileSet(createFileSet(new File(this.workDir, PREFIX)));
+        downloadLatest.setToDir(new File(this.workDir, "latest"));
+        downloadLatest.setHedgeRequests(this.hedge);
+        configureConcurrency(downloadLatest);
+        downloadLatest.init();
+        SimpleStorageService downloadLatestTask = createTask();
+        downloadLatestTask.addConfiguredDownloadLatest(downloadLatest);
+        measure("downloadLatest", downloadLatestTask, 1, this.fileSize);
+
+        Delete delete = new Delete();
+        delete.setProject(this.project);
+        delete.setBucketName(BUCKET);
+        delete.addFileSet(createFileSet(new File(this.workDir, PREFIX)));
+        configureConcurrency(delete);
+        delete.init();
+        SimpleStorageService deleteTask = createTask();
+        deleteTask.addConfiguredDelete(delete);
+        measure("delete", deleteTask, this.files, 0);
+    }
+
+    private void measure(String name, SimpleStorageService task, long objects, long bytes) {
+        this.standIn.resetRequestCounts();
+        long startTime = System.currentTimeMillis();
+        task.execute();
+        long time = Math.max(1, System.currentTimeMillis() - startTime);
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-17s %10s %12.1f objects/s", name, TransferUtils.getFormattedTime(time), (objects * 1000.0) / time));
+        if (bytes > 0) {
+            sb.append("  ").append(TransferUtils.getFormattedSpeed(bytes, time));
+        }
+        long requests = 0;
+        for (Map.Entry<String, Long> count : this.standIn.getRequestCounts().entrySet()) {
+            sb.append("  ").append(count.getKey()).append('=').append(count.getValue());
+            requests += count.getValue();
+        }
+        sb.append("  total=").append(requests);
+        if (this.standIn.getStalledRequests() > 0) {
+            sb.append("  stalled=").append(this.standIn.getStalledRequests());
+        }
+        System.out.println(sb);
+    }
+
+    private void reportHedging(AbstractS3DownloadOperation operation) {
+        HedgedRequests gets = operation.getHedgedGets();
+        HedgedRequests listings = operation.getHedgedListings();
+        if ((gets != null) && (listings != null)) {
+            System.out.println(String.format("%-17s GET %d of %d hedged, %d won  LIST %d of %d hedged, %d won", "  hedging", gets.getHedged(),
+                gets.getRequests(), gets.getWon(), listings.getHedged(), listings.getRequests(), listings.getWon()));
+        }
+    }
+
+    private void configureConcurrency(AbstractS3Operation operation) {
+        operation.setVirtualThreads(this.virtual);
+        if (this.concurrency != null) {
+            operation.setMaxConcurrency(this.concurrency);
+        }
+    }
+
+    private SimpleStorageService createTask() {
+        SimpleStorageService task = new SimpleStorageService();
+        task.setProject(this.project);
+        task.setAccessKey("benchmark");
+        task.setSecretKey("benchmark");
+        return task;
+    }
+
+    private FileSet createFileSet(File dir) {
+        FileSet fileSet = new FileSet();
+        fileSet.setProject(this.project);
+        fileSet.setDir(dir);
+        return fileSet;
+    }
+
+    private void generate(File dir) throws IOException {
+        Random random = new Random(42);
+        byte[] buffer = new byte[(int) Math.min(this.fileSize, 1024 * 1024)];
+        for (int i = 0; i < this.files; i++) {
+            File file = new File(dir, "d" + (i / 1000) + "/f" + i + ".bin");
+            file.getParentFile().mkdirs();
+            OutputStream out = new FileOutputStream(file);
+            try {
+                long remaining = this.fileSize;
+                while (remaining > 0) {
+                    random.nextBytes(buffer);
+                    int length = (int) Math.min(buffer.length, remaining);
+                    out.write(buffer, 0, length);
+                    remaining -= length;
+                }
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    private void verify(File expectedDir, File actualDir) throws IOException {
+        for (int i = 0; i < this.files; i++) {
+            String path = "d" + (i / 1000) + "/f" + i + ".bin";
+            File expected = new File(expectedDir, path);
+            File actual = new File(actualDir, path);
+            if (!actual.isFile() || (actual.length() != expected.length()) || !Arrays.equals(digest(expected), digest(actual))) {
+                throw new IllegalStateException("Downloaded file " + actual + " does not match " + expected);
+            }
+        }
+    }
+
+    private static byte[] digest(File file) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            InputStream in = new FileInputStream(file);
+            try {
+                byte[] buffer = new byte[64 * 1024];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, count);
+                }
+            } finally {
+                in.close();
+            }
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+}
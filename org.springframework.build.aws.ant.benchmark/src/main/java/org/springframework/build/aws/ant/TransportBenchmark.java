@@ -0,0 +1,163 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jets3t.service.Jets3tProperties;
+import org.jets3t.service.S3Service;
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.impl.rest.httpclient.RestS3Service;
+import org.jets3t.service.security.AWSCredentials;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the {@link S3Transport}s on the same workload of <code>HEAD</code>, <code>GET</code>, <code>PUT</code> and
+ * listing requests, made from several threads against an in-process {@link S3StandIn}, so that the per-request
+ * overhead and connection handling of each client is measured rather than the network. The JDK transport is loaded by
+ * name, as it needs Java 11, and must be on the classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class TransportBenchmark {
+
+    private static final String BUCKET = "benchmark";
+
+    private static final int OBJECT_COUNT = 100;
+
+    private static final Map<String, String> HEADERS = new HashMap<String, String>();
+
+    @Param( { "jets3t", "jdk" })
+    private String transport;
+
+    @Param( { "1024", "1048576" })
+    private int size;
+
+    private S3StandIn standIn;
+
+    private S3Service service;
+
+    private S3Transport s3Transport;
+
+    private S3RequestBody body;
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    static {
+        HEADERS.put("Content-Type", "application/octet-stream");
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        this.standIn = new S3StandIn();
+        this.standIn.start();
+        Properties properties = this.standIn.getJets3tProperties();
+        properties.setProperty("httpclient.max-connections", "16");
+        if ("jets3t".equals(this.transport)) {
+            Jets3tProperties jets3tProperties = new Jets3tProperties();
+            jets3tProperties.loadAndReplaceProperties(properties, "benchmark");
+            this.service = new RestS3Service(new AWSCredentials("access", "secret"), "benchmark", null, jets3tProperties);
+            this.s3Transport = new JetS3tTransport(this.service);
+        } else {
+            this.s3Transport = (S3Transport) Class.forName("org.springframework.build.aws.ant.http.JdkHttpTransport").getConstructor(
+                String.class, String.class, Properties.class).newInstance("access", "secret", properties);
+        }
+        byte[] data = new byte[this.size];
+        new Random(42).nextBytes(data);
+        this.body = S3RequestBody.fromBytes(data);
+        for (int i = 0; i < OBJECT_COUNT; i++) {
+            this.s3Transport.put(BUCKET, getKey(i), this.body, HEADERS);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, ServiceException {
+        this.s3Transport.close();
+        if (this.service != null) {
+            this.service.shutdown();
+        }
+        this.standIn.stop();
+    }
+
+    @Benchmark
+    public S3ObjectInfo head() throws IOException {
+        return this.s3Transport.head(BUCKET, nextKey());
+    }
+
+    @Benchmark
+    public long get() throws IOException {
+        S3ObjectContent content = this.s3Transport.get(BUCKET, nextKey(), -1, -1, null);
+        try {
+            return drain(content.getBody());
+        } finally {
+            content.close();
+        }
+    }
+
+    @Benchmark
+    public String put() throws IOException {
+        return this.s3Transport.put(BUCKET, nextKey(), this.body, HEADERS);
+    }
+
+    @Benchmark
+    public S3ObjectListing list() throws IOException {
+        return this.s3Transport.list(BUCKET, "objects/", "/", null, 1000);
+    }
+
+    private String nextKey() {
+        return getKey((this.next.getAndIncrement() & Integer.MAX_VALUE) % OBJECT_COUNT);
+    }
+
+    private static String getKey(int i) {
+        return "objects/object-" + i;
+    }
+
+    private static long drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long total = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            total += read;
+        }
+        return total;
+    }
+
+}
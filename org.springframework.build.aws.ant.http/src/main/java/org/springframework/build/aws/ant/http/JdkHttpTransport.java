@@ -0,0 +1,478 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublisher;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.function.Supplier;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.jets3t.service.utils.ServiceUtils;
+import org.springframework.build.aws.ant.RequestSigner;
+import org.springframework.build.aws.ant.S3ObjectContent;
+import org.springframework.build.aws.ant.S3ObjectInfo;
+import org.springframework.build.aws.ant.S3ObjectListing;
+import org.springframework.build.aws.ant.S3RequestBody;
+import org.springframework.build.aws.ant.S3Transport;
+import org.springframework.build.aws.ant.S3TransportException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * An {@link S3Transport} over the JDK's {@link HttpClient}, which keeps its own pool of connections and needs no
+ * thread per idle connection. Requests are made over HTTP/1.1, as S3 does not speak HTTP/2, and bodies are streamed in
+ * both directions. Needs Java 11 or later.
+ * <p />
+ * The transport reads the same jets3t properties as the jets3t service for the endpoint it talks to:
+ * <code>s3service.s3-endpoint</code>, <code>s3service.https-only</code>, <code>s3service.s3-endpoint-http-port</code>,
+ * <code>s3service.s3-endpoint-https-port</code> and <code>s3service.disable-dns-buckets</code>. Requests that fail
+ * with an internal error or a <code>503 Slow Down</code> are retried up to
+ * <code>s3service.internal-error-retry-max</code> times, and requests that fail with an I/O error up to
+ * <code>httpclient.retry-max</code> times, backing off as jets3t does. The time to connect, and to wait for the headers
+ * of a response, are limited by <code>httpclient.connection-timeout-ms</code> and
+ * <code>httpclient.socket-timeout-ms</code>.
+ * 
+ * <pre>
+ * &lt;aws:s3 accessKey=&quot;${s3.accessKey}&quot; secretKey=&quot;${s3.secretKey}&quot;
+ *         transport=&quot;org.springframework.build.aws.ant.http.JdkHttpTransport&quot;&gt;
+ *     ...
+ * &lt;/aws:s3&gt;
+ * </pre>
+ */
+public final class JdkHttpTransport implements S3Transport {
+
+    private static final String UNRESERVED = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_.~";
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private static final Map<String, String> NO_HEADERS = Collections.emptyMap();
+
+    private static final Map<String, String> NO_PARAMETERS = Collections.emptyMap();
+
+    private final RequestSigner signer;
+
+    private final HttpClient client;
+
+    private final String endpoint;
+
+    private final String scheme;
+
+    private final int port;
+
+    private final boolean dnsBuckets;
+
+    private final int internalErrorRetryMax;
+
+    private final int ioErrorRetryMax;
+
+    private final Duration responseTimeout;
+
+    /**
+     * Creates a transport
+     * 
+     * @param accessKey The S3 access key
+     * @param secretKey The S3 secret key
+     * @param properties The jets3t properties of the project
+     */
+    public JdkHttpTransport(String accessKey, String secretKey, Properties properties) {
+        this.signer = new RequestSigner(accessKey, secretKey);
+        this.endpoint = properties.getProperty("s3service.s3-endpoint", "s3.amazonaws.com");
+        boolean httpsOnly = Boolean.parseBoolean(properties.getProperty("s3service.https-only", "true"));
+        this.scheme = httpsOnly ? "https" : "http";
+        this.port = Integer.parseInt(httpsOnly ? properties.getProperty("s3service.s3-endpoint-https-port", "443")
+            : properties.getProperty("s3service.s3-endpoint-http-port", "80"));
+        this.dnsBuckets = !Boolean.parseBoolean(properties.getProperty("s3service.disable-dns-buckets", "false"));
+        this.internalErrorRetryMax = Integer.parseInt(properties.getProperty("s3service.internal-error-retry-max", "5"));
+        this.ioErrorRetryMax = Integer.parseInt(properties.getProperty("httpclient.retry-max", "5"));
+        this.responseTimeout = Duration.ofMillis(Long.parseLong(properties.getProperty("httpclient.socket-timeout-ms", "60000")));
+        this.client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).connectTimeout(
+            Duration.ofMillis(Long.parseLong(properties.getProperty("httpclient.connection-timeout-ms", "60000")))).build();
+    }
+
+    public S3ObjectListing list(String bucket, String prefix, String delimiter, String marker, int maxKeys) throws IOException {
+        Map<String, String> parameters = new LinkedHashMap<String, String>();
+        if (prefix != null) {
+            parameters.put("prefix", prefix);
+        }
+        if (delimiter != null) {
+            parameters.put("delimiter", delimiter);
+        }
+        if (marker != null) {
+            parameters.put("marker", marker);
+        }
+        parameters.put("max-keys", Integer.toString(maxKeys));
+        Element result = readXml(send("GET", bucket, null, parameters, NO_HEADERS, null));
+        List<S3ObjectInfo> objects = new ArrayList<S3ObjectInfo>();
+        List<String> commonPrefixes = new ArrayList<String>();
+        for (Element child : getChildren(result)) {
+            if (child.getTagName().equals("Contents")) {
+                objects.add(new S3ObjectInfo(getChildText(child, "Key"), Long.parseLong(getChildText(child, "Size")),
+                    unquote(getChildText(child, "ETag")), parseIso8601Date(getChildText(child, "LastModified")),
+                    new HashMap<String, String>()));
+            } else if (child.getTagName().equals("CommonPrefixes")) {
+                commonPrefixes.add(getChildText(child, "Prefix"));
+            }
+        }
+        return new S3ObjectListing(objects, commonPrefixes, Boolean.parseBoolean(getChildText(result, "IsTruncated")), getChildText(
+            result, "NextMarker"));
+    }
+
+    public S3ObjectInfo head(String bucket, String key) throws IOException {
+        try {
+            HttpResponse<InputStream> response = send("HEAD", bucket, key, NO_PARAMETERS, NO_HEADERS, null);
+            response.body().close();
+            return createContent(key, response);
+        } catch (S3TransportException e) {
+            if (e.getStatusCode() == 404) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    public S3ObjectContent get(String bucket, String key, long rangeStart, long rangeEnd, String ifMatch) throws IOException {
+        Map<String, String> headers = new HashMap<String, String>();
+        if (rangeStart >= 0) {
+            headers.put("Range", "bytes=" + rangeStart + "-" + (rangeEnd >= 0 ? Long.toString(rangeEnd) : ""));
+        }
+        if (ifMatch != null) {
+            headers.put("If-Match", "\"" + unquote(ifMatch) + "\"");
+        }
+        return createContent(key, send("GET", bucket, key, NO_PARAMETERS, headers, null));
+    }
+
+    public String put(String bucket, String key, S3RequestBody body, Map<String, String> headers) throws IOException {
+        HttpResponse<InputStream> response = send("PUT", bucket, key, NO_PARAMETERS, headers, body);
+        response.body().close();
+        return unquote(response.headers().firstValue("ETag").orElse(null));
+    }
+
+    public void delete(String bucket, String key) throws IOException {
+        send("DELETE", bucket, key, NO_PARAMETERS, NO_HEADERS, null).body().close();
+    }
+
+    public String copy(String sourceBucket, String sourceKey, String bucket, String key, Map<String, String> headers)
+        throws IOException {
+        Map<String, String> copyHeaders = new HashMap<String, String>(headers);
+        copyHeaders.put("x-amz-copy-source", "/" + sourceBucket + "/" + encode(sourceKey, true));
+        return unquote(getChildText(readXml(send("PUT", bucket, key, NO_PARAMETERS, copyHeaders, null)), "ETag"));
+    }
+
+    public String startMultipartUpload(String bucket, String key, Map<String, String> headers) throws IOException {
+        Element result = readXml(send("POST", bucket, key, Collections.singletonMap("uploads", ""), headers, null));
+        return getChildText(result, "UploadId");
+    }
+
+    public String uploadPart(String bucket, String key, String uploadId, int partNumber, S3RequestBody body) throws IOException {
+        Map<String, String> parameters = new LinkedHashMap<String, String>();
+        parameters.put("partNumber", Integer.toString(partNumber));
+        parameters.put("uploadId", uploadId);
+        HttpResponse<InputStream> response = send("PUT", bucket, key, parameters, NO_HEADERS, body);
+        response.body().close();
+        return unquote(response.headers().firstValue("ETag").orElse(null));
+    }
+
+    public String copyPart(String sourceBucket, String sourceKey, String sourceETag, long rangeStart, long rangeEnd, String bucket,
+        String key, String uploadId, int partNumber) throws IOException {
+        Map<String, String> parameters = new LinkedHashMap<String, String>();
+        parameters.put("partNumber", Integer.toString(partNumber));
+        parameters.put("uploadId", uploadId);
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("x-amz-copy-source", "/" + sourceBucket + "/" + encode(sourceKey, true));
+        headers.put("x-amz-copy-source-range", "bytes=" + rangeStart + "-" + rangeEnd);
+        if (sourceETag != null) {
+            headers.put("x-amz-copy-source-if-match", "\"" + unquote(sourceETag) + "\"");
+        }
+        return unquote(getChildText(readXml(send("PUT", bucket, key, parameters, headers, null)), "ETag"));
+    }
+
+    public String completeMultipartUpload(String bucket, String key, String uploadId, List<String> partETags) throws IOException {
+        StringBuilder xml = new StringBuilder("<CompleteMultipartUpload>");
+        for (int i = 0; i < partETags.size(); i++) {
+            xml.append("<Part><PartNumber>").append(i + 1).append("</PartNumber><ETag>\"").append(unquote(partETags.get(i)));
+            xml.append("\"</ETag></Part>");
+        }
+        xml.append("</CompleteMultipartUpload>");
+        Map<String, String> headers = Collections.singletonMap("Content-Type", "application/xml");
+        S3RequestBody body = S3RequestBody.fromBytes(xml.toString().getBytes(StandardCharsets.UTF_8));
+        Element result = readXml(send("POST", bucket, key, Collections.singletonMap("uploadId", uploadId), headers, body));
+        return unquote(getChildText(result, "ETag"));
+    }
+
+    public void abortMultipartUpload(String bucket, String key, String uploadId) throws IOException {
+        send("DELETE", bucket, key, Collections.singletonMap("uploadId", uploadId), NO_HEADERS, null).body().close();
+    }
+
+    /**
+     * Closes the client where the JVM allows it, on Java 21 or later. Otherwise its idle connections are closed as
+     * they time out.
+     */
+    public void close() {
+        if (this.client instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) this.client).close();
+            } catch (Exception e) {
+                // Nothing to do at this point
+            }
+        }
+    }
+
+    /**
+     * Sends a request, retrying it as jets3t would, and returns a response with a successful status. The body of the
+     * response is streamed, and must be closed.
+     */
+    private HttpResponse<InputStream> send(String method, String bucket, String key, Map<String, String> parameters,
+        Map<String, String> headers, S3RequestBody body) throws IOException {
+        URI uri = getUri(bucket, key, parameters);
+        String encodedKey = key == null ? null : encode(key, true);
+        int internalErrors = 0;
+        int ioErrors = 0;
+        while (true) {
+            Map<String, String> requestHeaders = new HashMap<String, String>(headers);
+            requestHeaders.put("x-amz-date", RequestSigner.formatDate(new Date()));
+            requestHeaders.put("Authorization", this.signer.getAuthorization(method, bucket, encodedKey, parameters, requestHeaders));
+            HttpRequest.Builder request = HttpRequest.newBuilder(uri).timeout(this.responseTimeout).method(method, getPublisher(body));
+            for (Map.Entry<String, String> header : requestHeaders.entrySet()) {
+                request.header(header.getKey(), header.getValue());
+            }
+            HttpResponse<InputStream> response;
+            try {
+                response = this.client.send(request.build(), BodyHandlers.ofInputStream());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted during " + method + " " + uri);
+            } catch (UncheckedIOException e) {
+                // The body could not be read
+                throw e.getCause();
+            } catch (IOException e) {
+                if (ioErrors++ < this.ioErrorRetryMax) {
+                    continue;
+                }
+                throw new S3TransportException(method + " " + uri + " failed: " + e.getMessage(), 0, null, e);
+            }
+            int status = response.statusCode();
+            if ((status >= 200) && (status < 300)) {
+                return response;
+            }
+            S3TransportException failure = createException(method, uri, response);
+            if (((status == 500) || (status == 503)) && (internalErrors < this.internalErrorRetryMax)) {
+                pause(50L << internalErrors++);
+                continue;
+            }
+            throw failure;
+        }
+    }
+
+    private URI getUri(String bucket, String key, Map<String, String> parameters) {
+        StringBuilder uri = new StringBuilder(this.scheme).append("://");
+        boolean virtualHost = (bucket != null) && this.dnsBuckets && ServiceUtils.isBucketNameValidDNSName(bucket);
+        if (virtualHost) {
+            uri.append(bucket).append('.');
+        }
+        uri.append(this.endpoint).append(':').append(this.port).append('/');
+        if ((bucket != null) && !virtualHost) {
+            uri.append(bucket).append('/');
+        }
+        if (key != null) {
+            uri.append(encode(key, true));
+        }
+        char separator = '?';
+        for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+            uri.append(separator).append(encode(parameter.getKey(), false));
+            if (parameter.getValue().length() > 0) {
+                uri.append('=').append(encode(parameter.getValue(), false));
+            }
+            separator = '&';
+        }
+        return URI.create(uri.toString());
+    }
+
+    private static BodyPublisher getPublisher(final S3RequestBody body) {
+        if (body == null) {
+            return BodyPublishers.noBody();
+        }
+        // Opened again for each attempt
+        return BodyPublishers.fromPublisher(BodyPublishers.ofInputStream(new Supplier<InputStream>() {
+
+            public InputStream get() {
+                try {
+                    return body.open();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }), body.getLength());
+    }
+
+    private static S3ObjectContent createContent(String key, HttpResponse<InputStream> response) {
+        Map<String, String> headers = new HashMap<String, String>();
+        for (Map.Entry<String, List<String>> header : response.headers().map().entrySet()) {
+            if (!header.getValue().isEmpty()) {
+                headers.put(header.getKey().toLowerCase(Locale.ENGLISH), header.getValue().get(0));
+            }
+        }
+        Date lastModified = null;
+        if (headers.containsKey("last-modified")) {
+            try {
+                lastModified = ServiceUtils.parseRfc822Date(headers.get("last-modified"));
+            } catch (ParseException e) {
+                // Left unknown
+            }
+        }
+        long size = headers.containsKey("content-length") ? Long.parseLong(headers.get("content-length")) : -1;
+        return new S3ObjectContent(key, size, unquote(headers.get("etag")), lastModified, headers, response.body());
+    }
+
+    private static S3TransportException createException(String method, URI uri, HttpResponse<InputStream> response) throws IOException {
+        String errorCode = null;
+        String message = null;
+        InputStream in = response.body();
+        try {
+            byte[] body = in.readAllBytes();
+            if (body.length > 0) {
+                Element error = parseXml(body);
+                errorCode = getChildText(error, "Code");
+                message = getChildText(error, "Message");
+            }
+        } catch (IOException e) {
+            // Reported without the detail of the body
+        } finally {
+            in.close();
+        }
+        return new S3TransportException(method + " " + uri + " failed with " + response.statusCode() + (errorCode == null ? "" : " " + errorCode)
+            + (message == null ? "" : ": " + message), response.statusCode(), errorCode, null);
+    }
+
+    /**
+     * Reads the XML body of a response. S3 can report a failed copy or multipart completion with an error body after a
+     * successful status, so an error body is thrown as one.
+     */
+    private static Element readXml(HttpResponse<InputStream> response) throws IOException {
+        byte[] body;
+        InputStream in = response.body();
+        try {
+            body = in.readAllBytes();
+        } finally {
+            in.close();
+        }
+        Element root = parseXml(body);
+        if (root.getTagName().equals("Error")) {
+            String errorCode = getChildText(root, "Code");
+            throw new S3TransportException(response.request().method() + " " + response.uri() + " failed with " + errorCode + ": "
+                + getChildText(root, "Message"), response.statusCode(), errorCode, null);
+        }
+        return root;
+    }
+
+    private static Element parseXml(byte[] body) throws IOException {
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            Document document = factory.newDocumentBuilder().parse(new ByteArrayInputStream(body));
+            return document.getDocumentElement();
+        } catch (ParserConfigurationException e) {
+            throw new IllegalStateException(e);
+        } catch (SAXException e) {
+            throw new IOException("Unable to parse response: " + new String(body, StandardCharsets.UTF_8), e);
+        }
+    }
+
+    private static List<Element> getChildren(Element parent) {
+        List<Element> children = new ArrayList<Element>();
+        NodeList nodes = parent.getChildNodes();
+        for (int i = 0; i < nodes.getLength(); i++) {
+            if (nodes.item(i).getNodeType() == Node.ELEMENT_NODE) {
+                children.add((Element) nodes.item(i));
+            }
+        }
+        return children;
+    }
+
+    private static String getChildText(Element parent, String name) {
+        for (Element child : getChildren(parent)) {
+            if (child.getTagName().equals(name)) {
+                return child.getTextContent();
+            }
+        }
+        return null;
+    }
+
+    private static Date parseIso8601Date(String date) throws IOException {
+        try {
+            return date == null ? null : ServiceUtils.parseIso8601Date(date);
+        } catch (ParseException e) {
+            throw new IOException("Unable to parse date " + date, e);
+        }
+    }
+
+    /**
+     * Encodes a key or parameter as S3 expects, escaping everything but unreserved characters and, in a path, slashes
+     */
+    private static String encode(String value, boolean path) {
+        StringBuilder encoded = new StringBuilder();
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xff);
+            if ((UNRESERVED.indexOf(c) != -1) || (path && (c == '/'))) {
+                encoded.append(c);
+            } else {
+                encoded.append('%').append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+            }
+        }
+        return encoded.toString();
+    }
+
+    private static String unquote(String etag) {
+        return etag == null ? null : etag.replace("\"", "");
+    }
+
+    private static void pause(long millis) throws InterruptedIOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry");
+        }
+    }
+
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant.http;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.build.aws.ant.RequestSigner;
+import org.springframework.build.aws.ant.S3ObjectContent;
+import org.springframework.build.aws.ant.S3ObjectInfo;
+import org.springframework.build.aws.ant.S3ObjectListing;
+import org.springframework.build.aws.ant.S3RequestBody;
+import org.springframework.build.aws.ant.S3TransportException;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class JdkHttpTransportTests {
+
+    private static final String ACCESS_KEY = "access";
+
+    private static final String SECRET_KEY = "secret";
+
+    private final List<Request> requests = Collections.synchronizedList(new ArrayList<Request>());
+
+    private final List<Response> responses = Collections.synchronizedList(new LinkedList<Response>());
+
+    private HttpServer server;
+
+    private JdkHttpTransport transport;
+
+    @Before
+    public void startServer() throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        this.server.createContext("/", new HttpHandler() {
+
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream in = exchange.getRequestBody();
+                byte[] body = in.readAllBytes();
+                in.close();
+                JdkHttpTransportTests.this.requests.add(new Request(exchange, body));
+                Response response = JdkHttpTransportTests.this.responses.isEmpty() ? new Response(200, "")
+                    : JdkHttpTransportTests.this.responses.remove(0);
+                for (Map.Entry<String, String> header : response.headers.entrySet()) {
+                    exchange.getResponseHeaders().add(header.getKey(), header.getValue());
+                }
+                byte[] responseBody = response.body.getBytes(StandardCharsets.UTF_8);
+                if (exchange.getRequestMethod().equals("HEAD") || (responseBody.length == 0)) {
+                    exchange.sendResponseHeaders(response.status, -1);
+                } else {
+                    exchange.sendResponseHeaders(response.status, responseBody.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(responseBody);
+                    out.close();
+                }
+                exchange.close();
+            }
+        });
+        this.server.start();
+        Properties properties = new Properties();
+        properties.setProperty("s3service.s3-endpoint", "127.0.0.1");
+        properties.setProperty("s3service.https-only", "false");
+        properties.setProperty("s3service.s3-endpoint-http-port", Integer.toString(this.server.getAddress().getPort()));
+        properties.setProperty("s3service.disable-dns-buckets", "true");
+        properties.setProperty("s3service.internal-error-retry-max", "2");
+        this.transport = new JdkHttpTransport(ACCESS_KEY, SECRET_KEY, properties);
+    }
+
+    @After
+    public void stopServer() {
+        this.transport.close();
+        this.server.stop(0);
+    }
+
+    @Test
+    public void listParsesTheListing() throws IOException {
+        respond(200, "<ListBucketResult><Name>bucket</Name><IsTruncated>true</IsTruncated><NextMarker>dir/b</NextMarker>"
+            + "<Contents><Key>dir/a</Key><LastModified>2013-01-02T03:04:05.000Z</LastModified><ETag>\"abc\"</ETag><Size>12</Size></Contents>"
+            + "<Contents><Key>dir/b</Key><LastModified>2013-01-02T03:04:05.000Z</LastModified><ETag>\"def\"</ETag><Size>0</Size></Contents>"
+            + "<CommonPrefixes><Prefix>dir/sub/</Prefix></CommonPrefixes></ListBucketResult>");
+        S3ObjectListing listing = this.transport.list("bucket", "dir/", "/", null, 1000);
+        Request request = this.requests.get(0);
+        assertEquals("GET", request.method);
+        assertEquals("/bucket/", request.path);
+        assertEquals("prefix=dir%2F&delimiter=%2F&max-keys=1000", request.query);
+        assertSigned(request, "bucket", null, Collections.<String, String> emptyMap());
+        assertEquals(2, listing.getObjects().size());
+        S3ObjectInfo object = listing.getObjects().get(0);
+        assertEquals("dir/a", object.getKey());
+        assertEquals(12, object.getSize());
+        assertEquals("abc", object.getETag());
+        assertEquals(1357095845000L, object.getLastModified().getTime());
+        assertEquals(Arrays.asList("dir/sub/"), listing.getCommonPrefixes());
+        assertTrue(listing.isTruncated());
+        assertEquals("dir/b", listing.getNextMarker());
+    }
+
+    @Test
+    public void headOfAMissingObjectIsNull() throws IOException {
+        respond(404, "");
+        assertNull(this.transport.head("bucket", "missing"));
+        assertEquals("HEAD", this.requests.get(0).method);
+    }
+
+    @Test
+    public void headReturnsTheDetailsOfAnObject() throws IOException {
+        Response response = respond(200, "");
+        response.headers.put("ETag", "\"abc\"");
+        response.headers.put("Last-Modified", "Wed, 02 Jan 2013 03:04:05 GMT");
+        response.headers.put("x-amz-meta-owner", "me");
+        S3ObjectInfo object = this.transport.head("bucket", "dir/a b+c");
+        assertEquals("/bucket/dir/a%20b%2Bc", this.requests.get(0).rawPath);
+        assertEquals("abc", object.getETag());
+        assertEquals(1357095845000L, object.getLastModified().getTime());
+        assertEquals("me", object.getHeaders().get("x-amz-meta-owner"));
+    }
+
+    @Test
+    public void getSendsTheRangeAndETag() throws IOException {
+        respond(206, "data");
+        S3ObjectContent content = this.transport.get("bucket", "key", 10, 13, "abc");
+        try {
+            assertArrayEquals("data".getBytes(StandardCharsets.UTF_8), content.getBody().readAllBytes());
+            assertEquals(4, content.getSize());
+        } finally {
+            content.close();
+        }
+        Request request = this.requests.get(0);
+        assertEquals("bytes=10-13", request.headers.get("range"));
+        assertEquals("\"abc\"", request.headers.get("if-match"));
+    }
+
+    @Test
+    public void putSendsTheBodyAndHeaders() throws IOException {
+        respond(200, "").headers.put("ETag", "\"abc\"");
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Content-Type", "text/plain");
+        headers.put("x-amz-meta-owner", "me");
+        assertEquals("abc", this.transport.put("bucket", "key", S3RequestBody.fromBytes("hello".getBytes(StandardCharsets.UTF_8)), headers));
+        Request request = this.requests.get(0);
+        assertEquals("PUT", request.method);
+        assertEquals("hello", new String(request.body, StandardCharsets.UTF_8));
+        assertEquals("text/plain", request.headers.get("content-type"));
+        assertEquals("me", request.headers.get("x-amz-meta-owner"));
+        assertSigned(request, "bucket", "key", Collections.<String, String> emptyMap());
+    }
+
+    @Test
+    public void multipartUploadSignsItsSubresources() throws IOException {
+        respond(200, "<InitiateMultipartUploadResult><UploadId>upload</UploadId></InitiateMultipartUploadResult>");
+        respond(200, "").headers.put("ETag", "\"part1\"");
+        respond(200, "<CopyPartResult><ETag>\"part2\"</ETag></CopyPartResult>");
+        respond(200, "<CompleteMultipartUploadResult><ETag>\"abc-2\"</ETag></CompleteMultipartUploadResult>");
+        assertEquals("upload", this.transport.startMultipartUpload("bucket", "key", Collections.<String, String> emptyMap()));
+        assertEquals("part1", this.transport.uploadPart("bucket", "key", "upload", 1, S3RequestBody.fromBytes(new byte[3])));
+        assertEquals("part2", this.transport.copyPart("source", "a b", "\"old\"", 0, 99, "bucket", "key", "upload", 2));
+        assertEquals("abc-2", this.transport.completeMultipartUpload("bucket", "key", "upload", Arrays.asList("part1", "\"part2\"")));
+        assertEquals("uploads", this.requests.get(0).query);
+        assertSigned(this.requests.get(0), "bucket", "key", Collections.singletonMap("uploads", ""));
+        assertEquals("partNumber=1&uploadId=upload", this.requests.get(1).query);
+        Map<String, String> parameters = new HashMap<String, String>();
+        parameters.put("partNumber", "2");
+        parameters.put("uploadId", "upload");
+        Request copyPart = this.requests.get(2);
+        assertSigned(copyPart, "bucket", "key", parameters);
+        assertEquals("/source/a%20b", copyPart.headers.get("x-amz-copy-source"));
+        assertEquals("bytes=0-99", copyPart.headers.get("x-amz-copy-source-range"));
+        assertEquals("\"old\"", copyPart.headers.get("x-amz-copy-source-if-match"));
+        assertEquals("<CompleteMultipartUpload><Part><PartNumber>1</PartNumber><ETag>\"part1\"</ETag></Part>"
+            + "<Part><PartNumber>2</PartNumber><ETag>\"part2\"</ETag></Part></CompleteMultipartUpload>",
+            new String(this.requests.get(3).body, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void errorBodyAfterASuccessfulStatusIsThrown() throws IOException {
+        respond(200, "<Error><Code>InternalError</Code><Message>Try again</Message></Error>");
+        try {
+            this.transport.copy("source", "a", "bucket", "b", Collections.<String, String> emptyMap());
+            fail();
+        } catch (S3TransportException e) {
+            assertEquals("InternalError", e.getErrorCode());
+        }
+    }
+
+    @Test
+    public void internalErrorsAreRetried() throws IOException {
+        respond(503, "<Error><Code>SlowDown</Code><Message>Slow down</Message></Error>");
+        respond(500, "");
+        this.transport.delete("bucket", "key");
+        assertEquals(3, this.requests.size());
+        assertNotNull(this.requests.get(0).headers.get("x-amz-date"));
+    }
+
+    @Test
+    public void internalErrorsFailOnceRetriesRunOut() throws IOException {
+        for (int i = 0; i < 3; i++) {
+            respond(503, "<Error><Code>SlowDown</Code><Message>Slow down</Message></Error>");
+        }
+        try {
+            this.transport.delete("bucket", "key");
+            fail();
+        } catch (S3TransportException e) {
+            assertEquals(503, e.getStatusCode());
+            assertEquals("SlowDown", e.getErrorCode());
+        }
+        assertEquals(3, this.requests.size());
+    }
+
+    @Test
+    public void clientErrorsAreNotRetried() throws IOException {
+        respond(403, "<Error><Code>AccessDenied</Code><Message>Access Denied</Message></Error>");
+        try {
+            this.transport.get("bucket", "key", -1, -1, null);
+            fail();
+        } catch (S3TransportException e) {
+            assertEquals(403, e.getStatusCode());
+            assertEquals("AccessDenied", e.getErrorCode());
+        }
+        assertEquals(1, this.requests.size());
+        assertNull(this.requests.get(0).headers.get("range"));
+    }
+
+    private Response respond(int status, String body) {
+        Response response = new Response(status, body);
+        this.responses.add(response);
+        return response;
+    }
+
+    private static void assertSigned(Request request, String bucket, String encodedKey, Map<String, String> parameters) {
+        assertEquals(new RequestSigner(ACCESS_KEY, SECRET_KEY).getAuthorization(request.method, bucket, encodedKey, parameters,
+            request.headers), request.headers.get("authorization"));
+    }
+
+    private static final class Request {
+
+        private final String method;
+
+        private final String path;
+
+        private final String rawPath;
+
+        private final String query;
+
+        private final Map<String, String> headers = new HashMap<String, String>();
+
+        private final byte[] body;
+
+        private Request(HttpExchange exchange, byte[] body) {
+            this.method = exchange.getRequestMethod();
+            this.path = exchange.getRequestURI().getPath();
+            this.rawPath = exchange.getRequestURI().getRawPath();
+            this.query = exchange.getRequestURI().getRawQuery();
+            for (Map.Entry<String, List<String>> header : exchange.getRequestHeaders().entrySet()) {
+                this.headers.put(header.getKey().toLowerCase(Locale.ENGLISH), header.getValue().get(0));
+            }
+            this.body = body;
+        }
+    }
+
+    private static final class Response {
+
+        private final int status;
+
+        private final String body;
+
+        private final Map<String, String> headers = new HashMap<String, String>();
+
+        private Response(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+}
@@ -21,18 +21,373 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
+import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.PatternSet;
 import org.jets3t.service.S3Service;
 import org.jets3t.service.ServiceException;
 import org.jets3t.service.model.S3Bucket;
 import org.jets3t.service.model.S3Object;
+import org.jets3t.service.model.StorageObject;
 
 public abstract class AbstractS3DownloadOperation extends AbstractS3Operation {
 
-    private static final int BUFFER_SIZE = 64 * 1024;
+    private boolean extract = false;
 
-    protected void getFile(S3Service service, S3Bucket bucket, String key, File destination) throws ServiceException, IOException {
+    private final List<PatternSet> extractPatterns = new ArrayList<PatternSet>();
+
+    private File cacheDir;
+
+    private long cacheSize = 10L * 1024 * 1024 * 1024;
+
+    private boolean cacheLink;
+
+    private File listingSnapshotDir;
+
+    private long listingSnapshotMaxAge = 3600;
+
+    private final List<String> listingSnapshotRefresh = new ArrayList<String>();
+
+    private ListingSnapshots listingSnapshots;
+
+    private boolean hedgeRequests = false;
+
+    private double hedgePercentile = 95;
+
+    private double hedgeMaxRate = 0.05;
+
+    private HedgedRequests hedgedGets;
+
+    private HedgedRequests hedgedListings;
+
+    /**
+     * Optional parameter that corresponds to unpacking each downloaded archive into the directory it would have been
+     * downloaded to, as the archive streams in. Only the extracted files are written to disk. Zip, jar, war, ear, tar,
+     * tar.gz and tar.bz2 archives are recognized by their extension. Defaults to false.
+     * 
+     * @param extract
+     */
+    public void setExtract(boolean extract) {
+        this.extract = extract;
+    }
+
+    /**
+     * Adds optional patterns that select the archive entries to extract. Defaults to every entry.
+     * 
+     * @param extractPatterns The patterns of the entries to extract
+     */
+    public void addExtractPatterns(PatternSet extractPatterns) {
+        this.extractPatterns.add(extractPatterns);
+    }
+
+    /**
+     * Optional parameter that corresponds to a directory in which downloaded objects are cached, keyed by bucket, key and
+     * ETag. Before an object is downloaded its ETag is looked up, from the listing it came from or with a HEAD request,
+     * and a cached copy of that version is used instead if there is one. The directory can be shared by every build on a
+     * host. Not used when extracting archives. Defaults to no cache.
+     * 
+     * @param cacheDir The directory of the cache
+     */
+    public void setCacheDir(File cacheDir) {
+        this.cacheDir = cacheDir;
+    }
+
+    /**
+     * Optional parameter that corresponds to the size, in bytes, that the cache is kept under by evicting the least
+     * recently used objects. Defaults to 10 GB.
+     * 
+     * @param cacheSize The maximum size of the cache
+     */
+    public void setCacheSize(long cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * Optional parameter that corresponds to hard linking downloaded files with their cache entries instead of copying
+     * them, where the file system allows it. Linked files must be replaced rather than modified in place, or the cache
+     * entry is modified with them and is then removed from the cache the next time it is served. Defaults to false.
+     * 
+     * @param cacheLink Whether to link downloaded files with their cache entries
+     */
+    public void setCacheLink(boolean cacheLink) {
+        this.cacheLink = cacheLink;
+    }
+
+    /**
+     * Optional parameter that corresponds to a directory of listing snapshots, in which the objects found under each
+     * scanned 'directory' are kept in a compact file that is read instead of listing the bucket again. A snapshot is
+     * only as current as its last listing, so objects changed since are not seen until it is refreshed. The directory
+     * can be shared by every build on a host. Defaults to listing the bucket every time.
+     * 
+     * @param listingSnapshotDir The directory of listing snapshots
+     */
+    public void setListingSnapshotDir(File listingSnapshotDir) {
+        this.listingSnapshotDir = listingSnapshotDir;
+    }
+
+    /**
+     * Optional parameter that corresponds to the age, in seconds, after which a listing snapshot is replaced by a full
+     * listing. Defaults to 3600.
+     * 
+     * @param listingSnapshotMaxAge The maximum age of a snapshot
+     */
+    public void setListingSnapshotMaxAge(long listingSnapshotMaxAge) {
+        this.listingSnapshotMaxAge = listingSnapshotMaxAge;
+    }
+
+    /**
+     * Optional parameter that corresponds to a comma-separated list of prefixes, from the root of the bucket, that are
+     * listed again every time a listing snapshot is used, for the parts of a bucket known to change between builds.
+     * Objects outside them are read from the snapshot. Defaults to none.
+     * 
+     * @param listingSnapshotRefresh The prefixes to refresh
+     */
+    public void setListingSnapshotRefresh(String listingSnapshotRefresh) {
+        for (String prefix : listingSnapshotRefresh.split(",")) {
+            if (prefix.trim().length() > 0) {
+                this.listingSnapshotRefresh.add(prefix.trim());
+            }
+        }
+    }
+
+    /**
+     * Optional parameter that corresponds to hedging downloads, ranged downloads and listing pages: a request that
+     * takes longer than <code>hedgePercentile</code> of recent requests of its kind is sent again, the response that
+     * arrives first is used and the other request is aborted. Requests are only hedged once the operation has seen
+     * enough of their kind to estimate the percentile. The number of hedges sent, and how many of them won, are logged
+     * when the operation finishes. Defaults to false.
+     * 
+     * @param hedgeRequests
+     */
+    public void setHedgeRequests(boolean hedgeRequests) {
+        this.hedgeRequests = hedgeRequests;
+    }
+
+    /**
+     * Optional parameter that corresponds to the percentile of recent latencies after which a request is hedged.
+     * Defaults to 95.
+     * 
+     * @param hedgePercentile The percentile, between 0 and 100
+     */
+    public void setHedgePercentile(double hedgePercentile) {
+        this.hedgePercentile = hedgePercentile;
+    }
+
+    /**
+     * Optional parameter that corresponds to the largest fraction of requests that may be hedged, which caps the extra
+     * requests that hedging makes. Defaults to 0.05.
+     * 
+     * @param hedgeMaxRate The fraction of requests, between 0 and 1
+     */
+    public void setHedgeMaxRate(double hedgeMaxRate) {
+        this.hedgeMaxRate = hedgeMaxRate;
+    }
+
+    protected boolean isExtract() {
+        return this.extract;
+    }
+
+    /**
+     * Verify that the cache, listing snapshot and hedging parameters are valid
+     */
+    protected void initCache() {
+        if ((this.cacheDir != null) && (this.cacheSize <= 0)) {
+            throw new BuildException("cacheSize must be positive");
+        }
+        if ((this.listingSnapshotDir != null) && (this.listingSnapshotMaxAge < 0)) {
+            throw new BuildException("listingSnapshotMaxAge must not be negative");
+        }
+        if (this.hedgeRequests && ((this.hedgePercentile <= 0) || (this.hedgePercentile >= 100))) {
+            throw new BuildException("hedgePercentile must be between 0 and 100");
+        }
+        if (this.hedgeRequests && ((this.hedgeMaxRate < 0) || (this.hedgeMaxRate > 1))) {
+            throw new BuildException("hedgeMaxRate must be between 0 and 1");
+        }
+    }
+
+    /**
+     * Returns the download cache of this operation
+     * 
+     * @return The cache, or <code>null</code> if objects are not cached or archives are extracted
+     * @throws IOException if the cache directory cannot be created
+     */
+    protected DownloadCache getCache() throws IOException {
+        if ((this.cacheDir == null) || this.extract) {
+            return null;
+        }
+        return DownloadCache.get(this.cacheDir, this.cacheSize);
+    }
+
+    protected boolean isCacheLink() {
+        return this.cacheLink;
+    }
+
+    protected S3Scanner getS3Scanner(S3Bucket bucket, PatternSet patterns, String baseDirectory) {
+        S3Scanner scanner = super.getS3Scanner(bucket, patterns, baseDirectory);
+        scanner.setSnapshots(getListingSnapshots());
+        scanner.setHedging(getHedgedListings());
+        return scanner;
+    }
+
+    /**
+     * Returns the listing snapshots of this operation
+     * 
+     * @return The snapshots, or <code>null</code> if the bucket is listed every time
+     */
+    protected synchronized ListingSnapshots getListingSnapshots() {
+        if ((this.listingSnapshots == null) && (this.listingSnapshotDir != null)) {
+            this.listingSnapshots = new ListingSnapshots(this, this.listingSnapshotDir, this.listingSnapshotMaxAge * 1000,
+                this.listingSnapshotRefresh);
+        }
+        return this.listingSnapshots;
+    }
+
+    /**
+     * Only the listings taken for listing snapshots are made with the transport
+     */
+    protected boolean usesTransport() {
+        return this.listingSnapshotDir != null;
+    }
+
+    /**
+     * Returns the hedging of the downloads of this operation
+     * 
+     * @return The hedging, or <code>null</code> if requests are not hedged
+     */
+    protected synchronized HedgedRequests getHedgedGets() {
+        if ((this.hedgedGets == null) && this.hedgeRequests) {
+            this.hedgedGets = new HedgedRequests(this.hedgePercentile, this.hedgeMaxRate);
+        }
+        return this.hedgedGets;
+    }
+
+    /**
+     * Returns the hedging of the listing pages of this operation
+     * 
+     * @return The hedging, or <code>null</code> if requests are not hedged
+     */
+    protected synchronized HedgedRequests getHedgedListings() {
+        if ((this.hedgedListings == null) && this.hedgeRequests) {
+            this.hedgedListings = new HedgedRequests(this.hedgePercentile, this.hedgeMaxRate);
+        }
+        return this.hedgedListings;
+    }
+
+    /**
+     * Logs how many requests were hedged, and how many hedges won, once the operation has finished
+     */
+    void logHedging() {
+        logHedging("downloads", getHedgedGets());
+        logHedging("listing pages", getHedgedListings());
+    }
+
+    private void logHedging(String kind, HedgedRequests hedging) {
+        if ((hedging == null) || (hedging.getRequests() == 0)) {
+            return;
+        }
+        this.project.log("Hedged " + hedging.getHedged() + " of " + hedging.getRequests() + " " + kind + ", " + hedging.getWon()
+            + " hedges won", hedging.getHedged() == 0 ? Project.MSG_VERBOSE : Project.MSG_INFO);
+    }
+
+    /**
+     * Downloads an object, or a range of it, hedging the request if requests are hedged
+     * 
+     * @param service The S3 service to download with
+     * @param bucket The bucket to download from
+     * @param key The key of the object
+     * @param byteRangeStart The offset of the first byte of the range, or <code>null</code>
+     * @param byteRangeEnd The offset of the last byte of the range, or <code>null</code>
+     * @return The object, with its body still to be read
+     * @throws ServiceException
+     */
+    protected S3Object getObject(S3Service service, S3Bucket bucket, String key, Long byteRangeStart, Long byteRangeEnd)
+        throws ServiceException {
+        HedgedRequests hedging = getHedgedGets();
+        if (hedging == null) {
+            return service.getObject(bucket.getName(), key, null, null, null, null, byteRangeStart, byteRangeEnd);
+        }
+        return hedging.getObject(service, bucket.getName(), key, null, byteRangeStart, byteRangeEnd);
+    }
+
+    protected long getFile(S3Service service, S3Bucket bucket, String key, File destination) throws ServiceException, IOException {
+        return getFile(service, bucket, key, destination, null);
+    }
+
+    /**
+     * Downloads an object to a file. The data is checked against the MD5 hash of the object as it is written, and a
+     * file that fails the check or is only partially downloaded is removed. When the download is part of a multi-file
+     * transfer, per-file messages are logged at verbose level and the transfer is recorded with the supplied progress
+     * reporter instead.
+     * 
+     * @param service The S3 service to download with
+     * @param bucket The bucket to download from
+     * @param key The key of the object to download
+     * @param destination The file to download to
+     * @param progress The progress reporter of a multi-file transfer, or <code>null</code> for a single file
+     * @return The number of bytes downloaded
+     * @throws ServiceException
+     * @throws IOException
+     */
+    protected long getFile(S3Service service, S3Bucket bucket, String key, File destination, ProgressReporter progress)
+        throws ServiceException, IOException {
+        if (this.extract) {
+            return extractFile(service, bucket, key, destination.getParentFile(), progress);
+        }
+        DownloadCache cache = getCache();
+        if (cache != null) {
+            StorageObject details = getObjectDetails(service, bucket, key);
+            if ((details != null) && getCachedFile(cache, bucket, details, destination, progress)) {
+                return details.getContentLength();
+            }
+        }
+        return downloadFile(service, bucket, key, destination, cache, progress);
+    }
+
+    /**
+     * Downloads a listed object to a file, as {@link #getFile(S3Service, S3Bucket, String, File, ProgressReporter)}
+     * does. The cache is checked against the ETag of the listing, without a request of its own.
+     * 
+     * @param service The S3 service to download with
+     * @param bucket The bucket to download from
+     * @param object The listed object to download
+     * @param destination The file to download to
+     * @param progress The progress reporter of a multi-file transfer, or <code>null</code> for a single file
+     * @return The number of bytes downloaded
+     * @throws ServiceException
+     * @throws IOException
+     */
+    protected long getFile(S3Service service, S3Bucket bucket, StorageObject object, File destination, ProgressReporter progress)
+        throws ServiceException, IOException {
+        if (this.extract) {
+            return extractFile(service, bucket, object.getKey(), destination.getParentFile(), progress);
+        }
+        DownloadCache cache = getCache();
+        if ((cache != null) && getCachedFile(cache, bucket, object, destination, progress)) {
+            return object.getContentLength();
+        }
+        return downloadFile(service, bucket, object.getKey(), destination, cache, progress);
+    }
+
+    private boolean getCachedFile(DownloadCache cache, S3Bucket bucket, StorageObject object, File destination, ProgressReporter progress) {
+        if ((object.getETag() == null)
+            || !cache.retrieve(bucket.getName(), object.getKey(), object.getETag(), object.getContentLength(), destination, this.cacheLink)) {
+            return false;
+        }
+        this.project.log("Copied s3://" + bucket.getName() + "/" + object.getKey() + " (" + TransferUtils.getFormattedSize(object.getContentLength())
+            + ") from the cache to " + destination.getAbsolutePath(), progress == null ? Project.MSG_INFO : Project.MSG_VERBOSE);
+        if (progress != null) {
+            progress.completed(object.getContentLength());
+        }
+        return true;
+    }
+
+    private long downloadFile(S3Service service, S3Bucket bucket, String key, File destination, DownloadCache cache, ProgressReporter progress)
+        throws ServiceException, IOException {
+        int logLevel = progress == null ? Project.MSG_INFO : Project.MSG_VERBOSE;
         InputStream in = null;
         OutputStream out = null;
         try {
@@ -40,19 +395,35 @@ public abstract class AbstractS3DownloadOperation extends AbstractS3Operation {
                 destination.getParentFile().mkdirs();
             }
 
-            S3Object source = service.getObject(bucket.getName(), key);
-            in = source.getDataInputStream();
+            S3Object source = getObject(service, bucket, key, null, null);
+            in = VerifyingInputStream.create(source);
+            // The destination may be a hard link to a cache entry, which must be replaced rather than written through
+            destination.delete();
             out = new FileOutputStream(destination);
 
-            logStart(source, destination);
+            logStart(source, destination, logLevel);
             long startTime = System.currentTimeMillis();
-            byte[] buffer = new byte[BUFFER_SIZE];
-            int length;
-            while ((length = in.read(buffer)) != -1) {
-                out.write(buffer, 0, length);
+            long length;
+            try {
+                length = TransferUtils.copy(in, out);
+            } catch (IOException e) {
+                out.close();
+                out = null;
+                destination.delete();
+                throw e;
             }
             long endTime = System.currentTimeMillis();
-            logEnd(source, startTime, endTime);
+            logEnd(source, startTime, endTime, logLevel);
+            if ((cache != null) && (source.getETag() != null)) {
+                out.close();
+                out = null;
+                // Keyed by the ETag of the data received, in case the object changed since it was looked up
+                cache.store(bucket.getName(), key, source.getETag(), destination, this.cacheLink);
+            }
+            if (progress != null) {
+                progress.completed(length);
+            }
+            return length;
         } finally {
             if (in != null) {
                 try {
@@ -71,17 +442,69 @@ public abstract class AbstractS3DownloadOperation extends AbstractS3Operation {
         }
     }
 
-    private void logStart(S3Object source, File destination) throws IOException {
+    /**
+     * Downloads an archive and extracts it as it streams in. The archive is checked against the MD5 hash of the object
+     * once it has been read, and the extracted files are removed if the check fails.
+     * 
+     * @param service The S3 service to download with
+     * @param bucket The bucket to download from
+     * @param key The key of the archive to download
+     * @param toDir The directory to extract into
+     * @param progress The progress reporter of a multi-file transfer, or <code>null</code> for a single file
+     * @return The number of bytes downloaded
+     * @throws ServiceException
+     * @throws IOException
+     */
+    private long extractFile(S3Service service, S3Bucket bucket, String key, File toDir, ProgressReporter progress) throws ServiceException,
+        IOException {
+        int logLevel = progress == null ? Project.MSG_INFO : Project.MSG_VERBOSE;
+        List<String> includes = new ArrayList<String>();
+        List<String> excludes = new ArrayList<String>();
+        for (PatternSet patterns : this.extractPatterns) {
+            String[] includePatterns = patterns.getIncludePatterns(this.project);
+            if (includePatterns != null) {
+                includes.addAll(Arrays.asList(includePatterns));
+            }
+            String[] excludePatterns = patterns.getExcludePatterns(this.project);
+            if (excludePatterns != null) {
+                excludes.addAll(Arrays.asList(excludePatterns));
+            }
+        }
+
+        S3Object source = getObject(service, bucket, key, null, null);
+        InputStream in = VerifyingInputStream.create(source);
+        try {
+            this.project.log("Extracting s3://" + source.getBucketName() + "/" + source.getKey() + " ("
+                + TransferUtils.getFormattedSize(source.getContentLength()) + ") to " + toDir.getAbsolutePath(), logLevel);
+            long startTime = System.currentTimeMillis();
+            int files = new ArchiveExtractor(toDir, includes, excludes).extract(key, in);
+            long endTime = System.currentTimeMillis();
+            this.project.log("Extracted " + files + " files", logLevel);
+            logEnd(source, startTime, endTime, logLevel);
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // Nothing to do at this point
+            }
+        }
+        if (progress != null) {
+            progress.completed(source.getContentLength());
+        }
+        return source.getContentLength();
+    }
+
+    private void logStart(S3Object source, File destination, int logLevel) {
         this.project.log(
             "Downloading s3://" + source.getBucketName() + "/" + source.getKey() + " (" + TransferUtils.getFormattedSize(source.getContentLength())
-                + ") to " + destination.getCanonicalPath(), Project.MSG_INFO);
+                + ") to " + destination.getAbsolutePath(), logLevel);
     }
 
-    private void logEnd(S3Object source, long startTime, long endTime) {
+    private void logEnd(S3Object source, long startTime, long endTime, int logLevel) {
         long transferTime = endTime - startTime;
         this.project.log(
             "Transfer Time: " + TransferUtils.getFormattedTime(transferTime) + " - Transfer Rate: "
-                + TransferUtils.getFormattedSpeed(source.getContentLength(), transferTime), Project.MSG_INFO);
+                + TransferUtils.getFormattedSpeed(source.getContentLength(), transferTime), logLevel);
     }
 
 }
\ No newline at end of file
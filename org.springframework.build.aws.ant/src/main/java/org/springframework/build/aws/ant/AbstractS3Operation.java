@@ -18,10 +18,25 @@ package org.springframework.build.aws.ant;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Project;
 import org.apache.tools.ant.types.PatternSet;
+import org.jets3t.service.S3Service;
+import org.jets3t.service.ServiceException;
 import org.jets3t.service.model.S3Bucket;
+import org.jets3t.service.model.StorageObject;
 
 public abstract class AbstractS3Operation implements S3Operation {
 
@@ -29,6 +44,14 @@ public abstract class AbstractS3Operation implements S3Operation {
 
     protected Project project;
 
+    private long progressInterval = 10;
+
+    private boolean virtualThreads = false;
+
+    private int maxConcurrency = 256;
+
+    private S3Transport transport;
+
     /**
      * Required parameter that corresponds to the S3 bucket to delete from
      * 
@@ -47,6 +70,229 @@ public abstract class AbstractS3Operation implements S3Operation {
         this.project = project;
     }
 
+    /**
+     * Optional parameter that corresponds to the interval, in seconds, between progress reports for multi-file
+     * transfers. Must be at least 1. Defaults to 10.
+     * 
+     * @param progressInterval The interval between progress reports
+     */
+    public void setProgressInterval(long progressInterval) {
+        this.progressInterval = progressInterval;
+    }
+
+    /**
+     * Optional parameter that corresponds to transferring each object on its own virtual thread, for workloads of many
+     * small objects. Requires Java 21 or later; older JVMs fall back to a pool of platform threads. The HTTP connection
+     * pool should be sized to match with the <code>httpclient.max-connections</code> property. Defaults to false.
+     * 
+     * @param virtualThreads
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Optional parameter that corresponds to the maximum number of objects transferred at once when using virtual
+     * threads. Must be at least 1. Defaults to 256.
+     * 
+     * @param maxConcurrency The maximum number of concurrent transfers
+     */
+    public void setMaxConcurrency(int maxConcurrency) {
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    /**
+     * Infrastructure element, set when the parent S3 task is configured with a transport
+     * 
+     * @param transport The transport to make requests with
+     */
+    void setTransport(S3Transport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Returns the transport that operations built on transports make their requests with: the one configured on the
+     * parent S3 task, or one over the jets3t service otherwise
+     * 
+     * @param service The S3 service of the operation
+     * @return The transport
+     */
+    protected S3Transport getTransport(S3Service service) {
+        return this.transport == null ? new JetS3tTransport(service) : this.transport;
+    }
+
+    /**
+     * Returns whether the operation, as configured, makes any of its requests with the transport of the parent S3
+     * task rather than with the jets3t service
+     * 
+     * @return Whether the transport is used
+     */
+    protected boolean usesTransport() {
+        return false;
+    }
+
+    /**
+     * Verify that the parameters common to all operations are valid
+     */
+    protected void initOperation() {
+        if (this.progressInterval < 1) {
+            throw new BuildException("progressInterval must be at least 1");
+        }
+        if (this.maxConcurrency < 1) {
+            throw new BuildException("maxConcurrency must be at least 1");
+        }
+    }
+
+    protected boolean isVirtualThreads() {
+        return this.virtualThreads;
+    }
+
+    /**
+     * Runs an operation to completion on virtual threads, one per object, with at most <code>maxConcurrency</code>
+     * objects in flight. Every object is attempted; if any fail, each failure is logged and the first is thrown.
+     * 
+     * @param operation The operation to run
+     * @param service The S3 service to run it against
+     * @throws ServiceException
+     * @throws IOException
+     */
+    protected void executeOnVirtualThreads(AsyncS3Operation operation, S3Service service) throws ServiceException, IOException {
+        if (!VirtualThreadExecutor.isSupported()) {
+            this.project.log("Virtual threads are not supported by this JVM, using " + this.maxConcurrency + " platform threads",
+                Project.MSG_WARN);
+        }
+        ExecutorService executor = VirtualThreadExecutor.create(this.maxConcurrency);
+        try {
+            execute(operation, service, executor);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Runs an operation to completion on a pool of platform threads, for operations made of many small requests that are
+     * worth running in parallel even without virtual threads. Every object is attempted; if any fail, each failure is
+     * logged and the first is thrown.
+     * 
+     * @param operation The operation to run
+     * @param service The S3 service to run it against
+     * @param threads The number of threads
+     * @throws ServiceException
+     * @throws IOException
+     */
+    protected void executeOnThreads(AsyncS3Operation operation, S3Service service, int threads) throws ServiceException, IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "s3-request");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            execute(operation, service, executor);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Runs an operation to completion on the calling thread, using its asynchronous implementation. Every object is
+     * attempted; if any fail, each failure is logged and the first is thrown.
+     * 
+     * @param operation The operation to run
+     * @param service The S3 service to run it against
+     * @throws ServiceException
+     * @throws IOException
+     */
+    protected void executeSequentially(AsyncS3Operation operation, S3Service service) throws ServiceException, IOException {
+        execute(operation, service, new CallingThreadExecutor());
+    }
+
+    private void execute(AsyncS3Operation operation, S3Service service, ExecutorService executor) throws ServiceException, IOException {
+        try {
+            S3OperationResult result = operation.executeAsync(service, executor).get();
+            Map<String, Throwable> failures = result.getFailures();
+            for (Map.Entry<String, Throwable> failure : failures.entrySet()) {
+                this.project.log("Failed to process s3://" + this.bucketName + "/" + failure.getKey() + ": " + failure.getValue(),
+                    Project.MSG_ERR);
+            }
+            if (!failures.isEmpty()) {
+                rethrow(failures.values().iterator().next());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for transfers to complete");
+        } catch (ExecutionException e) {
+            rethrow(e.getCause());
+        }
+    }
+
+    private void rethrow(Throwable failure) throws ServiceException, IOException {
+        if (failure instanceof ServiceException) {
+            throw (ServiceException) failure;
+        }
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        throw new ServiceException(failure);
+    }
+
+    /**
+     * Creates and starts a reporter for the aggregate progress of a multi-file transfer. Callers must stop it when the
+     * transfer ends.
+     * 
+     * @param action The action being reported, e.g. <code>Uploaded</code>
+     * @return A started progress reporter
+     */
+    protected ProgressReporter startProgressReporter(String action) {
+        ProgressReporter progress = new ProgressReporter(this.project, action, this.progressInterval);
+        progress.start();
+        return progress;
+    }
+
+    /**
+     * Returns the details of an object without its data
+     * 
+     * @param service The S3 service to query
+     * @param bucket The bucket containing the object
+     * @param key The key of the object
+     * @return The object details, or <code>null</code> if the object does not exist
+     * @throws ServiceException
+     */
+    protected StorageObject getObjectDetails(S3Service service, S3Bucket bucket, String key) throws ServiceException {
+        try {
+            return service.getObjectDetails(bucket.getName(), key);
+        } catch (ServiceException e) {
+            if (e.getResponseCode() == 404) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Returns whether a local file has the same contents as an object, judged by length and ETag. Multipart ETags are
+     * recomputed from the file with its parts hashed in parallel.
+     * 
+     * @param file The local file
+     * @param object The object, or <code>null</code> if it does not exist
+     * @return <code>true</code> if both exist and have the same contents
+     * @throws IOException
+     */
+    protected boolean isUnchanged(File file, StorageObject object) throws IOException {
+        if ((object == null) || (object.getETag() == null) || !file.isFile() || (file.length() != object.getContentLength())) {
+            return false;
+        }
+        return MultipartETag.matches(file, object.getETag());
+    }
+
     /**
      * Returns a file scanner for an S3 repository.
      * 
@@ -91,4 +337,40 @@ public abstract class AbstractS3Operation implements S3Operation {
         return normalizedPath.substring(unneededPath.length() + 1).replace('\\', '/');
     }
 
+    /**
+     * An executor that runs each task immediately on the thread that submits it
+     */
+    private static final class CallingThreadExecutor extends AbstractExecutorService {
+
+        private volatile boolean shutdown;
+
+        public void execute(Runnable command) {
+            if (this.shutdown) {
+                throw new RejectedExecutionException();
+            }
+            command.run();
+        }
+
+        public void shutdown() {
+            this.shutdown = true;
+        }
+
+        public List<Runnable> shutdownNow() {
+            this.shutdown = true;
+            return Collections.emptyList();
+        }
+
+        public boolean isShutdown() {
+            return this.shutdown;
+        }
+
+        public boolean isTerminated() {
+            return this.shutdown;
+        }
+
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return this.shutdown;
+        }
+    }
+
 }
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.tools.ant.types.selectors.SelectorUtils;
+import org.apache.tools.bzip2.CBZip2InputStream;
+import org.apache.tools.tar.TarEntry;
+import org.apache.tools.tar.TarInputStream;
+
+/**
+ * Unpacks an archive as it is read from a stream, so that the archive itself never reaches the disk. Zip archives
+ * (including jars, wars and ears) and tar archives, plain or compressed with gzip or bzip2, are recognized by the
+ * extension of their key. Entries are selected by include and exclude patterns matched against their names.
+ * <p />
+ * Once the last entry has been read, the rest of the stream is read too, so that a stream that checks its data at the
+ * end gets the chance to do so. If extraction fails, the files extracted so far are removed.
+ */
+final class ArchiveExtractor {
+
+    private final File toDir;
+
+    private final List<String> includePatterns;
+
+    private final List<String> excludePatterns;
+
+    private final List<File> extracted = new ArrayList<File>();
+
+    /**
+     * Creates a new extractor
+     *
+     * @param toDir The directory to extract into
+     * @param includePatterns The patterns of entries to extract, or <code>null</code> to extract every entry
+     * @param excludePatterns The patterns of entries not to extract, or <code>null</code>
+     */
+    ArchiveExtractor(File toDir, List<String> includePatterns, List<String> excludePatterns) {
+        this.toDir = toDir;
+        if ((includePatterns == null) || includePatterns.isEmpty()) {
+            this.includePatterns = Collections.singletonList("**");
+        } else {
+            this.includePatterns = normalizePatterns(includePatterns);
+        }
+        if (excludePatterns == null) {
+            this.excludePatterns = Collections.emptyList();
+        } else {
+            this.excludePatterns = normalizePatterns(excludePatterns);
+        }
+    }
+
+    /**
+     * Extracts the selected entries of an archive
+     *
+     * @param key The key of the archive, whose extension gives its format
+     * @param in The stream of the archive, which is read to its end but not closed
+     * @return The number of files extracted
+     * @throws IOException if the archive format is not recognized or the archive cannot be read or extracted
+     */
+    int extract(String key, InputStream in) throws IOException {
+        try {
+            String name = key.toLowerCase(Locale.ENGLISH);
+            if (name.endsWith(".zip") || name.endsWith(".jar") || name.endsWith(".war") || name.endsWith(".ear")) {
+                extractZip(new ZipInputStream(in));
+            } else if (name.endsWith(".tar")) {
+                extractTar(new TarInputStream(in));
+            } else if (name.endsWith(".tar.gz") || name.endsWith(".tgz")) {
+                extractTar(new TarInputStream(new GZIPInputStream(in)));
+            } else if (name.endsWith(".tar.bz2") || name.endsWith(".tbz2")) {
+                // Ant's bzip2 stream expects the 'BZ' magic to have been read already
+                if ((in.read() != 'B') || (in.read() != 'Z')) {
+                    throw new IOException(key + " is not a bzip2 archive");
+                }
+                extractTar(new TarInputStream(new CBZip2InputStream(in)));
+            } else {
+                throw new IOException("Unable to extract " + key + ", only zip and tar archives can be extracted");
+            }
+            byte[] buffer = new byte[8192];
+            while (in.read(buffer) != -1) {
+                // Read the end of the archive that the archive format does not need
+            }
+        } catch (IOException e) {
+            deleteExtracted();
+            throw e;
+        } catch (RuntimeException e) {
+            deleteExtracted();
+            throw e;
+        }
+        return this.extracted.size();
+    }
+
+    private void extractZip(ZipInputStream in) throws IOException {
+        ZipEntry entry;
+        while ((entry = in.getNextEntry()) != null) {
+            extractEntry(in, entry.getName(), entry.isDirectory(), entry.getTime());
+        }
+    }
+
+    private void extractTar(TarInputStream in) throws IOException {
+        TarEntry entry;
+        while ((entry = in.getNextEntry()) != null) {
+            extractEntry(in, entry.getName(), entry.isDirectory(), entry.getModTime().getTime());
+        }
+    }
+
+    private void extractEntry(InputStream in, String entryName, boolean directory, long lastModified) throws IOException {
+        String name = entryName.replace('\\', '/');
+        while (name.startsWith("/")) {
+            name = name.substring(1);
+        }
+        for (String segment : name.split("/")) {
+            if ("..".equals(segment)) {
+                throw new IOException("Archive entry " + entryName + " would be extracted outside " + this.toDir.getAbsolutePath());
+            }
+        }
+        if ((name.length() == 0) || !matches(this.includePatterns, name) || matches(this.excludePatterns, name)) {
+            return;
+        }
+
+        File destination = new File(this.toDir, name);
+        if (directory) {
+            destination.mkdirs();
+            return;
+        }
+        if (!destination.getParentFile().exists()) {
+            destination.getParentFile().mkdirs();
+        }
+        this.extracted.add(destination);
+        // Replaced, in case it is a hard link into the download cache
+        destination.delete();
+        OutputStream out = new FileOutputStream(destination);
+        try {
+            TransferUtils.copy(in, out);
+        } finally {
+            out.close();
+        }
+        if (lastModified > 0) {
+            destination.setLastModified(lastModified);
+        }
+    }
+
+    private void deleteExtracted() {
+        for (File file : this.extracted) {
+            file.delete();
+        }
+        this.extracted.clear();
+    }
+
+    private static List<String> normalizePatterns(List<String> patterns) {
+        List<String> normalizedPatterns = new ArrayList<String>(patterns.size());
+        for (String pattern : patterns) {
+            normalizedPatterns.add(pattern.endsWith("/") ? pattern + "**" : pattern);
+        }
+        return normalizedPatterns;
+    }
+
+    private static boolean matches(List<String> patterns, String name) {
+        for (String pattern : patterns) {
+            if (SelectorUtils.matchPath(pattern, name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
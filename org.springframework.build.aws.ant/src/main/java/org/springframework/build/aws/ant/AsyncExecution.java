@@ -0,0 +1,313 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The future of an asynchronously executed S3 operation. The operation starts with a single planning task that submits
+ * one task per object; the future completes when the number of outstanding tasks drops to zero, so no thread is ever
+ * blocked waiting for another task to finish.
+ * <p />
+ * Cancelling the future completes it at once, but its completion callbacks, which release what the operation's tasks
+ * use, only run once every task has either finished or been withdrawn before it started.
+ */
+final class AsyncExecution implements S3OperationFuture {
+
+    /**
+     * A unit of work of an asynchronous operation
+     */
+    interface Task {
+
+        void run() throws Exception;
+    }
+
+    private final ExecutorService executor;
+
+    private final S3OperationResult result = new S3OperationResult();
+
+    private final List<Runnable> completionCallbacks = new ArrayList<Runnable>();
+
+    private final Set<Submission> queued = new HashSet<Submission>();
+
+    private final Set<Thread> running = new HashSet<Thread>();
+
+    private final Object monitor = new Object();
+
+    private int pending;
+
+    private boolean done;
+
+    private boolean cancelled;
+
+    private boolean finishing;
+
+    private boolean finished;
+
+    private Throwable failure;
+
+    AsyncExecution(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    S3OperationResult getResult() {
+        return this.result;
+    }
+
+    public void onComplete(Runnable callback) {
+        synchronized (this.monitor) {
+            if (!this.finished) {
+                this.completionCallbacks.add(callback);
+                return;
+            }
+        }
+        callback.run();
+    }
+
+    /**
+     * Starts the operation with the task that finds its objects. A failure of this task fails the whole operation.
+     *
+     * @param planner The planning task
+     */
+    void start(Task planner) {
+        submit(null, planner);
+    }
+
+    /**
+     * Submits the task for a single object. A failure of this task is recorded against the key in the result.
+     *
+     * @param key The key the task works on
+     * @param task The task
+     */
+    void submit(String key, Task task) {
+        Submission submission = new Submission(key, task);
+        synchronized (this.monitor) {
+            if (this.done) {
+                return;
+            }
+            this.pending++;
+            this.queued.add(submission);
+        }
+        try {
+            Future<?> future = this.executor.submit(submission);
+            synchronized (this.monitor) {
+                submission.future = future;
+            }
+        } catch (RejectedExecutionException e) {
+            if (submission.claim()) {
+                taskFailed(key, e);
+                taskEnded();
+            }
+        }
+    }
+
+    private void taskFailed(String key, Throwable t) {
+        if (key != null) {
+            this.result.failed(key, t);
+        } else {
+            synchronized (this.monitor) {
+                this.failure = t;
+            }
+        }
+    }
+
+    private void taskEnded() {
+        synchronized (this.monitor) {
+            if (--this.pending > 0) {
+                return;
+            }
+            if (!this.done) {
+                this.done = true;
+                this.monitor.notifyAll();
+            }
+        }
+        finish();
+    }
+
+    /**
+     * Runs the completion callbacks, once, including those registered while they run
+     */
+    private void finish() {
+        synchronized (this.monitor) {
+            if (this.finishing) {
+                return;
+            }
+            this.finishing = true;
+        }
+        while (true) {
+            List<Runnable> callbacks;
+            synchronized (this.monitor) {
+                if (this.completionCallbacks.isEmpty()) {
+                    this.finished = true;
+                    return;
+                }
+                callbacks = new ArrayList<Runnable>(this.completionCallbacks);
+                this.completionCallbacks.clear();
+            }
+            for (Runnable callback : callbacks) {
+                callback.run();
+            }
+        }
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        List<Submission> withdrawn;
+        List<Thread> threads;
+        synchronized (this.monitor) {
+            if (this.done) {
+                return false;
+            }
+            this.done = true;
+            this.cancelled = true;
+            this.monitor.notifyAll();
+            withdrawn = new ArrayList<Submission>(this.queued);
+            threads = new ArrayList<Thread>(this.running);
+        }
+        if (mayInterruptIfRunning) {
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+        }
+        for (Submission submission : withdrawn) {
+            if (submission.claim()) {
+                Future<?> future;
+                synchronized (this.monitor) {
+                    future = submission.future;
+                }
+                if (future != null) {
+                    future.cancel(false);
+                }
+                taskEnded();
+            }
+        }
+        synchronized (this.monitor) {
+            if (this.pending > 0) {
+                return true;
+            }
+        }
+        // Nothing was running or queued, or the last withdrawn task has already finished the operation
+        finish();
+        return true;
+    }
+
+    public boolean isCancelled() {
+        synchronized (this.monitor) {
+            return this.cancelled;
+        }
+    }
+
+    public boolean isDone() {
+        synchronized (this.monitor) {
+            return this.done;
+        }
+    }
+
+    public S3OperationResult get() throws InterruptedException, ExecutionException {
+        synchronized (this.monitor) {
+            while (!this.done) {
+                this.monitor.wait();
+            }
+        }
+        return getCompleted();
+    }
+
+    public S3OperationResult get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (this.monitor) {
+            while (!this.done) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new TimeoutException();
+                }
+                TimeUnit.NANOSECONDS.timedWait(this.monitor, remaining);
+            }
+        }
+        return getCompleted();
+    }
+
+    private S3OperationResult getCompleted() throws ExecutionException {
+        synchronized (this.monitor) {
+            if (this.cancelled) {
+                throw new CancellationException();
+            }
+            if (this.failure != null) {
+                throw new ExecutionException(this.failure);
+            }
+        }
+        return this.result;
+    }
+
+    /**
+     * A submitted task, which is either run by the executor or withdrawn by a cancellation, whichever claims it first
+     */
+    private final class Submission implements Runnable {
+
+        private final String key;
+
+        private final Task task;
+
+        private Future<?> future;
+
+        private boolean claimed;
+
+        private Submission(String key, Task task) {
+            this.key = key;
+            this.task = task;
+        }
+
+        private boolean claim() {
+            synchronized (AsyncExecution.this.monitor) {
+                if (this.claimed) {
+                    return false;
+                }
+                this.claimed = true;
+                AsyncExecution.this.queued.remove(this);
+                return true;
+            }
+        }
+
+        public void run() {
+            synchronized (AsyncExecution.this.monitor) {
+                if (!claim()) {
+                    return;
+                }
+                AsyncExecution.this.running.add(Thread.currentThread());
+            }
+            try {
+                this.task.run();
+            } catch (Throwable t) {
+                taskFailed(this.key, t);
+            } finally {
+                synchronized (AsyncExecution.this.monitor) {
+                    AsyncExecution.this.running.remove(Thread.currentThread());
+                }
+                taskEnded();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import java.util.concurrent.ExecutorService;
+
+import org.jets3t.service.S3Service;
+
+/**
+ * An S3 operation that can also be run without blocking the caller. The operation is split into one task per object,
+ * plus a task that finds the objects, and all of them run on the supplied executor. No task waits for another, so many
+ * operations can share an executor with only a few threads.
+ */
+public interface AsyncS3Operation extends S3Operation {
+
+    /**
+     * Start an S3 operation and return immediately. The returned future completes once every object has been
+     * transferred or has failed; failures of individual objects are reported in the result, while a failure to find
+     * the objects completes the future with an exception. Cancelling the future stops tasks that have not yet started
+     * and, if requested, interrupts those that are running. Work can be chained on the operation with
+     * {@link S3OperationFuture#onComplete(Runnable)}.
+     *
+     * @param service The S3 Service to execute against
+     * @param executor The executor to run the operation's tasks on
+     * @return The future result of the operation
+     */
+    S3OperationFuture executeAsync(S3Service service, ExecutorService executor);
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.jets3t.service.utils.ServiceUtils;
+
+/**
+ * The MD5 of each fixed-size block of a file as last uploaded to an object, kept locally so that the next upload of the
+ * file can tell which blocks have changed without reading the object back. As every block was uploaded as one part, the
+ * signature also predicts the ETag of the object, which is how a signature is checked against the object before it is
+ * trusted: an object changed by anything else no longer has that ETag.
+ * <p />
+ * Signatures are kept in a directory, one file per bucket and key, named by the SHA-1 of both. A signature that cannot
+ * be read, or was written for a different block size, is ignored.
+ */
+final class BlockSignature {
+
+    private static final String HEADER = "s3-block-signature";
+
+    private final long length;
+
+    private final long blockSize;
+
+    private final byte[][] digests;
+
+    /**
+     * Creates a new signature
+     *
+     * @param length The length of the file
+     * @param blockSize The size of every block but the last
+     * @param digests The MD5 of each block, in order
+     */
+    BlockSignature(long length, long blockSize, byte[][] digests) {
+        this.length = length;
+        this.blockSize = blockSize;
+        this.digests = digests;
+    }
+
+    /**
+     * Reads the signature of an object
+     *
+     * @param directory The directory of signatures
+     * @param bucket The bucket of the object
+     * @param key The key of the object
+     * @param blockSize The block size the signature must have been written for
+     * @return The signature, or <code>null</code> if there is no usable one
+     */
+    static BlockSignature read(File directory, String bucket, String key, long blockSize) {
+        File file = getFile(directory, bucket, key);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                String[] header = String.valueOf(in.readLine()).split(" ");
+                if ((header.length != 3) || !HEADER.equals(header[0]) || (Long.parseLong(header[2]) != blockSize)) {
+                    return null;
+                }
+                long length = Long.parseLong(header[1]);
+                byte[][] digests = new byte[MultipartETag.getPartCount(length, blockSize)][];
+                for (int i = 0; i < digests.length; i++) {
+                    String line = in.readLine();
+                    if ((line == null) || (line.length() != 32)) {
+                        return null;
+                    }
+                    digests[i] = ServiceUtils.fromHex(line);
+                }
+                return new BlockSignature(length, blockSize, digests);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        } catch (RuntimeException e) {
+            // A signature cut short or otherwise damaged
+            return null;
+        }
+    }
+
+    /**
+     * Writes the signature of an object, replacing any earlier one
+     *
+     * @param directory The directory of signatures
+     * @param bucket The bucket of the object
+     * @param key The key of the object
+     * @throws IOException if the signature cannot be written
+     */
+    void write(File directory, String bucket, String key) throws IOException {
+        File file = getFile(directory, bucket, key);
+        file.getParentFile().mkdirs();
+        File temporary = new File(file.getPath() + ".tmp");
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temporary), "UTF-8"));
+        try {
+            out.write(HEADER + " " + this.length + " " + this.blockSize + "\n");
+            for (byte[] digest : this.digests) {
+                out.write(ServiceUtils.toHex(digest));
+                out.write('\n');
+            }
+        } finally {
+            out.close();
+        }
+        if (!temporary.renameTo(file)) {
+            file.delete();
+            if (!temporary.renameTo(file)) {
+                throw new IOException("Unable to write block signature " + file.getAbsolutePath());
+            }
+        }
+    }
+
+    long getLength() {
+        return this.length;
+    }
+
+    int getBlockCount() {
+        return this.digests.length;
+    }
+
+    /**
+     * Returns the length of a block
+     *
+     * @param index The index of the block
+     * @return The length of the block
+     */
+    long getBlockLength(int index) {
+        return Math.min(this.blockSize, this.length - index * this.blockSize);
+    }
+
+    byte[] getDigest(int index) {
+        return this.digests[index];
+    }
+
+    /**
+     * Returns the ETag of an object uploaded one block per part
+     *
+     * @return The ETag, without quotes
+     */
+    String getETag() {
+        return MultipartETag.calculate(this.digests);
+    }
+
+    private static File getFile(File directory, String bucket, String key) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try {
+            digest.update((bucket + "\n" + key).getBytes("UTF-8"));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        String name = ServiceUtils.toHex(digest.digest());
+        return new File(new File(directory, name.substring(0, 2)), name);
+    }
+
+}
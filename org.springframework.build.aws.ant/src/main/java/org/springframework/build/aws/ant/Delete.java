@@ -19,6 +19,7 @@ package org.springframework.build.aws.ant;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Project;
@@ -33,7 +34,7 @@ import org.jets3t.service.model.S3Bucket;
  * 
  * @author Ben Hale
  */
-public class Delete extends AbstractS3Operation {
+public class Delete extends AbstractS3Operation implements AsyncS3Operation {
 
     private String file;
 
@@ -70,9 +71,14 @@ public class Delete extends AbstractS3Operation {
         if ((this.file == null) && (this.fileSets.size() == 0)) {
             throw new BuildException("At least one of file and <fileset> must be set");
         }
+        initOperation();
     }
 
     public void execute(S3Service service) throws ServiceException, IOException {
+        if (isVirtualThreads()) {
+            executeOnVirtualThreads(this, service);
+            return;
+        }
         if (this.file != null) {
             processFile(service);
         } else if (this.fileSets.size() > 0) {
@@ -80,23 +86,80 @@ public class Delete extends AbstractS3Operation {
         }
     }
 
+    /**
+     * Runs a delete without blocking. Each key is deleted by its own task on the executor.
+     */
+    public S3OperationFuture executeAsync(final S3Service service, ExecutorService executor) {
+        final AsyncExecution execution = new AsyncExecution(executor);
+        final S3Bucket bucket = getOperationBucket();
+        final ProgressReporter progress = this.fileSets.size() > 0 ? startProgressReporter("Deleted") : null;
+        if (progress != null) {
+            execution.onComplete(new Runnable() {
+
+                public void run() {
+                    progress.stop();
+                }
+            });
+        }
+        execution.start(new AsyncExecution.Task() {
+
+            public void run() throws Exception {
+                if (Delete.this.file != null) {
+                    submitDeleteFile(execution, service, bucket, Delete.this.file, Project.MSG_INFO, null);
+                } else {
+                    for (FileSet fileSet : Delete.this.fileSets) {
+                        S3Scanner scanner = getS3Scanner(bucket, fileSet.mergePatterns(Delete.this.project),
+                            getS3SafeDirectory(fileSet.getDir()));
+                        List<String> keys = scanner.getQualifiyingKeys(service);
+                        progress.addExpected(keys.size(), 0);
+                        for (String key : keys) {
+                            submitDeleteFile(execution, service, bucket, key, Project.MSG_VERBOSE, progress);
+                        }
+                    }
+                }
+            }
+        });
+        return execution;
+    }
+
+    private void submitDeleteFile(final AsyncExecution execution, final S3Service service, final S3Bucket bucket, final String key,
+        final int logLevel, final ProgressReporter progress) {
+        execution.submit(key, new AsyncExecution.Task() {
+
+            public void run() throws Exception {
+                deleteFile(service, bucket, key, logLevel);
+                execution.getResult().completed(key, 0);
+                if (progress != null) {
+                    progress.completed(0);
+                }
+            }
+        });
+    }
+
     private void processFile(S3Service service) throws ServiceException {
-        deleteFile(service, getOperationBucket(), this.file);
+        deleteFile(service, getOperationBucket(), this.file, Project.MSG_INFO);
     }
 
     private void processSet(S3Service service) throws IOException, ServiceException {
         S3Bucket bucket = getOperationBucket();
-        for (FileSet fileSet : this.fileSets) {
-            S3Scanner scanner = getS3Scanner(bucket, fileSet.mergePatterns(this.project), getS3SafeDirectory(fileSet.getDir()));
-            List<String> keys = scanner.getQualifiyingKeys(service);
-            for (String key : keys) {
-                deleteFile(service, bucket, key);
+        ProgressReporter progress = startProgressReporter("Deleted");
+        try {
+            for (FileSet fileSet : this.fileSets) {
+                S3Scanner scanner = getS3Scanner(bucket, fileSet.mergePatterns(this.project), getS3SafeDirectory(fileSet.getDir()));
+                List<String> keys = scanner.getQualifiyingKeys(service);
+                progress.addExpected(keys.size(), 0);
+                for (String key : keys) {
+                    deleteFile(service, bucket, key, Project.MSG_VERBOSE);
+                    progress.completed(0);
+                }
             }
+        } finally {
+            progress.stop();
         }
     }
 
-    private void deleteFile(S3Service service, S3Bucket bucket, String key) throws ServiceException {
+    private void deleteFile(S3Service service, S3Bucket bucket, String key, int logLevel) throws ServiceException {
         service.deleteObject(bucket, key);
-        this.project.log("Deleted s3://" + bucket.getName() + "/" + key, Project.MSG_INFO);
+        this.project.log("Deleted s3://" + bucket.getName() + "/" + key, logLevel);
     }
 }
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * An upload of a large file that sends only the blocks that have changed since the file was last uploaded to the same
+ * key. The file is split into fixed-size blocks, each uploaded as one part of a multipart upload. A block whose MD5 is
+ * unchanged since the {@link BlockSignature} of the last upload is copied by S3 from the existing object, on the
+ * condition that the object still has the ETag the signature predicts; any other block is uploaded from the file.
+ * <p />
+ * With no usable signature every block is uploaded, so the first upload of a file costs the same as any multipart
+ * upload. Blocks are matched by position only, so data inserted near the start of a file changes every later block.
+ * The ETag of the completed object is checked against the one predicted from the file before the new signature is
+ * written.
+ */
+final class DeltaFileUpload {
+
+    private static final int PARALLELISM = 8;
+
+    private static ExecutorService executor;
+
+    private final S3Transport transport;
+
+    private final String bucket;
+
+    private final String key;
+
+    private final Map<String, String> headers;
+
+    private final File source;
+
+    private final long length;
+
+    private final long blockSize;
+
+    private final File signatureDirectory;
+
+    private int copiedBlocks;
+
+    private int uploadedBlocks;
+
+    private boolean restarted;
+
+    /**
+     * Creates a new upload
+     *
+     * @param transport The transport to upload with
+     * @param bucket The bucket to upload to
+     * @param key The key to upload to
+     * @param headers The headers of the object
+     * @param source The file to upload
+     * @param blockSize The size of every block but the last
+     * @param signatureDirectory The directory to keep block signatures in
+     */
+    DeltaFileUpload(S3Transport transport, String bucket, String key, Map<String, String> headers, File source, long blockSize,
+        File signatureDirectory) {
+        this.transport = transport;
+        this.bucket = bucket;
+        this.key = key;
+        this.headers = headers;
+        this.source = source;
+        this.length = source.length();
+        this.blockSize = blockSize;
+        this.signatureDirectory = signatureDirectory;
+    }
+
+    /**
+     * Runs the upload
+     *
+     * @throws IOException if the file cannot be read, needs more blocks than a multipart upload has parts, or the upload
+     *         fails
+     */
+    void upload() throws IOException {
+        if (MultipartETag.getPartCount(this.length, this.blockSize) > MultipartUploader.MAX_PARTS) {
+            throw new IOException("s3://" + this.bucket + "/" + this.key + " needs more than " + MultipartUploader.MAX_PARTS
+                + " blocks, use a larger part size");
+        }
+        BlockSignature signature = new BlockSignature(this.length, this.blockSize, MultipartETag.digestParts(this.source,
+            this.blockSize));
+        BlockSignature previous = BlockSignature.read(this.signatureDirectory, this.bucket, this.key, this.blockSize);
+        String previousETag = null;
+        if (previous != null) {
+            S3ObjectInfo existing = this.transport.head(this.bucket, this.key);
+            if ((existing != null) && (existing.getSize() == previous.getLength()) && previous.getETag().equalsIgnoreCase(existing.getETag())) {
+                previousETag = existing.getETag();
+            }
+        }
+
+        String etag;
+        try {
+            etag = upload(signature, previousETag == null ? null : previous, previousETag);
+        } catch (S3TransportException e) {
+            if ((previousETag == null) || (e.getStatusCode() != 412)) {
+                throw e;
+            }
+            // The object was replaced since it was checked, so there is nothing left to copy from
+            this.restarted = true;
+            etag = upload(signature, null, null);
+        }
+        if (!signature.getETag().equalsIgnoreCase(etag)) {
+            throw new IOException("s3://" + this.bucket + "/" + this.key + " has ETag " + etag + " after upload, expected "
+                + signature.getETag());
+        }
+        signature.write(this.signatureDirectory, this.bucket, this.key);
+    }
+
+    /**
+     * Returns the number of blocks copied from the existing object by the multipart upload that completed. Blocks copied
+     * by an upload that was restarted are not counted.
+     *
+     * @return The number of copied blocks
+     */
+    int getCopiedBlocks() {
+        return this.copiedBlocks;
+    }
+
+    /**
+     * Returns the number of blocks uploaded from the file by the multipart upload that completed. Blocks uploaded by an
+     * upload that was restarted are not counted.
+     *
+     * @return The number of uploaded blocks
+     */
+    int getUploadedBlocks() {
+        return this.uploadedBlocks;
+    }
+
+    /**
+     * Returns whether the upload was restarted, uploading every block, because the object to copy blocks from was
+     * replaced while the upload ran
+     *
+     * @return Whether the upload was restarted
+     */
+    boolean isRestarted() {
+        return this.restarted;
+    }
+
+    private String upload(BlockSignature signature, final BlockSignature previous, final String previousETag) throws IOException {
+        final String uploadId = this.transport.startMultipartUpload(this.bucket, this.key, this.headers);
+        boolean succeeded = false;
+        List<Future<String>> parts = new ArrayList<Future<String>>(signature.getBlockCount());
+        try {
+            this.copiedBlocks = 0;
+            this.uploadedBlocks = 0;
+            for (int i = 0; i < signature.getBlockCount(); i++) {
+                final int partNumber = i + 1;
+                final long offset = i * this.blockSize;
+                final long blockLength = signature.getBlockLength(i);
+                if ((previous != null) && (i < previous.getBlockCount()) && (previous.getBlockLength(i) == blockLength)
+                    && Arrays.equals(previous.getDigest(i), signature.getDigest(i))) {
+                    this.copiedBlocks++;
+                    parts.add(getExecutor().submit(new Callable<String>() {
+
+                        public String call() throws IOException {
+                            return DeltaFileUpload.this.transport.copyPart(DeltaFileUpload.this.bucket, DeltaFileUpload.this.key,
+                                previousETag, offset, offset + blockLength - 1, DeltaFileUpload.this.bucket, DeltaFileUpload.this.key,
+                                uploadId, partNumber);
+                        }
+                    }));
+                } else {
+                    this.uploadedBlocks++;
+                    parts.add(getExecutor().submit(new Callable<String>() {
+
+                        public String call() throws IOException {
+                            return DeltaFileUpload.this.transport.uploadPart(DeltaFileUpload.this.bucket, DeltaFileUpload.this.key,
+                                uploadId, partNumber, S3RequestBody.fromFile(DeltaFileUpload.this.source, offset, blockLength));
+                        }
+                    }));
+                }
+            }
+
+            List<String> partETags = new ArrayList<String>(parts.size());
+            for (Future<String> part : parts) {
+                partETags.add(get(part));
+            }
+            String etag = this.transport.completeMultipartUpload(this.bucket, this.key, uploadId, partETags);
+            succeeded = true;
+            return etag == null ? null : etag.replace("\"", "");
+        } finally {
+            if (!succeeded) {
+                for (Future<String> part : parts) {
+                    part.cancel(true);
+                }
+                try {
+                    this.transport.abortMultipartUpload(this.bucket, this.key, uploadId);
+                } catch (IOException e) {
+                    // Nothing to do at this point
+                }
+            }
+        }
+    }
+
+    private static String get(Future<String> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while uploading parts");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Returns the threads that parts are sent on. They are separate from the threads of an asynchronous operation, as a
+     * delta upload runs as one task of the operation and waits for its parts.
+     */
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(PARALLELISM, new ThreadFactory() {
+
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "s3-delta-part");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+}
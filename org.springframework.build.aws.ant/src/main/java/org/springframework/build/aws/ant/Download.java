@@ -16,16 +16,28 @@
 
 package org.springframework.build.aws.ant;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
 import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
 import org.apache.tools.ant.types.FileSet;
 import org.jets3t.service.S3Service;
+import org.jets3t.service.S3ServiceException;
 import org.jets3t.service.ServiceException;
 import org.jets3t.service.model.S3Bucket;
+import org.jets3t.service.model.S3Object;
 
 /**
  * A member of the S3 ANT task for dealing with Amazon S3 download behavior. This operation will use the credentials
@@ -33,7 +45,7 @@ import org.jets3t.service.model.S3Bucket;
  * 
  * @author Ben Hale
  */
-public class Download extends AbstractS3DownloadOperation {
+public class Download extends AbstractS3DownloadOperation implements AsyncS3Operation {
 
     private String file;
 
@@ -43,6 +55,16 @@ public class Download extends AbstractS3DownloadOperation {
 
     private File toFile;
 
+    private boolean packed = false;
+
+    private boolean skipUnchanged = false;
+
+    private long partSize = 8 * 1024 * 1024;
+
+    private File journal;
+
+    private TransferJournal transferJournal;
+
     /**
      * Optional parameter that corresponds to the source object key in S3
      * 
@@ -79,6 +101,49 @@ public class Download extends AbstractS3DownloadOperation {
         this.toFile = toFile;
     }
 
+    /**
+     * Optional parameter that corresponds to skipping objects whose contents are already in the target file, judged by
+     * comparing the length and ETag of the object with the file. Files extracted from packs are always written.
+     * Defaults to false.
+     * 
+     * @param skipUnchanged
+     */
+    public void setSkipUnchanged(boolean skipUnchanged) {
+        this.skipUnchanged = skipUnchanged;
+    }
+
+    /**
+     * Optional parameter that corresponds to reading files packed by a packed upload. Files are fetched with ranged
+     * requests, or by reading a whole pack when most of its contents are selected. Defaults to false.
+     * 
+     * @param packed
+     */
+    public void setPacked(boolean packed) {
+        this.packed = packed;
+    }
+
+    /**
+     * Optional parameter that corresponds to the size, in bytes, of the ranges that larger objects are split into when
+     * downloading with virtual threads. Each range is downloaded by its own task. Defaults to 8 MB.
+     * 
+     * @param partSize The size of each range
+     */
+    public void setPartSize(long partSize) {
+        this.partSize = partSize;
+    }
+
+    /**
+     * Optional parameter that corresponds to a journal file recording the objects of a fileset downloaded, so that a
+     * failed download run again with the same configuration skips the objects it had finished. An object is only
+     * skipped if its ETag is unchanged and the downloaded file is still in place. The journal is deleted once the
+     * download succeeds. Cannot be used with packed. Defaults to no journal.
+     * 
+     * @param journal The journal file
+     */
+    public void setJournal(File journal) {
+        this.journal = journal;
+    }
+
     /**
      * Verify that required parameters have been set
      */
@@ -101,36 +166,400 @@ public class Download extends AbstractS3DownloadOperation {
         if ((this.fileSets.size() > 0) && (this.toFile != null)) {
             throw new BuildException("toFile cannot be used when specifying a <fileset> to download");
         }
+        if (this.packed && (this.fileSets.size() == 0)) {
+            throw new BuildException("packed can only be used when specifying a <fileset> to download");
+        }
+        if (this.packed && (this.journal != null)) {
+            throw new BuildException("Only one of packed and journal may be set");
+        }
+        if (isExtract() && ((this.toFile != null) || this.packed || this.skipUnchanged)) {
+            throw new BuildException("extract cannot be used with toFile, packed or skipUnchanged");
+        }
+        if (this.partSize <= 0) {
+            throw new BuildException("partSize must be positive");
+        }
+        initOperation();
+        initCache();
     }
 
     public void execute(S3Service service) throws ServiceException, IOException {
-        if ((this.file != null) && (this.toFile != null)) {
-            processFileToFile(service);
-        } else if ((this.file != null) && (this.toDir != null)) {
-            processFileToDir(service);
-        } else if ((this.fileSets.size() > 0) && (this.toDir != null)) {
-            processSetToDir(service);
+        this.transferJournal = openJournal();
+        try {
+            if (isVirtualThreads()) {
+                executeOnVirtualThreads(this, service);
+            } else if ((this.file != null) && (this.toFile != null)) {
+                processFileToFile(service);
+            } else if ((this.file != null) && (this.toDir != null)) {
+                processFileToDir(service);
+            } else if ((this.fileSets.size() > 0) && (this.toDir != null)) {
+                processSetToDir(service);
+            }
+            if (this.transferJournal != null) {
+                this.transferJournal.delete();
+            }
+        } finally {
+            if (this.transferJournal != null) {
+                this.transferJournal.close();
+                this.transferJournal = null;
+            }
         }
     }
 
+    private TransferJournal openJournal() throws IOException {
+        if (this.journal == null) {
+            return null;
+        }
+        StringBuilder configuration = new StringBuilder("download s3://").append(this.bucketName).append('/');
+        configuration.append(this.file != null ? this.file : "");
+        for (FileSet fileSet : this.fileSets) {
+            configuration.append(' ').append(getS3SafeDirectory(fileSet.getDir())).append(fileSet.mergePatterns(this.project));
+        }
+        configuration.append(' ').append((this.toFile != null ? this.toFile : this.toDir).getAbsolutePath());
+        configuration.append(" extract=").append(isExtract());
+        TransferJournal transferJournal = TransferJournal.open(this.journal, configuration.toString());
+        if (transferJournal.getCompletedCount() > 0) {
+            this.project.log("Resuming download recorded in " + this.journal.getAbsolutePath() + ", " + transferJournal.getCompletedCount()
+                + " objects already downloaded", Project.MSG_INFO);
+        }
+        return transferJournal;
+    }
+
+    /**
+     * Runs a download without blocking. Each object, and each pack of a packed download, is downloaded by its own task
+     * on the executor. The objects of a fileset are submitted largest first, and objects larger than the part size are
+     * split into ranges downloaded by separate tasks.
+     */
+    public S3OperationFuture executeAsync(final S3Service service, ExecutorService executor) {
+        final AsyncExecution execution = new AsyncExecution(executor);
+        final S3Bucket bucket = getOperationBucket();
+        final ProgressReporter progress = this.fileSets.size() > 0 ? startProgressReporter("Downloaded") : null;
+        if (progress != null) {
+            execution.onComplete(new Runnable() {
+
+                public void run() {
+                    progress.stop();
+                }
+            });
+        }
+        execution.start(new AsyncExecution.Task() {
+
+            public void run() throws Exception {
+                if (Download.this.file != null) {
+                    final String key = Download.this.file;
+                    execution.submit(key, new AsyncExecution.Task() {
+
+                        public void run() throws Exception {
+                            File destination = getFileDestination();
+                            if (!skipFile(service, bucket, key, destination)) {
+                                execution.getResult().completed(key, getFile(service, bucket, key, destination));
+                            }
+                        }
+                    });
+                } else {
+                    for (FileSet fileSet : Download.this.fileSets) {
+                        submitFileSet(execution, service, bucket, fileSet, progress);
+                    }
+                }
+            }
+        });
+        return execution;
+    }
+
+    private void submitFileSet(final AsyncExecution execution, final S3Service service, final S3Bucket bucket, FileSet fileSet,
+        final ProgressReporter progress) throws Exception {
+        final String baseDirectory = getS3SafeDirectory(fileSet.getDir());
+        S3Scanner scanner = getS3Scanner(bucket, fileSet.mergePatterns(this.project), baseDirectory);
+        List<S3Object> objects = scanner.getQualifiyingObjects(service);
+        Map<String, List<PackIndex.Entry>> packs = Collections.emptyMap();
+        final Map<String, Long> packLengths = new HashMap<String, Long>();
+        if (this.packed) {
+            objects = removePackObjects(objects, baseDirectory);
+            packs = getSelectedPackEntries(service, bucket, scanner, baseDirectory, packLengths, progress);
+        }
+        addExpected(progress, objects);
+        SizeOrderedPlan plan = new SizeOrderedPlan();
+        for (final S3Object object : objects) {
+            final String key = object.getKey();
+            if (!key.endsWith("/")) {
+                final File destination = new File(this.toDir, key.substring(baseDirectory.length()));
+                if ((this.skipUnchanged && isUnchanged(destination, object)) || isJournaled(object, destination)) {
+                    logSkipped(bucket, key, destination, Project.MSG_VERBOSE);
+                    progress.completed(object.getContentLength());
+                    continue;
+                }
+                plan.add(object.getContentLength(), new AsyncExecution.Task() {
+
+                    public void run() throws Exception {
+                        submitGetFile(execution, service, bucket, object, destination, progress);
+                    }
+                });
+            }
+        }
+        for (final Map.Entry<String, List<PackIndex.Entry>> pack : packs.entrySet()) {
+            final String packKey = baseDirectory + pack.getKey();
+            plan.add(packLengths.get(pack.getKey()), new AsyncExecution.Task() {
+
+                public void run() throws Exception {
+                    execution.submit(packKey, new AsyncExecution.Task() {
+
+                        public void run() throws Exception {
+                            execution.getResult().completed(packKey,
+                                getPackedFiles(service, bucket, packKey, packLengths.get(pack.getKey()), pack.getValue(), progress));
+                        }
+                    });
+                }
+            });
+        }
+        plan.submit();
+    }
+
+    private void submitGetFile(final AsyncExecution execution, final S3Service service, final S3Bucket bucket, final S3Object object,
+        final File destination, final ProgressReporter progress) throws IOException {
+        final String key = object.getKey();
+        final DownloadCache cache = getCache();
+        if ((object.getContentLength() > this.partSize) && !isExtract() && !isCached(cache, bucket, object)) {
+            this.project.log("Downloading s3://" + bucket.getName() + "/" + key + " (" + TransferUtils.getFormattedSize(object.getContentLength())
+                + ") to " + destination.getAbsolutePath() + " in " + MultipartETag.getPartCount(object.getContentLength(), this.partSize)
+                + " ranges", Project.MSG_VERBOSE);
+            new RangedFileDownload(service, getHedgedGets(), bucket, object, destination, this.partSize, cache, isCacheLink(),
+                this.transferJournal, getState(object)).submit(execution, progress);
+            return;
+        }
+        execution.submit(key, new AsyncExecution.Task() {
+
+            public void run() throws Exception {
+                execution.getResult().completed(key, getFile(service, bucket, object, destination, progress));
+                journalCompleted(object);
+            }
+        });
+    }
+
+    private boolean isCached(DownloadCache cache, S3Bucket bucket, S3Object object) {
+        return (cache != null) && (object.getETag() != null)
+            && cache.contains(bucket.getName(), object.getKey(), object.getETag(), object.getContentLength());
+    }
+
     private void processFileToFile(S3Service service) throws ServiceException, IOException {
-        getFile(service, getOperationBucket(), this.file, this.toFile);
+        getFileIfChanged(service, getOperationBucket(), this.file, getFileDestination());
     }
 
     private void processFileToDir(S3Service service) throws ServiceException, IOException {
-        getFile(service, getOperationBucket(), this.file, new File(this.toDir, this.file.substring(this.file.lastIndexOf('/'))));
+        getFileIfChanged(service, getOperationBucket(), this.file, getFileDestination());
+    }
+
+    private File getFileDestination() {
+        if (this.toFile != null) {
+            return this.toFile;
+        }
+        return new File(this.toDir, this.file.substring(this.file.lastIndexOf('/')));
+    }
+
+    private void getFileIfChanged(S3Service service, S3Bucket bucket, String key, File destination) throws ServiceException, IOException {
+        if (!skipFile(service, bucket, key, destination)) {
+            getFile(service, bucket, key, destination);
+        }
+    }
+
+    private boolean skipFile(S3Service service, S3Bucket bucket, String key, File destination) throws ServiceException, IOException {
+        if (this.skipUnchanged && destination.exists() && isUnchanged(destination, getObjectDetails(service, bucket, key))) {
+            logSkipped(bucket, key, destination, Project.MSG_INFO);
+            return true;
+        }
+        return false;
     }
 
     private void processSetToDir(S3Service service) throws ServiceException, IOException {
         S3Bucket bucket = getOperationBucket();
-        for (FileSet fileSet : this.fileSets) {
-            S3Scanner scanner = getS3Scanner(bucket, fileSet.mergePatterns(this.project), getS3SafeDirectory(fileSet.getDir()));
-            List<String> keys = scanner.getQualifiyingKeys(service);
-            for (String key : keys) {
-                if (!key.endsWith("/")) {
-                    getFile(service, bucket, key, new File(this.toDir, key.substring(getS3SafeDirectory(fileSet.getDir()).length())));
+        ProgressReporter progress = startProgressReporter("Downloaded");
+        int skipped = 0;
+        try {
+            for (FileSet fileSet : this.fileSets) {
+                String baseDirectory = getS3SafeDirectory(fileSet.getDir());
+                S3Scanner scanner = getS3Scanner(bucket, fileSet.mergePatterns(this.project), baseDirectory);
+                List<S3Object> objects = scanner.getQualifiyingObjects(service);
+                Map<String, List<PackIndex.Entry>> packs = Collections.emptyMap();
+                Map<String, Long> packLengths = new HashMap<String, Long>();
+                if (this.packed) {
+                    objects = removePackObjects(objects, baseDirectory);
+                    packs = getSelectedPackEntries(service, bucket, scanner, baseDirectory, packLengths, progress);
+                }
+                addExpected(progress, objects);
+                for (S3Object object : objects) {
+                    String key = object.getKey();
+                    if (!key.endsWith("/")) {
+                        File destination = new File(this.toDir, key.substring(baseDirectory.length()));
+                        if ((this.skipUnchanged && isUnchanged(destination, object)) || isJournaled(object, destination)) {
+                            logSkipped(bucket, key, destination, Project.MSG_VERBOSE);
+                            progress.completed(object.getContentLength());
+                            skipped++;
+                        } else {
+                            getFile(service, bucket, object, destination, progress);
+                            journalCompleted(object);
+                        }
+                    }
+                }
+                for (Map.Entry<String, List<PackIndex.Entry>> pack : packs.entrySet()) {
+                    getPackedFiles(service, bucket, baseDirectory + pack.getKey(), packLengths.get(pack.getKey()), pack.getValue(), progress);
+                }
+            }
+        } finally {
+            progress.stop();
+        }
+        if (skipped > 0) {
+            this.project.log("Skipped " + skipped + " unchanged files", Project.MSG_INFO);
+        }
+    }
+
+    /**
+     * Returns whether the journal records an object as downloaded, in the same version, to a destination that is still
+     * in place. The files extracted from an archive are not checked.
+     */
+    private boolean isJournaled(S3Object object, File destination) {
+        return (this.transferJournal != null) && this.transferJournal.isCompleted(object.getKey(), getState(object))
+            && (isExtract() || (destination.isFile() && (destination.length() == object.getContentLength())));
+    }
+
+    private void journalCompleted(S3Object object) throws IOException {
+        if (this.transferJournal != null) {
+            this.transferJournal.completed(object.getKey(), getState(object));
+        }
+    }
+
+    private static String getState(S3Object object) {
+        return object.getContentLength() + ":" + object.getETag();
+    }
+
+    private void logSkipped(S3Bucket bucket, String key, File destination, int logLevel) {
+        this.project.log(destination.getAbsolutePath() + " is unchanged, skipping download of s3://" + bucket.getName() + "/" + key, logLevel);
+    }
+
+    private void addExpected(ProgressReporter progress, List<S3Object> objects) {
+        long files = 0;
+        long bytes = 0;
+        for (S3Object object : objects) {
+            if (!object.getKey().endsWith("/")) {
+                files++;
+                bytes += object.getContentLength();
+            }
+        }
+        progress.addExpected(files, bytes);
+    }
+
+    private List<S3Object> removePackObjects(List<S3Object> objects, String baseDirectory) {
+        List<S3Object> unpacked = new ArrayList<S3Object>(objects.size());
+        for (S3Object object : objects) {
+            if (!object.getKey().startsWith(baseDirectory + PackIndex.DIRECTORY)) {
+                unpacked.add(object);
+            }
+        }
+        return unpacked;
+    }
+
+    private Map<String, List<PackIndex.Entry>> getSelectedPackEntries(S3Service service, S3Bucket bucket, S3Scanner scanner,
+        String baseDirectory, Map<String, Long> packLengths, ProgressReporter progress) throws ServiceException, IOException {
+        PackIndex index;
+        InputStream in = null;
+        try {
+            in = VerifyingInputStream.create(service.getObject(bucket.getName(), baseDirectory + PackIndex.INDEX));
+            index = PackIndex.read(in);
+        } catch (S3ServiceException e) {
+            if (e.getResponseCode() == 404) {
+                this.project.log("No pack index found in s3://" + bucket.getName() + "/" + baseDirectory, Project.MSG_VERBOSE);
+                return Collections.emptyMap();
+            }
+            throw e;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Nothing to do at this point
+                }
+            }
+        }
+
+        Map<String, List<PackIndex.Entry>> packs = new LinkedHashMap<String, List<PackIndex.Entry>>();
+        long files = 0;
+        long bytes = 0;
+        for (PackIndex.Entry entry : index.getEntries()) {
+            Long packLength = packLengths.get(entry.getPack());
+            if ((packLength == null) || (packLength < entry.getOffset() + entry.getLength())) {
+                packLengths.put(entry.getPack(), entry.getOffset() + entry.getLength());
+            }
+            if (scanner.qualifies(baseDirectory + entry.getPath())) {
+                List<PackIndex.Entry> entries = packs.get(entry.getPack());
+                if (entries == null) {
+                    entries = new ArrayList<PackIndex.Entry>();
+                    packs.put(entry.getPack(), entries);
                 }
+                entries.add(entry);
+                files++;
+                bytes += entry.getLength();
             }
         }
+        progress.addExpected(files, bytes);
+        return packs;
+    }
+
+    private long getPackedFiles(S3Service service, S3Bucket bucket, String packKey, long packLength, List<PackIndex.Entry> entries,
+        ProgressReporter progress) throws ServiceException, IOException {
+        long selectedLength = 0;
+        for (PackIndex.Entry entry : entries) {
+            selectedLength += entry.getLength();
+        }
+
+        if (selectedLength * 2 >= packLength) {
+            this.project.log("Reading " + entries.size() + " files from s3://" + bucket.getName() + "/" + packKey, Project.MSG_VERBOSE);
+            InputStream in = VerifyingInputStream.create(getObject(service, bucket, packKey, null, null));
+            try {
+                long position = 0;
+                for (PackIndex.Entry entry : entries) {
+                    TransferUtils.skip(in, entry.getOffset() - position);
+                    writePackedFile(in, entry, progress);
+                    position = entry.getOffset() + entry.getLength();
+                }
+                // Read the rest of the pack so that the whole of it is checked against its MD5 hash
+                TransferUtils.skip(in, packLength - position);
+                if (in.read() != -1) {
+                    throw new IOException("s3://" + bucket.getName() + "/" + packKey + " is longer than its index records");
+                }
+            } finally {
+                in.close();
+            }
+        } else {
+            this.project.log("Reading " + entries.size() + " ranges from s3://" + bucket.getName() + "/" + packKey, Project.MSG_VERBOSE);
+            for (PackIndex.Entry entry : entries) {
+                if (entry.getLength() == 0) {
+                    writePackedFile(new ByteArrayInputStream(new byte[0]), entry, progress);
+                    continue;
+                }
+                InputStream in = getObject(service, bucket, packKey, entry.getOffset(), entry.getOffset() + entry.getLength() - 1)
+                    .getDataInputStream();
+                try {
+                    writePackedFile(in, entry, progress);
+                } finally {
+                    in.close();
+                }
+            }
+        }
+        return selectedLength;
+    }
+
+    private void writePackedFile(InputStream in, PackIndex.Entry entry, ProgressReporter progress) throws IOException {
+        File destination = new File(this.toDir, entry.getPath());
+        if (!destination.getParentFile().exists()) {
+            destination.getParentFile().mkdirs();
+        }
+        // Replaced rather than overwritten, in case an earlier download linked it to a cache entry
+        destination.delete();
+        OutputStream out = new FileOutputStream(destination);
+        try {
+            TransferUtils.copy(in, out, entry.getLength());
+        } finally {
+            out.close();
+        }
+        this.project.log("Unpacked " + entry.getPath() + " (" + TransferUtils.getFormattedSize(entry.getLength()) + ") to "
+            + destination.getAbsolutePath(), Project.MSG_VERBOSE);
+        progress.completed(entry.getLength());
     }
 }
@@ -0,0 +1,438 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.jets3t.service.utils.ServiceUtils;
+
+/**
+ * An on-disk cache of downloaded objects, shared by every build on a host that points at the same directory. Entries
+ * are keyed by bucket, key and ETag, so an entry is only ever served for the exact version of an object it was
+ * downloaded from. Entries are copied in and out of the cache unless hard links are asked for, where the file system
+ * allows them.
+ * <p />
+ * Each entry is named by the MD5 of its data, computed when it is stored, and is checked against it each time it is
+ * served, so an entry that has changed since, for example through a hard link to a downloaded file that was then
+ * modified in place, is removed instead of being served.
+ * <p />
+ * The cache is safe to use from several builds at once. Entries are written to a temporary file and renamed into
+ * place, so they are either complete or absent, and an entry removed by another build while being served is treated as
+ * a miss. Once the cache grows past its size limit the least recently used entries are evicted, by one build at a time,
+ * until it is back under the limit. The time of use of an entry is its time of last modification, which is left alone
+ * while the entry is hard linked to a downloaded file, as the file shares it. Hard links need Java 7 and are looked up
+ * reflectively.
+ */
+final class DownloadCache {
+
+    private static final Method TO_PATH = findMethod(File.class, "toPath");
+
+    private static final Method CREATE_LINK = findCreateLink();
+
+    private static final Method GET_ATTRIBUTE = findGetAttribute();
+
+    private static final long STALE_TEMPORARY_FILE_AGE = 24 * 60 * 60 * 1000;
+
+    private static final Comparator<File> LEAST_RECENTLY_USED_FIRST = new Comparator<File>() {
+
+        public int compare(File a, File b) {
+            long aUsed = a.lastModified();
+            long bUsed = b.lastModified();
+            return aUsed < bUsed ? -1 : (aUsed == bUsed ? 0 : 1);
+        }
+    };
+
+    private static final Map<File, DownloadCache> caches = new HashMap<File, DownloadCache>();
+
+    private final File objectsDirectory;
+
+    private final File temporaryDirectory;
+
+    private final File lockFile;
+
+    private volatile long maxSize;
+
+    private long size = -1;
+
+    private DownloadCache(File directory, long maxSize) {
+        this.objectsDirectory = new File(directory, "objects");
+        this.temporaryDirectory = new File(directory, "tmp");
+        this.lockFile = new File(directory, "lock");
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the cache in a directory, creating the directory if needed. Every caller in a JVM gets the same instance
+     * for the same directory, limited to the size given last.
+     *
+     * @param directory The directory of the cache
+     * @param maxSize The size, in bytes, that the cache is kept under
+     * @return The cache
+     * @throws IOException if the directory cannot be created
+     */
+    static DownloadCache get(File directory, long maxSize) throws IOException {
+        File canonicalDirectory = directory.getCanonicalFile();
+        synchronized (caches) {
+            DownloadCache cache = caches.get(canonicalDirectory);
+            if (cache == null) {
+                cache = new DownloadCache(canonicalDirectory, maxSize);
+                cache.objectsDirectory.mkdirs();
+                cache.temporaryDirectory.mkdirs();
+                if (!cache.objectsDirectory.isDirectory() || !cache.temporaryDirectory.isDirectory()) {
+                    throw new IOException("Unable to create download cache in " + canonicalDirectory);
+                }
+                caches.put(canonicalDirectory, cache);
+            }
+            cache.maxSize = maxSize;
+            return cache;
+        }
+    }
+
+    /**
+     * Returns whether the cache holds a version of an object. The entry is only checked against its MD5 once it is
+     * served.
+     *
+     * @param bucket The name of the bucket of the object
+     * @param key The key of the object
+     * @param etag The ETag of the version
+     * @param length The length of the version
+     * @return <code>true</code> if the version is cached
+     */
+    boolean contains(String bucket, String key, String etag, long length) {
+        File entry = findEntry(getEntryDirectory(bucket, key, etag));
+        return (entry != null) && (entry.length() == length);
+    }
+
+    /**
+     * Serves a version of an object from the cache. Any existing file at the destination is replaced.
+     *
+     * @param bucket The name of the bucket of the object
+     * @param key The key of the object
+     * @param etag The ETag of the version
+     * @param length The length of the version
+     * @param destination The file to serve the version to
+     * @param link Whether the destination may be a hard link to the cache entry rather than a copy of it
+     * @return <code>true</code> if the version was served, <code>false</code> if it is not cached or its entry has
+     * changed since it was stored
+     */
+    boolean retrieve(String bucket, String key, String etag, long length, File destination, boolean link) {
+        File entry = findEntry(getEntryDirectory(bucket, key, etag));
+        if ((entry == null) || (entry.length() != length)) {
+            return false;
+        }
+        if (!destination.getParentFile().exists()) {
+            destination.getParentFile().mkdirs();
+        }
+        destination.delete();
+        String md5;
+        try {
+            md5 = (link && createLink(destination, entry)) ? digest(entry) : copy(entry, destination);
+        } catch (IOException e) {
+            // Most likely evicted by another build since it was found
+            destination.delete();
+            return false;
+        }
+        if (!md5.equals(entry.getName()) || (destination.length() != length)) {
+            destination.delete();
+            entry.delete();
+            return false;
+        }
+        touch(entry);
+        return true;
+    }
+
+    /**
+     * Adds a downloaded version of an object to the cache. The file is expected to have been checked against the
+     * object already. A file that cannot be added, for example because the disk is full, is left out of the cache.
+     *
+     * @param bucket The name of the bucket of the object
+     * @param key The key of the object
+     * @param etag The ETag of the version
+     * @param file The downloaded file
+     * @param link Whether the cache entry may be a hard link to the file rather than a copy of it
+     */
+    void store(String bucket, String key, String etag, File file, boolean link) {
+        File directory = getEntryDirectory(bucket, key, etag);
+        File existing = findEntry(directory);
+        if (existing != null) {
+            if (existing.length() == file.length()) {
+                touch(existing);
+                return;
+            }
+            existing.delete();
+        }
+        File temporary = new File(this.temporaryDirectory, UUID.randomUUID().toString());
+        try {
+            String md5 = (link && createLink(temporary, file)) ? digest(temporary) : copy(file, temporary);
+            if (directory.isFile()) {
+                // An entry from before entries were named by their MD5
+                directory.delete();
+            }
+            directory.mkdirs();
+            touch(temporary);
+            if (!temporary.renameTo(new File(directory, md5))) {
+                // Another build stored the same version first
+                temporary.delete();
+                return;
+            }
+        } catch (IOException e) {
+            temporary.delete();
+            return;
+        }
+        added(file.length());
+    }
+
+    private void added(long length) {
+        boolean evict;
+        synchronized (this) {
+            if (this.size >= 0) {
+                this.size += length;
+            }
+            evict = (this.size < 0) || (this.size > this.maxSize);
+        }
+        if (evict) {
+            try {
+                evict();
+            } catch (IOException e) {
+                // Left to the next build that adds to the cache
+            } catch (OverlappingFileLockException e) {
+                // Another copy of these classes in this JVM is evicting
+            }
+        }
+    }
+
+    /**
+     * Removes the least recently used entries until the cache is under nine tenths of its size limit, so that the
+     * directory is not scanned again for every entry added. Other builds are kept out while entries are removed.
+     */
+    private synchronized void evict() throws IOException {
+        RandomAccessFile lock = new RandomAccessFile(this.lockFile, "rw");
+        try {
+            FileLock fileLock = lock.getChannel().lock();
+            try {
+                List<File> entries = new ArrayList<File>();
+                long total = 0;
+                File[] directories = this.objectsDirectory.listFiles();
+                if (directories != null) {
+                    for (File directory : directories) {
+                        File[] entryDirectories = directory.listFiles();
+                        if (entryDirectories != null) {
+                            for (File entryDirectory : entryDirectories) {
+                                File[] files = entryDirectory.listFiles();
+                                for (File file : files == null ? new File[] { entryDirectory } : files) {
+                                    entries.add(file);
+                                    total += file.length();
+                                }
+                            }
+                        }
+                    }
+                }
+                if (total > this.maxSize) {
+                    long target = this.maxSize / 10 * 9;
+                    Collections.sort(entries, LEAST_RECENTLY_USED_FIRST);
+                    for (File entry : entries) {
+                        if (total <= target) {
+                            break;
+                        }
+                        long length = entry.length();
+                        if (entry.delete()) {
+                            total -= length;
+                            // Only removed once empty
+                            entry.getParentFile().delete();
+                        }
+                    }
+                }
+                this.size = total;
+                deleteStaleTemporaryFiles();
+            } finally {
+                fileLock.release();
+            }
+        } finally {
+            lock.close();
+        }
+    }
+
+    private void deleteStaleTemporaryFiles() {
+        File[] files = this.temporaryDirectory.listFiles();
+        if (files != null) {
+            long cutoff = System.currentTimeMillis() - STALE_TEMPORARY_FILE_AGE;
+            for (File file : files) {
+                if (file.lastModified() < cutoff) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    private File getEntryDirectory(String bucket, String key, String etag) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try {
+            digest.update((bucket + "\n" + key + "\n" + etag.replace("\"", "").toLowerCase()).getBytes("UTF-8"));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        String name = ServiceUtils.toHex(digest.digest());
+        return new File(new File(this.objectsDirectory, name.substring(0, 2)), name);
+    }
+
+    /**
+     * Returns the entry in an entry directory, the one file named by its MD5
+     */
+    private static File findEntry(File directory) {
+        File[] files = directory.listFiles();
+        return (files == null) || (files.length == 0) ? null : files[0];
+    }
+
+    /**
+     * Records the use of an entry, unless it is hard linked to a downloaded file whose time would change with it
+     */
+    private static void touch(File entry) {
+        if (!isLinked(entry)) {
+            entry.setLastModified(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Copies a file, returning the MD5 of the data copied
+     */
+    private static String copy(File source, File destination) throws IOException {
+        MessageDigest digest = createDigest();
+        InputStream in = new DigestInputStream(new FileInputStream(source), digest);
+        try {
+            OutputStream out = new FileOutputStream(destination);
+            try {
+                TransferUtils.copy(in, out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        return ServiceUtils.toHex(digest.digest());
+    }
+
+    private static String digest(File file) throws IOException {
+        MessageDigest digest = createDigest();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return ServiceUtils.toHex(digest.digest());
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static boolean createLink(File link, File existing) {
+        if ((TO_PATH == null) || (CREATE_LINK == null)) {
+            return false;
+        }
+        try {
+            CREATE_LINK.invoke(null, TO_PATH.invoke(link), TO_PATH.invoke(existing));
+            return true;
+        } catch (Exception e) {
+            // Hard links not supported, across file systems, or the existing file is gone
+            return false;
+        }
+    }
+
+    /**
+     * Returns whether a file has other hard links, where the file system reports the number of links
+     */
+    private static boolean isLinked(File file) {
+        if (GET_ATTRIBUTE == null) {
+            return false;
+        }
+        try {
+            Object links = GET_ATTRIBUTE.invoke(null, TO_PATH.invoke(file), "unix:nlink",
+                Array.newInstance(GET_ATTRIBUTE.getParameterTypes()[2].getComponentType(), 0));
+            return (links instanceof Number) && (((Number) links).intValue() > 1);
+        } catch (Exception e) {
+            // Link counts not supported by the file system, or the file is gone
+            return false;
+        }
+    }
+
+    private static Method findGetAttribute() {
+        if (TO_PATH == null) {
+            return null;
+        }
+        try {
+            Class<?> linkOptions = Class.forName("[Ljava.nio.file.LinkOption;");
+            return Class.forName("java.nio.file.Files").getMethod("getAttribute", TO_PATH.getReturnType(), String.class, linkOptions);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static Method findCreateLink() {
+        if (TO_PATH == null) {
+            return null;
+        }
+        try {
+            Class<?> pathClass = TO_PATH.getReturnType();
+            return Class.forName("java.nio.file.Files").getMethod("createLink", pathClass, pathClass);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static Method findMethod(Class<?> type, String name) {
+        try {
+            return type.getMethod(name);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+}
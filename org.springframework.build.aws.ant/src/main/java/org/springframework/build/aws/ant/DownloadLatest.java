@@ -19,8 +19,8 @@ package org.springframework.build.aws.ant;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.types.FileSet;
@@ -34,7 +34,7 @@ import org.jets3t.service.model.S3Bucket;
  * 
  * @author Ben Hale
  */
-public class DownloadLatest extends AbstractS3DownloadOperation {
+public class DownloadLatest extends AbstractS3DownloadOperation implements AsyncS3Operation {
 
     private final List<FileSet> fileSets = new ArrayList<FileSet>(1);
 
@@ -71,22 +71,64 @@ public class DownloadLatest extends AbstractS3DownloadOperation {
         if (this.toDir == null) {
             throw new BuildException("toDir must be set");
         }
+        initOperation();
+        initCache();
     }
 
     public void execute(S3Service service) throws ServiceException, IOException {
+        if (isVirtualThreads()) {
+            executeOnVirtualThreads(this, service);
+            return;
+        }
         processSetToDir(service);
     }
 
+    /**
+     * Runs a download of the latest files without blocking. The latest file of each fileset is downloaded by its own
+     * task on the executor.
+     */
+    public S3OperationFuture executeAsync(final S3Service service, ExecutorService executor) {
+        final AsyncExecution execution = new AsyncExecution(executor);
+        final S3Bucket bucket = getOperationBucket();
+        execution.start(new AsyncExecution.Task() {
+
+            public void run() throws Exception {
+                for (FileSet fileSet : DownloadLatest.this.fileSets) {
+                    String baseDirectory = getS3SafeDirectory(fileSet.getDir());
+                    S3Scanner scanner = getS3Scanner(bucket, fileSet.mergePatterns(DownloadLatest.this.project), baseDirectory);
+                    final String key = getLatestKey(scanner, service, baseDirectory);
+                    if (!key.endsWith("/")) {
+                        final File destination = new File(DownloadLatest.this.toDir, key.substring(baseDirectory.length()));
+                        execution.submit(key, new AsyncExecution.Task() {
+
+                            public void run() throws Exception {
+                                execution.getResult().completed(key, getFile(service, bucket, key, destination));
+                            }
+                        });
+                    }
+                }
+            }
+        });
+        return execution;
+    }
+
     private void processSetToDir(S3Service service) throws ServiceException, IOException {
         S3Bucket bucket = getOperationBucket();
         for (FileSet fileSet : this.fileSets) {
-            S3Scanner scanner = getS3Scanner(bucket, fileSet.mergePatterns(this.project), getS3SafeDirectory(fileSet.getDir()));
-            List<String> keys = scanner.getQualifiyingKeys(service);
-            Collections.sort(keys);
-            String key = keys.get(keys.size() - 1);
+            String baseDirectory = getS3SafeDirectory(fileSet.getDir());
+            S3Scanner scanner = getS3Scanner(bucket, fileSet.mergePatterns(this.project), baseDirectory);
+            String key = getLatestKey(scanner, service, baseDirectory);
             if (!key.endsWith("/")) {
-                getFile(service, bucket, key, new File(this.toDir, key.substring(getS3SafeDirectory(fileSet.getDir()).length())));
+                getFile(service, bucket, key, new File(this.toDir, key.substring(baseDirectory.length())));
             }
         }
     }
+
+    private String getLatestKey(S3Scanner scanner, S3Service service, String baseDirectory) throws ServiceException {
+        String key = scanner.getLatestQualifiyingKey(service);
+        if (key == null) {
+            throw new BuildException("No objects in s3://" + this.bucketName + "/" + baseDirectory + " match the <fileset>");
+        }
+        return key;
+    }
 }
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * Reads a range of a file. The stream can be reset to any earlier position, so that a part or object can be sent again
+ * when a request is retried.
+ */
+final class FileRangeInputStream extends InputStream {
+
+    private final RandomAccessFile file;
+
+    private final long end;
+
+    private long position;
+
+    private long mark;
+
+    FileRangeInputStream(File file, long offset, long length) throws IOException {
+        this.file = new RandomAccessFile(file, "r");
+        this.file.seek(offset);
+        this.position = offset;
+        this.mark = offset;
+        this.end = offset + length;
+    }
+
+    public int read() throws IOException {
+        if (this.position >= this.end) {
+            return -1;
+        }
+        int b = this.file.read();
+        if (b != -1) {
+            this.position++;
+        }
+        return b;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (this.position >= this.end) {
+            return -1;
+        }
+        int read = this.file.read(b, off, (int) Math.min(len, this.end - this.position));
+        if (read > 0) {
+            this.position += read;
+        }
+        return read;
+    }
+
+    public int available() {
+        return (int) Math.min(Integer.MAX_VALUE, this.end - this.position);
+    }
+
+    public boolean markSupported() {
+        return true;
+    }
+
+    public void mark(int readLimit) {
+        this.mark = this.position;
+    }
+
+    public void reset() throws IOException {
+        this.file.seek(this.mark);
+        this.position = this.mark;
+    }
+
+    public void close() throws IOException {
+        this.file.close();
+    }
+
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A {@link TransferListener} that records requests as Java Flight Recorder events, so that slow transfers can be
+ * examined in the same recording as garbage collection, thread and I/O activity. Three events are recorded, in the
+ * <em>S3</em> category:
+ * <ul>
+ * <li><code>org.springframework.build.aws.S3Request</code>, lasting from the start of a request until it has
+ * finished, with its method, bucket, key, bytes transferred, status code and any failure</li>
+ * <li><code>org.springframework.build.aws.S3Retry</code>, when a request is sent again after a failure</li>
+ * <li><code>org.springframework.build.aws.S3Throttle</code>, when S3 asks for requests to be slowed down, with the
+ * delay before the next attempt</li>
+ * </ul>
+ * Events are only recorded while a recording is running, for example one started with
+ * <code>-XX:StartFlightRecording</code> in <code>ANT_OPTS</code>. Events are defined with the dynamic event API of Java
+ * 12 and later, which is looked up reflectively; on older JVMs nothing is recorded.
+ */
+public class FlightRecorderTransferListener implements TransferListener {
+
+    private static final EventType REQUEST;
+
+    private static final EventType RETRY;
+
+    private static final EventType THROTTLE;
+
+    static {
+        EventType request = null;
+        EventType retry = null;
+        EventType throttle = null;
+        try {
+            request = new EventType("S3Request", "S3 Request", "An HTTP request made to S3", field(String.class, "method", "Method"), field(
+                String.class, "bucket", "Bucket"), field(String.class, "key", "Key"), field(long.class, "bytes", "Bytes", "jdk.jfr.DataAmount",
+                "BYTES"), field(int.class, "status", "Status Code"), field(String.class, "failure", "Failure"));
+            retry = new EventType("S3Retry", "S3 Retry", "A request to S3 sent again after a failure", field(String.class, "method", "Method"),
+                field(String.class, "bucket", "Bucket"), field(String.class, "key", "Key"), field(int.class, "attempt", "Attempt"), field(
+                    int.class, "status", "Status Code"));
+            throttle = new EventType("S3Throttle", "S3 Throttle", "A request to S3 delayed after S3 asked for requests to be slowed down",
+                field(String.class, "method", "Method"), field(String.class, "bucket", "Bucket"), field(String.class, "key", "Key"), field(
+                    long.class, "delay", "Delay", "jdk.jfr.Timespan", "MILLISECONDS"));
+        } catch (Exception e) {
+            // Flight Recorder, or its dynamic event API, is not available
+            request = null;
+            retry = null;
+            throttle = null;
+        }
+        REQUEST = request;
+        RETRY = retry;
+        THROTTLE = throttle;
+    }
+
+    private final Map<TransferRequest, Object> events = new ConcurrentHashMap<TransferRequest, Object>();
+
+    /**
+     * Returns whether this JVM supports recording events
+     * 
+     * @return <code>true</code> if events are recorded
+     */
+    public static boolean isSupported() {
+        return REQUEST != null;
+    }
+
+    public void requestStarted(TransferRequest request) {
+        if (isSupported()) {
+            Object event = REQUEST.newEvent();
+            REQUEST.begin(event);
+            this.events.put(request, event);
+        }
+    }
+
+    public void bytesTransferred(TransferRequest request, long bytes) {
+        // Recorded in total when the request finishes
+    }
+
+    public void requestFinished(TransferRequest request) {
+        Object event = this.events.remove(request);
+        if (event != null) {
+            Throwable failure = request.getFailure();
+            REQUEST.commit(event, request.getMethod(), request.getBucket(), request.getKey(), Long.valueOf(request.getBytes()), Integer
+                .valueOf(request.getStatusCode()), failure == null ? null : failure.toString());
+        }
+    }
+
+    public void requestRetried(TransferRequest request, int attempt) {
+        if (isSupported()) {
+            RETRY.commit(RETRY.newEvent(), request.getMethod(), request.getBucket(), request.getKey(), Integer.valueOf(attempt), Integer
+                .valueOf(request.getStatusCode()));
+        }
+    }
+
+    public void requestThrottled(TransferRequest request, long delay) {
+        if (isSupported()) {
+            THROTTLE.commit(THROTTLE.newEvent(), request.getMethod(), request.getBucket(), request.getKey(), Long.valueOf(delay));
+        }
+    }
+
+    /**
+     * Describes a field of an event, with a label and optionally one further annotation
+     */
+    private static Object field(Class<?> type, String name, String label, String... annotation) throws Exception {
+        List<Object> annotations = new ArrayList<Object>();
+        annotations.add(EventType.annotation("jdk.jfr.Label", label));
+        if (annotation.length == 2) {
+            annotations.add(EventType.annotation(annotation[0], annotation[1]));
+        }
+        Constructor<?> constructor = Class.forName("jdk.jfr.ValueDescriptor").getConstructor(Class.class, String.class, List.class);
+        return constructor.newInstance(type, name, annotations);
+    }
+
+    /**
+     * An event type defined with <code>jdk.jfr.EventFactory</code>, and the reflective calls to create and commit its
+     * events
+     */
+    private static final class EventType {
+
+        private final Object factory;
+
+        private final Method newEvent;
+
+        private final Method begin;
+
+        private final Method set;
+
+        private final Method commit;
+
+        private EventType(String name, String label, String description, Object... fields) throws Exception {
+            List<Object> annotations = Arrays.asList(annotation("jdk.jfr.Name", "org.springframework.build.aws." + name), annotation(
+                "jdk.jfr.Label", label), annotation("jdk.jfr.Description", description), annotation("jdk.jfr.Category",
+                new String[] { "S3" }));
+            Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+            this.factory = factoryClass.getMethod("create", List.class, List.class).invoke(null, annotations, Arrays.asList(fields));
+            this.newEvent = factoryClass.getMethod("newEvent");
+            Class<?> eventClass = Class.forName("jdk.jfr.Event");
+            this.begin = eventClass.getMethod("begin");
+            this.set = eventClass.getMethod("set", int.class, Object.class);
+            this.commit = eventClass.getMethod("commit");
+        }
+
+        private static Object annotation(String type, Object value) throws Exception {
+            Constructor<?> constructor = Class.forName("jdk.jfr.AnnotationElement").getConstructor(Class.class, Object.class);
+            return constructor.newInstance(Class.forName(type), value);
+        }
+
+        private Object newEvent() {
+            try {
+                return this.newEvent.invoke(this.factory);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private void begin(Object event) {
+            try {
+                this.begin.invoke(event);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private void commit(Object event, Object... values) {
+            try {
+                for (int i = 0; i < values.length; i++) {
+                    this.set.invoke(event, Integer.valueOf(i), values[i]);
+                }
+                this.commit.invoke(event);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An {@link S3Transport} that holds each request of another transport in the JVM-wide budget of the
+ * {@link TransferGovernor}. A download holds its place in the budget until its body has been read or closed.
+ */
+final class GovernedTransport implements S3Transport {
+
+    private final S3Transport delegate;
+
+    /**
+     * Creates a transport that governs the requests of another
+     * 
+     * @param delegate The transport to make requests with
+     */
+    GovernedTransport(S3Transport delegate) {
+        this.delegate = delegate;
+    }
+
+    public S3ObjectListing list(String bucket, String prefix, String delimiter, String marker, int maxKeys) throws IOException {
+        TransferGovernor.Permit permit = acquire(0);
+        try {
+            return this.delegate.list(bucket, prefix, delimiter, marker, maxKeys);
+        } finally {
+            permit.release();
+        }
+    }
+
+    public S3ObjectInfo head(String bucket, String key) throws IOException {
+        TransferGovernor.Permit permit = acquire(0);
+        try {
+            return this.delegate.head(bucket, key);
+        } finally {
+            permit.release();
+        }
+    }
+
+    public S3ObjectContent get(String bucket, String key, long rangeStart, long rangeEnd, String ifMatch) throws IOException {
+        TransferGovernor.Permit permit = acquire(0);
+        boolean streaming = false;
+        try {
+            S3ObjectContent content = this.delegate.get(bucket, key, rangeStart, rangeEnd, ifMatch);
+            if (content == null) {
+                return null;
+            }
+            permit.addBytes(content.getSize());
+            S3ObjectContent governed = new S3ObjectContent(content.getKey(), content.getSize(), content.getETag(),
+                content.getLastModified(), content.getHeaders(), new ReleasingInputStream(content.getBody(), permit));
+            streaming = true;
+            return governed;
+        } finally {
+            if (!streaming) {
+                permit.release();
+            }
+        }
+    }
+
+    public String put(String bucket, String key, S3RequestBody body, Map<String, String> headers) throws IOException {
+        TransferGovernor.Permit permit = acquire(body.getLength());
+        try {
+            return this.delegate.put(bucket, key, body, headers);
+        } finally {
+            permit.release();
+        }
+    }
+
+    public void delete(String bucket, String key) throws IOException {
+        TransferGovernor.Permit permit = acquire(0);
+        try {
+            this.delegate.delete(bucket, key);
+        } finally {
+            permit.release();
+        }
+    }
+
+    public String copy(String sourceBucket, String sourceKey, String bucket, String key, Map<String, String> headers) throws IOException {
+        TransferGovernor.Permit permit = acquire(0);
+        try {
+            return this.delegate.copy(sourceBucket, sourceKey, bucket, key, headers);
+        } finally {
+            permit.release();
+        }
+    }
+
+    public String startMultipartUpload(String bucket, String key, Map<String, String> headers) throws IOException {
+        TransferGovernor.Permit permit = acquire(0);
+        try {
+            return this.delegate.startMultipartUpload(bucket, key, headers);
+        } finally {
+            permit.release();
+        }
+    }
+
+    public String uploadPart(String bucket, String key, String uploadId, int partNumber, S3RequestBody body) throws IOException {
+        TransferGovernor.Permit permit = acquire(body.getLength());
+        try {
+            return this.delegate.uploadPart(bucket, key, uploadId, partNumber, body);
+        } finally {
+            permit.release();
+        }
+    }
+
+    public String copyPart(String sourceBucket, String sourceKey, String sourceETag, long rangeStart, long rangeEnd, String bucket,
+        String key, String uploadId, int partNumber) throws IOException {
+        TransferGovernor.Permit permit = acquire(0);
+        try {
+            return this.delegate.copyPart(sourceBucket, sourceKey, sourceETag, rangeStart, rangeEnd, bucket, key, uploadId, partNumber);
+        } finally {
+            permit.release();
+        }
+    }
+
+    public String completeMultipartUpload(String bucket, String key, String uploadId, List<String> partETags) throws IOException {
+        TransferGovernor.Permit permit = acquire(0);
+        try {
+            return this.delegate.completeMultipartUpload(bucket, key, uploadId, partETags);
+        } finally {
+            permit.release();
+        }
+    }
+
+    public void abortMultipartUpload(String bucket, String key, String uploadId) throws IOException {
+        TransferGovernor.Permit permit = acquire(0);
+        try {
+            this.delegate.abortMultipartUpload(bucket, key, uploadId);
+        } finally {
+            permit.release();
+        }
+    }
+
+    public void close() {
+        this.delegate.close();
+    }
+
+    static TransferGovernor.Permit acquire(long length) throws InterruptedIOException {
+        try {
+            return TransferGovernor.get().acquire(length);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to send a request");
+        }
+    }
+
+    /**
+     * The body of a download, which releases the permit of its request once it has been read or closed
+     */
+    private static final class ReleasingInputStream extends FilterInputStream {
+
+        private final TransferGovernor.Permit permit;
+
+        private ReleasingInputStream(InputStream in, TransferGovernor.Permit permit) {
+            super(in);
+            this.permit = permit;
+        }
+
+        public int read() throws IOException {
+            int b = super.read();
+            if (b == -1) {
+                this.permit.release();
+            }
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read == -1) {
+                this.permit.release();
+            }
+            return read;
+        }
+
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                this.permit.release();
+            }
+        }
+    }
+
+}
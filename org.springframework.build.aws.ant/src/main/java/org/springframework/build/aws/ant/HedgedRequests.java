@@ -0,0 +1,459 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.httpclient.HttpMethod;
+import org.jets3t.service.S3Service;
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.StorageObjectsChunk;
+import org.jets3t.service.model.S3Object;
+
+/**
+ * Hedging of one kind of request, such as object downloads or listing pages, to cut the time lost to the few requests
+ * that stall. The latency of recent requests is tracked, and a request still waiting for its response once it has taken
+ * longer than a percentile of them is sent a second time. Whichever response arrives first is used, and the other
+ * request is aborted, or its response discarded if it has already arrived.
+ * <p />
+ * At most a given fraction of requests are hedged, so that hedging cannot add more than that fraction of extra requests,
+ * for example when S3 as a whole slows down. No request is hedged until enough latencies have been seen to estimate
+ * the percentile. The request that is hedged is the one made by the calling thread; the hedge is made on a thread of its
+ * own, and a request can only be aborted while it is in flight if it is made with an {@link InstrumentedS3Service},
+ * which every <code>&lt;aws:s3&gt;</code> task uses.
+ */
+final class HedgedRequests {
+
+    private static final int SAMPLES = 1024;
+
+    private static final int MIN_SAMPLES = 32;
+
+    private static final int RECALCULATE_INTERVAL = 64;
+
+    private static final ThreadLocal<Attempt> currentAttempt = new ThreadLocal<Attempt>();
+
+    private static ScheduledExecutorService timer;
+
+    private static ExecutorService executor;
+
+    private final double percentile;
+
+    private final double maxRate;
+
+    private final long[] latencies = new long[SAMPLES];
+
+    private int sampleCount;
+
+    private int nextSample;
+
+    private long threshold = -1;
+
+    private final AtomicLong requests = new AtomicLong();
+
+    private final AtomicLong hedged = new AtomicLong();
+
+    private final AtomicLong won = new AtomicLong();
+
+    /**
+     * Creates hedging for one kind of request
+     * 
+     * @param percentile The percentile of latency, between 0 and 100, after which a request is hedged
+     * @param maxRate The largest fraction of requests that may be hedged, between 0 and 1
+     */
+    HedgedRequests(double percentile, double maxRate) {
+        this.percentile = percentile;
+        this.maxRate = maxRate;
+    }
+
+    /**
+     * Downloads an object, or a range of it, hedging the request. The body of the download that loses is closed
+     * without being read.
+     * 
+     * @param service The service to download with
+     * @param bucketName The name of the bucket
+     * @param key The key of the object
+     * @param ifMatchTags The ETags the object must have, or <code>null</code>
+     * @param byteRangeStart The offset of the first byte of the range, or <code>null</code>
+     * @param byteRangeEnd The offset of the last byte of the range, or <code>null</code>
+     * @return The object, with its body still to be read
+     * @throws ServiceException if the request fails
+     */
+    S3Object getObject(final S3Service service, final String bucketName, final String key, final String[] ifMatchTags,
+        final Long byteRangeStart, final Long byteRangeEnd) throws ServiceException {
+        return execute(new Request<S3Object>() {
+
+            public S3Object call() throws ServiceException {
+                return service.getObject(bucketName, key, null, null, ifMatchTags, null, byteRangeStart, byteRangeEnd);
+            }
+
+            public void discard(S3Object result) {
+                try {
+                    InputStream in = result.getDataInputStream();
+                    if (in != null) {
+                        in.close();
+                    }
+                } catch (IOException e) {
+                    // Nothing to do at this point
+                } catch (ServiceException e) {
+                    // Nothing to do at this point
+                }
+            }
+        });
+    }
+
+    /**
+     * Lists one page of the objects in a bucket, hedging the request
+     * 
+     * @param service The service to list with
+     * @param bucketName The name of the bucket
+     * @param prefix The prefix of the keys to list
+     * @param maxKeys The maximum number of keys to return
+     * @param priorLastKey The key to list from, exclusive, or <code>null</code>
+     * @return The page
+     * @throws ServiceException if the request fails
+     */
+    StorageObjectsChunk listObjectsChunked(final S3Service service, final String bucketName, final String prefix, final long maxKeys,
+        final String priorLastKey) throws ServiceException {
+        return execute(new Request<StorageObjectsChunk>() {
+
+            public StorageObjectsChunk call() throws ServiceException {
+                return service.listObjectsChunked(bucketName, prefix, null, maxKeys, priorLastKey);
+            }
+
+            public void discard(StorageObjectsChunk result) {
+            }
+        });
+    }
+
+    /**
+     * Returns the number of requests made through this hedging, not counting hedges
+     * 
+     * @return The number of requests
+     */
+    long getRequests() {
+        return this.requests.get();
+    }
+
+    /**
+     * Returns the number of requests that were hedged
+     * 
+     * @return The number of hedges sent
+     */
+    long getHedged() {
+        return this.hedged.get();
+    }
+
+    /**
+     * Returns the number of hedges whose response arrived first and was used
+     * 
+     * @return The number of hedges that won
+     */
+    long getWon() {
+        return this.won.get();
+    }
+
+    /**
+     * Makes a request, hedging it if it has not finished by the time the tracked percentile of latency has passed
+     * 
+     * @param request The request
+     * @return The result of whichever of the request and its hedge finished first
+     * @throws ServiceException if the request fails, and its hedge, if any, fails too
+     */
+    <T> T execute(final Request<T> request) throws ServiceException {
+        this.requests.incrementAndGet();
+        long delay = getThreshold();
+        if (delay < 0) {
+            long start = System.nanoTime();
+            T result = request.call();
+            record(System.nanoTime() - start);
+            return result;
+        }
+        final Race<T> race = new Race<T>(request);
+        ScheduledFuture<?> hedge = getTimer().schedule(new Runnable() {
+
+            public void run() {
+                hedge(race);
+            }
+        }, delay, TimeUnit.NANOSECONDS);
+        long start = System.nanoTime();
+        T result = null;
+        Exception failure = null;
+        currentAttempt.set(race.primary);
+        try {
+            result = request.call();
+        } catch (ServiceException e) {
+            failure = e;
+        } catch (RuntimeException e) {
+            failure = e;
+        } finally {
+            currentAttempt.remove();
+            hedge.cancel(false);
+        }
+        return race.primaryFinished(result, failure, System.nanoTime() - start);
+    }
+
+    /**
+     * Registers an HTTP request being made by the calling thread, so that it can be aborted if its attempt loses. A
+     * request made by an attempt that has already lost is aborted at once.
+     * 
+     * @param method The HTTP request
+     */
+    static void requestStarted(HttpMethod method) {
+        Attempt attempt = currentAttempt.get();
+        if (attempt != null) {
+            attempt.started(method);
+        }
+    }
+
+    private void hedge(final Race<?> race) {
+        if (!race.startHedge()) {
+            return;
+        }
+        getExecutor().execute(new Runnable() {
+
+            public void run() {
+                race.runHedge();
+            }
+        });
+    }
+
+    /**
+     * Returns whether another request may be hedged without exceeding the maximum rate, counting it if so
+     */
+    private boolean reserveHedge() {
+        while (true) {
+            long current = this.hedged.get();
+            if (current + 1 > this.maxRate * this.requests.get()) {
+                return false;
+            }
+            if (this.hedged.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private synchronized long getThreshold() {
+        return this.threshold;
+    }
+
+    private synchronized void record(long latency) {
+        this.latencies[this.nextSample] = latency;
+        this.nextSample = (this.nextSample + 1) % SAMPLES;
+        this.sampleCount++;
+        if ((this.sampleCount >= MIN_SAMPLES) && ((this.sampleCount % RECALCULATE_INTERVAL == 0) || (this.threshold < 0))) {
+            long[] sorted = new long[Math.min(this.sampleCount, SAMPLES)];
+            System.arraycopy(this.latencies, 0, sorted, 0, sorted.length);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(this.percentile / 100 * sorted.length) - 1;
+            this.threshold = sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+        }
+    }
+
+    private static synchronized ScheduledExecutorService getTimer() {
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "s3-hedge-timer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return timer;
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newCachedThreadPool(new ThreadFactory() {
+
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "s3-hedge");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * A request that can be made more than once
+     */
+    interface Request<T> {
+
+        /**
+         * Makes the request
+         * 
+         * @return The result
+         * @throws ServiceException if the request fails
+         */
+        T call() throws ServiceException;
+
+        /**
+         * Releases the result of a request that lost, such as the connection of a response whose body has not been read
+         * 
+         * @param result The result
+         */
+        void discard(T result);
+    }
+
+    /**
+     * One of the two attempts at a request, which records the HTTP requests it makes so that they can be aborted once
+     * it has lost
+     */
+    private static final class Attempt {
+
+        private final List<HttpMethod> methods = new ArrayList<HttpMethod>();
+
+        private boolean cancelled;
+
+        synchronized void started(HttpMethod method) {
+            this.methods.add(method);
+            if (this.cancelled) {
+                method.abort();
+            }
+        }
+
+        synchronized void cancel() {
+            this.cancelled = true;
+            for (HttpMethod method : this.methods) {
+                method.abort();
+            }
+        }
+    }
+
+    /**
+     * A request and its hedge, of which the first to succeed wins
+     */
+    private final class Race<T> {
+
+        private final Request<T> request;
+
+        private final Attempt primary = new Attempt();
+
+        private final Attempt hedge = new Attempt();
+
+        private boolean primaryFinished;
+
+        private boolean hedgeStarted;
+
+        private boolean hedgeFinished;
+
+        private Attempt winner;
+
+        private T hedgeResult;
+
+        private Race(Request<T> request) {
+            this.request = request;
+        }
+
+        synchronized boolean startHedge() {
+            if (this.primaryFinished || !reserveHedge()) {
+                return false;
+            }
+            this.hedgeStarted = true;
+            return true;
+        }
+
+        void runHedge() {
+            T result = null;
+            boolean succeeded = false;
+            currentAttempt.set(this.hedge);
+            try {
+                result = this.request.call();
+                succeeded = true;
+            } catch (ServiceException e) {
+                // The request's own failure is reported, if it fails too
+            } catch (RuntimeException e) {
+                // As above
+            } finally {
+                currentAttempt.remove();
+            }
+            boolean discard = false;
+            synchronized (this) {
+                this.hedgeFinished = true;
+                if (succeeded && (this.winner == null)) {
+                    this.winner = this.hedge;
+                    this.hedgeResult = result;
+                    HedgedRequests.this.won.incrementAndGet();
+                    this.primary.cancel();
+                } else {
+                    discard = succeeded;
+                }
+                notifyAll();
+            }
+            if (discard) {
+                this.request.discard(result);
+            }
+        }
+
+        T primaryFinished(T result, Exception failure, long latency) throws ServiceException {
+            Attempt finalWinner;
+            synchronized (this) {
+                this.primaryFinished = true;
+                if ((failure == null) && (this.winner == null)) {
+                    this.winner = this.primary;
+                    this.hedge.cancel();
+                } else if (failure != null) {
+                    boolean interrupted = false;
+                    while (this.hedgeStarted && !this.hedgeFinished) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+                    if (interrupted) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                finalWinner = this.winner;
+            }
+            if (finalWinner == this.primary) {
+                record(latency);
+                return result;
+            }
+            if (finalWinner == null) {
+                if (failure instanceof ServiceException) {
+                    throw (ServiceException) failure;
+                }
+                throw (RuntimeException) failure;
+            }
+            // Recorded as the time the request had taken when it lost, which is less than it would have taken
+            record(latency);
+            if (failure == null) {
+                this.request.discard(result);
+            }
+            synchronized (this) {
+                return this.hedgeResult;
+            }
+        }
+    }
+
+}
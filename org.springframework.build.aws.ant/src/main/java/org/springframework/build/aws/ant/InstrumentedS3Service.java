@@ -0,0 +1,397 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Calendar;
+import java.util.List;
+
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.HttpMethodBase;
+import org.apache.commons.httpclient.HttpMethodRetryHandler;
+import org.apache.commons.httpclient.URI;
+import org.apache.commons.httpclient.URIException;
+import org.apache.commons.httpclient.methods.EntityEnclosingMethod;
+import org.apache.commons.httpclient.methods.RequestEntity;
+import org.apache.commons.httpclient.params.HttpClientParams;
+import org.apache.commons.httpclient.params.HttpMethodParams;
+import org.jets3t.service.Jets3tProperties;
+import org.jets3t.service.S3ServiceException;
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.impl.rest.httpclient.RestS3Service;
+import org.jets3t.service.model.StorageObject;
+import org.jets3t.service.security.ProviderCredentials;
+
+/**
+ * An S3 service that reports every HTTP request it makes to a set of {@link TransferListener}s, and holds each in the
+ * JVM-wide budget of the {@link TransferGovernor} while it is in flight. Requests are seen where jets3t performs them,
+ * so that the requests of every operation, including those of jets3t's own multithreaded service, are reported and
+ * governed without changes to the operations.
+ * <p />
+ * A download of an object is reported as finished once its body has been read or its stream closed, rather than once
+ * its headers are received. Retries of failed connections are seen through HttpClient's retry handler, and retries of
+ * internal errors and <code>503 Slow Down</code> responses through jets3t's wait between attempts. Requests made for a
+ * {@link HedgedRequests} attempt are registered with it, so that the attempt that loses can be aborted.
+ */
+final class InstrumentedS3Service extends RestS3Service {
+
+    private final TransferListener[] listeners;
+
+    private final ThreadLocal<HttpMethodBase> currentMethod = new ThreadLocal<HttpMethodBase>();
+
+    private final ThreadLocal<TransferRequest> currentRequest = new ThreadLocal<TransferRequest>();
+
+    private final ThreadLocal<Boolean> streamingResponse = new ThreadLocal<Boolean>();
+
+    private final ThreadLocal<TransferRequest> streamedRequest = new ThreadLocal<TransferRequest>();
+
+    private final ThreadLocal<TransferGovernor.Permit> streamedPermit = new ThreadLocal<TransferGovernor.Permit>();
+
+    /**
+     * Creates a new service
+     * 
+     * @param credentials The credentials to sign requests with
+     * @param invokingApplicationDescription The application name sent with each request
+     * @param jets3tProperties The jets3t configuration
+     * @param listeners The listeners to report requests to, which may be empty
+     * @throws S3ServiceException if the service cannot be created
+     */
+    InstrumentedS3Service(ProviderCredentials credentials, String invokingApplicationDescription, Jets3tProperties jets3tProperties,
+        List<TransferListener> listeners) throws S3ServiceException {
+        super(credentials, invokingApplicationDescription, null, jets3tProperties);
+        this.listeners = listeners.toArray(new TransferListener[listeners.size()]);
+        HttpClientParams params = getHttpClient().getParams();
+        final HttpMethodRetryHandler retryHandler = (HttpMethodRetryHandler) params.getParameter(HttpMethodParams.RETRY_HANDLER);
+        if (retryHandler != null) {
+            params.setParameter(HttpMethodParams.RETRY_HANDLER, new HttpMethodRetryHandler() {
+
+                public boolean retryMethod(HttpMethod method, IOException exception, int executionCount) {
+                    boolean retry = retryHandler.retryMethod(method, exception, executionCount);
+                    TransferRequest request = InstrumentedS3Service.this.currentRequest.get();
+                    if (retry && (request != null)) {
+                        fireRetried(request, executionCount + 1);
+                    }
+                    return retry;
+                }
+            });
+        }
+    }
+
+    protected void performRequest(HttpMethodBase httpMethod, int[] expectedResponseCodes) throws ServiceException {
+        boolean streamed = this.streamingResponse.get() != null;
+        this.streamingResponse.remove();
+        long length = 0;
+        if (httpMethod instanceof EntityEnclosingMethod) {
+            RequestEntity entity = ((EntityEnclosingMethod) httpMethod).getRequestEntity();
+            length = entity == null ? 0 : Math.max(0, entity.getContentLength());
+        }
+        TransferGovernor.Permit permit;
+        try {
+            permit = TransferGovernor.get().acquire(length);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServiceException("Interrupted while waiting to send a request", e);
+        }
+        TransferRequest request = createRequest(httpMethod);
+        if (httpMethod instanceof EntityEnclosingMethod) {
+            EntityEnclosingMethod entityEnclosingMethod = (EntityEnclosingMethod) httpMethod;
+            if (entityEnclosingMethod.getRequestEntity() != null) {
+                entityEnclosingMethod.setRequestEntity(new CountingRequestEntity(entityEnclosingMethod.getRequestEntity(), request));
+            }
+        }
+        this.currentMethod.set(httpMethod);
+        this.currentRequest.set(request);
+        HedgedRequests.requestStarted(httpMethod);
+        fireStarted(request);
+        boolean succeeded = false;
+        try {
+            super.performRequest(httpMethod, expectedResponseCodes);
+            succeeded = true;
+        } catch (ServiceException e) {
+            request.setFailure(e);
+            throw e;
+        } catch (RuntimeException e) {
+            request.setFailure(e);
+            throw e;
+        } finally {
+            this.currentMethod.remove();
+            this.currentRequest.remove();
+            request.setStatusCode(getStatusCode(httpMethod));
+            if (streamed && succeeded) {
+                // Finished by the stream of the object's body
+                this.streamedRequest.set(request);
+                this.streamedPermit.set(permit);
+            } else {
+                fireFinished(request);
+                permit.release();
+            }
+        }
+    }
+
+    protected StorageObject getObjectImpl(String bucketName, String objectKey, Calendar ifModifiedSince, Calendar ifUnmodifiedSince,
+        String[] ifMatchTags, String[] ifNoneMatchTags, Long byteRangeStart, Long byteRangeEnd, String versionId) throws ServiceException {
+        this.streamingResponse.set(Boolean.TRUE);
+        StorageObject object = null;
+        try {
+            object = super.getObjectImpl(bucketName, objectKey, ifModifiedSince, ifUnmodifiedSince, ifMatchTags, ifNoneMatchTags,
+                byteRangeStart, byteRangeEnd, versionId);
+        } finally {
+            this.streamingResponse.remove();
+            TransferRequest request = this.streamedRequest.get();
+            TransferGovernor.Permit permit = this.streamedPermit.get();
+            this.streamedRequest.remove();
+            this.streamedPermit.remove();
+            if (request != null) {
+                InputStream in = object == null ? null : object.getDataInputStream();
+                if (in == null) {
+                    fireFinished(request);
+                    permit.release();
+                } else {
+                    permit.addBytes(object.getContentLength());
+                    object.setDataInputStream(new CountingInputStream(in, request, permit));
+                }
+            }
+        }
+        return object;
+    }
+
+    protected void sleepOnInternalError(int retries) throws ServiceException, InterruptedException {
+        TransferRequest request = this.currentRequest.get();
+        HttpMethodBase method = this.currentMethod.get();
+        if ((request != null) && (retries <= getInternalErrorRetryMax())) {
+            int statusCode = getStatusCode(method);
+            request.setStatusCode(statusCode);
+            if (statusCode == 503) {
+                // The wait jets3t makes before the next attempt
+                fireThrottled(request, 50L * (long) Math.pow(2, retries));
+            } else {
+                fireRetried(request, retries + 1);
+            }
+        }
+        super.sleepOnInternalError(retries);
+    }
+
+    /**
+     * Finds the bucket and key of a request from its host, for virtual host style requests, or from its path
+     */
+    private TransferRequest createRequest(HttpMethodBase httpMethod) {
+        String bucket = null;
+        String key = null;
+        try {
+            URI uri = httpMethod.getURI();
+            String host = uri.getHost();
+            String path = uri.getPath() == null ? "" : uri.getPath();
+            if (path.startsWith("/")) {
+                path = path.substring(1);
+            }
+            String endpoint = getEndpoint();
+            if ((host != null) && host.endsWith("." + endpoint)) {
+                bucket = host.substring(0, host.length() - endpoint.length() - 1);
+                key = path;
+            } else {
+                int slash = path.indexOf('/');
+                bucket = slash == -1 ? path : path.substring(0, slash);
+                key = slash == -1 ? null : path.substring(slash + 1);
+            }
+        } catch (URIException e) {
+            // Reported without a bucket or key
+        }
+        return new TransferRequest(httpMethod.getName(), emptyToNull(bucket), emptyToNull(key));
+    }
+
+    private static String emptyToNull(String value) {
+        return (value == null) || (value.length() == 0) ? null : value;
+    }
+
+    private static int getStatusCode(HttpMethodBase httpMethod) {
+        return httpMethod.getStatusLine() == null ? 0 : httpMethod.getStatusCode();
+    }
+
+    private void fireStarted(TransferRequest request) {
+        for (TransferListener listener : this.listeners) {
+            try {
+                listener.requestStarted(request);
+            } catch (RuntimeException e) {
+                // Listeners must not affect transfers
+            }
+        }
+    }
+
+    private void fireTransferred(TransferRequest request, long bytes) {
+        request.transferred(bytes);
+        for (TransferListener listener : this.listeners) {
+            try {
+                listener.bytesTransferred(request, bytes);
+            } catch (RuntimeException e) {
+                // Listeners must not affect transfers
+            }
+        }
+    }
+
+    private void fireFinished(TransferRequest request) {
+        if (!request.finished()) {
+            return;
+        }
+        for (TransferListener listener : this.listeners) {
+            try {
+                listener.requestFinished(request);
+            } catch (RuntimeException e) {
+                // Listeners must not affect transfers
+            }
+        }
+    }
+
+    private void fireRetried(TransferRequest request, int attempt) {
+        for (TransferListener listener : this.listeners) {
+            try {
+                listener.requestRetried(request, attempt);
+            } catch (RuntimeException e) {
+                // Listeners must not affect transfers
+            }
+        }
+    }
+
+    private void fireThrottled(TransferRequest request, long delay) {
+        for (TransferListener listener : this.listeners) {
+            try {
+                listener.requestThrottled(request, delay);
+            } catch (RuntimeException e) {
+                // Listeners must not affect transfers
+            }
+        }
+    }
+
+    /**
+     * A request body that reports the bytes written as they are sent
+     */
+    private final class CountingRequestEntity implements RequestEntity {
+
+        private final RequestEntity delegate;
+
+        private final TransferRequest request;
+
+        private CountingRequestEntity(RequestEntity delegate, TransferRequest request) {
+            this.delegate = delegate;
+            this.request = request;
+        }
+
+        public boolean isRepeatable() {
+            return this.delegate.isRepeatable();
+        }
+
+        public void writeRequest(final OutputStream out) throws IOException {
+            this.delegate.writeRequest(new OutputStream() {
+
+                public void write(int b) throws IOException {
+                    out.write(b);
+                    fireTransferred(CountingRequestEntity.this.request, 1);
+                }
+
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    fireTransferred(CountingRequestEntity.this.request, len);
+                }
+
+                public void flush() throws IOException {
+                    out.flush();
+                }
+            });
+        }
+
+        public long getContentLength() {
+            return this.delegate.getContentLength();
+        }
+
+        public String getContentType() {
+            return this.delegate.getContentType();
+        }
+    }
+
+    /**
+     * The body of a downloaded object, which reports the bytes read and finishes its request, releasing its permit, once
+     * it has been read or closed
+     */
+    private final class CountingInputStream extends FilterInputStream {
+
+        private final TransferRequest request;
+
+        private final TransferGovernor.Permit permit;
+
+        private CountingInputStream(InputStream in, TransferRequest request, TransferGovernor.Permit permit) {
+            super(in);
+            this.request = request;
+            this.permit = permit;
+        }
+
+        public int read() throws IOException {
+            int b;
+            try {
+                b = super.read();
+            } catch (IOException e) {
+                this.request.setFailure(e);
+                throw e;
+            }
+            if (b == -1) {
+                finish();
+            } else {
+                fireTransferred(this.request, 1);
+            }
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read;
+            try {
+                read = super.read(b, off, len);
+            } catch (IOException e) {
+                this.request.setFailure(e);
+                throw e;
+            }
+            if (read == -1) {
+                finish();
+            } else if (read > 0) {
+                fireTransferred(this.request, read);
+            }
+            return read;
+        }
+
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            if (skipped > 0) {
+                fireTransferred(this.request, skipped);
+            }
+            return skipped;
+        }
+
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                finish();
+            }
+        }
+
+        private void finish() {
+            fireFinished(this.request);
+            this.permit.release();
+        }
+    }
+
+}
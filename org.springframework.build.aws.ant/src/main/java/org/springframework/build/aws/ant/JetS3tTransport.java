@@ -0,0 +1,352 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.httpclient.methods.PutMethod;
+import org.jets3t.service.Jets3tProperties;
+import org.jets3t.service.S3Service;
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.StorageObjectsChunk;
+import org.jets3t.service.impl.rest.httpclient.RestStorageService;
+import org.jets3t.service.model.MultipartPart;
+import org.jets3t.service.model.MultipartUpload;
+import org.jets3t.service.model.S3Object;
+import org.jets3t.service.model.StorageObject;
+import org.jets3t.service.utils.RestUtils;
+import org.jets3t.service.utils.ServiceUtils;
+
+/**
+ * An {@link S3Transport} over a jets3t {@link S3Service}, and so over its HttpClient connections, retries and
+ * configuration. This is the transport used unless another is configured. The service is owned by whoever created it,
+ * so closing the transport leaves it running.
+ */
+public final class JetS3tTransport implements S3Transport {
+
+    /**
+     * The names of the standard HTTP headers that S3 stores with an object, in lower case
+     */
+    static final Set<String> HTTP_HEADERS = new HashSet<String>(Arrays.asList("cache-control", "content-disposition",
+        "content-encoding", "content-language", "content-length", "content-md5", "content-type", "date", "etag", "expires",
+        "last-modified"));
+
+    private static final String METADATA_DIRECTIVE = "x-amz-metadata-directive";
+
+    private final S3Service service;
+
+    /**
+     * Creates a transport over a service
+     * 
+     * @param service The service to make requests with
+     */
+    public JetS3tTransport(S3Service service) {
+        this.service = service;
+    }
+
+    public S3ObjectListing list(String bucket, String prefix, String delimiter, String marker, int maxKeys) throws IOException {
+        try {
+            StorageObjectsChunk chunk = this.service.listObjectsChunked(bucket, prefix, delimiter, maxKeys, marker, false);
+            List<S3ObjectInfo> objects = new ArrayList<S3ObjectInfo>(chunk.getObjects().length);
+            for (StorageObject object : chunk.getObjects()) {
+                objects.add(new S3ObjectInfo(object.getKey(), object.getContentLength(), unquote(object.getETag()),
+                    object.getLastModifiedDate(), new HashMap<String, String>()));
+            }
+            return new S3ObjectListing(objects, Arrays.asList(chunk.getCommonPrefixes()), !chunk.isListingComplete(),
+                chunk.getPriorLastKey());
+        } catch (ServiceException e) {
+            throw translate(e);
+        }
+    }
+
+    public S3ObjectInfo head(String bucket, String key) throws IOException {
+        try {
+            StorageObject object = this.service.getObjectDetails(bucket, key);
+            return new S3ObjectInfo(key, object.getContentLength(), unquote(object.getETag()), object.getLastModifiedDate(),
+                getHeaders(object));
+        } catch (ServiceException e) {
+            if (e.getResponseCode() == 404) {
+                return null;
+            }
+            throw translate(e);
+        }
+    }
+
+    public S3ObjectContent get(String bucket, String key, long rangeStart, long rangeEnd, String ifMatch) throws IOException {
+        try {
+            StorageObject object = this.service.getObject(bucket, key, null, null, ifMatch == null ? null : new String[] { ifMatch },
+                null, rangeStart < 0 ? null : Long.valueOf(rangeStart), rangeEnd < 0 ? null : Long.valueOf(rangeEnd));
+            return new S3ObjectContent(key, object.getContentLength(), unquote(object.getETag()), object.getLastModifiedDate(),
+                getHeaders(object), object.getDataInputStream());
+        } catch (ServiceException e) {
+            throw translate(e);
+        }
+    }
+
+    public String put(String bucket, String key, S3RequestBody body, Map<String, String> headers) throws IOException {
+        S3Object object = createObject(key, headers);
+        InputStream in = body.open();
+        try {
+            object.setDataInputStream(in);
+            object.setContentLength(body.getLength());
+            return unquote(this.service.putObject(bucket, object).getETag());
+        } catch (ServiceException e) {
+            throw translate(e);
+        } finally {
+            in.close();
+        }
+    }
+
+    public void delete(String bucket, String key) throws IOException {
+        try {
+            this.service.deleteObject(bucket, key);
+        } catch (ServiceException e) {
+            throw translate(e);
+        }
+    }
+
+    public String copy(String sourceBucket, String sourceKey, String bucket, String key, Map<String, String> headers)
+        throws IOException {
+        Map<String, String> objectHeaders = new HashMap<String, String>(headers);
+        boolean replaceMetadata = false;
+        for (String name : headers.keySet()) {
+            if (name.equalsIgnoreCase(METADATA_DIRECTIVE)) {
+                // Set by jets3t from the flag
+                replaceMetadata = "REPLACE".equalsIgnoreCase(objectHeaders.remove(name));
+            }
+        }
+        try {
+            Map<String, Object> result = this.service.copyObject(sourceBucket, sourceKey, bucket, createObject(key, objectHeaders),
+                replaceMetadata);
+            Object etag = result.get("ETag");
+            return etag == null ? null : unquote(etag.toString());
+        } catch (ServiceException e) {
+            throw translate(e);
+        }
+    }
+
+    public String startMultipartUpload(String bucket, String key, Map<String, String> headers) throws IOException {
+        try {
+            return this.service.multipartStartUpload(bucket, createObject(key, headers)).getUploadId();
+        } catch (ServiceException e) {
+            throw translate(e);
+        }
+    }
+
+    public String uploadPart(String bucket, String key, String uploadId, int partNumber, S3RequestBody body) throws IOException {
+        S3Object part = new S3Object(key);
+        InputStream in = body.open();
+        try {
+            part.setDataInputStream(in);
+            part.setContentLength(body.getLength());
+            return unquote(this.service.multipartUploadPart(new MultipartUpload(uploadId, bucket, key), Integer.valueOf(partNumber), part)
+                .getEtag());
+        } catch (ServiceException e) {
+            throw translate(e);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Copies a part with a request of its own, signed and sent with the HTTP client of the service, as jets3t has no
+     * call for part copies. The request is not reported to the transfer listeners of the service.
+     */
+    public String copyPart(String sourceBucket, String sourceKey, String sourceETag, long rangeStart, long rangeEnd, String bucket,
+        String key, String uploadId, int partNumber) throws IOException {
+        if (!(this.service instanceof RestStorageService)) {
+            throw new S3TransportException("Part copies need a REST service", 0, null, null);
+        }
+        RestStorageService restService = (RestStorageService) this.service;
+        Jets3tProperties properties = restService.getJetS3tProperties();
+        int retryMax = properties.getIntProperty("s3service.internal-error-retry-max", 5);
+        String uri;
+        try {
+            uri = getBucketUrl(restService, bucket) + RestUtils.encodeUrlPath(key, "/") + "?partNumber=" + partNumber + "&uploadId="
+                + RestUtils.encodeUrlString(uploadId);
+        } catch (ServiceException e) {
+            throw translate(e);
+        }
+        // Made with the service's HttpClient directly, so held in the transfer budget here rather than by the service
+        TransferGovernor.Permit permit = GovernedTransport.acquire(0);
+        try {
+            return copyPart(restService, uri, sourceBucket, sourceKey, sourceETag, rangeStart, rangeEnd, bucket, key, partNumber, retryMax);
+        } finally {
+            permit.release();
+        }
+    }
+
+    private static String copyPart(RestStorageService restService, String uri, String sourceBucket, String sourceKey, String sourceETag,
+        long rangeStart, long rangeEnd, String bucket, String key, int partNumber, int retryMax) throws IOException {
+        for (int retries = 0;; retries++) {
+            PutMethod method = new PutMethod(uri);
+            int status;
+            String body;
+            try {
+                method.setRequestHeader("x-amz-date", ServiceUtils.formatRfc822Date(new Date()));
+                method.setRequestHeader("x-amz-copy-source", "/" + sourceBucket + "/" + RestUtils.encodeUrlPath(sourceKey, "/"));
+                method.setRequestHeader("x-amz-copy-source-range", "bytes=" + rangeStart + "-" + rangeEnd);
+                if (sourceETag != null) {
+                    method.setRequestHeader("x-amz-copy-source-if-match", "\"" + sourceETag + "\"");
+                }
+                restService.authorizeHttpRequest(method);
+                status = restService.getHttpClient().executeMethod(method);
+                body = method.getResponseBodyAsString();
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                // A connection reset or timed out, retried as jets3t retries its own requests
+                if (retries < retryMax) {
+                    backOff(retries, partNumber, bucket, key);
+                    continue;
+                }
+                throw e;
+            } catch (ServiceException e) {
+                throw translate(e);
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                // Declared by jets3t's request signing
+                throw new S3TransportException("Copy of part " + partNumber + " of s3://" + bucket + "/" + key + " failed", 0, null, e);
+            } finally {
+                method.releaseConnection();
+            }
+            String errorCode = body == null ? null : getElement(body, "Code");
+            if ((status == 200) && (body != null) && !body.contains("<Error>")) {
+                return unquote(getElement(body, "ETag"));
+            }
+            if (((status == 500) || (status == 503)) && (retries < retryMax)) {
+                backOff(retries, partNumber, bucket, key);
+                continue;
+            }
+            throw new S3TransportException("Copy of part " + partNumber + " of s3://" + bucket + "/" + key + " failed with " + status
+                + (errorCode == null ? "" : " " + errorCode), status, errorCode, null);
+        }
+    }
+
+    private static void backOff(int retries, int partNumber, String bucket, String key) throws InterruptedIOException {
+        try {
+            Thread.sleep(50L << retries);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while copying part " + partNumber + " of s3://" + bucket + "/" + key);
+        }
+    }
+
+    public String completeMultipartUpload(String bucket, String key, String uploadId, List<String> partETags) throws IOException {
+        List<MultipartPart> parts = new ArrayList<MultipartPart>(partETags.size());
+        for (int i = 0; i < partETags.size(); i++) {
+            // Only the number and ETag of a part are sent
+            parts.add(new MultipartPart(Integer.valueOf(i + 1), new Date(0), partETags.get(i), Long.valueOf(0)));
+        }
+        try {
+            return unquote(this.service.multipartCompleteUpload(new MultipartUpload(uploadId, bucket, key), parts).getEtag());
+        } catch (ServiceException e) {
+            throw translate(e);
+        }
+    }
+
+    public void abortMultipartUpload(String bucket, String key, String uploadId) throws IOException {
+        try {
+            this.service.multipartAbortUpload(new MultipartUpload(uploadId, bucket, key));
+        } catch (ServiceException e) {
+            throw translate(e);
+        }
+    }
+
+    public void close() {
+        // The service is shut down by its owner
+    }
+
+    /**
+     * Returns the URL of a bucket, ending with a slash, as jets3t addresses it: by virtual host where the name of the
+     * bucket allows it, and by path otherwise
+     */
+    private static String getBucketUrl(RestStorageService service, String bucket) {
+        Jets3tProperties properties = service.getJetS3tProperties();
+        boolean https = service.isHttpsOnly();
+        int port = https ? properties.getIntProperty("s3service.s3-endpoint-https-port", 443) : properties.getIntProperty(
+            "s3service.s3-endpoint-http-port", 80);
+        String host = service.getEndpoint();
+        String path = "/";
+        if (ServiceUtils.isBucketNameValidDNSName(bucket) && !properties.getBoolProperty("s3service.disable-dns-buckets", false)) {
+            host = bucket + "." + host;
+        } else {
+            path = "/" + bucket + "/";
+        }
+        return (https ? "https" : "http") + "://" + host + ":" + port + path;
+    }
+
+    private static String getElement(String xml, String name) {
+        Matcher matcher = Pattern.compile("<" + name + ">([^<]*)</" + name + ">").matcher(xml);
+        return matcher.find() ? matcher.group(1).replace("&quot;", "\"").replace("&amp;", "&") : null;
+    }
+
+    /**
+     * Creates an object carrying the headers of a request as its metadata. jets3t sends standard HTTP headers and
+     * <code>x-amz-</code> headers under their own names, and anything else as user metadata.
+     */
+    private static S3Object createObject(String key, Map<String, String> headers) {
+        S3Object object = new S3Object(key);
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (header.getKey().equalsIgnoreCase("content-type")) {
+                object.setContentType(header.getValue());
+            } else {
+                object.addMetadata(header.getKey(), header.getValue());
+            }
+        }
+        return object;
+    }
+
+    /**
+     * Returns the metadata of an object as response headers, restoring the prefix of user metadata that jets3t removes
+     */
+    private static Map<String, String> getHeaders(StorageObject object) {
+        Map<String, String> headers = new HashMap<String, String>();
+        for (Map.Entry<String, Object> entry : object.getMetadataMap().entrySet()) {
+            String name = entry.getKey().toLowerCase(Locale.ENGLISH);
+            if (!HTTP_HEADERS.contains(name) && !name.startsWith("x-amz-")) {
+                name = "x-amz-meta-" + name;
+            }
+            Object value = entry.getValue();
+            headers.put(name, value instanceof Date ? ServiceUtils.formatRfc822Date((Date) value) : String.valueOf(value));
+        }
+        return headers;
+    }
+
+    private static S3TransportException translate(ServiceException e) {
+        return new S3TransportException(e.getMessage(), Math.max(0, e.getResponseCode()), e.getErrorCode(), e);
+    }
+
+    private static String unquote(String etag) {
+        return etag == null ? null : etag.replace("\"", "");
+    }
+
+}
@@ -0,0 +1,592 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Date;
+import java.util.UUID;
+
+import org.jets3t.service.utils.ServiceUtils;
+
+/**
+ * A listing of the objects under a prefix of a bucket, kept in a file and read through a memory mapping, so that the
+ * listing of a bucket of millions of objects can be read again without listing the bucket and without holding it on
+ * the heap.
+ * <p />
+ * The keys are stored sorted in the order S3 lists them, front coded: each key is stored as the length of the prefix it
+ * shares with the key before it and the bytes that follow, with a full key every {@value #RESTART_INTERVAL} keys so
+ * that a key can be found by a binary search over those. The size, modification time and ETag of the objects are
+ * stored in fixed-width columns alongside, read by the index of the key. ETags that are not an MD5, with or without
+ * a part count, are not kept.
+ * <p />
+ * A snapshot is written once by a {@link Writer} and never modified; refreshing it means writing a new one.
+ */
+final class ListingSnapshot {
+
+    private static final int MAGIC = 0x53334c53;
+
+    private static final int VERSION = 1;
+
+    private static final int RESTART_INTERVAL = 16;
+
+    private static final int ETAG_WIDTH = 20;
+
+    private final String bucket;
+
+    private final String prefix;
+
+    private final long created;
+
+    private final int count;
+
+    private final ByteBuffer keys;
+
+    private final ByteBuffer restarts;
+
+    private final ByteBuffer sizes;
+
+    private final ByteBuffer lastModifieds;
+
+    private final ByteBuffer etags;
+
+    private ListingSnapshot(String bucket, String prefix, long created, int count, ByteBuffer keys, ByteBuffer restarts,
+        ByteBuffer sizes, ByteBuffer lastModifieds, ByteBuffer etags) {
+        this.bucket = bucket;
+        this.prefix = prefix;
+        this.created = created;
+        this.count = count;
+        this.keys = keys;
+        this.restarts = restarts;
+        this.sizes = sizes;
+        this.lastModifieds = lastModifieds;
+        this.etags = etags;
+    }
+
+    /**
+     * Maps a snapshot
+     *
+     * @param file The snapshot file
+     * @return The snapshot, or <code>null</code> if the file does not exist or is not a complete snapshot
+     * @throws IOException if the file cannot be read
+     */
+    static ListingSnapshot load(File file) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            if ((in.length() < 8) || (in.readInt() != MAGIC) || (in.readInt() != VERSION)) {
+                return null;
+            }
+            long created = in.readLong();
+            int count = in.readInt();
+            String bucket = in.readUTF();
+            String prefix = in.readUTF();
+            long keysLength = in.readLong();
+            long position = in.getFilePointer();
+            long restartsLength = getBlockCount(count) * 8L;
+            if (in.length() != position + keysLength + restartsLength + (count * (16L + ETAG_WIDTH))) {
+                // Cut short
+                return null;
+            }
+            FileChannel channel = in.getChannel();
+            ByteBuffer keys = map(channel, position, keysLength);
+            ByteBuffer restarts = map(channel, position += keysLength, restartsLength);
+            ByteBuffer sizes = map(channel, position += restartsLength, count * 8L);
+            ByteBuffer lastModifieds = map(channel, position += count * 8L, count * 8L);
+            ByteBuffer etags = map(channel, position += count * 8L, (long) count * ETAG_WIDTH);
+            return new ListingSnapshot(bucket, prefix, created, count, keys, restarts, sizes, lastModifieds, etags);
+        } finally {
+            // The mappings stay valid once the file is closed
+            in.close();
+        }
+    }
+
+    String getBucket() {
+        return this.bucket;
+    }
+
+    String getPrefix() {
+        return this.prefix;
+    }
+
+    /**
+     * Returns the time the objects were listed. A snapshot refreshed in part keeps the time of the full listing it
+     * started from.
+     *
+     * @return The time, in milliseconds since the epoch
+     */
+    long getCreated() {
+        return this.created;
+    }
+
+    /**
+     * Returns the number of objects in the snapshot
+     *
+     * @return The number of objects
+     */
+    int size() {
+        return this.count;
+    }
+
+    long getSize(int index) {
+        return this.sizes.getLong(index * 8);
+    }
+
+    long getLastModified(int index) {
+        return this.lastModifieds.getLong(index * 8);
+    }
+
+    /**
+     * Returns the ETag of an object
+     *
+     * @param index The index of the object
+     * @return The ETag, without quotes, or <code>null</code> if it was not kept
+     */
+    String getETag(int index) {
+        int parts = this.etags.getInt(index * ETAG_WIDTH + 16);
+        if (parts < 0) {
+            return null;
+        }
+        byte[] digest = new byte[16];
+        ByteBuffer etag = this.etags.duplicate();
+        etag.position(index * ETAG_WIDTH);
+        etag.get(digest);
+        return parts == 0 ? ServiceUtils.toHex(digest) : ServiceUtils.toHex(digest) + "-" + parts;
+    }
+
+    /**
+     * Returns a cursor positioned before the first key that is not less than a given key
+     *
+     * @param key The key to seek to
+     * @return The cursor
+     */
+    Cursor seek(String key) {
+        byte[] target = encode(key);
+        Cursor cursor = new Cursor();
+        int low = 0;
+        int high = getBlockCount(this.count) - 1;
+        // The last block whose first key is not greater than the target
+        int block = 0;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            cursor.position(middle);
+            cursor.next();
+            if (cursor.compareKey(target) <= 0) {
+                block = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        cursor.position(block);
+        while (cursor.next()) {
+            if (cursor.compareKey(target) >= 0) {
+                cursor.back();
+                break;
+            }
+        }
+        return cursor;
+    }
+
+    /**
+     * Returns a cursor positioned before the first key
+     *
+     * @return The cursor
+     */
+    Cursor cursor() {
+        Cursor cursor = new Cursor();
+        cursor.position(0);
+        return cursor;
+    }
+
+    private static int getBlockCount(int count) {
+        return (count + RESTART_INTERVAL - 1) / RESTART_INTERVAL;
+    }
+
+    private static ByteBuffer map(FileChannel channel, long position, long length) throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Listing snapshot section of " + length + " bytes is too large to map");
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+    }
+
+    private static byte[] encode(String key) {
+        try {
+            return key.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static int compare(byte[] a, int aLength, byte[] b, int bLength) {
+        int length = Math.min(aLength, bLength);
+        for (int i = 0; i < length; i++) {
+            int difference = (a[i] & 0xff) - (b[i] & 0xff);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return aLength - bLength;
+    }
+
+    /**
+     * Reads the keys of a snapshot in order, decoding each from the one before it. A cursor is not thread safe, but
+     * any number of cursors can read a snapshot at once.
+     */
+    final class Cursor {
+
+        private final ByteBuffer keys = ListingSnapshot.this.keys.duplicate();
+
+        private byte[] key = new byte[256];
+
+        private int keyLength;
+
+        private int index;
+
+        private int previousPosition;
+
+        private int previousIndex;
+
+        private Cursor() {
+        }
+
+        /**
+         * Moves to the next key
+         *
+         * @return <code>false</code> if there are no more keys
+         */
+        boolean next() {
+            if (this.index >= ListingSnapshot.this.count) {
+                return false;
+            }
+            this.previousPosition = this.keys.position();
+            this.previousIndex = this.index;
+            int shared = readVarInt();
+            int suffix = readVarInt();
+            if (this.key.length < shared + suffix) {
+                byte[] larger = new byte[Math.max(this.key.length * 2, shared + suffix)];
+                System.arraycopy(this.key, 0, larger, 0, shared);
+                this.key = larger;
+            }
+            this.keys.get(this.key, shared, suffix);
+            this.keyLength = shared + suffix;
+            this.index++;
+            return true;
+        }
+
+        /**
+         * Returns the index of the current key, by which its columns are read
+         *
+         * @return The index
+         */
+        int getIndex() {
+            return this.index - 1;
+        }
+
+        String getKey() {
+            try {
+                return new String(this.key, 0, this.keyLength, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * Returns whether the current key starts with a prefix, without decoding the key
+         *
+         * @param prefix The UTF-8 encoding of the prefix
+         * @return <code>true</code> if the key starts with the prefix
+         */
+        boolean startsWith(byte[] prefix) {
+            return (this.keyLength >= prefix.length) && (compare(this.key, prefix.length, prefix, prefix.length) == 0);
+        }
+
+        private int compareKey(byte[] other) {
+            return compare(this.key, this.keyLength, other, other.length);
+        }
+
+        /**
+         * Moves back before the current key. The key before it is not decoded again, as the current key is the next
+         * to be decoded and a key only depends on the key before it for the prefix they share.
+         */
+        private void back() {
+            this.keys.position(this.previousPosition);
+            this.index = this.previousIndex;
+        }
+
+        private void position(int block) {
+            if (block * RESTART_INTERVAL >= ListingSnapshot.this.count) {
+                this.keys.position(this.keys.limit());
+                this.index = ListingSnapshot.this.count;
+                return;
+            }
+            this.keys.position((int) ListingSnapshot.this.restarts.getLong(block * 8));
+            this.index = block * RESTART_INTERVAL;
+        }
+
+        private int readVarInt() {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = this.keys.get();
+                value |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+    }
+
+    /**
+     * Writes a snapshot from objects added in key order. The columns are written to temporary files beside the
+     * snapshot as the objects are added, and joined into the snapshot when it is committed, so writing a snapshot
+     * holds only the last key in memory.
+     */
+    static final class Writer {
+
+        private final File file;
+
+        private final String bucket;
+
+        private final String prefix;
+
+        private final long created;
+
+        private final File[] sections;
+
+        private final DataOutputStream[] outs;
+
+        private byte[] previous = new byte[0];
+
+        private long keysLength;
+
+        private int count;
+
+        /**
+         * Creates a writer
+         *
+         * @param file The snapshot file to write
+         * @param bucket The bucket listed
+         * @param prefix The prefix listed
+         * @param created The time the listing started
+         * @throws IOException if the temporary files cannot be created
+         */
+        Writer(File file, String bucket, String prefix, long created) throws IOException {
+            this.file = file;
+            this.bucket = bucket;
+            this.prefix = prefix;
+            this.created = created;
+            file.getAbsoluteFile().getParentFile().mkdirs();
+            this.sections = new File[5];
+            this.outs = new DataOutputStream[5];
+            try {
+                // Named uniquely, as another build may be writing the same snapshot
+                String temporary = file.getPath() + "." + UUID.randomUUID();
+                for (int i = 0; i < this.sections.length; i++) {
+                    this.sections[i] = new File(temporary + "." + i + ".tmp");
+                    this.outs[i] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.sections[i]), 64 * 1024));
+                }
+            } catch (IOException e) {
+                abort();
+                throw e;
+            }
+        }
+
+        /**
+         * Adds an object, which must come after every object already added in the order S3 lists keys
+         *
+         * @param key The key of the object
+         * @param size The size of the object
+         * @param etag The ETag of the object, with or without quotes, or <code>null</code>
+         * @param lastModified The modification time of the object, or <code>null</code>
+         * @throws IOException if the object is out of order, or the snapshot cannot be written
+         */
+        void add(String key, long size, String etag, Date lastModified) throws IOException {
+            byte[] encoded = encode(key);
+            if ((this.count > 0) && (compare(encoded, encoded.length, this.previous, this.previous.length) <= 0)) {
+                throw new IOException("Key " + key + " is not in listing order");
+            }
+            int shared = 0;
+            if (this.count % RESTART_INTERVAL == 0) {
+                this.outs[1].writeLong(this.keysLength);
+            } else {
+                int limit = Math.min(encoded.length, this.previous.length);
+                while ((shared < limit) && (encoded[shared] == this.previous[shared])) {
+                    shared++;
+                }
+            }
+            this.keysLength += writeVarInt(this.outs[0], shared) + writeVarInt(this.outs[0], encoded.length - shared);
+            this.outs[0].write(encoded, shared, encoded.length - shared);
+            this.keysLength += encoded.length - shared;
+            this.previous = encoded;
+
+            this.outs[2].writeLong(size);
+            this.outs[3].writeLong(lastModified == null ? 0 : lastModified.getTime());
+            writeETag(this.outs[4], etag);
+            this.count++;
+        }
+
+        /**
+         * Adds an object of another snapshot
+         *
+         * @param snapshot The snapshot
+         * @param cursor A cursor of the snapshot, on the object to add
+         * @throws IOException if the object is out of order, or the snapshot cannot be written
+         */
+        void add(ListingSnapshot snapshot, Cursor cursor) throws IOException {
+            int index = cursor.getIndex();
+            add(cursor.getKey(), snapshot.getSize(index), snapshot.getETag(index), new Date(snapshot.getLastModified(index)));
+        }
+
+        /**
+         * Joins the sections into the snapshot file, replacing any earlier snapshot
+         *
+         * @return The number of objects written
+         * @throws IOException if the snapshot cannot be written
+         */
+        int commit() throws IOException {
+            boolean committed = false;
+            try {
+                for (DataOutputStream out : this.outs) {
+                    out.close();
+                }
+                File temporary = new File(this.sections[0].getPath().replace(".0.tmp", ".tmp"));
+                FileOutputStream out = new FileOutputStream(temporary);
+                try {
+                    DataOutputStream header = new DataOutputStream(new BufferedOutputStream(out));
+                    header.writeInt(MAGIC);
+                    header.writeInt(VERSION);
+                    header.writeLong(this.created);
+                    header.writeInt(this.count);
+                    header.writeUTF(this.bucket);
+                    header.writeUTF(this.prefix);
+                    header.writeLong(this.keysLength);
+                    header.flush();
+                    FileChannel channel = out.getChannel();
+                    for (File section : this.sections) {
+                        FileInputStream in = new FileInputStream(section);
+                        try {
+                            FileChannel sectionChannel = in.getChannel();
+                            long position = 0;
+                            long length = sectionChannel.size();
+                            while (position < length) {
+                                position += sectionChannel.transferTo(position, length - position, channel);
+                            }
+                        } finally {
+                            in.close();
+                        }
+                    }
+                } finally {
+                    out.close();
+                }
+                if (!temporary.renameTo(this.file)) {
+                    this.file.delete();
+                    if (!temporary.renameTo(this.file)) {
+                        temporary.delete();
+                        throw new IOException("Unable to write listing snapshot " + this.file.getAbsolutePath());
+                    }
+                }
+                committed = true;
+                return this.count;
+            } finally {
+                for (File section : this.sections) {
+                    section.delete();
+                }
+                if (!committed) {
+                    abort();
+                }
+            }
+        }
+
+        /**
+         * Discards the snapshot being written
+         */
+        void abort() {
+            for (int i = 0; i < this.outs.length; i++) {
+                if (this.outs[i] != null) {
+                    try {
+                        this.outs[i].close();
+                    } catch (IOException e) {
+                        // Nothing to do at this point
+                    }
+                }
+                if (this.sections[i] != null) {
+                    this.sections[i].delete();
+                }
+            }
+        }
+
+        private static int writeVarInt(DataOutputStream out, int value) throws IOException {
+            int length = 1;
+            while ((value & ~0x7f) != 0) {
+                out.writeByte((value & 0x7f) | 0x80);
+                value >>>= 7;
+                length++;
+            }
+            out.writeByte(value);
+            return length;
+        }
+
+        /**
+         * Writes an ETag as its MD5 and part count, parsed by hand as this runs for every object of a listing
+         */
+        private static void writeETag(DataOutputStream out, String etag) throws IOException {
+            int start = 0;
+            int end = etag == null ? 0 : etag.length();
+            if ((end >= 2) && (etag.charAt(0) == '"') && (etag.charAt(end - 1) == '"')) {
+                start++;
+                end--;
+            }
+            byte[] digest = new byte[16];
+            int parts = (end - start >= 32) ? 0 : -1;
+            for (int i = 0; (i < 16) && (parts == 0); i++) {
+                int high = Character.digit(etag.charAt(start + i * 2), 16);
+                int low = Character.digit(etag.charAt(start + i * 2 + 1), 16);
+                if ((high == -1) || (low == -1)) {
+                    parts = -1;
+                } else {
+                    digest[i] = (byte) ((high << 4) | low);
+                }
+            }
+            if ((parts == 0) && (end - start > 32)) {
+                try {
+                    parts = etag.charAt(start + 32) == '-' ? Integer.parseInt(etag.substring(start + 33, end)) : -1;
+                } catch (NumberFormatException e) {
+                    parts = -1;
+                }
+            }
+            if (parts < 0) {
+                out.write(new byte[16]);
+                out.writeInt(-1);
+            } else {
+                out.write(digest);
+                out.writeInt(parts);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.tools.ant.Project;
+import org.jets3t.service.S3Service;
+import org.jets3t.service.utils.ServiceUtils;
+
+/**
+ * The {@link ListingSnapshot}s of an operation, kept in a directory that can be shared by every build on a host, one
+ * file per bucket and prefix. A snapshot is listed in full when there is none, or when it is older than the maximum
+ * age. Otherwise only the prefixes named for refresh are listed again, and merged with the rest of the snapshot into a
+ * new one. Each snapshot is brought up to date at most once per run of the operation.
+ */
+final class ListingSnapshots {
+
+    private static final Comparator<String> KEY_ORDER = new Comparator<String>() {
+
+        public int compare(String a, String b) {
+            return SortedFileWalker.compareKeys(a, b);
+        }
+    };
+
+    private static final int PAGE_SIZE = 1000;
+
+    private final AbstractS3Operation operation;
+
+    private final File directory;
+
+    private final long maxAge;
+
+    private final List<String> refreshPrefixes;
+
+    private final Map<String, ListingSnapshot> snapshots = new HashMap<String, ListingSnapshot>();
+
+    /**
+     * Creates the snapshots of an operation
+     *
+     * @param operation The operation, whose transport lists objects
+     * @param directory The directory of snapshots
+     * @param maxAge The age, in milliseconds, after which a snapshot is listed in full again
+     * @param refreshPrefixes The prefixes, from the root of the bucket, to list again whenever a snapshot is used
+     */
+    ListingSnapshots(AbstractS3Operation operation, File directory, long maxAge, List<String> refreshPrefixes) {
+        this.operation = operation;
+        this.directory = directory;
+        this.maxAge = maxAge;
+        this.refreshPrefixes = new ArrayList<String>(refreshPrefixes);
+        Collections.sort(this.refreshPrefixes, KEY_ORDER);
+    }
+
+    /**
+     * Returns the up to date snapshot of a prefix of a bucket
+     *
+     * @param service The service of the operation
+     * @param bucket The bucket
+     * @param prefix The prefix
+     * @return The snapshot
+     * @throws IOException if the snapshot cannot be read or written, or the bucket cannot be listed
+     */
+    synchronized ListingSnapshot get(S3Service service, String bucket, String prefix) throws IOException {
+        String name = bucket + "\n" + prefix;
+        ListingSnapshot snapshot = this.snapshots.get(name);
+        if (snapshot != null) {
+            return snapshot;
+        }
+
+        File file = getFile(name);
+        snapshot = ListingSnapshot.load(file);
+        if ((snapshot != null) && (!snapshot.getBucket().equals(bucket) || !snapshot.getPrefix().equals(prefix))) {
+            snapshot = null;
+        }
+        S3Transport transport = this.operation.getTransport(service);
+        Project project = this.operation.project;
+        long now = System.currentTimeMillis();
+        if ((snapshot == null) || (now - snapshot.getCreated() > this.maxAge)) {
+            snapshot = list(transport, file, bucket, prefix, now);
+        } else {
+            List<String> refresh = new ArrayList<String>();
+            boolean full = false;
+            for (String refreshPrefix : this.refreshPrefixes) {
+                if (prefix.startsWith(refreshPrefix)) {
+                    full = true;
+                } else if (refreshPrefix.startsWith(prefix)
+                    && ((refresh.size() == 0) || !refreshPrefix.startsWith(refresh.get(refresh.size() - 1)))) {
+                    refresh.add(refreshPrefix);
+                }
+            }
+            if (full) {
+                snapshot = list(transport, file, bucket, prefix, now);
+            } else if (refresh.size() > 0) {
+                snapshot = refresh(transport, file, snapshot, refresh);
+            } else {
+                project.log("Using listing snapshot of s3://" + bucket + "/" + prefix + " (" + snapshot.size() + " objects)",
+                    Project.MSG_VERBOSE);
+            }
+        }
+        this.snapshots.put(name, snapshot);
+        return snapshot;
+    }
+
+    private ListingSnapshot list(S3Transport transport, File file, String bucket, String prefix, long now) throws IOException {
+        ListingSnapshot.Writer writer = new ListingSnapshot.Writer(file, bucket, prefix, now);
+        int count;
+        try {
+            listInto(writer, transport, bucket, prefix);
+        } catch (IOException e) {
+            writer.abort();
+            throw e;
+        }
+        count = writer.commit();
+        this.operation.project.log("Listed " + count + " objects of s3://" + bucket + "/" + prefix + " into a snapshot", Project.MSG_VERBOSE);
+        return ListingSnapshot.load(file);
+    }
+
+    /**
+     * Writes a new snapshot that keeps the objects of an existing one outside the given prefixes, and lists the
+     * objects under them again. The prefixes are in key order and do not overlap, so the objects under each form one
+     * run of the snapshot.
+     */
+    private ListingSnapshot refresh(S3Transport transport, File file, ListingSnapshot snapshot, List<String> prefixes)
+        throws IOException {
+        ListingSnapshot.Writer writer = new ListingSnapshot.Writer(file, snapshot.getBucket(), snapshot.getPrefix(), snapshot.getCreated());
+        int kept = 0;
+        try {
+            ListingSnapshot.Cursor cursor = snapshot.cursor();
+            boolean more = cursor.next();
+            for (String prefix : prefixes) {
+                while (more && (KEY_ORDER.compare(cursor.getKey(), prefix) < 0)) {
+                    writer.add(snapshot, cursor);
+                    kept++;
+                    more = cursor.next();
+                }
+                byte[] encoded = prefix.getBytes("UTF-8");
+                while (more && cursor.startsWith(encoded)) {
+                    more = cursor.next();
+                }
+                listInto(writer, transport, snapshot.getBucket(), prefix);
+            }
+            while (more) {
+                writer.add(snapshot, cursor);
+                kept++;
+                more = cursor.next();
+            }
+        } catch (IOException e) {
+            writer.abort();
+            throw e;
+        }
+        int count = writer.commit();
+        this.operation.project.log("Refreshed " + prefixes.size() + " prefixes of the listing snapshot of s3://" + snapshot.getBucket()
+            + "/" + snapshot.getPrefix() + ", " + (count - kept) + " objects listed, " + kept + " kept", Project.MSG_VERBOSE);
+        return ListingSnapshot.load(file);
+    }
+
+    private static void listInto(ListingSnapshot.Writer writer, S3Transport transport, String bucket, String prefix) throws IOException {
+        String marker = null;
+        do {
+            S3ObjectListing listing = transport.list(bucket, prefix, null, marker, PAGE_SIZE);
+            for (S3ObjectInfo object : listing.getObjects()) {
+                writer.add(object.getKey(), object.getSize(), object.getETag(), object.getLastModified());
+            }
+            marker = listing.getNextMarker();
+        } while (marker != null);
+    }
+
+    private File getFile(String name) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try {
+            digest.update(name.getBytes("UTF-8"));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return new File(this.directory, ServiceUtils.toHex(digest.digest()) + ".listing");
+    }
+
+}
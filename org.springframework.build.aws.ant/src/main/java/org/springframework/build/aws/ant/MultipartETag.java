@@ -0,0 +1,263 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.jets3t.service.utils.ServiceUtils;
+
+/**
+ * Computes S3 ETags for local files, so that a file can be compared with an object without transferring it. The ETag
+ * of an object uploaded in one request is the MD5 of its data. The ETag of an object uploaded in parts is the MD5 of the
+ * concatenated part MD5s followed by <code>-</code> and the number of parts; those part MD5s are computed in parallel,
+ * one task per part, with positional reads of the file.
+ * <p />
+ * The part size of a multipart ETag is not recorded anywhere, so it is inferred from the number of parts and the file
+ * length: it is the most widely used part size that splits the file into that many parts, or failing that the even
+ * split rounded up to a whole megabyte, and the file is hashed with that size only. A file whose object was uploaded
+ * with a less common part size is taken to have changed.
+ */
+final class MultipartETag {
+
+    private static final long MEGABYTE = 1024 * 1024;
+
+    /**
+     * Part sizes used by S3 clients, most widely used first: that of the AWS CLI and SDKs and of this task, the smallest
+     * S3 accepts, and those of other clients
+     */
+    private static final long[] COMMON_PART_SIZES = { 8 * MEGABYTE, 5 * MEGABYTE, 16 * MEGABYTE, 15 * MEGABYTE, 32 * MEGABYTE,
+        64 * MEGABYTE, 100 * MEGABYTE, 128 * MEGABYTE, 256 * MEGABYTE, 512 * MEGABYTE, 1024 * MEGABYTE };
+
+    private static final int READ_SIZE = 256 * 1024;
+
+    private static ExecutorService executor;
+
+    private MultipartETag() {
+    }
+
+    /**
+     * Returns whether a local file has the given ETag
+     *
+     * @param file The file to check
+     * @param etag The ETag of an object, with or without surrounding quotes
+     * @return <code>true</code> if the file's data has the ETag
+     * @throws IOException
+     */
+    static boolean matches(File file, String etag) throws IOException {
+        String expected = unquote(etag).toLowerCase();
+        int separator = expected.indexOf('-');
+        if (separator == -1) {
+            return expected.equals(calculate(file));
+        }
+
+        int parts;
+        try {
+            parts = Integer.parseInt(expected.substring(separator + 1));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        long partSize = getPartSize(file.length(), parts);
+        return (partSize > 0) && expected.equals(calculate(file, partSize));
+    }
+
+    /**
+     * Computes the ETag of a file uploaded in one request
+     *
+     * @param file The file
+     * @return The ETag, without quotes
+     * @throws IOException
+     */
+    static String calculate(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            return ServiceUtils.toHex(digest(in.getChannel(), 0, file.length()));
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Computes the ETag of a file uploaded in parts of the given size, hashing the parts in parallel
+     *
+     * @param file The file
+     * @param partSize The size of every part but the last
+     * @return The ETag, without quotes
+     * @throws IOException
+     */
+    static String calculate(File file, long partSize) throws IOException {
+        return calculate(digestParts(file, partSize));
+    }
+
+    /**
+     * Computes the ETag of an object uploaded in parts from the MD5s of its parts
+     *
+     * @param partDigests The MD5 of each part, in order
+     * @return The ETag, without quotes
+     */
+    static String calculate(byte[][] partDigests) {
+        MessageDigest digest = createDigest();
+        for (byte[] partDigest : partDigests) {
+            digest.update(partDigest);
+        }
+        return ServiceUtils.toHex(digest.digest()) + "-" + partDigests.length;
+    }
+
+    /**
+     * Computes the MD5 of each part of a file, hashing the parts in parallel
+     *
+     * @param file The file
+     * @param partSize The size of every part but the last
+     * @return The MD5 of each part, in order
+     * @throws IOException
+     */
+    static byte[][] digestParts(File file, final long partSize) throws IOException {
+        final long length = file.length();
+        int parts = getPartCount(length, partSize);
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = in.getChannel();
+            List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>(parts);
+            for (int i = 0; i < parts; i++) {
+                final long position = i * partSize;
+                futures.add(getExecutor().submit(new Callable<byte[]>() {
+
+                    public byte[] call() throws IOException {
+                        return digest(channel, position, Math.min(partSize, length - position));
+                    }
+                }));
+            }
+
+            byte[][] digests = new byte[parts][];
+            for (int i = 0; i < parts; i++) {
+                digests[i] = get(futures.get(i));
+            }
+            return digests;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns the number of parts a file of a given length is uploaded in
+     *
+     * @param length The length of the file
+     * @param partSize The size of every part but the last
+     * @return The number of parts, at least one
+     */
+    static int getPartCount(long length, long partSize) {
+        return (int) Math.max(1, (length + partSize - 1) / partSize);
+    }
+
+    /**
+     * Returns the part size that a file of a given length was most likely uploaded with in a given number of parts
+     *
+     * @return The part size, or 0 if the file cannot have been uploaded in that many parts
+     */
+    private static long getPartSize(long length, int parts) {
+        if ((parts < 1) || (parts > length)) {
+            return 0;
+        }
+        for (long partSize : COMMON_PART_SIZES) {
+            if (getPartCount(length, partSize) == parts) {
+                return partSize;
+            }
+        }
+        long evenSplit = (length + parts - 1) / parts;
+        long roundedSplit = ((evenSplit + MEGABYTE - 1) / MEGABYTE) * MEGABYTE;
+        return getPartCount(length, roundedSplit) == parts ? roundedSplit : evenSplit;
+    }
+
+    /**
+     * Digests a range of a file with positional reads into a heap buffer, which, unlike a mapping of the file, leaves
+     * nothing holding the file open once the channel is closed
+     */
+    private static byte[] digest(FileChannel channel, long position, long length) throws IOException {
+        MessageDigest digest = createDigest();
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(READ_SIZE, Math.max(length, 1)));
+        long offset = 0;
+        while (offset < length) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), length - offset));
+            int read = channel.read(buffer, position + offset);
+            if (read == -1) {
+                throw new EOFException("File ended while hashing, at " + (position + offset) + " bytes");
+            }
+            digest.update(buffer.array(), 0, read);
+            offset += read;
+        }
+        return digest.digest();
+    }
+
+    private static byte[] get(Future<byte[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while hashing");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String unquote(String etag) {
+        if ((etag.length() >= 2) && etag.startsWith("\"") && etag.endsWith("\"")) {
+            return etag.substring(1, etag.length() - 1);
+        }
+        return etag;
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "s3-hash");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+}
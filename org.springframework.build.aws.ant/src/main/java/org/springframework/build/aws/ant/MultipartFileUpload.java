@@ -0,0 +1,237 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jets3t.service.S3Service;
+import org.jets3t.service.S3ServiceException;
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.model.MultipartPart;
+import org.jets3t.service.model.MultipartUpload;
+import org.jets3t.service.model.S3Bucket;
+import org.jets3t.service.model.S3Object;
+
+/**
+ * A multipart upload of a file whose parts are uploaded by separate tasks of an asynchronous operation, so that the
+ * parts of a large file are spread over every transfer thread instead of holding one thread for the whole file. The
+ * task that finishes the last part completes the upload, or aborts it if any part failed.
+ * <p />
+ * With a journal, the upload and each finished part are recorded, and a failed upload is left open rather than
+ * aborted. An upload recorded by an earlier run for the same unchanged file is continued, uploading only the parts
+ * that S3 does not already hold.
+ */
+final class MultipartFileUpload {
+
+    private final S3Service service;
+
+    private final S3Bucket bucket;
+
+    private final S3Object destination;
+
+    private final File source;
+
+    private final long length;
+
+    private final long partSize;
+
+    private final MultipartPart[] parts;
+
+    private final TransferJournal journal;
+
+    private final String state;
+
+    private final AtomicInteger remaining = new AtomicInteger();
+
+    private volatile boolean failed;
+
+    private volatile MultipartUpload upload;
+
+    /**
+     * Creates a new upload
+     *
+     * @param service The service to upload with
+     * @param bucket The bucket to upload to
+     * @param destination The object to create, carrying its key, ACL and metadata but no data
+     * @param source The file to upload
+     * @param partSize The size, in bytes, of each part
+     * @param journal The journal to record the upload in, or <code>null</code>
+     * @param state The state of the file recorded in the journal
+     */
+    MultipartFileUpload(S3Service service, S3Bucket bucket, S3Object destination, File source, long partSize, TransferJournal journal,
+        String state) {
+        this.service = service;
+        this.bucket = bucket;
+        this.destination = destination;
+        this.source = source;
+        this.length = source.length();
+        this.partSize = partSize;
+        this.parts = new MultipartPart[MultipartETag.getPartCount(this.length, partSize)];
+        this.journal = journal;
+        this.state = state;
+    }
+
+    /**
+     * Starts the upload and submits a task for each part
+     *
+     * @param execution The operation to submit the parts to
+     * @param progress The progress reporter of the operation, or <code>null</code>
+     * @throws ServiceException if the upload cannot be started
+     * @throws IOException if the journal cannot be written
+     */
+    void submit(final AsyncExecution execution, final ProgressReporter progress) throws ServiceException, IOException {
+        this.upload = resume(progress);
+        if (this.upload == null) {
+            this.upload = this.service.multipartStartUpload(this.bucket.getName(), this.destination);
+            if (this.journal != null) {
+                this.journal.uploadStarted(this.destination.getKey(), this.state, this.upload.getUploadId());
+            }
+        }
+        for (MultipartPart part : this.parts) {
+            if (part == null) {
+                this.remaining.incrementAndGet();
+            }
+        }
+        if (this.remaining.get() == 0) {
+            finish(execution, progress);
+            return;
+        }
+        for (int i = 0; i < this.parts.length; i++) {
+            if (this.parts[i] != null) {
+                continue;
+            }
+            final int partNumber = i + 1;
+            execution.submit(this.destination.getKey(), new AsyncExecution.Task() {
+
+                public void run() throws Exception {
+                    uploadPart(partNumber, execution, progress);
+                }
+            });
+        }
+    }
+
+    /**
+     * Continues the upload recorded in the journal, if there is one for the same file and S3 still holds it. Parts are
+     * only taken as finished when S3 lists them with the ETag and size recorded in the journal.
+     *
+     * @return The upload to continue, or <code>null</code> if a new upload must be started
+     */
+    private MultipartUpload resume(ProgressReporter progress) throws ServiceException {
+        if (this.journal == null) {
+            return null;
+        }
+        String uploadId = this.journal.getUploadId(this.destination.getKey(), this.state);
+        if (uploadId == null) {
+            return null;
+        }
+        MultipartUpload resumed = new MultipartUpload(uploadId, this.bucket.getName(), this.destination.getKey());
+        List<MultipartPart> listed;
+        try {
+            listed = this.service.multipartListParts(resumed);
+        } catch (S3ServiceException e) {
+            if (e.getResponseCode() == 404) {
+                // Aborted, completed or expired since
+                return null;
+            }
+            throw e;
+        }
+        Map<Integer, MultipartPart> journaled = this.journal.getParts(uploadId);
+        for (MultipartPart part : listed) {
+            int index = part.getPartNumber().intValue() - 1;
+            MultipartPart journaledPart = journaled.get(part.getPartNumber());
+            if ((index < this.parts.length) && (journaledPart != null) && unquote(journaledPart.getEtag()).equals(unquote(part.getEtag()))
+                && journaledPart.getSize().equals(part.getSize())
+                && (part.getSize().longValue() == Math.min(this.partSize, this.length - index * this.partSize))) {
+                this.parts[index] = part;
+                if (progress != null) {
+                    progress.transferred(part.getSize().longValue());
+                }
+            }
+        }
+        return resumed;
+    }
+
+    private void uploadPart(int partNumber, AsyncExecution execution, ProgressReporter progress) throws ServiceException, IOException {
+        boolean succeeded = false;
+        try {
+            if (!this.failed) {
+                long offset = (partNumber - 1) * this.partSize;
+                long partLength = Math.min(this.partSize, this.length - offset);
+                S3Object part = new S3Object(this.destination.getKey());
+                FileRangeInputStream in = new FileRangeInputStream(this.source, offset, partLength);
+                try {
+                    part.setDataInputStream(in);
+                    part.setContentLength(partLength);
+                    // Each part records itself on the upload it is given, which is not thread safe, so give each its own
+                    MultipartUpload partUpload = new MultipartUpload(this.upload.getUploadId(), this.upload.getBucketName(),
+                        this.upload.getObjectKey());
+                    this.parts[partNumber - 1] = this.service.multipartUploadPart(partUpload, Integer.valueOf(partNumber), part);
+                } finally {
+                    in.close();
+                }
+                if (this.journal != null) {
+                    this.journal.partCompleted(this.upload.getUploadId(), this.parts[partNumber - 1]);
+                }
+                if (progress != null) {
+                    progress.transferred(partLength);
+                }
+            }
+            succeeded = true;
+        } finally {
+            if (!succeeded) {
+                this.failed = true;
+            }
+            if (this.remaining.decrementAndGet() == 0) {
+                finish(execution, progress);
+            }
+        }
+    }
+
+    private void finish(AsyncExecution execution, ProgressReporter progress) throws ServiceException, IOException {
+        if (this.failed) {
+            // The failure is recorded by the task of the failed part
+            if (this.journal != null) {
+                // Left open, for the next run to continue
+                return;
+            }
+            try {
+                this.service.multipartAbortUpload(this.upload);
+            } catch (ServiceException e) {
+                // Nothing to do at this point
+            }
+            return;
+        }
+        this.service.multipartCompleteUpload(this.upload, Arrays.asList(this.parts));
+        if (this.journal != null) {
+            this.journal.completed(this.destination.getKey(), this.state);
+        }
+        execution.getResult().completed(this.destination.getKey(), this.length);
+        if (progress != null) {
+            progress.completed(0);
+        }
+    }
+
+    private static String unquote(String etag) {
+        return etag == null ? "" : etag.replace("\"", "");
+    }
+
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.jets3t.service.S3Service;
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.model.MultipartPart;
+import org.jets3t.service.model.MultipartUpload;
+import org.jets3t.service.model.S3Bucket;
+import org.jets3t.service.model.S3Object;
+
+/**
+ * Uploads streams of any length, including unknown lengths, without staging them on disk. A stream is read into
+ * part-sized buffers taken from a bounded pool; each full buffer is uploaded as a part of a multipart upload while
+ * the next is being read. When every buffer is in flight, reading blocks until a part completes, so memory use never
+ * exceeds the pool no matter how large the stream or how many streams share the uploader.
+ * <p />
+ * A stream that fits in a single buffer is uploaded with a plain PUT. Every upload carries the MD5 of its data, so S3
+ * rejects any part corrupted on the way.
+ */
+final class MultipartUploader {
+
+    /**
+     * The smallest part size S3 accepts for any part but the last
+     */
+    static final long MIN_PART_SIZE = 5 * 1024 * 1024;
+
+    /**
+     * The largest number of parts S3 accepts in a multipart upload
+     */
+    static final int MAX_PARTS = 10000;
+
+    private static final int BUFFERS = 4;
+
+    private final S3Service service;
+
+    private final int partSize;
+
+    private final BlockingQueue<byte[]> buffers = new ArrayBlockingQueue<byte[]>(BUFFERS);
+
+    private final ExecutorService executor;
+
+    private int allocated;
+
+    /**
+     * Creates a new uploader
+     *
+     * @param service The service to upload with
+     * @param partSize The size, in bytes, of each part
+     */
+    MultipartUploader(S3Service service, long partSize) {
+        if ((partSize < MIN_PART_SIZE) || (partSize > Integer.MAX_VALUE)) {
+            throw new IllegalArgumentException("partSize must be between " + MIN_PART_SIZE + " and " + Integer.MAX_VALUE + " bytes");
+        }
+        this.service = service;
+        this.partSize = (int) partSize;
+        this.executor = Executors.newFixedThreadPool(BUFFERS, new ThreadFactory() {
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "s3-part");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Uploads a stream, which is read to its end but not closed
+     *
+     * @param bucket The bucket to upload to
+     * @param destination The object to create, carrying its key, ACL and metadata but no data
+     * @param in The stream to upload
+     * @return The number of bytes uploaded
+     * @throws ServiceException if an upload fails
+     * @throws IOException if the stream cannot be read
+     */
+    long upload(S3Bucket bucket, S3Object destination, InputStream in) throws ServiceException, IOException {
+        byte[] buffer = takeBuffer();
+        int length;
+        try {
+            length = fill(in, buffer);
+        } catch (IOException e) {
+            releaseBuffer(buffer);
+            throw e;
+        }
+        if (length < this.partSize) {
+            try {
+                putObject(bucket, destination, buffer, length);
+            } finally {
+                releaseBuffer(buffer);
+            }
+            return length;
+        }
+
+        MultipartUpload upload = null;
+        try {
+            upload = this.service.multipartStartUpload(bucket.getName(), destination);
+        } finally {
+            if (upload == null) {
+                releaseBuffer(buffer);
+            }
+        }
+        List<Future<MultipartPart>> parts = new ArrayList<Future<MultipartPart>>();
+        long total = 0;
+        try {
+            while (length > 0) {
+                if (parts.size() == MAX_PARTS) {
+                    releaseBuffer(buffer);
+                    throw new IOException("s3://" + bucket.getName() + "/" + destination.getKey() + " needs more than " + MAX_PARTS
+                        + " parts, use a larger part size");
+                }
+                try {
+                    parts.add(submitPart(upload, parts.size() + 1, buffer, length));
+                } catch (RuntimeException e) {
+                    releaseBuffer(buffer);
+                    throw e;
+                }
+                total += length;
+                buffer = takeBuffer();
+                try {
+                    length = fill(in, buffer);
+                } catch (IOException e) {
+                    releaseBuffer(buffer);
+                    throw e;
+                }
+            }
+            releaseBuffer(buffer);
+
+            List<MultipartPart> completed = new ArrayList<MultipartPart>(parts.size());
+            for (Future<MultipartPart> part : parts) {
+                completed.add(getPart(part));
+            }
+            this.service.multipartCompleteUpload(upload, completed);
+            return total;
+        } catch (ServiceException e) {
+            abort(upload, parts);
+            throw e;
+        } catch (IOException e) {
+            abort(upload, parts);
+            throw e;
+        } catch (RuntimeException e) {
+            abort(upload, parts);
+            throw e;
+        }
+    }
+
+    /**
+     * Stops the threads uploading parts. Uploads in progress are not waited for.
+     */
+    void shutdown() {
+        this.executor.shutdownNow();
+    }
+
+    private void putObject(S3Bucket bucket, S3Object destination, byte[] data, int length) throws ServiceException {
+        destination.setDataInputStream(new ByteArrayInputStream(data, 0, length));
+        destination.setContentLength(length);
+        destination.setMd5Hash(md5(data, length));
+        this.service.putObject(bucket, destination);
+    }
+
+    private Future<MultipartPart> submitPart(final MultipartUpload upload, final int partNumber, final byte[] data, final int length) {
+        return this.executor.submit(new Callable<MultipartPart>() {
+
+            public MultipartPart call() throws Exception {
+                try {
+                    S3Object part = new S3Object(upload.getObjectKey());
+                    part.setDataInputStream(new ByteArrayInputStream(data, 0, length));
+                    part.setContentLength(length);
+                    part.setMd5Hash(md5(data, length));
+                    // Each part records itself on the upload it is given, which is not thread safe, so give each its own
+                    MultipartUpload partUpload = new MultipartUpload(upload.getUploadId(), upload.getBucketName(), upload.getObjectKey());
+                    return MultipartUploader.this.service.multipartUploadPart(partUpload, Integer.valueOf(partNumber), part);
+                } finally {
+                    releaseBuffer(data);
+                }
+            }
+        });
+    }
+
+    private MultipartPart getPart(Future<MultipartPart> part) throws ServiceException, IOException {
+        try {
+            return part.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a part upload");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ServiceException) {
+                throw (ServiceException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new ServiceException(cause);
+        }
+    }
+
+    private void abort(MultipartUpload upload, List<Future<MultipartPart>> parts) {
+        // Parts are not cancelled, as a part that never runs never returns its buffer; the abort removes their data
+        for (Future<MultipartPart> part : parts) {
+            try {
+                part.get();
+            } catch (Exception e) {
+                // The failure that caused the abort is reported instead
+            }
+        }
+        try {
+            this.service.multipartAbortUpload(upload);
+        } catch (ServiceException e) {
+            // The failure that caused the abort is reported instead
+        }
+    }
+
+    private byte[] takeBuffer() throws InterruptedIOException {
+        synchronized (this.buffers) {
+            byte[] buffer = this.buffers.poll();
+            if (buffer != null) {
+                return buffer;
+            }
+            if (this.allocated < BUFFERS) {
+                this.allocated++;
+                return new byte[this.partSize];
+            }
+        }
+        try {
+            return this.buffers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for an upload buffer");
+        }
+    }
+
+    private void releaseBuffer(byte[] buffer) {
+        this.buffers.offer(buffer);
+    }
+
+    private static int fill(InputStream in, byte[] buffer) throws IOException {
+        int length = 0;
+        while (length < buffer.length) {
+            int read = in.read(buffer, length, buffer.length - length);
+            if (read == -1) {
+                break;
+            }
+            length += read;
+        }
+        return length;
+    }
+
+    private static byte[] md5(byte[] data, int length) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            digest.update(data, 0, length);
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The index of a packed upload. Small files are concatenated into a few pack objects stored under the
+ * <code>.pack/</code> 'directory' of the upload and this index records, for each file, the pack it is in and its offset
+ * and length within it. The index is stored as a text object with one tab-separated line per file:
+ *
+ * <pre>
+ * pack-00000	0	1234	path/relative/to/upload/directory.txt
+ * </pre>
+ */
+final class PackIndex {
+
+    static final String DIRECTORY = ".pack/";
+
+    static final String INDEX = DIRECTORY + "index";
+
+    private static final String PACK_PREFIX = DIRECTORY + "pack-";
+
+    private static final String ENCODING = "UTF-8";
+
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    /**
+     * Returns the name, relative to the upload 'directory', of the pack with a given sequence number
+     *
+     * @param sequence The sequence number of the pack
+     * @return The name of the pack
+     */
+    static String getPackName(int sequence) {
+        return PACK_PREFIX + String.format("%05d", sequence);
+    }
+
+    void add(String path, String pack, long offset, long length) {
+        this.entries.add(new Entry(path, pack, offset, length));
+    }
+
+    List<Entry> getEntries() {
+        return Collections.unmodifiableList(this.entries);
+    }
+
+    byte[] toBytes() {
+        StringBuilder sb = new StringBuilder();
+        for (Entry entry : this.entries) {
+            sb.append(entry.getPack()).append('\t').append(entry.getOffset()).append('\t').append(entry.getLength()).append('\t');
+            sb.append(entry.getPath()).append('\n');
+        }
+        try {
+            return sb.toString().getBytes(ENCODING);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reads an index, checking that every path in it stays within the directory it is unpacked into
+     *
+     * @param in The stream of the index
+     * @return The index
+     * @throws IOException if the index cannot be read or is malformed
+     */
+    static PackIndex read(InputStream in) throws IOException {
+        PackIndex index = new PackIndex();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, ENCODING));
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.length() == 0) {
+                continue;
+            }
+            String[] fields = line.split("\t", 4);
+            if (fields.length != 4) {
+                throw new IOException("Malformed pack index line " + lineNumber + ": " + line);
+            }
+            long offset;
+            long length;
+            try {
+                offset = Long.parseLong(fields[1]);
+                length = Long.parseLong(fields[2]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed pack index line " + lineNumber + ": " + line);
+            }
+            if ((offset < 0) || (length < 0)) {
+                throw new IOException("Malformed pack index line " + lineNumber + ": " + line);
+            }
+            if (!isRelativePath(fields[3])) {
+                throw new IOException("Pack index line " + lineNumber + " has a path outside the upload directory: " + fields[3]);
+            }
+            index.add(fields[3], fields[0], offset, length);
+        }
+        return index;
+    }
+
+    /**
+     * Returns whether a path names a file within the directory it is relative to: it is not empty or absolute, and
+     * has no <code>..</code> segment
+     */
+    private static boolean isRelativePath(String path) {
+        String normalizedPath = path.replace('\\', '/');
+        if ((normalizedPath.length() == 0) || normalizedPath.startsWith("/") || normalizedPath.endsWith("/")
+            || ((normalizedPath.length() > 1) && (normalizedPath.charAt(1) == ':'))) {
+            return false;
+        }
+        for (String segment : normalizedPath.split("/")) {
+            if ("..".equals(segment)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A single file stored in a pack
+     */
+    static final class Entry {
+
+        private final String path;
+
+        private final String pack;
+
+        private final long offset;
+
+        private final long length;
+
+        private Entry(String path, String pack, long offset, long length) {
+            this.path = path;
+            this.pack = pack;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        String getPath() {
+            return this.path;
+        }
+
+        String getPack() {
+            return this.pack;
+        }
+
+        long getOffset() {
+            return this.offset;
+        }
+
+        long getLength() {
+            return this.length;
+        }
+    }
+
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.FileSet;
+import org.apache.tools.ant.types.selectors.SelectorUtils;
+import org.apache.tools.ant.util.FileUtils;
+
+/**
+ * A directory scanner that walks a fileset with several threads and returns its files as they are found, so that the
+ * files of a large tree can be transferred while the rest of the tree is still being walked. Each directory is listed
+ * by its own task, and the subdirectories it finds are submitted as further tasks.
+ * <p />
+ * Files are selected with the include and exclude patterns, default excludes, selectors and symbolic link handling of
+ * the fileset, and directories that cannot hold selected files are not walked, exactly as {@link DirectoryScanner}
+ * does, so the same files are returned. Only the order differs: files are returned in the order they are found.
+ * Selectors are not necessarily thread safe, so they are applied one file at a time.
+ */
+final class ParallelDirectoryScanner extends DirectoryScanner {
+
+    private static final FileUtils FILE_UTILS = FileUtils.getFileUtils();
+
+    private static final String END = new String("end");
+
+    private static ExecutorService executor;
+
+    private final BlockingQueue<String> found = new LinkedBlockingQueue<String>();
+
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private final Object selectorMonitor = new Object();
+
+    private boolean walkFollowsSymlinks;
+
+    private volatile Throwable failure;
+
+    private volatile boolean stopped;
+
+    private boolean ended;
+
+    private ParallelDirectoryScanner() {
+    }
+
+    /**
+     * Creates a scanner for a fileset and starts walking it
+     *
+     * @param fileSet The fileset to walk
+     * @param project The project the fileset belongs to
+     * @return The scanner
+     */
+    static ParallelDirectoryScanner start(FileSet fileSet, Project project) {
+        File dir = fileSet.getDir(project);
+        if (dir == null) {
+            throw new BuildException("No directory specified for fileset.");
+        }
+        if (!dir.exists()) {
+            throw new BuildException(dir.getAbsolutePath() + " not found.");
+        }
+        if (!dir.isDirectory()) {
+            throw new BuildException(dir.getAbsolutePath() + " is not a directory.");
+        }
+        ParallelDirectoryScanner scanner = new ParallelDirectoryScanner();
+        fileSet.setupDirectoryScanner(scanner, project);
+        scanner.setFollowSymlinks(fileSet.isFollowSymlinks());
+        scanner.start();
+        return scanner;
+    }
+
+    /**
+     * Walks a fileset and returns all of its files, sorted by path, for callers that need every file before they can
+     * start
+     *
+     * @param fileSet The fileset to walk
+     * @param project The project the fileset belongs to
+     * @return The relative paths of the files of the fileset
+     * @throws IOException if the walk is interrupted
+     */
+    static String[] getIncludedFiles(FileSet fileSet, Project project) throws IOException {
+        ParallelDirectoryScanner scanner = start(fileSet, project);
+        List<String> files = new ArrayList<String>();
+        String file;
+        while ((file = scanner.next()) != null) {
+            files.add(file);
+        }
+        Collections.sort(files);
+        return files.toArray(new String[files.size()]);
+    }
+
+    private void start() {
+        if (this.includes == null) {
+            this.includes = new String[] { "**" };
+        }
+        if (this.excludes == null) {
+            this.excludes = new String[0];
+        }
+        this.walkFollowsSymlinks = isFollowSymlinks();
+        submit(this.basedir, "");
+    }
+
+    /**
+     * Returns the next file found, waiting for one if the walk has not finished
+     *
+     * @return The path of the file relative to the fileset directory, or <code>null</code> once every file has been
+     *         returned
+     * @throws IOException if the walk is interrupted
+     * @throws BuildException if a directory cannot be read
+     */
+    String next() throws IOException {
+        if (this.ended) {
+            return null;
+        }
+        String file;
+        try {
+            file = this.found.take();
+        } catch (InterruptedException e) {
+            stop();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while scanning " + this.basedir);
+        }
+        if (file == END) {
+            this.ended = true;
+            Throwable t = this.failure;
+            if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            } else if (t instanceof Error) {
+                throw (Error) t;
+            } else if (t != null) {
+                throw new BuildException(t);
+            }
+            return null;
+        }
+        return file;
+    }
+
+    /**
+     * Stops the walk, for callers that give up before every file has been returned
+     */
+    void stop() {
+        this.stopped = true;
+    }
+
+    /**
+     * The case sensitivity of a scanner is only set before the walk starts, and is read for every name matched, so it
+     * is read without the lock of the superclass
+     */
+    public boolean isCaseSensitive() {
+        return this.isCaseSensitive;
+    }
+
+    private void submit(final File dir, final String vpath) {
+        this.pending.incrementAndGet();
+        getExecutor().execute(new Runnable() {
+
+            public void run() {
+                try {
+                    if (!ParallelDirectoryScanner.this.stopped) {
+                        walk(dir, vpath);
+                    }
+                } catch (Throwable t) {
+                    if (ParallelDirectoryScanner.this.failure == null) {
+                        ParallelDirectoryScanner.this.failure = t;
+                        ParallelDirectoryScanner.this.stopped = true;
+                        ParallelDirectoryScanner.this.found.add(END);
+                    }
+                } finally {
+                    if (ParallelDirectoryScanner.this.pending.decrementAndGet() == 0) {
+                        ParallelDirectoryScanner.this.found.add(END);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Lists a directory, as {@link DirectoryScanner#scandir(File, String, boolean)} does in a fast scan
+     */
+    private void walk(File dir, String vpath) throws IOException {
+        String[] names = dir.list();
+        if (names == null) {
+            throw new BuildException("IO error scanning directory '" + dir.getAbsolutePath() + "'");
+        }
+        for (String name : names) {
+            if (!this.walkFollowsSymlinks && FILE_UTILS.isSymbolicLink(dir, name)) {
+                continue;
+            }
+            String path = vpath + name;
+            File file = new File(dir, name);
+            if (file.isDirectory()) {
+                if (isIncluded(path)) {
+                    if (couldHoldIncluded(path) && !contentsExcluded(path)) {
+                        submit(file, path + File.separator);
+                    }
+                } else if (couldHoldIncluded(path)) {
+                    submit(file, path + File.separator);
+                }
+            } else if (file.isFile() && isIncluded(path) && !isExcluded(path) && isSelectedFile(path, file)) {
+                this.found.add(path);
+            }
+        }
+    }
+
+    private boolean isSelectedFile(String path, File file) {
+        if ((this.selectors == null) || (this.selectors.length == 0)) {
+            return true;
+        }
+        synchronized (this.selectorMonitor) {
+            return isSelected(path, file);
+        }
+    }
+
+    /**
+     * Whether every file under a directory is excluded, as decided by the private method of the same name in
+     * {@link DirectoryScanner}
+     */
+    private boolean contentsExcluded(String path) {
+        String name = path.endsWith(File.separator) ? path : path + File.separator;
+        for (String exclude : this.excludes) {
+            if (exclude.endsWith("**") && SelectorUtils.matchPath(exclude.substring(0, exclude.length() - 2), name, isCaseSensitive())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            // Listing directories waits on the file system far more than it computes
+            executor = Executors.newFixedThreadPool(Math.max(4, Runtime.getRuntime().availableProcessors() * 2), new ThreadFactory() {
+
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "s3-scan");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+}
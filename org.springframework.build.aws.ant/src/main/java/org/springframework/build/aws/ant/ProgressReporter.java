@@ -0,0 +1,162 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.tools.ant.Project;
+
+/**
+ * Reports aggregate progress of a bulk transfer. Counters are updated by any number of transfer threads and a summary
+ * of files, bytes, rate and estimated time remaining is logged from a separate thread at a fixed interval, so that
+ * per-file messages can be demoted to verbose level.
+ */
+final class ProgressReporter {
+
+    private final Project project;
+
+    private final String action;
+
+    private final long interval;
+
+    private final AtomicLong expectedFiles = new AtomicLong();
+
+    private final AtomicLong expectedBytes = new AtomicLong();
+
+    private final AtomicLong completedFiles = new AtomicLong();
+
+    private final AtomicLong completedBytes = new AtomicLong();
+
+    private volatile long startTime;
+
+    private ScheduledExecutorService executor;
+
+    /**
+     * Creates a new reporter
+     *
+     * @param project The project to log to
+     * @param action The action being reported, e.g. <code>Uploaded</code>
+     * @param interval The interval between reports in seconds
+     */
+    ProgressReporter(Project project, String action, long interval) {
+        this.project = project;
+        this.action = action;
+        this.interval = interval;
+    }
+
+    /**
+     * Adds to the total amount of work expected, used to estimate the time remaining
+     *
+     * @param files The number of files
+     * @param bytes The number of bytes
+     */
+    void addExpected(long files, long bytes) {
+        this.expectedFiles.addAndGet(files);
+        this.expectedBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Records bytes of a file that is transferred in parts, whose completion is then recorded with no further bytes
+     *
+     * @param bytes The number of bytes transferred
+     */
+    void transferred(long bytes) {
+        this.completedBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Records the completion of a single file
+     *
+     * @param bytes The size of the file
+     */
+    void completed(long bytes) {
+        this.completedFiles.incrementAndGet();
+        this.completedBytes.addAndGet(bytes);
+    }
+
+    void start() {
+        this.startTime = System.currentTimeMillis();
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "s3-progress");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.executor.scheduleAtFixedRate(new Runnable() {
+
+            public void run() {
+                report(false);
+            }
+        }, this.interval, this.interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops periodic reporting and logs a final summary
+     */
+    void stop() {
+        if (this.executor != null) {
+            this.executor.shutdownNow();
+        }
+        report(true);
+    }
+
+    private void report(boolean last) {
+        long files = this.completedFiles.get();
+        long bytes = this.completedBytes.get();
+        long totalFiles = this.expectedFiles.get();
+        long totalBytes = this.expectedBytes.get();
+        long elapsed = Math.max(1, System.currentTimeMillis() - this.startTime);
+
+        StringBuilder sb = new StringBuilder(this.action).append(' ').append(files);
+        if (!last && (totalFiles > 0)) {
+            sb.append('/').append(totalFiles);
+        }
+        sb.append(" files");
+        if ((bytes > 0) || (totalBytes > 0)) {
+            sb.append(" (").append(TransferUtils.getFormattedSize(bytes));
+            if (!last && (totalBytes > 0)) {
+                sb.append('/').append(TransferUtils.getFormattedSize(totalBytes));
+            }
+            sb.append(')');
+        }
+        if (last) {
+            sb.append(" - Transfer Time: ").append(TransferUtils.getFormattedTime(elapsed));
+        }
+        if (bytes > 0) {
+            sb.append(" - Transfer Rate: ").append(TransferUtils.getFormattedSpeed(bytes, elapsed));
+        }
+        if (!last) {
+            if ((bytes > 0) && (totalBytes > bytes)) {
+                sb.append(" - ETA: ").append(TransferUtils.getFormattedTime(estimateRemaining(bytes, totalBytes, elapsed)));
+            } else if ((totalBytes == 0) && (files > 0) && (totalFiles > files)) {
+                sb.append(" - ETA: ").append(TransferUtils.getFormattedTime(estimateRemaining(files, totalFiles, elapsed)));
+            }
+        }
+        this.project.log(sb.toString(), Project.MSG_INFO);
+    }
+
+    private long estimateRemaining(long done, long total, long elapsed) {
+        return (long) ((total - done) * ((double) elapsed / done));
+    }
+
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jets3t.service.S3Service;
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.model.S3Bucket;
+import org.jets3t.service.model.S3Object;
+
+/**
+ * A download of an object in ranges, each fetched by a separate task of an asynchronous operation and written at its
+ * offset in the destination file. Every range is requested only if the object still has the ETag it was listed with,
+ * so ranges of different versions are never mixed. The task that finishes the last range checks the file against the
+ * object's MD5 hash when the ETag is one, adds it to the download cache if there is one, and records it in the journal
+ * if there is one; a failed or partial download is removed.
+ */
+final class RangedFileDownload {
+
+    private final S3Service service;
+
+    private final HedgedRequests hedging;
+
+    private final S3Bucket bucket;
+
+    private final S3Object object;
+
+    private final File destination;
+
+    private final long length;
+
+    private final long partSize;
+
+    private final DownloadCache cache;
+
+    private final boolean cacheLink;
+
+    private final TransferJournal journal;
+
+    private final String state;
+
+    private final AtomicInteger remaining;
+
+    private volatile boolean failed;
+
+    /**
+     * Creates a new download
+     *
+     * @param service The service to download with
+     * @param hedging The hedging of the range requests, or <code>null</code>
+     * @param bucket The bucket to download from
+     * @param object The listed object to download
+     * @param destination The file to download to
+     * @param partSize The size, in bytes, of each range
+     * @param cache The cache to add the downloaded file to, or <code>null</code>
+     * @param cacheLink Whether the cache entry may be a hard link to the downloaded file
+     * @param journal The journal to record the finished download in, or <code>null</code>
+     * @param state The state of the object to record in the journal
+     */
+    RangedFileDownload(S3Service service, HedgedRequests hedging, S3Bucket bucket, S3Object object, File destination, long partSize,
+        DownloadCache cache, boolean cacheLink, TransferJournal journal, String state) {
+        this.service = service;
+        this.hedging = hedging;
+        this.bucket = bucket;
+        this.object = object;
+        this.destination = destination;
+        this.length = object.getContentLength();
+        this.partSize = partSize;
+        this.cache = cache;
+        this.cacheLink = cacheLink;
+        this.journal = journal;
+        this.state = state;
+        this.remaining = new AtomicInteger(MultipartETag.getPartCount(this.length, partSize));
+    }
+
+    /**
+     * Creates the destination file at its full length and submits a task for each range
+     *
+     * @param execution The operation to submit the ranges to
+     * @param progress The progress reporter of the operation, or <code>null</code>
+     * @throws IOException if the destination file cannot be created
+     */
+    void submit(final AsyncExecution execution, final ProgressReporter progress) throws IOException {
+        if (!this.destination.getParentFile().exists()) {
+            this.destination.getParentFile().mkdirs();
+        }
+        // A new file, so that ranges are never written through a hard link into the download cache
+        this.destination.delete();
+        RandomAccessFile out = new RandomAccessFile(this.destination, "rw");
+        try {
+            out.setLength(this.length);
+        } finally {
+            out.close();
+        }
+        int parts = this.remaining.get();
+        for (int i = 0; i < parts; i++) {
+            final long offset = i * this.partSize;
+            execution.submit(this.object.getKey(), new AsyncExecution.Task() {
+
+                public void run() throws Exception {
+                    downloadRange(offset, execution, progress);
+                }
+            });
+        }
+    }
+
+    private void downloadRange(long offset, AsyncExecution execution, ProgressReporter progress) throws ServiceException, IOException {
+        boolean succeeded = false;
+        try {
+            if (!this.failed) {
+                long rangeLength = Math.min(this.partSize, this.length - offset);
+                String[] ifMatch = this.object.getETag() == null ? null : new String[] { this.object.getETag() };
+                Long rangeEnd = Long.valueOf(offset + rangeLength - 1);
+                S3Object range;
+                if (this.hedging == null) {
+                    range = this.service.getObject(this.bucket.getName(), this.object.getKey(), null, null, ifMatch, null, Long.valueOf(offset),
+                        rangeEnd);
+                } else {
+                    range = this.hedging.getObject(this.service, this.bucket.getName(), this.object.getKey(), ifMatch, Long.valueOf(offset),
+                        rangeEnd);
+                }
+                InputStream in = range.getDataInputStream();
+                RandomAccessFile out = new RandomAccessFile(this.destination, "rw");
+                try {
+                    out.seek(offset);
+                    byte[] buffer = new byte[(int) Math.min(64 * 1024, rangeLength)];
+                    long copied = 0;
+                    while (copied < rangeLength) {
+                        int read = in.read(buffer, 0, (int) Math.min(buffer.length, rangeLength - copied));
+                        if (read == -1) {
+                            throw new EOFException("Range of s3://" + this.bucket.getName() + "/" + this.object.getKey() + " ended "
+                                + (rangeLength - copied) + " bytes early");
+                        }
+                        out.write(buffer, 0, read);
+                        copied += read;
+                    }
+                } finally {
+                    out.close();
+                    in.close();
+                }
+                if (progress != null) {
+                    progress.transferred(rangeLength);
+                }
+            }
+            succeeded = true;
+        } finally {
+            if (!succeeded) {
+                this.failed = true;
+            }
+            if (this.remaining.decrementAndGet() == 0) {
+                finish(execution, progress);
+            }
+        }
+    }
+
+    private void finish(AsyncExecution execution, ProgressReporter progress) throws IOException {
+        if (this.failed) {
+            // The failure is recorded by the task of the failed range
+            this.destination.delete();
+            return;
+        }
+        String etag = this.object.getETag();
+        if ((etag != null) && (etag.indexOf('-') == -1)) {
+            String expected = etag.replace("\"", "").toLowerCase();
+            String actual = MultipartETag.calculate(this.destination);
+            if (!expected.equals(actual)) {
+                this.destination.delete();
+                throw new IOException("Integrity check failed for s3://" + this.bucket.getName() + "/" + this.object.getKey()
+                    + ": expected MD5 " + expected + " but received " + actual);
+            }
+        }
+        if ((this.cache != null) && (etag != null)) {
+            this.cache.store(this.bucket.getName(), this.object.getKey(), etag, this.destination, this.cacheLink);
+        }
+        if (this.journal != null) {
+            this.journal.completed(this.object.getKey(), this.state);
+        }
+        execution.getResult().completed(this.object.getKey(), this.length);
+        if (progress != null) {
+            progress.completed(0);
+        }
+    }
+
+}
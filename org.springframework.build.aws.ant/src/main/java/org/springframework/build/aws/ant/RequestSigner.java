@@ -0,0 +1,149 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SimpleTimeZone;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.jets3t.service.utils.ServiceUtils;
+
+/**
+ * Signs S3 requests for an {@link S3Transport}, with the same version 2 signatures that jets3t makes. The time of a
+ * request is signed as its <code>x-amz-date</code> header rather than its <code>Date</code> header, which some HTTP
+ * clients set themselves.
+ */
+public final class RequestSigner {
+
+    private static final Set<String> SUBRESOURCES = new HashSet<String>(Arrays.asList("acl", "location", "logging", "partNumber",
+        "policy", "requestPayment", "torrent", "uploadId", "uploads", "versionId", "versioning", "versions", "response-cache-control",
+        "response-content-disposition", "response-content-encoding", "response-content-language", "response-content-type",
+        "response-expires"));
+
+    private final String accessKey;
+
+    private final SecretKeySpec signingKey;
+
+    /**
+     * Creates a signer for a set of credentials
+     * 
+     * @param accessKey The S3 access key
+     * @param secretKey The S3 secret key
+     */
+    public RequestSigner(String accessKey, String secretKey) {
+        this.accessKey = accessKey;
+        try {
+            this.signingKey = new SecretKeySpec(secretKey.getBytes("UTF-8"), "HmacSHA1");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Formats a time for the <code>x-amz-date</code> header
+     * 
+     * @param date The time
+     * @return The formatted time
+     */
+    public static String formatDate(Date date) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(new SimpleTimeZone(0, "GMT"));
+        return format.format(date);
+    }
+
+    /**
+     * Returns the <code>Authorization</code> header of a request
+     * 
+     * @param method The HTTP method of the request
+     * @param bucket The name of the bucket of the request, or <code>null</code>
+     * @param encodedKey The key of the request, encoded as it is in the request path, or <code>null</code>
+     * @param parameters The query parameters of the request, not encoded. Only those that S3 treats as subresources are
+     *        signed.
+     * @param headers The headers of the request, which must include <code>x-amz-date</code>
+     * @return The value of the header
+     */
+    public String getAuthorization(String method, String bucket, String encodedKey, Map<String, String> parameters,
+        Map<String, String> headers) {
+        StringBuilder canonical = new StringBuilder();
+        canonical.append(method).append('\n');
+        SortedMap<String, String> amzHeaders = new TreeMap<String, String>();
+        String contentMd5 = "";
+        String contentType = "";
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            String name = header.getKey().toLowerCase(Locale.ENGLISH);
+            if (name.equals("content-md5")) {
+                contentMd5 = header.getValue();
+            } else if (name.equals("content-type")) {
+                contentType = header.getValue();
+            } else if (name.startsWith("x-amz-")) {
+                String value = header.getValue().trim();
+                String previous = amzHeaders.get(name);
+                amzHeaders.put(name, previous == null ? value : previous + "," + value);
+            }
+        }
+        canonical.append(contentMd5).append('\n');
+        canonical.append(contentType).append('\n');
+        // The date is signed as x-amz-date
+        canonical.append('\n');
+        for (Map.Entry<String, String> header : amzHeaders.entrySet()) {
+            canonical.append(header.getKey()).append(':').append(header.getValue()).append('\n');
+        }
+        canonical.append('/');
+        if (bucket != null) {
+            canonical.append(bucket).append('/');
+            if (encodedKey != null) {
+                canonical.append(encodedKey);
+            }
+        }
+        char separator = '?';
+        for (Map.Entry<String, String> parameter : new TreeMap<String, String>(parameters).entrySet()) {
+            if (SUBRESOURCES.contains(parameter.getKey())) {
+                canonical.append(separator).append(parameter.getKey());
+                if ((parameter.getValue() != null) && (parameter.getValue().length() > 0)) {
+                    canonical.append('=').append(parameter.getValue());
+                }
+                separator = '&';
+            }
+        }
+        return "AWS " + this.accessKey + ":" + sign(canonical.toString());
+    }
+
+    private String sign(String canonical) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA1");
+            mac.init(this.signingKey);
+            return ServiceUtils.toBase64(mac.doFinal(canonical.getBytes("UTF-8")));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * An object being read with an {@link S3Transport}, whose body is streamed as it is read. Closing the content before
+ * its body has been read discards the connection.
+ */
+public class S3ObjectContent extends S3ObjectInfo implements Closeable {
+
+    private final InputStream body;
+
+    /**
+     * Creates new content
+     * 
+     * @param key The key of the object
+     * @param size The length of the body, which is the length of the range read
+     * @param etag The ETag of the object, without quotes
+     * @param lastModified The time the object was last modified, or <code>null</code>
+     * @param headers The headers of the response, with lower case names
+     * @param body The body of the response
+     */
+    public S3ObjectContent(String key, long size, String etag, Date lastModified, Map<String, String> headers, InputStream body) {
+        super(key, size, etag, lastModified, headers);
+        this.body = body;
+    }
+
+    /**
+     * Returns the body of the object, or of the range read
+     * 
+     * @return The body
+     */
+    public InputStream getBody() {
+        return this.body;
+    }
+
+    public void close() throws IOException {
+        this.body.close();
+    }
+
+}
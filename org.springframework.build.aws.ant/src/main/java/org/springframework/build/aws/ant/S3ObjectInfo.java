@@ -0,0 +1,80 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * The details of an object, as returned by an {@link S3Transport}
+ */
+public class S3ObjectInfo {
+
+    private final String key;
+
+    private final long size;
+
+    private final String etag;
+
+    private final Date lastModified;
+
+    private final Map<String, String> headers;
+
+    /**
+     * Creates new details
+     * 
+     * @param key The key of the object
+     * @param size The length of the object
+     * @param etag The ETag of the object, without quotes
+     * @param lastModified The time the object was last modified, or <code>null</code>
+     * @param headers The headers of the object, such as <code>Content-Type</code> and <code>x-amz-meta-*</code>, with
+     *        lower case names. Empty for listed objects.
+     */
+    public S3ObjectInfo(String key, long size, String etag, Date lastModified, Map<String, String> headers) {
+        this.key = key;
+        this.size = size;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.headers = Collections.unmodifiableMap(headers);
+    }
+
+    public String getKey() {
+        return this.key;
+    }
+
+    public long getSize() {
+        return this.size;
+    }
+
+    public String getETag() {
+        return this.etag;
+    }
+
+    public Date getLastModified() {
+        return this.lastModified;
+    }
+
+    public Map<String, String> getHeaders() {
+        return this.headers;
+    }
+
+    public String toString() {
+        return this.key + " (" + this.size + " bytes, ETag " + this.etag + ")";
+    }
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A page of a listing of a bucket, as returned by an {@link S3Transport}
+ */
+public class S3ObjectListing {
+
+    private final List<S3ObjectInfo> objects;
+
+    private final List<String> commonPrefixes;
+
+    private final boolean truncated;
+
+    private final String nextMarker;
+
+    /**
+     * Creates a new page
+     * 
+     * @param objects The objects of the page, in key order
+     * @param commonPrefixes The common prefixes of the page, in order
+     * @param truncated Whether there are further pages
+     * @param nextMarker The marker that S3 returned to list the next page from, or <code>null</code>
+     */
+    public S3ObjectListing(List<S3ObjectInfo> objects, List<String> commonPrefixes, boolean truncated, String nextMarker) {
+        this.objects = Collections.unmodifiableList(objects);
+        this.commonPrefixes = Collections.unmodifiableList(commonPrefixes);
+        this.truncated = truncated;
+        this.nextMarker = nextMarker;
+    }
+
+    public List<S3ObjectInfo> getObjects() {
+        return this.objects;
+    }
+
+    public List<String> getCommonPrefixes() {
+        return this.commonPrefixes;
+    }
+
+    public boolean isTruncated() {
+        return this.truncated;
+    }
+
+    /**
+     * Returns the marker to list the next page from: the one S3 returned, which it does when listing with a delimiter,
+     * or otherwise the last key or common prefix of this page, whichever sorts last
+     * 
+     * @return The marker, or <code>null</code> if there are no further pages
+     */
+    public String getNextMarker() {
+        if (!this.truncated) {
+            return null;
+        }
+        if (this.nextMarker != null) {
+            return this.nextMarker;
+        }
+        String lastKey = this.objects.isEmpty() ? null : this.objects.get(this.objects.size() - 1).getKey();
+        String lastPrefix = this.commonPrefixes.isEmpty() ? null : this.commonPrefixes.get(this.commonPrefixes.size() - 1);
+        if (lastKey == null) {
+            return lastPrefix;
+        }
+        if (lastPrefix == null) {
+            return lastKey;
+        }
+        return lastKey.compareTo(lastPrefix) > 0 ? lastKey : lastPrefix;
+    }
+
+}
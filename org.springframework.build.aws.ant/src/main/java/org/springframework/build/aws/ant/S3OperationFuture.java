@@ -0,0 +1,35 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import java.util.concurrent.Future;
+
+/**
+ * The future result of an {@link AsyncS3Operation}, which can also notify callbacks once it completes, so that work can
+ * be chained on an operation without a thread blocked in {@link #get()}.
+ */
+public interface S3OperationFuture extends Future<S3OperationResult> {
+
+    /**
+     * Registers a callback to run once the operation has completed, whether it succeeded, failed or was cancelled, and
+     * every task it started has finished. Callbacks run in the order they were registered, on the thread that finishes
+     * the last task; a callback registered after that runs at once on the calling thread.
+     * 
+     * @param callback The callback
+     */
+    void onComplete(Runnable callback);
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The outcome of an asynchronously executed S3 operation: the keys it transferred or deleted, the number of bytes
+ * transferred and the keys that failed. Instances are updated by the operation's tasks as they complete and are safe
+ * to read from any thread.
+ */
+public class S3OperationResult {
+
+    private final List<String> keys = new ArrayList<String>();
+
+    private final Map<String, Throwable> failures = new LinkedHashMap<String, Throwable>();
+
+    private long bytes;
+
+    synchronized void completed(String key, long length) {
+        this.keys.add(key);
+        this.bytes += length;
+    }
+
+    synchronized void failed(String key, Throwable failure) {
+        this.failures.put(key, failure);
+    }
+
+    /**
+     * Returns the keys that were transferred or deleted, in the order they completed
+     * 
+     * @return The keys
+     */
+    public synchronized List<String> getKeys() {
+        return new ArrayList<String>(this.keys);
+    }
+
+    /**
+     * Returns the number of bytes transferred
+     * 
+     * @return The number of bytes
+     */
+    public synchronized long getBytes() {
+        return this.bytes;
+    }
+
+    /**
+     * Returns the keys that failed, each with the reason it failed
+     * 
+     * @return The failed keys
+     */
+    public synchronized Map<String, Throwable> getFailures() {
+        return new LinkedHashMap<String, Throwable>(this.failures);
+    }
+
+    /**
+     * Returns whether every key was processed successfully
+     * 
+     * @return <code>true</code> if no key failed
+     */
+    public synchronized boolean isSuccessful() {
+        return this.failures.isEmpty();
+    }
+
+    public synchronized String toString() {
+        return this.keys.size() + " keys, " + TransferUtils.getFormattedSize(this.bytes) + ", " + this.failures.size() + " failures";
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The body of a request made with an {@link S3Transport}. A body can be opened more than once, so that a request can
+ * be sent again when it is retried, and the streams it opens can be reset to any earlier position.
+ */
+public abstract class S3RequestBody {
+
+    /**
+     * Returns the length of the body
+     * 
+     * @return The length, in bytes
+     */
+    public abstract long getLength();
+
+    /**
+     * Opens a new stream of the body, which the caller must close
+     * 
+     * @return The stream
+     * @throws IOException if the body cannot be read
+     */
+    public abstract InputStream open() throws IOException;
+
+    /**
+     * Creates a body of the whole of a file
+     * 
+     * @param file The file
+     * @return The body
+     */
+    public static S3RequestBody fromFile(File file) {
+        return fromFile(file, 0, file.length());
+    }
+
+    /**
+     * Creates a body of a range of a file, for example a part of a multipart upload
+     * 
+     * @param file The file
+     * @param offset The offset of the first byte of the range
+     * @param length The length of the range
+     * @return The body
+     */
+    public static S3RequestBody fromFile(final File file, final long offset, final long length) {
+        return new S3RequestBody() {
+
+            public long getLength() {
+                return length;
+            }
+
+            public InputStream open() throws IOException {
+                return new FileRangeInputStream(file, offset, length);
+            }
+        };
+    }
+
+    /**
+     * Creates a body of an array of bytes, which must not be changed while the body is in use
+     * 
+     * @param data The bytes
+     * @return The body
+     */
+    public static S3RequestBody fromBytes(final byte[] data) {
+        return new S3RequestBody() {
+
+            public long getLength() {
+                return data.length;
+            }
+
+            public InputStream open() {
+                return new ByteArrayInputStream(data);
+            }
+        };
+    }
+
+}
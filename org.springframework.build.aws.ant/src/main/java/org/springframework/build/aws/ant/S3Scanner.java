@@ -16,14 +16,20 @@
 
 package org.springframework.build.aws.ant;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
 
 import org.apache.tools.ant.types.selectors.SelectorUtils;
 import org.jets3t.service.S3Service;
 import org.jets3t.service.S3ServiceException;
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.StorageObjectsChunk;
 import org.jets3t.service.model.S3Bucket;
 import org.jets3t.service.model.S3Object;
+import org.jets3t.service.model.StorageObject;
 
 class S3Scanner {
 
@@ -35,6 +41,10 @@ class S3Scanner {
 
     private final List<String> excludePatterns;
 
+    private ListingSnapshots snapshots;
+
+    private HedgedRequests hedging;
+
     /**
      * Creates a new instance of a scanner for an S3 repository.
      * 
@@ -60,6 +70,24 @@ class S3Scanner {
         }
     }
 
+    /**
+     * Reads the objects under the base 'directory' from listing snapshots instead of listing the bucket
+     * 
+     * @param snapshots The snapshots to read from
+     */
+    void setSnapshots(ListingSnapshots snapshots) {
+        this.snapshots = snapshots;
+    }
+
+    /**
+     * Hedges the request for each page of the listing of the base 'directory'
+     * 
+     * @param hedging The hedging of listing requests
+     */
+    void setHedging(HedgedRequests hedging) {
+        this.hedging = hedging;
+    }
+
     /**
      * Returns a list of keys that qualify the include and exclude patterns specified.
      * 
@@ -68,12 +96,96 @@ class S3Scanner {
      * @throws S3ServiceException
      */
     public List<String> getQualifiyingKeys(S3Service service) throws S3ServiceException {
+        if (this.snapshots == null) {
+            return getQualifiyingKeys(listObjects(service));
+        }
+        List<String> qualifying = new ArrayList<String>();
+        ListingSnapshot.Cursor cursor = getSnapshot(service).cursor();
+        while (cursor.next()) {
+            String key = cursor.getKey();
+            if (qualifies(key)) {
+                qualifying.add(key);
+            }
+        }
+        return qualifying;
+    }
+
+    /**
+     * Returns a list of objects that qualify the include and exclude patterns specified. The objects carry the size and
+     * other details returned by the listing.
+     * 
+     * @param service The S3 service to use for scanning
+     * @return The list of qualifying objects
+     * @throws S3ServiceException
+     */
+    public List<S3Object> getQualifiyingObjects(S3Service service) throws S3ServiceException {
+        if (this.snapshots == null) {
+            return getQualifiyingObjects(listObjects(service));
+        }
+        List<S3Object> qualifying = new ArrayList<S3Object>();
+        ListingSnapshot snapshot = getSnapshot(service);
+        ListingSnapshot.Cursor cursor = snapshot.cursor();
+        while (cursor.next()) {
+            String key = cursor.getKey();
+            if (qualifies(key)) {
+                qualifying.add(createObject(snapshot, cursor.getIndex(), key));
+            }
+        }
+        return qualifying;
+    }
+
+    /**
+     * Returns the greatest key, in string order, that qualifies the include and exclude patterns specified. The keys
+     * are compared as they are read, so no list of keys is built.
+     * 
+     * @param service The S3 service to use for scanning
+     * @return The greatest qualifying key, or <code>null</code> if no key qualifies
+     * @throws ServiceException
+     */
+    String getLatestQualifiyingKey(S3Service service) throws ServiceException {
+        String latest = null;
+        if (this.snapshots == null) {
+            Listing listing = listQualifiyingObjects(service);
+            StorageObject object;
+            while ((object = listing.next()) != null) {
+                if ((latest == null) || (object.getKey().compareTo(latest) > 0)) {
+                    latest = object.getKey();
+                }
+            }
+            return latest;
+        }
+        ListingSnapshot.Cursor cursor = getSnapshot(service).cursor();
+        while (cursor.next()) {
+            String key = cursor.getKey();
+            if (((latest == null) || (key.compareTo(latest) > 0)) && qualifies(key)) {
+                latest = key;
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * Returns a listing of the objects that qualify the include and exclude patterns specified, in key order. The
+     * listing is fetched a page at a time as it is read, so it never holds more than one page of objects.
+     * 
+     * @param service The S3 service to use for scanning
+     * @return The listing
+     */
+    Listing listQualifiyingObjects(S3Service service) {
+        return new Listing(service);
+    }
+
+    /**
+     * Returns a list of keys from an existing listing that qualify the include and exclude patterns specified.
+     * 
+     * @param candidates The objects listed under the base 'directory'
+     * @return The list of qualifying keys
+     */
+    List<String> getQualifiyingKeys(S3Object[] candidates) {
         List<String> qualifying = new ArrayList<String>();
 
-        S3Object[] candidates = service.listObjects(this.bucket.getName(), this.baseDirectory, "");
         for (S3Object candidate : candidates) {
-            String trimmedCandidate = candidate.getKey().substring(this.baseDirectory.length());
-            if (matchesInclude(trimmedCandidate) && !matchesExclude(trimmedCandidate)) {
+            if (qualifies(candidate.getKey())) {
                 qualifying.add(candidate.getKey());
             }
         }
@@ -81,6 +193,145 @@ class S3Scanner {
         return qualifying;
     }
 
+    /**
+     * Returns a list of objects from an existing listing that qualify the include and exclude patterns specified.
+     * 
+     * @param candidates The objects listed under the base 'directory'
+     * @return The list of qualifying objects
+     */
+    List<S3Object> getQualifiyingObjects(S3Object[] candidates) {
+        List<S3Object> qualifying = new ArrayList<S3Object>();
+
+        for (S3Object candidate : candidates) {
+            if (qualifies(candidate.getKey())) {
+                qualifying.add(candidate);
+            }
+        }
+
+        return qualifying;
+    }
+
+    /**
+     * Returns whether a key under the base 'directory' qualifies the include and exclude patterns specified.
+     * 
+     * @param key The key to check
+     * @return Whether the key qualifies
+     */
+    boolean qualifies(String key) {
+        String trimmedCandidate = key.substring(this.baseDirectory.length());
+        return matchesInclude(trimmedCandidate) && !matchesExclude(trimmedCandidate);
+    }
+
+    /**
+     * Lists every object under the base 'directory', a page at a time when the pages are hedged
+     */
+    private S3Object[] listObjects(S3Service service) throws S3ServiceException {
+        if (this.hedging == null) {
+            return service.listObjects(this.bucket.getName(), this.baseDirectory, "");
+        }
+        List<StorageObject> objects = new ArrayList<StorageObject>();
+        String priorLastKey = null;
+        try {
+            do {
+                StorageObjectsChunk chunk = this.hedging.listObjectsChunked(service, this.bucket.getName(), this.baseDirectory,
+                    Listing.PAGE_SIZE, priorLastKey);
+                objects.addAll(Arrays.asList(chunk.getObjects()));
+                priorLastKey = chunk.isListingComplete() ? null : chunk.getPriorLastKey();
+            } while (priorLastKey != null);
+        } catch (ServiceException e) {
+            throw e instanceof S3ServiceException ? (S3ServiceException) e : new S3ServiceException(e);
+        }
+        return S3Object.cast(objects.toArray(new StorageObject[objects.size()]));
+    }
+
+    private ListingSnapshot getSnapshot(S3Service service) throws S3ServiceException {
+        try {
+            return this.snapshots.get(service, this.bucket.getName(), this.baseDirectory);
+        } catch (IOException e) {
+            throw new S3ServiceException("Unable to read the listing snapshot of s3://" + this.bucket.getName() + "/" + this.baseDirectory, e);
+        }
+    }
+
+    private S3Object createObject(ListingSnapshot snapshot, int index, String key) {
+        S3Object object = new S3Object(key);
+        object.setBucketName(this.bucket.getName());
+        object.setContentLength(snapshot.getSize(index));
+        object.setETag(snapshot.getETag(index));
+        object.setLastModifiedDate(new Date(snapshot.getLastModified(index)));
+        return object;
+    }
+
+    /**
+     * A listing of qualifying objects that is read one page at a time, or from a listing snapshot
+     */
+    final class Listing {
+
+        private static final long PAGE_SIZE = 1000;
+
+        private final S3Service service;
+
+        private StorageObject[] page = new StorageObject[0];
+
+        private int index;
+
+        private String priorLastKey;
+
+        private boolean complete;
+
+        private ListingSnapshot snapshot;
+
+        private ListingSnapshot.Cursor cursor;
+
+        private Listing(S3Service service) {
+            this.service = service;
+        }
+
+        /**
+         * Returns the next qualifying object
+         * 
+         * @return The next object, or <code>null</code> if there are no more
+         * @throws ServiceException
+         */
+        StorageObject next() throws ServiceException {
+            if (S3Scanner.this.snapshots != null) {
+                if (this.cursor == null) {
+                    this.snapshot = getSnapshot(this.service);
+                    this.cursor = this.snapshot.cursor();
+                }
+                while (this.cursor.next()) {
+                    String key = this.cursor.getKey();
+                    if (qualifies(key)) {
+                        return createObject(this.snapshot, this.cursor.getIndex(), key);
+                    }
+                }
+                return null;
+            }
+            while (true) {
+                while (this.index < this.page.length) {
+                    StorageObject candidate = this.page[this.index++];
+                    if (qualifies(candidate.getKey())) {
+                        return candidate;
+                    }
+                }
+                if (this.complete) {
+                    return null;
+                }
+                StorageObjectsChunk chunk;
+                if (S3Scanner.this.hedging == null) {
+                    chunk = this.service.listObjectsChunked(S3Scanner.this.bucket.getName(), S3Scanner.this.baseDirectory, null, PAGE_SIZE,
+                        this.priorLastKey);
+                } else {
+                    chunk = S3Scanner.this.hedging.listObjectsChunked(this.service, S3Scanner.this.bucket.getName(),
+                        S3Scanner.this.baseDirectory, PAGE_SIZE, this.priorLastKey);
+                }
+                this.page = chunk.getObjects();
+                this.index = 0;
+                this.priorLastKey = chunk.getPriorLastKey();
+                this.complete = chunk.isListingComplete() || (this.priorLastKey == null);
+            }
+        }
+    }
+
     private List<String> normalizePatterns(String[] patterns) {
         List<String> normalizedPatterns = new ArrayList<String>(patterns.length);
         for (String pattern : patterns) {
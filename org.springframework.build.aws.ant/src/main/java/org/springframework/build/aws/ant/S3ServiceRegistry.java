@@ -0,0 +1,301 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildListener;
+import org.apache.tools.ant.Project;
+import org.jets3t.service.Jets3tProperties;
+import org.jets3t.service.S3Service;
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.security.AWSCredentials;
+
+/**
+ * A JVM-wide registry of S3 services, so that every <code>&lt;aws:s3&gt;</code> task with the same credentials and
+ * jets3t configuration uses the same service, and with it the same pool of warm HTTP connections. A service is shut
+ * down once every build that used it has finished; sub-builds run by <code>&lt;ant&gt;</code> count as part of the
+ * build that started them.
+ * <p />
+ * Services are keyed by credentials, by the project properties that configure jets3t, recognized by their prefix, so
+ * that unrelated properties such as timestamps do not cause a new service to be created, and by the transfer listeners
+ * that the service reports its requests to. The {@link S3Transport}s created for a service are given the same
+ * properties, and are closed with it. Both the service and the transports hold their requests in the budget of the
+ * {@link TransferGovernor}.
+ */
+final class S3ServiceRegistry {
+
+    private static final String[] JETS3T_PROPERTY_PREFIXES = { "s3service.", "storage-service.", "httpclient.", "threaded-service.",
+        "xmlparser.", "devpay.", "uploads.", "downloads." };
+
+    private static final Map<Key, Registration> registrations = new HashMap<Key, Registration>();
+
+    private S3ServiceRegistry() {
+    }
+
+    /**
+     * Returns the service for the given credentials and the jets3t configuration of a project, creating it if needed
+     * 
+     * @param project The project whose properties configure jets3t
+     * @param accessKey The S3 access key
+     * @param secretKey The S3 secret key
+     * @param transferListeners The class names of the {@link TransferListener}s to report requests to
+     * @return The service
+     * @throws ServiceException if the service, or one of its listeners, cannot be created
+     */
+    static S3Service getService(Project project, String accessKey, String secretKey, List<String> transferListeners)
+        throws ServiceException {
+        synchronized (registrations) {
+            return register(project, accessKey, secretKey, transferListeners).service;
+        }
+    }
+
+    /**
+     * Returns a transport of the given class for the given credentials and the jets3t configuration of a project,
+     * creating it if needed. The transport is closed with the service for the same configuration.
+     * 
+     * @param project The project whose properties configure jets3t and the transport
+     * @param accessKey The S3 access key
+     * @param secretKey The S3 secret key
+     * @param transferListeners The class names of the {@link TransferListener}s that the service reports requests to
+     * @param transport The class name of the {@link S3Transport}
+     * @return The transport
+     * @throws ServiceException if the service or the transport cannot be created
+     */
+    static S3Transport getTransport(Project project, String accessKey, String secretKey, List<String> transferListeners,
+        String transport) throws ServiceException {
+        synchronized (registrations) {
+            Registration registration = register(project, accessKey, secretKey, transferListeners);
+            S3Transport instance = registration.transports.get(transport);
+            if (instance == null) {
+                if (JetS3tTransport.class.getName().equals(transport)) {
+                    instance = new JetS3tTransport(registration.service);
+                } else {
+                    instance = new GovernedTransport(createTransport(transport, accessKey, secretKey, registration.properties));
+                }
+                registration.transports.put(transport, instance);
+                project.log("Created S3 transport " + transport + " for access key " + accessKey, Project.MSG_DEBUG);
+            }
+            return instance;
+        }
+    }
+
+    private static Registration register(Project project, String accessKey, String secretKey, List<String> transferListeners)
+        throws ServiceException {
+        Properties properties = getProperties(project);
+        Key key = new Key(accessKey, secretKey, getJets3tProperties(properties), transferListeners);
+        Project build = getBuild(project);
+        Registration registration = registrations.get(key);
+        if ((registration == null) || registration.service.isShutdown()) {
+            Jets3tProperties jets3tProperties = new Jets3tProperties();
+            jets3tProperties.loadAndReplaceProperties(properties, "ANT Properties");
+            AWSCredentials credentials = new AWSCredentials(accessKey, secretKey);
+            // Instrumented even without listeners, so that its requests are held in the transfer budget
+            S3Service service = new InstrumentedS3Service(credentials, "ants3task", jets3tProperties,
+                createTransferListeners(transferListeners));
+            Properties transportProperties = new Properties();
+            transportProperties.putAll(key.properties);
+            registration = new Registration(service, transportProperties);
+            registrations.put(key, registration);
+            project.log("Created S3 service for access key " + accessKey, Project.MSG_DEBUG);
+        }
+        registration.builds.add(build);
+        return registration;
+    }
+
+    /**
+     * Returns the project of the build that a project is part of. A sub-build inherits the listeners of its parent, so
+     * a shutdown listener already registered with the parent identifies the build.
+     */
+    private static Project getBuild(Project project) {
+        for (Object listener : project.getBuildListeners()) {
+            if (listener instanceof ShutdownListener) {
+                return ((ShutdownListener) listener).project;
+            }
+        }
+        project.addBuildListener(new ShutdownListener(project));
+        return project;
+    }
+
+    private static void buildFinished(Project build) {
+        List<Registration> unused = new ArrayList<Registration>();
+        synchronized (registrations) {
+            for (Iterator<Registration> i = registrations.values().iterator(); i.hasNext();) {
+                Registration registration = i.next();
+                if (registration.builds.remove(build) && registration.builds.isEmpty()) {
+                    unused.add(registration);
+                    i.remove();
+                }
+            }
+        }
+        for (Registration registration : unused) {
+            for (S3Transport transport : registration.transports.values()) {
+                transport.close();
+            }
+            try {
+                registration.service.shutdown();
+            } catch (ServiceException e) {
+                // Nothing to do at this point
+            }
+        }
+    }
+
+    private static List<TransferListener> createTransferListeners(List<String> classNames) throws ServiceException {
+        List<TransferListener> listeners = new ArrayList<TransferListener>(classNames.size());
+        for (String className : classNames) {
+            try {
+                listeners.add((TransferListener) Class.forName(className, true, S3ServiceRegistry.class.getClassLoader()).newInstance());
+            } catch (Exception e) {
+                throw new ServiceException("Unable to create transfer listener " + className, e);
+            }
+        }
+        return listeners;
+    }
+
+    private static S3Transport createTransport(String className, String accessKey, String secretKey, Properties properties)
+        throws ServiceException {
+        try {
+            Class<?> transportClass = Class.forName(className, true, S3ServiceRegistry.class.getClassLoader());
+            return (S3Transport) transportClass.getConstructor(String.class, String.class, Properties.class).newInstance(accessKey,
+                secretKey, properties);
+        } catch (InvocationTargetException e) {
+            throw new ServiceException("Unable to create transport " + className, e.getCause());
+        } catch (Exception e) {
+            throw new ServiceException("Unable to create transport " + className, e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Properties getProperties(Project project) {
+        Properties properties = new Properties();
+        properties.putAll((Hashtable<String, Object>) project.getProperties());
+        return properties;
+    }
+
+    private static SortedMap<String, String> getJets3tProperties(Properties properties) {
+        SortedMap<String, String> jets3tProperties = new TreeMap<String, String>();
+        for (Map.Entry<Object, Object> property : properties.entrySet()) {
+            String name = String.valueOf(property.getKey());
+            for (String prefix : JETS3T_PROPERTY_PREFIXES) {
+                if (name.startsWith(prefix)) {
+                    jets3tProperties.put(name, String.valueOf(property.getValue()));
+                    break;
+                }
+            }
+        }
+        return jets3tProperties;
+    }
+
+    private static final class Registration {
+
+        private final S3Service service;
+
+        private final Properties properties;
+
+        private final Map<String, S3Transport> transports = new HashMap<String, S3Transport>();
+
+        private final Set<Project> builds = new HashSet<Project>();
+
+        private Registration(S3Service service, Properties properties) {
+            this.service = service;
+            this.properties = properties;
+        }
+    }
+
+    private static final class Key {
+
+        private final String accessKey;
+
+        private final String secretKey;
+
+        private final SortedMap<String, String> properties;
+
+        private final List<String> transferListeners;
+
+        private Key(String accessKey, String secretKey, SortedMap<String, String> properties, List<String> transferListeners) {
+            this.accessKey = accessKey;
+            this.secretKey = secretKey;
+            this.properties = properties;
+            this.transferListeners = transferListeners;
+        }
+
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return equal(this.accessKey, other.accessKey) && equal(this.secretKey, other.secretKey) && this.properties.equals(other.properties)
+                && this.transferListeners.equals(other.transferListeners);
+        }
+
+        public int hashCode() {
+            return ((this.accessKey == null ? 0 : this.accessKey.hashCode()) * 31) + this.properties.hashCode();
+        }
+
+        private static boolean equal(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+    /**
+     * Releases the services used by a build when it finishes. Sub-builds only report their end to sub-build listeners,
+     * so this listener, inherited by them, fires only for the build it was registered with.
+     */
+    private static final class ShutdownListener implements BuildListener {
+
+        private final Project project;
+
+        private ShutdownListener(Project project) {
+            this.project = project;
+        }
+
+        public void buildFinished(BuildEvent event) {
+            S3ServiceRegistry.buildFinished(this.project);
+        }
+
+        public void buildStarted(BuildEvent event) {
+        }
+
+        public void targetStarted(BuildEvent event) {
+        }
+
+        public void targetFinished(BuildEvent event) {
+        }
+
+        public void taskStarted(BuildEvent event) {
+        }
+
+        public void taskFinished(BuildEvent event) {
+        }
+
+        public void messageLogged(BuildEvent event) {
+        }
+    }
+
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The HTTP transport that S3 requests are made with, so that the client beneath the operations can be changed without
+ * changing the operations. A transport signs its own requests, for example with {@link RequestSigner}, and is safe to
+ * use from several threads at once.
+ * <p />
+ * {@link JetS3tTransport}, over the jets3t service of the <code>&lt;aws:s3&gt;</code> task, is used unless another is
+ * named with the <code>transport</code> attribute of the task. Other transports are created with a public constructor
+ * taking the access key, the secret key and the jets3t properties of the project, from which they read the endpoint
+ * and connection settings they support.
+ * <p />
+ * Headers given to a transport, such as <code>Content-Type</code>, <code>x-amz-acl</code> and
+ * <code>x-amz-meta-*</code>, are sent as they are. Failed requests are retried by the transport where S3 allows it;
+ * requests that still fail throw {@link S3TransportException}.
+ */
+public interface S3Transport {
+
+    /**
+     * Lists one page of the objects in a bucket
+     * 
+     * @param bucket The name of the bucket
+     * @param prefix The prefix of the keys to list, or <code>null</code>
+     * @param delimiter The delimiter that keys are rolled up into common prefixes at, or <code>null</code>
+     * @param marker The key to list from, exclusive, or <code>null</code>
+     * @param maxKeys The maximum number of keys and common prefixes to return
+     * @return The page of objects
+     * @throws IOException if the request fails
+     */
+    S3ObjectListing list(String bucket, String prefix, String delimiter, String marker, int maxKeys) throws IOException;
+
+    /**
+     * Returns the details of an object without its data
+     * 
+     * @param bucket The name of the bucket
+     * @param key The key of the object
+     * @return The details, or <code>null</code> if the object does not exist
+     * @throws IOException if the request fails
+     */
+    S3ObjectInfo head(String bucket, String key) throws IOException;
+
+    /**
+     * Starts reading an object, or a range of it. The body is streamed as it is read, and must be closed.
+     * 
+     * @param bucket The name of the bucket
+     * @param key The key of the object
+     * @param rangeStart The offset of the first byte to read, or -1 to read the whole object
+     * @param rangeEnd The offset of the last byte to read, inclusive, or -1 to read to the end
+     * @param ifMatch The ETag the object must have, or <code>null</code>
+     * @return The object and its body
+     * @throws IOException if the request fails, including with a 404 status if the object does not exist
+     */
+    S3ObjectContent get(String bucket, String key, long rangeStart, long rangeEnd, String ifMatch) throws IOException;
+
+    /**
+     * Creates or replaces an object
+     * 
+     * @param bucket The name of the bucket
+     * @param key The key of the object
+     * @param body The data of the object
+     * @param headers The headers to send
+     * @return The ETag of the object
+     * @throws IOException if the request fails
+     */
+    String put(String bucket, String key, S3RequestBody body, Map<String, String> headers) throws IOException;
+
+    /**
+     * Deletes an object. Deleting an object that does not exist succeeds.
+     * 
+     * @param bucket The name of the bucket
+     * @param key The key of the object
+     * @throws IOException if the request fails
+     */
+    void delete(String bucket, String key) throws IOException;
+
+    /**
+     * Copies an object within S3, without its data passing through the client
+     * 
+     * @param sourceBucket The name of the bucket of the object to copy
+     * @param sourceKey The key of the object to copy
+     * @param bucket The name of the bucket to copy to
+     * @param key The key to copy to
+     * @param headers The headers to send. Without <code>x-amz-metadata-directive: REPLACE</code> the metadata of the
+     *        source is kept.
+     * @return The ETag of the copy
+     * @throws IOException if the request fails
+     */
+    String copy(String sourceBucket, String sourceKey, String bucket, String key, Map<String, String> headers) throws IOException;
+
+    /**
+     * Starts a multipart upload
+     * 
+     * @param bucket The name of the bucket
+     * @param key The key of the object
+     * @param headers The headers to send, applied to the object once completed
+     * @return The ID of the upload
+     * @throws IOException if the request fails
+     */
+    String startMultipartUpload(String bucket, String key, Map<String, String> headers) throws IOException;
+
+    /**
+     * Uploads a part of a multipart upload
+     * 
+     * @param bucket The name of the bucket
+     * @param key The key of the object
+     * @param uploadId The ID of the upload
+     * @param partNumber The number of the part, from 1
+     * @param body The data of the part
+     * @return The ETag of the part
+     * @throws IOException if the request fails
+     */
+    String uploadPart(String bucket, String key, String uploadId, int partNumber, S3RequestBody body) throws IOException;
+
+    /**
+     * Copies a range of an existing object as a part of a multipart upload, without its data passing through the client
+     * 
+     * @param sourceBucket The name of the bucket of the object to copy from
+     * @param sourceKey The key of the object to copy from
+     * @param sourceETag The ETag the object to copy from must have, or <code>null</code>
+     * @param rangeStart The offset of the first byte to copy
+     * @param rangeEnd The offset of the last byte to copy, inclusive
+     * @param bucket The name of the bucket of the upload
+     * @param key The key of the upload
+     * @param uploadId The ID of the upload
+     * @param partNumber The number of the part, from 1
+     * @return The ETag of the part
+     * @throws IOException if the request fails, including with a 412 status if the object to copy from has changed
+     */
+    String copyPart(String sourceBucket, String sourceKey, String sourceETag, long rangeStart, long rangeEnd, String bucket, String key,
+        String uploadId, int partNumber) throws IOException;
+
+    /**
+     * Completes a multipart upload
+     * 
+     * @param bucket The name of the bucket
+     * @param key The key of the object
+     * @param uploadId The ID of the upload
+     * @param partETags The ETags of the parts, in order of part number from 1
+     * @return The ETag of the object
+     * @throws IOException if the request fails
+     */
+    String completeMultipartUpload(String bucket, String key, String uploadId, List<String> partETags) throws IOException;
+
+    /**
+     * Aborts a multipart upload, discarding its parts
+     * 
+     * @param bucket The name of the bucket
+     * @param key The key of the object
+     * @param uploadId The ID of the upload
+     * @throws IOException if the request fails
+     */
+    void abortMultipartUpload(String bucket, String key, String uploadId) throws IOException;
+
+    /**
+     * Releases the connections of the transport. Called once every build that used the transport has finished.
+     */
+    void close();
+
+}
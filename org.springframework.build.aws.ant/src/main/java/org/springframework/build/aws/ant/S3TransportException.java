@@ -0,0 +1,68 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import java.io.IOException;
+
+/**
+ * A request made with an {@link S3Transport} that failed, with the HTTP status and S3 error code of the response if
+ * one was received
+ */
+public class S3TransportException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int statusCode;
+
+    private final String errorCode;
+
+    /**
+     * Creates a new exception
+     * 
+     * @param message The description of the failure
+     * @param statusCode The HTTP status of the response, or 0 if none was received
+     * @param errorCode The S3 error code of the response, or <code>null</code>
+     * @param cause The cause of the failure, or <code>null</code>
+     */
+    public S3TransportException(String message, int statusCode, String errorCode, Throwable cause) {
+        super(message);
+        this.statusCode = statusCode;
+        this.errorCode = errorCode;
+        if (cause != null) {
+            initCause(cause);
+        }
+    }
+
+    /**
+     * Returns the HTTP status of the response
+     * 
+     * @return The status, or 0 if no response was received
+     */
+    public int getStatusCode() {
+        return this.statusCode;
+    }
+
+    /**
+     * Returns the S3 error code of the response, for example <code>NoSuchKey</code>
+     * 
+     * @return The error code, or <code>null</code>
+     */
+    public String getErrorCode() {
+        return this.errorCode;
+    }
+
+}
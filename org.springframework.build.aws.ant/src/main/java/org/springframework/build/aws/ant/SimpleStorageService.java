@@ -19,19 +19,18 @@ package org.springframework.build.aws.ant;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Properties;
+import java.util.Locale;
 
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Project;
-import org.jets3t.service.Jets3tProperties;
 import org.jets3t.service.S3Service;
 import org.jets3t.service.ServiceException;
-import org.jets3t.service.impl.rest.httpclient.RestS3Service;
-import org.jets3t.service.security.AWSCredentials;
 
 /**
  * An ANT task for dealing with the Amazon S3 service. Requires properties to be set for an <code>accessKey</code> and a
- * <code>secretKey</code>. S3 operations are listed as elements contained in the s3 tag.
+ * <code>secretKey</code>. S3 operations are listed as elements contained in the s3 tag. Tasks with the same credentials
+ * and jets3t properties share a single S3 service, and its connections, until the build finishes. The requests of every
+ * task in the JVM can be held to a shared budget with <code>maxRequests</code> and <code>maxBytesInFlight</code>.
  * 
  * <pre>
  * &lt;aws:s3 accessKey=&quot;${s3.accessKey}&quot; secretKey=&quot;${s3.secretKey}&quot;&gt;
@@ -54,6 +53,16 @@ public class SimpleStorageService {
 
     private String secretKey;
 
+    private final List<String> transferListeners = new ArrayList<String>();
+
+    private boolean flightRecorder = false;
+
+    private String transport;
+
+    private Integer maxRequests;
+
+    private Long maxBytesInFlight;
+
     private Project project;
 
     private final List<S3Operation> operations = new ArrayList<S3Operation>();
@@ -76,6 +85,71 @@ public class SimpleStorageService {
         this.secretKey = secretKey;
     }
 
+    /**
+     * Optional parameter that corresponds to a comma-separated list of the class names of {@link TransferListener}s to
+     * report every request to S3 to. Each class must have a public no-argument constructor and be on the classpath the
+     * task was defined with.
+     * 
+     * @param transferListeners The class names of the listeners
+     */
+    public void setTransferListeners(String transferListeners) {
+        this.transferListeners.clear();
+        for (String transferListener : transferListeners.split(",")) {
+            if (transferListener.trim().length() > 0) {
+                this.transferListeners.add(transferListener.trim());
+            }
+        }
+    }
+
+    /**
+     * Optional parameter that corresponds to recording every request to S3 as a Java Flight Recorder event, with
+     * {@link FlightRecorderTransferListener}. Needs Java 12 or later, and a running recording. Defaults to false.
+     * 
+     * @param flightRecorder Whether to record requests with Java Flight Recorder
+     */
+    public void setFlightRecorder(boolean flightRecorder) {
+        this.flightRecorder = flightRecorder;
+    }
+
+    /**
+     * Optional parameter that corresponds to the class name of the {@link S3Transport} that operations built on
+     * transports make their requests with, such as <code>org.springframework.build.aws.ant.http.JdkHttpTransport</code>.
+     * Those are <code>&lt;stat&gt;</code>, <code>&lt;upload&gt;</code> with a <code>deltaDir</code>, and the listings of
+     * downloads and syncs with a <code>listingSnapshotDir</code>; a warning is logged for every other operation, whose
+     * requests are made with the jets3t service. The class must have a public constructor taking the access key, the
+     * secret key and the jets3t properties of the project, and be on the classpath the task was defined with. Defaults
+     * to {@link JetS3tTransport}, over the same jets3t service as the other operations.
+     * 
+     * @param transport The class name of the transport
+     */
+    public void setTransport(String transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Optional parameter that corresponds to the maximum number of requests to S3 in flight at once across every
+     * <code>&lt;aws:s3&gt;</code> task in the JVM, such as those run with <code>&lt;parallel&gt;</code>. Waiting
+     * requests are shared out fairly between the tasks. The limit applies to the whole JVM, so when tasks set different
+     * limits the one set by the most recently started task applies. Defaults to the limit already set, or no limit.
+     * 
+     * @param maxRequests The maximum number of requests in flight, or 0 for no limit
+     */
+    public void setMaxRequests(int maxRequests) {
+        this.maxRequests = Integer.valueOf(maxRequests);
+    }
+
+    /**
+     * Optional parameter that corresponds to the maximum number of bytes of request and response bodies in flight at
+     * once across every <code>&lt;aws:s3&gt;</code> task in the JVM. A single request larger than the limit runs on its
+     * own. Like <code>maxRequests</code>, the limit applies to the whole JVM. Defaults to the limit already set, or no
+     * limit.
+     * 
+     * @param maxBytesInFlight The maximum number of bytes in flight, or 0 for no limit
+     */
+    public void setMaxBytesInFlight(long maxBytesInFlight) {
+        this.maxBytesInFlight = Long.valueOf(maxBytesInFlight);
+    }
+
     /**
      * Infrastructure element
      * 
@@ -121,33 +195,82 @@ public class SimpleStorageService {
         this.operations.add(delete);
     }
 
+    /**
+     * Add any stat operations
+     * 
+     * @param stat The stat operation metadata
+     */
+    public void addConfiguredStat(Stat stat) {
+        this.operations.add(stat);
+    }
+
+    /**
+     * Add any sync operations
+     * 
+     * @param sync The sync operation metadata
+     */
+    public void addConfiguredSync(Sync sync) {
+        this.operations.add(sync);
+    }
+
     /**
      * Run all S3 operations configured as part of this task
      */
     public void execute() {
+        TransferGovernor governor = TransferGovernor.get();
+        if (this.maxRequests != null) {
+            governor.setMaxRequests(this.maxRequests.intValue());
+        }
+        if (this.maxBytesInFlight != null) {
+            governor.setMaxBytes(this.maxBytesInFlight.longValue());
+        }
+        TransferGovernor.Tenant tenant = governor.enter();
         try {
-            AWSCredentials credentials = new AWSCredentials(this.accessKey, this.secretKey);
-            S3Service service = new RestS3Service(credentials, "ants3task", null, getJetS3tProperties());
+            List<String> listeners = new ArrayList<String>(this.transferListeners);
+            if (this.flightRecorder) {
+                if (FlightRecorderTransferListener.isSupported()) {
+                    listeners.add(FlightRecorderTransferListener.class.getName());
+                } else {
+                    this.project.log("Java Flight Recorder events are not supported by this JVM, requests will not be recorded",
+                        Project.MSG_WARN);
+                }
+            }
+            S3Service service = S3ServiceRegistry.getService(this.project, this.accessKey, this.secretKey, listeners);
+            if (this.transport != null) {
+                S3Transport transport = S3ServiceRegistry.getTransport(this.project, this.accessKey, this.secretKey, listeners,
+                    this.transport);
+                for (S3Operation operation : this.operations) {
+                    if (operation instanceof AbstractS3Operation) {
+                        ((AbstractS3Operation) operation).setTransport(transport);
+                    }
+                    if (!(operation instanceof AbstractS3Operation) || !((AbstractS3Operation) operation).usesTransport()) {
+                        this.project.log("<" + operation.getClass().getSimpleName().toLowerCase(Locale.ENGLISH)
+                            + "> makes its requests with the jets3t service, the transport " + this.transport + " is not used",
+                            Project.MSG_WARN);
+                    }
+                }
+            }
 
             for (S3Operation operation : this.operations) {
-                operation.execute(service);
+                try {
+                    operation.execute(service);
+                } finally {
+                    if (operation instanceof AbstractS3DownloadOperation) {
+                        ((AbstractS3DownloadOperation) operation).logHedging();
+                    }
+                }
             }
         } catch (ServiceException e) {
             throw new BuildException(e);
         } catch (IOException e) {
             throw new BuildException(e);
+        } finally {
+            governor.exit(tenant);
+            if (tenant.getWaits() > 0) {
+                this.project.log(tenant.getWaits() + " requests waited " + TransferUtils.getFormattedTime(tenant.getWaitTime())
+                    + " in total for the JVM-wide transfer budget", Project.MSG_VERBOSE);
+            }
         }
     }
 
-    @SuppressWarnings("unchecked")
-    private Jets3tProperties getJetS3tProperties() {
-        Properties p = new Properties();
-        p.putAll(this.project.getProperties());
-
-        Jets3tProperties jets3tProperties = new Jets3tProperties();
-        jets3tProperties.loadAndReplaceProperties(p, "ANT Properties");
-
-        return jets3tProperties;
-    }
-
 }
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Collects the transfers of an operation and submits them largest first. With the longest transfers started first, and
+ * large objects split into parts, the small transfers fill the gaps at the end of a run instead of a large one starting
+ * last and running on its own while every other thread is idle.
+ */
+final class SizeOrderedPlan {
+
+    private static final Comparator<Step> LARGEST_FIRST = new Comparator<Step>() {
+
+        public int compare(Step a, Step b) {
+            return a.size < b.size ? 1 : (a.size == b.size ? 0 : -1);
+        }
+    };
+
+    private final List<Step> steps = new ArrayList<Step>();
+
+    /**
+     * Adds a transfer to the plan
+     *
+     * @param size The number of bytes the transfer moves
+     * @param submission The task that submits the transfer, run on the planning thread
+     */
+    void add(long size, AsyncExecution.Task submission) {
+        this.steps.add(new Step(size, submission));
+    }
+
+    /**
+     * Submits every transfer of the plan, largest first
+     *
+     * @throws Exception if a submission fails
+     */
+    void submit() throws Exception {
+        Collections.sort(this.steps, LARGEST_FIRST);
+        for (Step step : this.steps) {
+            step.submission.run();
+        }
+        this.steps.clear();
+    }
+
+    private static final class Step {
+
+        private final long size;
+
+        private final AsyncExecution.Task submission;
+
+        private Step(long size, AsyncExecution.Task submission) {
+            this.size = size;
+            this.submission = submission;
+        }
+    }
+
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.util.FileUtils;
+
+/**
+ * Walks a directory tree lazily, returning the relative paths of its files in the order S3 lists keys: by the Unicode
+ * code points of the path, with <code>/</code> as the separator. Each directory is read and sorted only when the walk
+ * reaches it, so memory use is bounded by the directories on the current path rather than by the size of the tree.
+ * <p />
+ * Paths are filtered with an {@link S3Scanner}, so that local files and S3 keys are selected by the same patterns.
+ * Symbolic links are skipped unless they are followed, as {@link org.apache.tools.ant.DirectoryScanner} does, and a
+ * followed link to a directory that is already being walked is skipped so that a cycle cannot make the walk endless.
+ */
+final class SortedFileWalker {
+
+    private static final FileUtils FILE_UTILS = FileUtils.getFileUtils();
+
+    private static final Comparator<String> KEY_ORDER = new Comparator<String>() {
+
+        public int compare(String a, String b) {
+            return compareKeys(a, b);
+        }
+    };
+
+    private final S3Scanner scanner;
+
+    private final String keyPrefix;
+
+    private final boolean followSymlinks;
+
+    private final List<Frame> stack = new ArrayList<Frame>();
+
+    /**
+     * Creates a new walker
+     *
+     * @param root The directory to walk
+     * @param scanner The scanner whose patterns select files
+     * @param keyPrefix The prefix that turns a relative path into the key checked by the scanner
+     * @param followSymlinks Whether symbolic links are followed
+     */
+    SortedFileWalker(File root, S3Scanner scanner, String keyPrefix, boolean followSymlinks) {
+        this.scanner = scanner;
+        this.keyPrefix = keyPrefix;
+        this.followSymlinks = followSymlinks;
+        push(root, "");
+    }
+
+    /**
+     * Compares two keys in the order S3 lists them, the binary order of their UTF-8 encodings, which is the order of
+     * their Unicode code points
+     *
+     * @param a The first key
+     * @param b The second key
+     * @return A negative number, zero or a positive number as the first key sorts before, with or after the second
+     */
+    static int compareKeys(String a, String b) {
+        int i = 0;
+        int j = 0;
+        while ((i < a.length()) && (j < b.length())) {
+            int ca = a.codePointAt(i);
+            int cb = b.codePointAt(j);
+            if (ca != cb) {
+                return ca - cb;
+            }
+            i += Character.charCount(ca);
+            j += Character.charCount(cb);
+        }
+        return (a.length() - i) - (b.length() - j);
+    }
+
+    /**
+     * Returns the relative path of the next selected file
+     *
+     * @return The path, using <code>/</code> as the separator, or <code>null</code> if the walk is complete
+     * @throws BuildException if a directory cannot be resolved
+     */
+    String next() {
+        while (!this.stack.isEmpty()) {
+            Frame frame = this.stack.get(this.stack.size() - 1);
+            if (frame.index == frame.entries.length) {
+                this.stack.remove(this.stack.size() - 1);
+                continue;
+            }
+            String entry = frame.entries[frame.index++];
+            String path = frame.path + entry;
+            if (entry.endsWith("/")) {
+                push(new File(frame.directory, entry.substring(0, entry.length() - 1)), path);
+            } else if (this.scanner.qualifies(this.keyPrefix + path)) {
+                return path;
+            }
+        }
+        return null;
+    }
+
+    private void push(File directory, String path) {
+        try {
+            String canonicalPath = null;
+            if (this.followSymlinks) {
+                canonicalPath = directory.getCanonicalPath();
+                for (Frame frame : this.stack) {
+                    if (canonicalPath.equals(frame.canonicalPath)) {
+                        return;
+                    }
+                }
+            }
+
+            File[] children = directory.listFiles();
+            if (children == null) {
+                return;
+            }
+            List<String> entries = new ArrayList<String>(children.length);
+            for (File child : children) {
+                if (!this.followSymlinks && FILE_UTILS.isSymbolicLink(directory, child.getName())) {
+                    continue;
+                }
+                entries.add(child.isDirectory() ? child.getName() + "/" : child.getName());
+            }
+            Collections.sort(entries, KEY_ORDER);
+            this.stack.add(new Frame(directory, canonicalPath, path, entries.toArray(new String[entries.size()])));
+        } catch (IOException e) {
+            throw new BuildException("IO error scanning directory '" + directory.getAbsolutePath() + "'", e);
+        }
+    }
+
+    private static final class Frame {
+
+        private final File directory;
+
+        private final String canonicalPath;
+
+        private final String path;
+
+        private final String[] entries;
+
+        private int index;
+
+        private Frame(File directory, String canonicalPath, String path, String[] entries) {
+            this.directory = directory;
+            this.canonicalPath = canonicalPath;
+            this.path = path;
+            this.entries = entries;
+        }
+    }
+
+}
@@ -0,0 +1,374 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.FileSet;
+import org.jets3t.service.S3Service;
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.utils.ServiceUtils;
+
+/**
+ * A member of the S3 ANT task for finding whether objects exist, and their size, ETag and last modified time, without
+ * downloading them. This operation will use the credentials setup in its parent S3 task tag.
+ * <p />
+ * The keys to check are given as a list, or as a fileset of local files and the directory they would be uploaded to,
+ * as with an upload. Keys are grouped by the 'directory' they are in. A directory with at least
+ * <code>listThreshold</code> keys to check is listed with a single request; the keys of other directories are checked
+ * with a <code>HEAD</code> request each, made in parallel. Requests are made with the {@link S3Transport} of the parent
+ * S3 task.
+ * <p />
+ * The results are set as properties, written to a report, or both. With a <code>property</code> of <code>stat</code>,
+ * an object with the key <code>a/b.jar</code> that exists sets:
+ * <ul>
+ * <li><code>stat.a/b.jar.exists</code> to <code>true</code></li>
+ * <li><code>stat.a/b.jar.size</code> to its length in bytes</li>
+ * <li><code>stat.a/b.jar.etag</code> to its ETag</li>
+ * <li><code>stat.a/b.jar.lastModified</code> to its last modified time, in milliseconds since the epoch</li>
+ * </ul>
+ * None of these are set for an object that does not exist. <code>stat.missing</code> is set to a comma-separated list
+ * of the keys that do not exist, and <code>stat.allExist</code> is set to <code>true</code> if every key exists. As with
+ * any ANT property, properties that are already set are not changed.
+ */
+public class Stat extends AbstractS3Operation implements AsyncS3Operation {
+
+    private String file;
+
+    private final List<String> keys = new ArrayList<String>();
+
+    private final List<FileSet> fileSets = new ArrayList<FileSet>(1);
+
+    private String toDir;
+
+    private String property;
+
+    private File report;
+
+    private int listThreshold = 4;
+
+    private int threads = 10;
+
+    private Map<String, S3ObjectInfo> results;
+
+    /**
+     * Optional parameter that corresponds to a single object key in S3 to check
+     * 
+     * @param file The object key in S3
+     */
+    public void setFile(String file) {
+        this.file = file;
+    }
+
+    /**
+     * Optional parameter that corresponds to a comma-separated list of object keys in S3 to check
+     * 
+     * @param keys The object keys in S3
+     */
+    public void setKeys(String keys) {
+        for (String key : keys.split(",")) {
+            if (key.trim().length() > 0) {
+                this.keys.add(key.trim());
+            }
+        }
+    }
+
+    /**
+     * Adds an optional fileSet of local files, whose keys are checked as if the files were uploaded to
+     * <code>toDir</code>
+     * 
+     * @param fileSet The set of files to check
+     */
+    public void addFileSet(FileSet fileSet) {
+        this.fileSets.add(fileSet);
+    }
+
+    /**
+     * Optional parameter that corresponds to the object directory that the files of a fileset would be uploaded to.
+     * Defaults to the root of the bucket.
+     * 
+     * @param toDir The object directory
+     */
+    public void setToDir(String toDir) {
+        this.toDir = toDir;
+    }
+
+    /**
+     * Optional parameter that corresponds to the prefix of the properties to set with the results
+     * 
+     * @param property The prefix of the properties
+     */
+    public void setProperty(String property) {
+        this.property = property;
+    }
+
+    /**
+     * Optional parameter that corresponds to a file to write the results to, one tab-separated line per key with its
+     * key, whether it exists, and its size, ETag and last modified time if it does
+     * 
+     * @param report The report file
+     */
+    public void setReport(File report) {
+        this.report = report;
+    }
+
+    /**
+     * Optional parameter that corresponds to the number of keys in the same 'directory' from which the directory is
+     * listed rather than each key being checked on its own. A listing returns up to 1000 objects per request, so a
+     * directory holding many more objects than are checked is better checked key by key. Defaults to 4.
+     * 
+     * @param listThreshold The number of keys
+     */
+    public void setListThreshold(int listThreshold) {
+        this.listThreshold = listThreshold;
+    }
+
+    /**
+     * Optional parameter that corresponds to the number of requests made at once, when not using virtual threads.
+     * Defaults to 10.
+     * 
+     * @param threads The number of requests made at once
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Verify that required parameters have been set
+     */
+    public void init() {
+        if (this.bucketName == null) {
+            throw new BuildException("bucketName must be set");
+        }
+        if ((this.file == null) && this.keys.isEmpty() && this.fileSets.isEmpty()) {
+            throw new BuildException("At least one of file, keys and <fileset> must be set");
+        }
+        if (this.listThreshold <= 0) {
+            throw new BuildException("listThreshold must be positive");
+        }
+        if (this.threads <= 0) {
+            throw new BuildException("threads must be positive");
+        }
+        initOperation();
+    }
+
+    protected boolean usesTransport() {
+        return true;
+    }
+
+    public void execute(S3Service service) throws ServiceException, IOException {
+        if (isVirtualThreads()) {
+            executeOnVirtualThreads(this, service);
+        } else {
+            executeOnThreads(this, service, this.threads);
+        }
+        report();
+    }
+
+    /**
+     * Runs a stat without blocking. Each directory that is listed, and each key that is checked on its own, is checked
+     * by its own task on the executor. The results are only reported by {@link #execute(S3Service)}.
+     */
+    public S3OperationFuture executeAsync(final S3Service service, ExecutorService executor) {
+        final AsyncExecution execution = new AsyncExecution(executor);
+        final S3Transport transport = getTransport(service);
+        final ProgressReporter progress = startProgressReporter("Checked");
+        final Map<String, S3ObjectInfo> results = Collections.synchronizedMap(new TreeMap<String, S3ObjectInfo>());
+        this.results = results;
+        execution.onComplete(new Runnable() {
+
+            public void run() {
+                progress.stop();
+            }
+        });
+        execution.start(new AsyncExecution.Task() {
+
+            public void run() throws Exception {
+                SortedMap<String, Set<String>> directories = getKeysByDirectory();
+                for (Set<String> keys : directories.values()) {
+                    progress.addExpected(keys.size(), 0);
+                }
+                for (Map.Entry<String, Set<String>> directory : directories.entrySet()) {
+                    if (directory.getValue().size() >= Stat.this.listThreshold) {
+                        submitList(execution, transport, directory.getKey(), directory.getValue(), results, progress);
+                    } else {
+                        for (String key : directory.getValue()) {
+                            submitHead(execution, transport, key, results, progress);
+                        }
+                    }
+                }
+            }
+        });
+        return execution;
+    }
+
+    private void submitList(final AsyncExecution execution, final S3Transport transport, final String directory,
+        final Set<String> keys, final Map<String, S3ObjectInfo> results, final ProgressReporter progress) {
+        execution.submit(directory, new AsyncExecution.Task() {
+
+            public void run() throws Exception {
+                Map<String, S3ObjectInfo> listed = new HashMap<String, S3ObjectInfo>();
+                String marker = null;
+                do {
+                    S3ObjectListing listing = transport.list(Stat.this.bucketName, directory, "/", marker, 1000);
+                    for (S3ObjectInfo object : listing.getObjects()) {
+                        listed.put(object.getKey(), object);
+                    }
+                    marker = listing.getNextMarker();
+                } while (marker != null);
+                for (String key : keys) {
+                    results.put(key, listed.get(key));
+                    progress.completed(0);
+                }
+                execution.getResult().completed(directory, 0);
+            }
+        });
+    }
+
+    private void submitHead(final AsyncExecution execution, final S3Transport transport, final String key,
+        final Map<String, S3ObjectInfo> results, final ProgressReporter progress) {
+        execution.submit(key, new AsyncExecution.Task() {
+
+            public void run() throws Exception {
+                results.put(key, transport.head(Stat.this.bucketName, key));
+                progress.completed(0);
+                execution.getResult().completed(key, 0);
+            }
+        });
+    }
+
+    /**
+     * Returns the keys to check, grouped by the 'directory', including its trailing slash, that they are in
+     */
+    private SortedMap<String, Set<String>> getKeysByDirectory() throws IOException {
+        List<String> allKeys = new ArrayList<String>(this.keys);
+        if (this.file != null) {
+            allKeys.add(this.file);
+        }
+        String prefix = (this.toDir == null) || (this.toDir.length() == 0) ? "" : (this.toDir.endsWith("/") ? this.toDir : this.toDir + "/");
+        for (FileSet fileSet : this.fileSets) {
+            for (String file : ParallelDirectoryScanner.getIncludedFiles(fileSet, this.project)) {
+                allKeys.add(prefix + file.replace('\\', '/'));
+            }
+        }
+        SortedMap<String, Set<String>> directories = new TreeMap<String, Set<String>>();
+        for (String key : allKeys) {
+            String directory = key.substring(0, key.lastIndexOf('/') + 1);
+            Set<String> keys = directories.get(directory);
+            if (keys == null) {
+                keys = new LinkedHashSet<String>();
+                directories.put(directory, keys);
+            }
+            keys.add(key);
+        }
+        return directories;
+    }
+
+    private void report() throws IOException {
+        Map<String, S3ObjectInfo> results = new TreeMap<String, S3ObjectInfo>(this.results);
+        List<String> missing = new ArrayList<String>();
+        for (Map.Entry<String, S3ObjectInfo> result : results.entrySet()) {
+            S3ObjectInfo object = result.getValue();
+            if (object == null) {
+                missing.add(result.getKey());
+                this.project.log("s3://" + this.bucketName + "/" + result.getKey() + " does not exist", Project.MSG_VERBOSE);
+            } else {
+                this.project.log("s3://" + this.bucketName + "/" + result.getKey() + " exists ("
+                    + TransferUtils.getFormattedSize(object.getSize()) + ", ETag " + getETag(object) + ")", Project.MSG_VERBOSE);
+            }
+        }
+        this.project.log((results.size() - missing.size()) + " of " + results.size() + " objects exist in s3://" + this.bucketName,
+            Project.MSG_INFO);
+        if (this.property != null) {
+            setProperties(results, missing);
+        }
+        if (this.report != null) {
+            writeReport(results);
+        }
+    }
+
+    private void setProperties(Map<String, S3ObjectInfo> results, List<String> missing) {
+        for (Map.Entry<String, S3ObjectInfo> result : results.entrySet()) {
+            S3ObjectInfo object = result.getValue();
+            if (object != null) {
+                String prefix = this.property + "." + result.getKey();
+                this.project.setNewProperty(prefix + ".exists", "true");
+                this.project.setNewProperty(prefix + ".size", Long.toString(object.getSize()));
+                this.project.setNewProperty(prefix + ".etag", getETag(object));
+                if (object.getLastModified() != null) {
+                    this.project.setNewProperty(prefix + ".lastModified", Long.toString(object.getLastModified().getTime()));
+                }
+            }
+        }
+        StringBuilder missingKeys = new StringBuilder();
+        for (String key : missing) {
+            if (missingKeys.length() > 0) {
+                missingKeys.append(',');
+            }
+            missingKeys.append(key);
+        }
+        this.project.setNewProperty(this.property + ".missing", missingKeys.toString());
+        if (missing.isEmpty()) {
+            this.project.setNewProperty(this.property + ".allExist", "true");
+        }
+    }
+
+    private void writeReport(Map<String, S3ObjectInfo> results) throws IOException {
+        if ((this.report.getParentFile() != null) && !this.report.getParentFile().exists()) {
+            this.report.getParentFile().mkdirs();
+        }
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(this.report), "UTF-8"));
+        try {
+            out.write("# key\texists\tsize\tetag\tlastModified\n");
+            for (Map.Entry<String, S3ObjectInfo> result : results.entrySet()) {
+                S3ObjectInfo object = result.getValue();
+                out.write(result.getKey());
+                if (object == null) {
+                    out.write("\tfalse\t\t\t\n");
+                } else {
+                    out.write("\ttrue\t" + object.getSize() + "\t" + getETag(object) + "\t"
+                        + (object.getLastModified() == null ? "" : ServiceUtils.formatIso8601Date(object.getLastModified())) + "\n");
+                }
+            }
+        } finally {
+            out.close();
+        }
+        this.project.log("Wrote results for " + results.size() + " keys to " + this.report.getAbsolutePath(), Project.MSG_VERBOSE);
+    }
+
+    private static String getETag(S3ObjectInfo object) {
+        return object.getETag() == null ? "" : object.getETag();
+    }
+
+}
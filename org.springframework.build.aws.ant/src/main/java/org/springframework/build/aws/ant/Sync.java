@@ -0,0 +1,394 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.FileSet;
+import org.apache.tools.ant.types.PatternSet;
+import org.jets3t.service.S3Service;
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.acl.AccessControlList;
+import org.jets3t.service.model.S3Bucket;
+import org.jets3t.service.model.S3Object;
+import org.jets3t.service.model.StorageObject;
+
+/**
+ * A member of the S3 ANT task for mirroring a local directory to an S3 'directory', or the other way round. This
+ * operation will use the credentials setup in its parent S3 task tag.
+ * <p />
+ * The difference between the two sides is found with a merge-join of a sorted walk of the local directory and the
+ * S3 listing, which is already sorted by key. Neither side is held in memory, and each transfer starts as soon as
+ * its difference is found. Files and objects are considered unchanged when their lengths and ETags match. 'Directory'
+ * marker objects are ignored.
+ *
+ * <pre>
+ * &lt;sync bucketName=&quot;maven.springframework.org&quot; prefix=&quot;release&quot; direction=&quot;upload&quot; delete=&quot;true&quot;&gt;
+ *     &lt;fileset dir=&quot;${target.repo.dir}&quot;/&gt;
+ * &lt;/sync&gt;
+ * </pre>
+ */
+public class Sync extends AbstractS3DownloadOperation implements AsyncS3Operation {
+
+    private static final String UPLOAD = "upload";
+
+    private static final String DOWNLOAD = "download";
+
+    private static final int MAX_PENDING_TRANSFERS = 1024;
+
+    private FileSet fileSet;
+
+    private String prefix;
+
+    private String direction = UPLOAD;
+
+    private boolean delete = false;
+
+    private boolean publicRead = false;
+
+    /**
+     * Required parameter that corresponds to the local directory to synchronize, and the patterns selecting files and
+     * objects on both sides. Selectors are not supported, as they cannot be applied to objects.
+     *
+     * @param fileSet The local files
+     */
+    public void addFileSet(FileSet fileSet) {
+        if (this.fileSet != null) {
+            throw new BuildException("Only one <fileset> may be set");
+        }
+        this.fileSet = fileSet;
+    }
+
+    /**
+     * Required parameter that corresponds to the S3 'directory' to synchronize
+     *
+     * @param prefix The S3 'directory'
+     */
+    public void setPrefix(String prefix) {
+        this.prefix = prefix;
+    }
+
+    /**
+     * Optional parameter that corresponds to the direction to synchronize in: <code>upload</code> makes S3 mirror the
+     * local directory and <code>download</code> makes the local directory mirror S3. Defaults to upload.
+     *
+     * @param direction The direction
+     */
+    public void setDirection(String direction) {
+        this.direction = direction;
+    }
+
+    /**
+     * Optional parameter that corresponds to deleting objects or files in the destination that do not exist in the
+     * source. Defaults to false.
+     *
+     * @param delete
+     */
+    public void setDelete(boolean delete) {
+        this.delete = delete;
+    }
+
+    /**
+     * Optional parameter that corresponds to public readability of uploaded objects in S3. Defaults to false.
+     *
+     * @param publicRead
+     */
+    public void setPublicRead(boolean publicRead) {
+        this.publicRead = publicRead;
+    }
+
+    /**
+     * Verify that required parameters have been set
+     */
+    public void init() {
+        if (this.bucketName == null) {
+            throw new BuildException("bucketName must be set");
+        }
+        if (this.fileSet == null) {
+            throw new BuildException("A <fileset> must be set");
+        }
+        if (this.prefix == null) {
+            throw new BuildException("prefix must be set");
+        }
+        if (!UPLOAD.equals(this.direction) && !DOWNLOAD.equals(this.direction)) {
+            throw new BuildException("direction must be one of " + UPLOAD + " and " + DOWNLOAD);
+        }
+        if (isExtract()) {
+            throw new BuildException("extract cannot be used with <sync>");
+        }
+        if (this.fileSet.hasSelectors()) {
+            // Selectors cannot be applied to objects, so the files and objects compared would differ
+            throw new BuildException("<sync> cannot be used with a <fileset> that has selectors");
+        }
+        initOperation();
+        initCache();
+    }
+
+    public void execute(S3Service service) throws ServiceException, IOException {
+        if (isVirtualThreads()) {
+            executeOnVirtualThreads(this, service);
+        } else {
+            executeSequentially(this, service);
+        }
+    }
+
+    /**
+     * Runs a synchronization without blocking. The differences are found by a single task, which submits a task for
+     * each transfer or deletion as it goes. When too many transfers are pending, the task that finds differences runs
+     * the next one itself, so that memory use stays bounded.
+     */
+    public S3OperationFuture executeAsync(S3Service service, ExecutorService executor) {
+        final AsyncExecution execution = new AsyncExecution(executor);
+        final Run run = new Run(execution, service);
+        execution.onComplete(new Runnable() {
+
+            public void run() {
+                run.complete();
+            }
+        });
+        execution.start(new AsyncExecution.Task() {
+
+            public void run() throws Exception {
+                run.diff();
+            }
+        });
+        return execution;
+    }
+
+    private String getRemoteBase() {
+        if ((this.prefix.length() == 0) || this.prefix.endsWith("/")) {
+            return this.prefix;
+        }
+        return this.prefix + "/";
+    }
+
+    private S3Scanner createScanner(S3Bucket bucket, String remoteBase) {
+        PatternSet patterns = this.fileSet.mergePatterns(this.project);
+        List<String> excludes = new ArrayList<String>();
+        String[] excludePatterns = patterns.getExcludePatterns(this.project);
+        if (excludePatterns != null) {
+            excludes.addAll(Arrays.asList(excludePatterns));
+        }
+        if (this.fileSet.getDefaultexcludes()) {
+            excludes.addAll(Arrays.asList(DirectoryScanner.getDefaultExcludes()));
+        }
+        S3Scanner scanner = new S3Scanner(bucket, remoteBase, patterns.getIncludePatterns(this.project), excludes.toArray(new String[excludes
+            .size()]));
+        scanner.setSnapshots(getListingSnapshots());
+        scanner.setHedging(getHedgedListings());
+        return scanner;
+    }
+
+    /**
+     * The state of a single synchronization
+     */
+    private final class Run {
+
+        private final AsyncExecution execution;
+
+        private final S3Service service;
+
+        private final S3Bucket bucket = getOperationBucket();
+
+        private final String remoteBase = getRemoteBase();
+
+        private final File localBase = Sync.this.fileSet.getDir(Sync.this.project);
+
+        private final ProgressReporter progress = startProgressReporter("Synchronized");
+
+        private final Semaphore pendingTransfers = new Semaphore(MAX_PENDING_TRANSFERS);
+
+        private final AtomicInteger transferred = new AtomicInteger();
+
+        private final AtomicInteger deleted = new AtomicInteger();
+
+        private final AtomicInteger unchanged = new AtomicInteger();
+
+        private Run(AsyncExecution execution, S3Service service) {
+            this.execution = execution;
+            this.service = service;
+        }
+
+        private void diff() throws ServiceException {
+            S3Scanner scanner = createScanner(this.bucket, this.remoteBase);
+            SortedFileWalker local = new SortedFileWalker(this.localBase, scanner, this.remoteBase, Sync.this.fileSet.isFollowSymlinks());
+            S3Scanner.Listing remote = scanner.listQualifiyingObjects(this.service);
+
+            String path = local.next();
+            StorageObject object = nextObject(remote);
+            while ((path != null) || (object != null)) {
+                String key = this.remoteBase + path;
+                int comparison;
+                if (path == null) {
+                    comparison = 1;
+                } else if (object == null) {
+                    comparison = -1;
+                } else {
+                    comparison = SortedFileWalker.compareKeys(key, object.getKey());
+                }
+
+                if (comparison < 0) {
+                    localOnly(path, key);
+                    path = local.next();
+                } else if (comparison > 0) {
+                    remoteOnly(object);
+                    object = nextObject(remote);
+                } else {
+                    both(path, object);
+                    path = local.next();
+                    object = nextObject(remote);
+                }
+            }
+        }
+
+        private StorageObject nextObject(S3Scanner.Listing remote) throws ServiceException {
+            StorageObject object;
+            do {
+                object = remote.next();
+            } while ((object != null) && object.getKey().endsWith("/"));
+            return object;
+        }
+
+        private void localOnly(final String path, final String key) {
+            final File file = new File(this.localBase, path);
+            if (UPLOAD.equals(Sync.this.direction)) {
+                submit(key, file.length(), new AsyncExecution.Task() {
+
+                    public void run() throws Exception {
+                        upload(file, key);
+                    }
+                });
+            } else if (Sync.this.delete) {
+                submit(key, 0, new AsyncExecution.Task() {
+
+                    public void run() throws Exception {
+                        if (!file.delete()) {
+                            throw new IOException("Unable to delete " + file.getAbsolutePath());
+                        }
+                        Sync.this.project.log("Deleted " + file.getAbsolutePath(), Project.MSG_VERBOSE);
+                        Run.this.deleted.incrementAndGet();
+                        Run.this.execution.getResult().completed(key, 0);
+                    }
+                });
+            }
+        }
+
+        private void remoteOnly(final StorageObject object) {
+            final String key = object.getKey();
+            if (DOWNLOAD.equals(Sync.this.direction)) {
+                final File file = new File(this.localBase, key.substring(this.remoteBase.length()));
+                submit(key, object.getContentLength(), new AsyncExecution.Task() {
+
+                    public void run() throws Exception {
+                        download(object, file);
+                    }
+                });
+            } else if (Sync.this.delete) {
+                submit(key, 0, new AsyncExecution.Task() {
+
+                    public void run() throws Exception {
+                        Run.this.service.deleteObject(Run.this.bucket, key);
+                        Sync.this.project.log("Deleted s3://" + Run.this.bucket.getName() + "/" + key, Project.MSG_VERBOSE);
+                        Run.this.deleted.incrementAndGet();
+                        Run.this.execution.getResult().completed(key, 0);
+                    }
+                });
+            }
+        }
+
+        private void both(String path, final StorageObject object) {
+            final File file = new File(this.localBase, path);
+            final String key = object.getKey();
+            // Files of the same length are hashed by the transfer task, so that hashing runs in parallel with the diff
+            submit(key, object.getContentLength(), new AsyncExecution.Task() {
+
+                public void run() throws Exception {
+                    if (isUnchanged(file, object)) {
+                        Run.this.unchanged.incrementAndGet();
+                        Run.this.progress.completed(object.getContentLength());
+                    } else if (UPLOAD.equals(Sync.this.direction)) {
+                        upload(file, key);
+                    } else {
+                        download(object, file);
+                    }
+                }
+            });
+        }
+
+        private void upload(File file, String key) throws ServiceException {
+            S3Object destination = new S3Object(this.bucket, key);
+            if (Sync.this.publicRead) {
+                destination.setAcl(AccessControlList.REST_CANNED_PUBLIC_READ);
+            }
+            destination.setDataInputFile(file);
+            destination.setContentLength(file.length());
+            this.service.putObject(this.bucket, destination);
+            Sync.this.project.log("Uploaded " + file.getAbsolutePath() + " to s3://" + this.bucket.getName() + "/" + key, Project.MSG_VERBOSE);
+            this.progress.completed(file.length());
+            this.transferred.incrementAndGet();
+            this.execution.getResult().completed(key, file.length());
+        }
+
+        private void download(StorageObject object, File file) throws ServiceException, IOException {
+            long length = getFile(this.service, this.bucket, object, file, this.progress);
+            this.transferred.incrementAndGet();
+            this.execution.getResult().completed(object.getKey(), length);
+        }
+
+        private void submit(String key, long length, final AsyncExecution.Task task) {
+            this.progress.addExpected(1, length);
+            if (!this.pendingTransfers.tryAcquire()) {
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    this.execution.getResult().failed(key, t);
+                }
+                return;
+            }
+            this.execution.submit(key, new AsyncExecution.Task() {
+
+                public void run() throws Exception {
+                    try {
+                        task.run();
+                    } finally {
+                        Run.this.pendingTransfers.release();
+                    }
+                }
+            });
+        }
+
+        private void complete() {
+            this.progress.stop();
+            String local = this.localBase.getAbsolutePath();
+            String remote = "s3://" + this.bucket.getName() + "/" + this.remoteBase;
+            Sync.this.project.log("Synchronized " + (UPLOAD.equals(Sync.this.direction) ? local + " to " + remote : remote + " to " + local)
+                + ": " + this.transferred.get() + " transferred, " + this.deleted.get() + " deleted, " + this.unchanged.get() + " unchanged",
+                Project.MSG_INFO);
+        }
+    }
+
+}
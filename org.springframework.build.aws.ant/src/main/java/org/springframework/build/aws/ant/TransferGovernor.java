@@ -0,0 +1,357 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A JVM-wide budget of S3 requests and bytes in flight, shared by every <code>&lt;aws:s3&gt;</code> task, so that
+ * tasks run at once with <code>&lt;parallel&gt;</code> cannot together open more requests than S3, the network or the
+ * connection pool can take. Without limits, which is the default, requests are not held back at all.
+ * <p />
+ * A request waiting for room in the budget is queued with the task it belongs to, and waiting tasks are served in turn,
+ * one request each, so that a task with many threads cannot starve one with few. The task of a request is that of the
+ * thread making it, which is inherited by the threads a task creates; threads not created by a task, or kept alive by
+ * a task that has finished, share one task of their own.
+ * <p />
+ * A request that does not know its length up front, such as a download, adds it to the budget once it is known, without
+ * waiting. A request larger than the byte budget is taken to be as large as the budget, so that it can run on its own,
+ * and a thread that already holds a request, for example the stream of a download it has not finished reading, is not
+ * made to wait for another, so that it cannot wait on itself.
+ */
+final class TransferGovernor {
+
+    private static final TransferGovernor instance = new TransferGovernor();
+
+    private static final Permit UNGOVERNED = new Permit(null, 0, null);
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final InheritableThreadLocal<Tenant> currentTenant = new InheritableThreadLocal<Tenant>();
+
+    private final ThreadLocal<int[]> held = new ThreadLocal<int[]>() {
+
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+
+    private final Tenant defaultTenant = new Tenant(null);
+
+    private final LinkedList<Tenant> rotation = new LinkedList<Tenant>();
+
+    private volatile boolean limited;
+
+    private int maxRequests;
+
+    private long maxBytes;
+
+    private int requests;
+
+    private long bytes;
+
+    private TransferGovernor() {
+    }
+
+    /**
+     * Returns the governor of this JVM, or rather of the class loader the tasks were defined with
+     * 
+     * @return The governor
+     */
+    static TransferGovernor get() {
+        return instance;
+    }
+
+    /**
+     * Sets the maximum number of requests in flight at once
+     * 
+     * @param maxRequests The maximum number of requests, or 0 for no limit
+     */
+    void setMaxRequests(int maxRequests) {
+        this.lock.lock();
+        try {
+            this.maxRequests = Math.max(0, maxRequests);
+            limitsChanged();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the maximum number of bytes in flight at once, counting the bodies of requests and of responses
+     * 
+     * @param maxBytes The maximum number of bytes, or 0 for no limit
+     */
+    void setMaxBytes(long maxBytes) {
+        this.lock.lock();
+        try {
+            this.maxBytes = Math.max(0, maxBytes);
+            limitsChanged();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Starts a task, whose requests, and those of the threads it creates, are queued apart from those of other tasks
+     * until it is finished
+     * 
+     * @return The task
+     */
+    Tenant enter() {
+        Tenant tenant = new Tenant(this.currentTenant.get());
+        this.currentTenant.set(tenant);
+        return tenant;
+    }
+
+    /**
+     * Finishes a task started by the calling thread
+     * 
+     * @param tenant The task
+     */
+    void exit(Tenant tenant) {
+        tenant.finished = true;
+        if (tenant.previous == null) {
+            this.currentTenant.remove();
+        } else {
+            this.currentTenant.set(tenant.previous);
+        }
+    }
+
+    /**
+     * Waits for room in the budget for a request
+     * 
+     * @param length The length of the body of the request, or 0 if it has none or its length is not known
+     * @return The permit for the request, which must be released once the request has finished
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    Permit acquire(long length) throws InterruptedException {
+        if (!this.limited) {
+            return UNGOVERNED;
+        }
+        Tenant tenant = this.currentTenant.get();
+        if ((tenant == null) || tenant.finished) {
+            tenant = this.defaultTenant;
+        }
+        int[] threadHeld = this.held.get();
+        this.lock.lock();
+        try {
+            long permitBytes = clamp(Math.max(0, length));
+            if ((threadHeld[0] > 0) || (this.rotation.isEmpty() && fits(permitBytes))) {
+                this.requests++;
+                this.bytes += permitBytes;
+            } else {
+                Waiter waiter = new Waiter(permitBytes, this.lock.newCondition());
+                if (tenant.waiters.isEmpty()) {
+                    this.rotation.addLast(tenant);
+                }
+                tenant.waiters.addLast(waiter);
+                dispatch();
+                long start = System.nanoTime();
+                try {
+                    while (!waiter.granted) {
+                        waiter.condition.await();
+                    }
+                } catch (InterruptedException e) {
+                    if (!waiter.granted) {
+                        tenant.waiters.remove(waiter);
+                        if (tenant.waiters.isEmpty()) {
+                            this.rotation.remove(tenant);
+                        }
+                        dispatch();
+                        throw e;
+                    }
+                    // Granted as it was interrupted, so keep the permit and leave the interrupt to the caller
+                    Thread.currentThread().interrupt();
+                }
+                tenant.waits++;
+                tenant.waitNanos += System.nanoTime() - start;
+            }
+            threadHeld[0]++;
+            return new Permit(this, permitBytes, threadHeld);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private void limitsChanged() {
+        this.limited = (this.maxRequests > 0) || (this.maxBytes > 0);
+        dispatch();
+    }
+
+    private boolean fits(long length) {
+        return ((this.maxRequests == 0) || (this.requests < this.maxRequests))
+            && ((this.maxBytes == 0) || (this.bytes == 0) || (this.bytes + length <= this.maxBytes));
+    }
+
+    private long clamp(long length) {
+        return this.maxBytes == 0 ? length : Math.min(length, this.maxBytes);
+    }
+
+    /**
+     * Grants waiting requests while they fit in the budget, taking the first waiting request of each task in turn. The
+     * next request is not passed over for a smaller one, so that a large request is not starved.
+     */
+    private void dispatch() {
+        while (!this.rotation.isEmpty()) {
+            Tenant tenant = this.rotation.getFirst();
+            Waiter waiter = tenant.waiters.getFirst();
+            if (!fits(waiter.bytes)) {
+                return;
+            }
+            this.rotation.removeFirst();
+            tenant.waiters.removeFirst();
+            if (!tenant.waiters.isEmpty()) {
+                this.rotation.addLast(tenant);
+            }
+            this.requests++;
+            this.bytes += waiter.bytes;
+            waiter.granted = true;
+            waiter.condition.signal();
+        }
+    }
+
+    /**
+     * The room in the budget held by a request
+     */
+    static final class Permit {
+
+        private final TransferGovernor governor;
+
+        private final int[] held;
+
+        private long bytes;
+
+        private boolean released;
+
+        private Permit(TransferGovernor governor, long bytes, int[] held) {
+            this.governor = governor;
+            this.bytes = bytes;
+            this.held = held;
+        }
+
+        /**
+         * Adds bytes to the request once their number is known, such as the length of a response, without waiting
+         * 
+         * @param length The number of bytes
+         */
+        void addBytes(long length) {
+            if ((this.governor == null) || (length <= 0)) {
+                return;
+            }
+            this.governor.lock.lock();
+            try {
+                if (!this.released) {
+                    long added = this.governor.clamp(this.bytes + length) - this.bytes;
+                    if (added > 0) {
+                        this.bytes += added;
+                        this.governor.bytes += added;
+                    }
+                }
+            } finally {
+                this.governor.lock.unlock();
+            }
+        }
+
+        /**
+         * Returns the room held by the request to the budget. Releasing a permit more than once has no effect.
+         */
+        void release() {
+            if (this.governor == null) {
+                return;
+            }
+            this.governor.lock.lock();
+            try {
+                if (!this.released) {
+                    this.released = true;
+                    this.held[0]--;
+                    this.governor.requests--;
+                    this.governor.bytes -= this.bytes;
+                    this.governor.dispatch();
+                }
+            } finally {
+                this.governor.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * A task whose requests are queued together
+     */
+    static final class Tenant {
+
+        private final Tenant previous;
+
+        private final LinkedList<Waiter> waiters = new LinkedList<Waiter>();
+
+        private volatile boolean finished;
+
+        private int waits;
+
+        private long waitNanos;
+
+        private Tenant(Tenant previous) {
+            this.previous = previous;
+        }
+
+        /**
+         * Returns the number of requests of the task that waited for room in the budget
+         * 
+         * @return The number of requests that waited
+         */
+        int getWaits() {
+            instance.lock.lock();
+            try {
+                return this.waits;
+            } finally {
+                instance.lock.unlock();
+            }
+        }
+
+        /**
+         * Returns the time the requests of the task spent waiting for room in the budget
+         * 
+         * @return The time waited, in milliseconds
+         */
+        long getWaitTime() {
+            instance.lock.lock();
+            try {
+                return TimeUnit.NANOSECONDS.toMillis(this.waitNanos);
+            } finally {
+                instance.lock.unlock();
+            }
+        }
+    }
+
+    private static final class Waiter {
+
+        private final long bytes;
+
+        private final Condition condition;
+
+        private boolean granted;
+
+        private Waiter(long bytes, Condition condition) {
+            this.bytes = bytes;
+            this.condition = condition;
+        }
+    }
+
+}
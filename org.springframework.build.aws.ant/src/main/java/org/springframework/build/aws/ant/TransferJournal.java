@@ -0,0 +1,335 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.jets3t.service.model.MultipartPart;
+
+/**
+ * An append-only record of the work done by a bulk transfer, so that a transfer that fails part way can be run again
+ * without repeating what it had finished. The journal records every completed key, and every multipart upload that
+ * was started together with the parts it has finished, each with the state of its source (for example its length and
+ * modification time, or its ETag) so that work is only skipped for a source that has not changed since.
+ * <p />
+ * A journal belongs to one configuration of an operation. A journal written for a different configuration is
+ * discarded when opened. Once the transfer has succeeded, the journal is deleted. Every record is flushed as it is
+ * written, and a record cut short by a crash is ignored when the journal is next read.
+ */
+final class TransferJournal {
+
+    private static final String HEADER = "s3-journal";
+
+    private static final String COMPLETED = "done";
+
+    private static final String UPLOAD = "upload";
+
+    private static final String PART = "part";
+
+    private final File file;
+
+    private final String configuration;
+
+    private final Map<String, String> completed = new HashMap<String, String>();
+
+    private final Map<String, String[]> uploads = new HashMap<String, String[]>();
+
+    private final Map<String, Map<Integer, MultipartPart>> parts = new HashMap<String, Map<Integer, MultipartPart>>();
+
+    private Writer out;
+
+    private TransferJournal(File file, String configuration) {
+        this.file = file;
+        this.configuration = configuration;
+    }
+
+    /**
+     * Opens a journal, reading what an earlier run of the same configuration recorded in it
+     *
+     * @param file The journal file
+     * @param configuration A description of the configuration of the operation the journal belongs to
+     * @return The journal
+     * @throws IOException if the journal cannot be read or written
+     */
+    static TransferJournal open(File file, String configuration) throws IOException {
+        TransferJournal journal = new TransferJournal(file, configuration);
+        if (file.isFile()) {
+            journal.read();
+        }
+        journal.rewrite();
+        return journal;
+    }
+
+    /**
+     * Returns the number of keys the journal records as completed
+     *
+     * @return The number of completed keys
+     */
+    synchronized int getCompletedCount() {
+        return this.completed.size();
+    }
+
+    /**
+     * Returns whether a key was completed from a source in the given state
+     *
+     * @param key The key
+     * @param state The state of the source
+     * @return <code>true</code> if the key was completed from the same state
+     */
+    synchronized boolean isCompleted(String key, String state) {
+        return state.equals(this.completed.get(key));
+    }
+
+    /**
+     * Records that a key has been completed
+     *
+     * @param key The key
+     * @param state The state of the source
+     * @throws IOException if the journal cannot be written
+     */
+    synchronized void completed(String key, String state) throws IOException {
+        this.completed.put(key, state);
+        String[] upload = this.uploads.remove(key);
+        if (upload != null) {
+            this.parts.remove(upload[1]);
+        }
+        write(COMPLETED, key, state);
+    }
+
+    /**
+     * Returns the multipart upload started for a key from a source in the given state
+     *
+     * @param key The key
+     * @param state The state of the source
+     * @return The ID of the upload, or <code>null</code> if none was started from the same state
+     */
+    synchronized String getUploadId(String key, String state) {
+        String[] upload = this.uploads.get(key);
+        return (upload != null) && upload[0].equals(state) ? upload[1] : null;
+    }
+
+    /**
+     * Returns the parts of a multipart upload that have been finished
+     *
+     * @param uploadId The ID of the upload
+     * @return The finished parts, keyed by part number
+     */
+    synchronized Map<Integer, MultipartPart> getParts(String uploadId) {
+        Map<Integer, MultipartPart> uploadParts = this.parts.get(uploadId);
+        if (uploadParts == null) {
+            return Collections.emptyMap();
+        }
+        return new HashMap<Integer, MultipartPart>(uploadParts);
+    }
+
+    /**
+     * Records that a multipart upload has been started for a key
+     *
+     * @param key The key
+     * @param state The state of the source
+     * @param uploadId The ID of the upload
+     * @throws IOException if the journal cannot be written
+     */
+    synchronized void uploadStarted(String key, String state, String uploadId) throws IOException {
+        this.uploads.put(key, new String[] { state, uploadId });
+        write(UPLOAD, key, state, uploadId);
+    }
+
+    /**
+     * Records that a part of a multipart upload has been finished
+     *
+     * @param uploadId The ID of the upload
+     * @param part The finished part
+     * @throws IOException if the journal cannot be written
+     */
+    synchronized void partCompleted(String uploadId, MultipartPart part) throws IOException {
+        addPart(uploadId, part);
+        write(PART, uploadId, part.getPartNumber().toString(), part.getEtag(), part.getSize().toString());
+    }
+
+    /**
+     * Closes the journal, keeping it for the next run
+     */
+    synchronized void close() {
+        if (this.out != null) {
+            try {
+                this.out.close();
+            } catch (IOException e) {
+                // Nothing to do at this point
+            }
+            this.out = null;
+        }
+    }
+
+    /**
+     * Closes and deletes the journal, once the transfer it records has succeeded
+     */
+    synchronized void delete() {
+        close();
+        this.file.delete();
+    }
+
+    private void read() throws IOException {
+        // A last line without its newline was cut short, even if what remains of it looks like a whole record
+        boolean terminated = endsWithNewline(this.file);
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(this.file), "UTF-8"));
+        try {
+            String[] header = decode(in.readLine());
+            if ((header == null) || (header.length != 2) || !HEADER.equals(header[0]) || !this.configuration.equals(header[1])) {
+                return;
+            }
+            String next = in.readLine();
+            while (next != null) {
+                String line = next;
+                next = in.readLine();
+                String[] record = (next != null) || terminated ? decode(line) : null;
+                if (record == null) {
+                    continue;
+                }
+                if (COMPLETED.equals(record[0]) && (record.length == 3)) {
+                    this.completed.put(record[1], record[2]);
+                    String[] upload = this.uploads.remove(record[1]);
+                    if (upload != null) {
+                        this.parts.remove(upload[1]);
+                    }
+                } else if (UPLOAD.equals(record[0]) && (record.length == 4)) {
+                    this.completed.remove(record[1]);
+                    this.uploads.put(record[1], new String[] { record[2], record[3] });
+                } else if (PART.equals(record[0]) && (record.length == 5)) {
+                    try {
+                        // The time of a part is not recorded, and not needed to complete the upload
+                        addPart(record[1], new MultipartPart(Integer.valueOf(record[2]), new Date(0), record[3], Long.valueOf(record[4])));
+                    } catch (NumberFormatException e) {
+                        // A record cut short
+                    }
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the state read from the journal to a new journal, so that a record cut short at the end of the old one is
+     * not followed by new records, and the journal does not grow with every run
+     */
+    private void rewrite() throws IOException {
+        File temporary = new File(this.file.getPath() + ".tmp");
+        this.out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temporary), "UTF-8"));
+        try {
+            writeLine(HEADER, this.configuration);
+            for (Map.Entry<String, String> entry : new TreeMap<String, String>(this.completed).entrySet()) {
+                writeLine(COMPLETED, entry.getKey(), entry.getValue());
+            }
+            for (Map.Entry<String, String[]> entry : this.uploads.entrySet()) {
+                String uploadId = entry.getValue()[1];
+                writeLine(UPLOAD, entry.getKey(), entry.getValue()[0], uploadId);
+                Map<Integer, MultipartPart> uploadParts = this.parts.get(uploadId);
+                if (uploadParts != null) {
+                    for (MultipartPart part : uploadParts.values()) {
+                        writeLine(PART, uploadId, part.getPartNumber().toString(), part.getEtag(), part.getSize().toString());
+                    }
+                }
+            }
+        } finally {
+            this.out.close();
+        }
+        if (!temporary.renameTo(this.file)) {
+            this.file.delete();
+            if (!temporary.renameTo(this.file)) {
+                throw new IOException("Unable to write journal " + this.file.getAbsolutePath());
+            }
+        }
+        this.out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(this.file, true), "UTF-8"));
+    }
+
+    private static boolean endsWithNewline(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            if (in.length() == 0) {
+                return false;
+            }
+            in.seek(in.length() - 1);
+            return in.read() == '\n';
+        } finally {
+            in.close();
+        }
+    }
+
+    private void addPart(String uploadId, MultipartPart part) {
+        Map<Integer, MultipartPart> uploadParts = this.parts.get(uploadId);
+        if (uploadParts == null) {
+            uploadParts = new TreeMap<Integer, MultipartPart>();
+            this.parts.put(uploadId, uploadParts);
+        }
+        uploadParts.put(part.getPartNumber(), part);
+    }
+
+    private void write(String... fields) throws IOException {
+        if (this.out == null) {
+            throw new IOException("Journal " + this.file.getAbsolutePath() + " is closed");
+        }
+        writeLine(fields);
+        this.out.flush();
+    }
+
+    private void writeLine(String... fields) throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (String field : fields) {
+            if (line.length() > 0) {
+                line.append(' ');
+            }
+            line.append(URLEncoder.encode(field, "UTF-8"));
+        }
+        this.out.write(line.toString());
+        this.out.write('\n');
+    }
+
+    private static String[] decode(String line) throws UnsupportedEncodingException {
+        if ((line == null) || (line.length() == 0)) {
+            return null;
+        }
+        String[] fields = line.split(" ");
+        try {
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = URLDecoder.decode(fields[i], "UTF-8");
+            }
+        } catch (IllegalArgumentException e) {
+            // A record cut short in the middle of an escape
+            return null;
+        }
+        return fields;
+    }
+
+}
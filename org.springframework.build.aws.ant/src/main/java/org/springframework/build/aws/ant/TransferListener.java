@@ -0,0 +1,71 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+/**
+ * A listener for the HTTP requests made to S3, for profiling transfers with tools other than the build log. Listeners
+ * are named with the <code>transferListeners</code> attribute of the <code>&lt;aws:s3&gt;</code> task, and must have a
+ * public no-argument constructor. {@link FlightRecorderTransferListener} records the requests in Java Flight Recorder.
+ * <p />
+ * Listeners are called on the threads that make the requests, often several at once, so they must be thread safe and
+ * should return quickly. Exceptions thrown by a listener are ignored.
+ * 
+ * @see TransferRequest
+ */
+public interface TransferListener {
+
+    /**
+     * Called before a request is sent
+     * 
+     * @param request The request
+     */
+    void requestStarted(TransferRequest request);
+
+    /**
+     * Called as the body of a request is sent, or the body of a response is read
+     * 
+     * @param request The request
+     * @param bytes The number of bytes transferred since the last call
+     */
+    void bytesTransferred(TransferRequest request, long bytes);
+
+    /**
+     * Called once a request has finished, with its response read or a failure. For downloads of objects this is once
+     * the body has been read, or its stream closed.
+     * 
+     * @param request The request
+     */
+    void requestFinished(TransferRequest request);
+
+    /**
+     * Called before a request is sent again, after a failed connection or an internal error from S3
+     * 
+     * @param request The request
+     * @param attempt The number of the attempt about to be made, counting the first as 1
+     */
+    void requestRetried(TransferRequest request, int attempt);
+
+    /**
+     * Called before a request is sent again after S3 asked for requests to be slowed down, with a
+     * <code>503 Slow Down</code> response
+     * 
+     * @param request The request
+     * @param delay The time, in milliseconds, waited before the request is sent again
+     */
+    void requestThrottled(TransferRequest request, long delay);
+
+}
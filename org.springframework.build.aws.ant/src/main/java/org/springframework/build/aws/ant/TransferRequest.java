@@ -0,0 +1,152 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An HTTP request made to S3, as seen by a {@link TransferListener}. The bytes transferred, status code and failure are
+ * updated as the request progresses.
+ */
+public final class TransferRequest {
+
+    private final String method;
+
+    private final String bucket;
+
+    private final String key;
+
+    private final long startTime = System.currentTimeMillis();
+
+    private final long startNanos = System.nanoTime();
+
+    private final AtomicLong bytes = new AtomicLong();
+
+    private volatile int statusCode;
+
+    private volatile Throwable failure;
+
+    private volatile long duration = -1;
+
+    TransferRequest(String method, String bucket, String key) {
+        this.method = method;
+        this.bucket = bucket;
+        this.key = key;
+    }
+
+    /**
+     * Returns the HTTP method of the request
+     * 
+     * @return The method, for example <code>GET</code>
+     */
+    public String getMethod() {
+        return this.method;
+    }
+
+    /**
+     * Returns the bucket the request is made to
+     * 
+     * @return The name of the bucket, or <code>null</code> for a request that is not made to a bucket
+     */
+    public String getBucket() {
+        return this.bucket;
+    }
+
+    /**
+     * Returns the key the request is made to
+     * 
+     * @return The key, or <code>null</code> for a request made to a bucket as a whole, such as a listing
+     */
+    public String getKey() {
+        return this.key;
+    }
+
+    /**
+     * Returns the time the request was started
+     * 
+     * @return The time, in milliseconds since the epoch
+     */
+    public long getStartTime() {
+        return this.startTime;
+    }
+
+    /**
+     * Returns the number of bytes of the request body sent, and of the object read from the response, so far
+     * 
+     * @return The number of bytes
+     */
+    public long getBytes() {
+        return this.bytes.get();
+    }
+
+    /**
+     * Returns the HTTP status code of the last response received
+     * 
+     * @return The status code, or 0 if no response has been received
+     */
+    public int getStatusCode() {
+        return this.statusCode;
+    }
+
+    /**
+     * Returns the failure of the request
+     * 
+     * @return The failure, or <code>null</code> if the request has not failed
+     */
+    public Throwable getFailure() {
+        return this.failure;
+    }
+
+    /**
+     * Returns how long the request took, including every retry and the reading of the response body
+     * 
+     * @return The duration, in milliseconds, or -1 if the request has not finished
+     */
+    public long getDuration() {
+        return this.duration;
+    }
+
+    public String toString() {
+        return this.method + " s3://" + (this.bucket == null ? "" : this.bucket) + "/" + (this.key == null ? "" : this.key);
+    }
+
+    long transferred(long count) {
+        return this.bytes.addAndGet(count);
+    }
+
+    void setStatusCode(int statusCode) {
+        this.statusCode = statusCode;
+    }
+
+    void setFailure(Throwable failure) {
+        this.failure = failure;
+    }
+
+    /**
+     * Marks the request as finished
+     * 
+     * @return <code>true</code> if the request had not already finished
+     */
+    synchronized boolean finished() {
+        if (this.duration >= 0) {
+            return false;
+        }
+        this.duration = (System.nanoTime() - this.startNanos) / 1000000;
+        return true;
+    }
+
+}
@@ -16,6 +16,10 @@
 
 package org.springframework.build.aws.ant;
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 
@@ -26,13 +30,20 @@ import java.text.NumberFormat;
  */
 abstract class TransferUtils {
 
+    private static final int BUFFER_SIZE = 64 * 1024;
+
     private static final float KILOBYTE = 1024;
 
     private static final float MEGABYTE = 1048576;
 
     private static final float SECOND = 1000;
 
-    private static final NumberFormat formatter = new DecimalFormat("###,###.0");
+    private static final ThreadLocal<NumberFormat> formatter = new ThreadLocal<NumberFormat>() {
+
+        protected NumberFormat initialValue() {
+            return new DecimalFormat("###,###.0");
+        }
+    };
 
     private TransferUtils() {
     }
@@ -41,11 +52,11 @@ abstract class TransferUtils {
         StringBuilder sb = new StringBuilder();
         float megabytes = size / MEGABYTE;
         if (megabytes > 1) {
-            sb.append(formatter.format(megabytes));
+            sb.append(formatter.get().format(megabytes));
             sb.append(" MB");
         } else {
             float kilobytes = size / KILOBYTE;
-            sb.append(formatter.format(kilobytes));
+            sb.append(formatter.get().format(kilobytes));
             sb.append(" KB");
         }
         return sb.toString();
@@ -54,7 +65,7 @@ abstract class TransferUtils {
     public static String getFormattedTime(long time) {
         StringBuilder sb = new StringBuilder();
         float seconds = time / SECOND;
-        sb.append(formatter.format(seconds));
+        sb.append(formatter.get().format(seconds));
         sb.append(" s");
         return sb.toString();
     }
@@ -65,15 +76,76 @@ abstract class TransferUtils {
         float megabytes = size / MEGABYTE;
         float megabytesPerSecond = megabytes / seconds;
         if (megabytesPerSecond > 1) {
-            sb.append(formatter.format(megabytesPerSecond));
+            sb.append(formatter.get().format(megabytesPerSecond));
             sb.append(" MB/s");
         } else {
             float kilobytes = size / KILOBYTE;
             float kilobytesPerSecond = kilobytes / seconds;
-            sb.append(formatter.format(kilobytesPerSecond));
+            sb.append(formatter.get().format(kilobytesPerSecond));
             sb.append(" KB/s");
         }
         return sb.toString();
     }
 
+    /**
+     * Copies the contents of one stream to another. Neither stream is closed.
+     * 
+     * @param in The stream to read from
+     * @param out The stream to write to
+     * @return The number of bytes copied
+     * @throws IOException
+     */
+    public static long copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long total = 0;
+        int length;
+        while ((length = in.read(buffer)) != -1) {
+            out.write(buffer, 0, length);
+            total += length;
+        }
+        return total;
+    }
+
+    /**
+     * Copies exactly a given number of bytes from one stream to another. Neither stream is closed.
+     * 
+     * @param in The stream to read from
+     * @param out The stream to write to
+     * @param length The number of bytes to copy
+     * @throws IOException if the input stream ends early
+     */
+    public static void copy(InputStream in, OutputStream out, long length) throws IOException {
+        byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, Math.max(length, 1))];
+        long remaining = length;
+        while (remaining > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read == -1) {
+                throw new EOFException("Stream ended " + remaining + " bytes early");
+            }
+            out.write(buffer, 0, read);
+            remaining -= read;
+        }
+    }
+
+    /**
+     * Skips exactly a given number of bytes of a stream
+     * 
+     * @param in The stream to skip
+     * @param length The number of bytes to skip
+     * @throws IOException if the stream ends early
+     */
+    public static void skip(InputStream in, long length) throws IOException {
+        long remaining = length;
+        while (remaining > 0) {
+            long skipped = in.skip(remaining);
+            if (skipped <= 0) {
+                if (in.read() == -1) {
+                    throw new EOFException("Stream ended " + remaining + " bytes early");
+                }
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+    }
+
 }
@@ -17,23 +17,42 @@
 package org.springframework.build.aws.ant;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
 import org.apache.tools.ant.BuildException;
-import org.apache.tools.ant.DirectoryScanner;
 import org.apache.tools.ant.Project;
 import org.apache.tools.ant.types.FileSet;
+import org.apache.tools.ant.types.Resource;
+import org.apache.tools.ant.types.ResourceCollection;
+import org.apache.tools.ant.types.resources.FileResource;
 import org.jets3t.service.S3Service;
 import org.jets3t.service.ServiceException;
 import org.jets3t.service.acl.AccessControlList;
 import org.jets3t.service.model.S3Bucket;
 import org.jets3t.service.model.S3Object;
-import org.jets3t.service.multi.SimpleThreadedStorageService;
+import org.jets3t.service.model.StorageObject;
+import org.jets3t.service.multi.StorageServiceEventAdaptor;
+import org.jets3t.service.multi.ThreadedStorageService;
+import org.jets3t.service.multi.event.CreateObjectsEvent;
+import org.jets3t.service.multi.event.ServiceEvent;
 
 /**
  * A member of the S3 ANT task for dealing with Amazon S3 upload behavior. This operation will use the credentials setup
@@ -42,12 +61,14 @@ import org.jets3t.service.multi.SimpleThreadedStorageService;
  * @author Ben Hale
  * @author Martin Lippert
  */
-public class Upload extends AbstractS3Operation {
+public class Upload extends AbstractS3Operation implements AsyncS3Operation {
 
     private File file;
 
     private final List<FileSet> fileSets = new ArrayList<FileSet>();
 
+    private final List<ResourceCollection> resources = new ArrayList<ResourceCollection>();
+
     private String toDir;
 
     private String toFile;
@@ -56,6 +77,22 @@ public class Upload extends AbstractS3Operation {
 
     private boolean multithreaded = false;
 
+    private boolean packed = false;
+
+    private boolean skipUnchanged = false;
+
+    private long packThreshold = 64 * 1024;
+
+    private long packSize = 64 * 1024 * 1024;
+
+    private long partSize = 8 * 1024 * 1024;
+
+    private File journal;
+
+    private File deltaDir;
+
+    private TransferJournal transferJournal;
+
     private final Set<Metadata> metadatas = new HashSet<Metadata>();
 
     /**
@@ -76,6 +113,18 @@ public class Upload extends AbstractS3Operation {
         this.fileSets.add(fileSet);
     }
 
+    /**
+     * Adds an optional collection of resources to upload, such as a <code>&lt;zipfileset&gt;</code> or generated
+     * resources. Each resource is uploaded to the target 'directory' under its name, or to the target key if it is the
+     * only resource. Resources that are not files are streamed straight from their source; those larger than the part
+     * size, or of unknown size, are uploaded in parts.
+     * 
+     * @param resources The resources to upload
+     */
+    public void add(ResourceCollection resources) {
+        this.resources.add(resources);
+    }
+
     /**
      * Adds an optional piece of
      * 
@@ -121,6 +170,85 @@ public class Upload extends AbstractS3Operation {
         this.multithreaded = multithreaded;
     }
 
+    /**
+     * Optional parameter that corresponds to skipping files whose contents are already in S3, judged by comparing the
+     * length and ETag of the existing object with the file. Defaults to false.
+     * 
+     * @param skipUnchanged
+     */
+    public void setSkipUnchanged(boolean skipUnchanged) {
+        this.skipUnchanged = skipUnchanged;
+    }
+
+    /**
+     * Optional parameter that corresponds to packing small files of a fileset into a few pack objects, described by an
+     * index, instead of uploading each as its own object. Packed uploads must be downloaded with a packed download.
+     * Defaults to false.
+     * 
+     * @param packed
+     */
+    public void setPacked(boolean packed) {
+        this.packed = packed;
+    }
+
+    /**
+     * Optional parameter that corresponds to the size, in bytes, up to which files are packed. Larger files are uploaded
+     * as their own objects. Defaults to 64 KB.
+     * 
+     * @param packThreshold The largest file size to pack
+     */
+    public void setPackThreshold(long packThreshold) {
+        this.packThreshold = packThreshold;
+    }
+
+    /**
+     * Optional parameter that corresponds to the size, in bytes, at which a pack object is closed and a new one started.
+     * Defaults to 64 MB.
+     * 
+     * @param packSize The target size of a pack object
+     */
+    public void setPackSize(long packSize) {
+        this.packSize = packSize;
+    }
+
+    /**
+     * Optional parameter that corresponds to the size, in bytes, of each part when a resource is streamed to S3 in parts,
+     * or when a larger file is split into parts uploaded in parallel by an upload using virtual threads. Up to four parts
+     * of a streamed resource are held in memory at once. Must be at least 5 MB. Defaults to 8 MB.
+     * 
+     * @param partSize The size of each part
+     */
+    public void setPartSize(long partSize) {
+        this.partSize = partSize;
+    }
+
+    /**
+     * Optional parameter that corresponds to a journal file recording the files uploaded, and the finished parts of files
+     * uploaded in parts, so that a failed upload run again with the same configuration skips the files it had finished
+     * and continues the files it had started. A file is only skipped if its length and modification time are unchanged.
+     * With a journal, a failed upload of a file in parts is left open for the next run rather than aborted. The journal
+     * is deleted once the upload succeeds. Cannot be used with packed. Defaults to no journal.
+     * 
+     * @param journal The journal file
+     */
+    public void setJournal(File journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Optional parameter that corresponds to a directory of block signatures, enabling delta uploads of files larger than
+     * the part size. Such a file is uploaded in parts of exactly the part size, and the MD5 of each part is kept in the
+     * directory. When the file is uploaded again, a part whose MD5 is unchanged is copied by S3 from the existing object
+     * instead of being sent, provided the object has not been changed by anything else since. Keeping the part size the
+     * same between runs is required for parts to be reused. Cannot be used with packed or multithreaded. Defaults to no
+     * delta uploads.
+     * 
+     * @param deltaDir The directory of block signatures
+     */
+    public void setDeltaDir(File deltaDir) {
+        this.deltaDir = deltaDir;
+    }
+
     /**
      * Verify that required parameters have been set
      */
@@ -128,11 +256,11 @@ public class Upload extends AbstractS3Operation {
         if (this.bucketName == null) {
             throw new BuildException("bucketName must be set");
         }
-        if ((this.file != null) && (this.fileSets.size() > 0)) {
-            throw new BuildException("Only one of file and <fileset> may be set");
+        if ((this.file != null) && ((this.fileSets.size() > 0) || (this.resources.size() > 0))) {
+            throw new BuildException("Only one of file and nested resources may be set");
         }
-        if ((this.file == null) && (this.fileSets.size() == 0)) {
-            throw new BuildException("At least one of file and <fileset> must be set");
+        if ((this.file == null) && (this.fileSets.size() == 0) && (this.resources.size() == 0)) {
+            throw new BuildException("At least one of file, <fileset> and nested resources must be set");
         }
         if ((this.toFile != null) && (this.toDir != null)) {
             throw new BuildException("Only one of toFile and toDir may be set");
@@ -143,28 +271,109 @@ public class Upload extends AbstractS3Operation {
         if ((this.fileSets.size() > 0) && (this.toFile != null)) {
             throw new BuildException("toFile cannot be used when specifying a <fileset> to upload");
         }
+        if ((this.resources.size() > 0) && (this.toFile != null) && ((this.fileSets.size() > 0) || (getResourceCount() != 1))) {
+            throw new BuildException("toFile can only be used when specifying a single resource to upload");
+        }
+        if (this.packed && ((this.fileSets.size() == 0) || (this.resources.size() > 0))) {
+            throw new BuildException("packed can only be used when specifying only <fileset>s to upload");
+        }
+        if (this.partSize < MultipartUploader.MIN_PART_SIZE) {
+            throw new BuildException("partSize must be at least " + MultipartUploader.MIN_PART_SIZE + " bytes");
+        }
+        if (this.multithreaded && isVirtualThreads()) {
+            throw new BuildException("Only one of multithreaded and virtualThreads may be set");
+        }
+        if (this.packed && this.skipUnchanged) {
+            throw new BuildException("Only one of packed and skipUnchanged may be set");
+        }
+        if (this.packed && (this.journal != null)) {
+            throw new BuildException("Only one of packed and journal may be set");
+        }
+        if (this.packed && (this.deltaDir != null)) {
+            throw new BuildException("Only one of packed and deltaDir may be set");
+        }
+        if (this.multithreaded && (this.deltaDir != null)) {
+            throw new BuildException("Only one of multithreaded and deltaDir may be set");
+        }
+        initOperation();
+    }
+
+    /**
+     * Only delta uploads are made with the transport
+     */
+    protected boolean usesTransport() {
+        return this.deltaDir != null;
     }
 
     public void execute(S3Service service) throws ServiceException, IOException {
-        if ((this.file != null) && (this.toFile != null)) {
-            processFileToFile(service);
-        } else if ((this.file != null) && (this.toDir != null)) {
-            processFileToDir(service);
-        } else if ((this.fileSets.size() > 0) && (this.toDir != null)) {
-            processSetToDir(service);
+        this.transferJournal = openJournal();
+        try {
+            if (isVirtualThreads()) {
+                executeOnVirtualThreads(this, service);
+            } else {
+                if ((this.file != null) && (this.toFile != null)) {
+                    processFileToFile(service);
+                } else if ((this.file != null) && (this.toDir != null)) {
+                    processFileToDir(service);
+                } else if ((this.fileSets.size() > 0) && (this.toDir != null)) {
+                    processSetToDir(service);
+                }
+                if (this.resources.size() > 0) {
+                    processResources(service);
+                }
+            }
+            if (this.transferJournal != null) {
+                this.transferJournal.delete();
+            }
+        } finally {
+            if (this.transferJournal != null) {
+                this.transferJournal.close();
+                this.transferJournal = null;
+            }
+        }
+    }
+
+    private TransferJournal openJournal() throws IOException {
+        if (this.journal == null) {
+            return null;
+        }
+        StringBuilder configuration = new StringBuilder("upload s3://").append(this.bucketName).append('/');
+        configuration.append(this.toFile != null ? this.toFile : this.toDir + "/");
+        if (this.file != null) {
+            configuration.append(' ').append(this.file.getAbsolutePath());
+        }
+        for (FileSet fileSet : this.fileSets) {
+            configuration.append(' ').append(fileSet.getDir(this.project).getAbsolutePath()).append(fileSet.mergePatterns(this.project));
         }
+        configuration.append(" partSize=").append(this.partSize);
+        TransferJournal transferJournal = TransferJournal.open(this.journal, configuration.toString());
+        if (transferJournal.getCompletedCount() > 0) {
+            this.project.log("Resuming upload recorded in " + this.journal.getAbsolutePath() + ", " + transferJournal.getCompletedCount()
+                + " objects already uploaded", Project.MSG_INFO);
+        }
+        return transferJournal;
     }
 
     private void processFileToFile(S3Service service) throws ServiceException, IOException {
-        putFile(service, getOperationBucket(), this.file, this.toFile);
+        putFileIfChanged(service, getOperationBucket(), this.file, this.toFile);
     }
 
     private void processFileToDir(S3Service service) throws ServiceException, IOException {
-        putFile(service, getOperationBucket(), this.file, this.toDir + "/" + this.file.getName());
+        putFileIfChanged(service, getOperationBucket(), this.file, this.toDir + "/" + this.file.getName());
+    }
+
+    private void putFileIfChanged(S3Service service, S3Bucket bucket, File source, String key) throws ServiceException, IOException {
+        if (this.skipUnchanged && isUnchanged(source, getObjectDetails(service, bucket, key))) {
+            logSkipped(source, key, Project.MSG_INFO);
+            return;
+        }
+        putFile(service, bucket, source, key);
     }
 
     private void processSetToDir(S3Service service) throws ServiceException, IOException {
-        if (this.multithreaded) {
+        if (this.packed) {
+            processSetToDirPacked(service, new S3OperationResult());
+        } else if (this.multithreaded) {
             processSetToDirMultiThreaded(service);
         } else {
             processSetToDirSingleThreaded(service);
@@ -172,76 +381,555 @@ public class Upload extends AbstractS3Operation {
     }
 
     private void processSetToDirSingleThreaded(S3Service service) throws ServiceException, IOException {
-        for (FileSet fileSet : this.fileSets) {
-            DirectoryScanner ds = fileSet.getDirectoryScanner(this.project);
-            String[] includedFiles = ds.getIncludedFiles();
-            for (String file : includedFiles) {
-                putFile(service, getOperationBucket(), new File(ds.getBasedir(), file), this.toDir + "/" + file);
+        Map<String, StorageObject> existing = getExistingObjects(service);
+        int skipped = 0;
+        ProgressReporter progress = startProgressReporter("Uploaded");
+        try {
+            for (FileSet fileSet : this.fileSets) {
+                ParallelDirectoryScanner scanner = ParallelDirectoryScanner.start(fileSet, this.project);
+                try {
+                    String file;
+                    while ((file = scanner.next()) != null) {
+                        progress.addExpected(1, 0);
+                        File sourceFile = new File(scanner.getBasedir(), file);
+                        String key = this.toDir + "/" + file;
+                        if (isUnchanged(sourceFile, existing.get(key))) {
+                            logSkipped(sourceFile, key, Project.MSG_VERBOSE);
+                            skipped++;
+                        } else {
+                            putFile(service, getOperationBucket(), sourceFile, key, Project.MSG_VERBOSE);
+                        }
+                        progress.completed(sourceFile.length());
+                    }
+                } finally {
+                    scanner.stop();
+                }
             }
+        } finally {
+            progress.stop();
         }
+        logSkipped(skipped);
     }
 
     private void processSetToDirMultiThreaded(S3Service service) throws ServiceException, IOException {
         List<S3Object> s3objects = new ArrayList<S3Object>();
         long totalLength = 0;
+        int skipped = 0;
 
         this.project.log("Collecting objects for multithreaded upload to s3://" + getOperationBucket().getName(), Project.MSG_INFO);
+        Map<String, StorageObject> existing = getExistingObjects(service);
+        Map<String, String> states = new HashMap<String, String>();
 
         for (FileSet fileSet : this.fileSets) {
-            DirectoryScanner ds = fileSet.getDirectoryScanner(this.project);
-            String[] includedFiles = ds.getIncludedFiles();
-            for (String file : includedFiles) {
-                File sourceFile = new File(ds.getBasedir(), file);
+            File baseDir = fileSet.getDir(this.project);
+            for (String file : ParallelDirectoryScanner.getIncludedFiles(fileSet, this.project)) {
+                File sourceFile = new File(baseDir, file);
+                if (isUnchanged(sourceFile, existing.get(this.toDir + "/" + file))) {
+                    logSkipped(sourceFile, this.toDir + "/" + file, Project.MSG_VERBOSE);
+                    skipped++;
+                    continue;
+                }
+                if (skipJournaled(sourceFile.getAbsolutePath(), this.toDir + "/" + file, getState(sourceFile), Project.MSG_VERBOSE)) {
+                    continue;
+                }
+                states.put(this.toDir + "/" + file, getState(sourceFile));
                 S3Object s3Object = createS3Object(service, getOperationBucket(), sourceFile, this.toDir + "/" + file);
                 s3objects.add(s3Object);
                 totalLength += sourceFile.length();
 
-                logStart(sourceFile, s3Object);
+                logStart(sourceFile, s3Object, Project.MSG_VERBOSE);
+            }
+        }
+        logSkipped(skipped);
+        putFiles(service, getOperationBucket(), s3objects.toArray(new S3Object[s3objects.size()]), totalLength, states);
+    }
+
+    private void processResources(S3Service service) throws ServiceException, IOException {
+        S3Bucket bucket = getOperationBucket();
+        MultipartUploader uploader = new MultipartUploader(service, this.partSize);
+        try {
+            for (ResourceCollection collection : this.resources) {
+                for (Iterator<?> i = collection.iterator(); i.hasNext();) {
+                    Resource resource = (Resource) i.next();
+                    if (resource.isExists() && !resource.isDirectory()) {
+                        putResource(service, bucket, uploader, resource, getResourceKey(resource), Project.MSG_INFO);
+                    }
+                }
+            }
+        } finally {
+            uploader.shutdown();
+        }
+    }
+
+    private int getResourceCount() {
+        int count = 0;
+        for (ResourceCollection collection : this.resources) {
+            count += collection.size();
+        }
+        return count;
+    }
+
+    private String getResourceKey(Resource resource) {
+        if (this.toFile != null) {
+            return this.toFile;
+        }
+        String name = resource.getName();
+        if ((resource instanceof FileResource) && (((FileResource) resource).getBaseDir() == null)) {
+            // A file outside any base directory, as in a <filelist>, is named by its absolute path
+            name = ((FileResource) resource).getFile().getName();
+        }
+        return this.toDir + "/" + name.replace('\\', '/');
+    }
+
+    /**
+     * Uploads a resource, streaming it unless it is a file
+     * 
+     * @return The number of bytes uploaded
+     */
+    private long putResource(S3Service service, S3Bucket bucket, MultipartUploader uploader, Resource resource, String key, int logLevel)
+        throws ServiceException, IOException {
+        if (resource instanceof FileResource) {
+            File source = ((FileResource) resource).getFile();
+            if (this.skipUnchanged && isUnchanged(source, getObjectDetails(service, bucket, key))) {
+                logSkipped(source, key, logLevel);
+                return 0;
+            }
+            putFile(service, bucket, source, key, logLevel);
+            return source.length();
+        }
+
+        String state = getState(resource);
+        if (skipJournaled(resource.toString(), key, state, logLevel)) {
+            return 0;
+        }
+        S3Object destination = createS3Object(service, bucket, key);
+        long size = resource.getSize();
+        String formattedSize = size == Resource.UNKNOWN_SIZE ? "unknown size" : TransferUtils.getFormattedSize(size);
+        this.project.log("Uploading " + resource + " (" + formattedSize + ") to s3://" + bucket.getName() + "/" + key, logLevel);
+        long startTime = System.currentTimeMillis();
+        long length;
+        InputStream in = resource.getInputStream();
+        try {
+            if ((size != Resource.UNKNOWN_SIZE) && (size <= this.partSize)) {
+                destination.setDataInputStream(in);
+                destination.setContentLength(size);
+                service.putObject(bucket, destination);
+                length = size;
+            } else {
+                length = uploader.upload(bucket, destination, in);
+            }
+        } finally {
+            in.close();
+        }
+        long endTime = System.currentTimeMillis();
+        logEnd(length, startTime, endTime, logLevel);
+        journalCompleted(key, state);
+        return length;
+    }
+
+    /**
+     * Lists the objects already below the target 'directory', keyed by object key, when unchanged files are to be
+     * skipped
+     */
+    private Map<String, StorageObject> getExistingObjects(S3Service service) throws ServiceException {
+        if (!this.skipUnchanged) {
+            return Collections.emptyMap();
+        }
+        Map<String, StorageObject> existing = new HashMap<String, StorageObject>();
+        for (S3Object object : service.listObjects(this.bucketName, this.toDir + "/", null)) {
+            existing.put(object.getKey(), object);
+        }
+        return existing;
+    }
+
+    /**
+     * Runs an upload without blocking. Each file is uploaded by its own task on the executor, so the multithreaded
+     * setting does not apply. The files of a fileset are submitted as the directory tree is walked, resources are
+     * submitted largest first, and files larger than the part size are split into parts uploaded by separate tasks. Delta
+     * uploads send their own parts instead, so when uploading deltas the files of a fileset are also submitted largest
+     * first, once the tree has been walked. A packed upload runs as a single task, as its index must be uploaded after
+     * every pack.
+     */
+    public S3OperationFuture executeAsync(final S3Service service, ExecutorService executor) {
+        final AsyncExecution execution = new AsyncExecution(executor);
+        final S3Bucket bucket = getOperationBucket();
+        boolean reportProgress = ((this.fileSets.size() > 0) || (this.resources.size() > 0)) && !this.packed;
+        final ProgressReporter progress = reportProgress ? startProgressReporter("Uploaded") : null;
+        final MultipartUploader uploader = this.resources.size() > 0 ? new MultipartUploader(service, this.partSize) : null;
+        execution.onComplete(new Runnable() {
+
+            public void run() {
+                if (progress != null) {
+                    progress.stop();
+                }
+                if (uploader != null) {
+                    uploader.shutdown();
+                }
+            }
+        });
+        execution.start(new AsyncExecution.Task() {
+
+            public void run() throws Exception {
+                if (Upload.this.file != null) {
+                    String key = Upload.this.toFile != null ? Upload.this.toFile : Upload.this.toDir + "/" + Upload.this.file.getName();
+                    if (Upload.this.skipUnchanged && isUnchanged(Upload.this.file, getObjectDetails(service, bucket, key))) {
+                        logSkipped(Upload.this.file, key, Project.MSG_INFO);
+                    } else {
+                        submitPutFile(execution, service, bucket, Upload.this.file, key, Project.MSG_INFO, null);
+                    }
+                } else if (Upload.this.packed) {
+                    processSetToDirPacked(service, execution.getResult());
+                } else {
+                    SizeOrderedPlan plan = new SizeOrderedPlan();
+                    Map<String, StorageObject> existing = getExistingObjects(service);
+                    int skipped = 0;
+                    for (FileSet fileSet : Upload.this.fileSets) {
+                        ParallelDirectoryScanner scanner = ParallelDirectoryScanner.start(fileSet, Upload.this.project);
+                        try {
+                            String file;
+                            while ((file = scanner.next()) != null) {
+                                progress.addExpected(1, 0);
+                                File sourceFile = new File(scanner.getBasedir(), file);
+                                String key = Upload.this.toDir + "/" + file;
+                                if (isUnchanged(sourceFile, existing.get(key))) {
+                                    logSkipped(sourceFile, key, Project.MSG_VERBOSE);
+                                    progress.completed(sourceFile.length());
+                                    skipped++;
+                                } else if (Upload.this.deltaDir != null) {
+                                    // Not split into parts, so a large file found late would finish the run on its own
+                                    final File plannedFile = sourceFile;
+                                    final String plannedKey = key;
+                                    plan.add(sourceFile.length(), new AsyncExecution.Task() {
+
+                                        public void run() throws Exception {
+                                            submitPutFile(execution, service, bucket, plannedFile, plannedKey, Project.MSG_VERBOSE,
+                                                progress);
+                                        }
+                                    });
+                                } else {
+                                    submitPutFile(execution, service, bucket, sourceFile, key, Project.MSG_VERBOSE, progress);
+                                }
+                            }
+                        } finally {
+                            scanner.stop();
+                        }
+                    }
+                    logSkipped(skipped);
+                    for (ResourceCollection collection : Upload.this.resources) {
+                        for (Iterator<?> i = collection.iterator(); i.hasNext();) {
+                            final Resource resource = (Resource) i.next();
+                            if (resource.isExists() && !resource.isDirectory()) {
+                                long size = resource.getSize();
+                                progress.addExpected(1, Math.max(size, 0));
+                                // A resource of unknown size is most likely a large generated one
+                                plan.add(size == Resource.UNKNOWN_SIZE ? Long.MAX_VALUE : size, new AsyncExecution.Task() {
+
+                                    public void run() throws Exception {
+                                        submitPutResource(execution, service, bucket, uploader, resource, progress);
+                                    }
+                                });
+                            }
+                        }
+                    }
+                    plan.submit();
+                }
+            }
+        });
+        return execution;
+    }
+
+    private void submitPutResource(final AsyncExecution execution, final S3Service service, final S3Bucket bucket,
+        final MultipartUploader uploader, final Resource resource, final ProgressReporter progress) {
+        final String key = getResourceKey(resource);
+        execution.submit(key, new AsyncExecution.Task() {
+
+            public void run() throws Exception {
+                long length = putResource(service, bucket, uploader, resource, key, Project.MSG_VERBOSE);
+                execution.getResult().completed(key, length);
+                progress.completed(length);
             }
+        });
+    }
+
+    private void submitPutFile(final AsyncExecution execution, final S3Service service, final S3Bucket bucket, final File source,
+        final String key, final int logLevel, final ProgressReporter progress) throws ServiceException, IOException {
+        String state = getState(source);
+        if (skipJournaled(source.getAbsolutePath(), key, state, logLevel)) {
+            if (progress != null) {
+                progress.completed(source.length());
+            }
+            return;
+        }
+        if ((source.length() > this.partSize) && (this.deltaDir == null)) {
+            S3Object destination = createS3Object(service, bucket, key);
+            this.project.log("Uploading " + source.getAbsolutePath() + " (" + TransferUtils.getFormattedSize(source.length()) + ") to s3://"
+                + bucket.getName() + "/" + key + " in " + MultipartETag.getPartCount(source.length(), this.partSize) + " parts", logLevel);
+            new MultipartFileUpload(service, bucket, destination, source, this.partSize, this.transferJournal, state).submit(execution,
+                progress);
+            return;
         }
-        putFiles(service, getOperationBucket(), s3objects.toArray(new S3Object[s3objects.size()]), totalLength);
+        execution.submit(key, new AsyncExecution.Task() {
+
+            public void run() throws Exception {
+                putFile(service, bucket, source, key, logLevel);
+                execution.getResult().completed(key, source.length());
+                if (progress != null) {
+                    progress.completed(source.length());
+                }
+            }
+        });
+    }
+
+    private void processSetToDirPacked(S3Service service, S3OperationResult result) throws ServiceException, IOException {
+        S3Bucket bucket = getOperationBucket();
+        PackIndex index = new PackIndex();
+        List<S3Object> s3objects = new ArrayList<S3Object>();
+        List<File> packFiles = new ArrayList<File>();
+        int packCount = 0;
+        long packLength = 0;
+        long totalLength = 0;
+
+        this.project.log("Collecting objects for packed upload to s3://" + bucket.getName(), Project.MSG_INFO);
+        buildDestinationPath(service, bucket, this.toDir + "/" + PackIndex.DIRECTORY.substring(0, PackIndex.DIRECTORY.length() - 1));
+
+        for (FileSet fileSet : this.fileSets) {
+            File baseDir = fileSet.getDir(this.project);
+            for (String file : ParallelDirectoryScanner.getIncludedFiles(fileSet, this.project)) {
+                File sourceFile = new File(baseDir, file);
+                long length = sourceFile.length();
+                totalLength += length;
+                if (length > this.packThreshold) {
+                    S3Object s3Object = createS3Object(service, bucket, sourceFile, this.toDir + "/" + file);
+                    s3objects.add(s3Object);
+                    logStart(sourceFile, s3Object, Project.MSG_VERBOSE);
+                    continue;
+                }
+
+                String pack = PackIndex.getPackName(packCount);
+                index.add(file, pack, packLength, length);
+                packFiles.add(sourceFile);
+                packLength += length;
+                if (packLength >= this.packSize) {
+                    s3objects.add(createPackObject(bucket, pack, packFiles, packLength));
+                    packFiles = new ArrayList<File>();
+                    packCount++;
+                    packLength = 0;
+                }
+            }
+        }
+        if (packFiles.size() > 0) {
+            s3objects.add(createPackObject(bucket, PackIndex.getPackName(packCount), packFiles, packLength));
+        }
+
+        if (this.multithreaded) {
+            putFiles(service, bucket, s3objects.toArray(new S3Object[s3objects.size()]), totalLength, null);
+        } else {
+            ProgressReporter progress = startProgressReporter("Uploaded");
+            progress.addExpected(s3objects.size(), totalLength);
+            try {
+                for (S3Object s3Object : s3objects) {
+                    service.putObject(bucket, s3Object);
+                    this.project.log("Uploaded s3://" + bucket.getName() + "/" + s3Object.getKey(), Project.MSG_VERBOSE);
+                    progress.completed(s3Object.getContentLength());
+                }
+            } finally {
+                progress.stop();
+            }
+        }
+        for (S3Object s3Object : s3objects) {
+            result.completed(s3Object.getKey(), s3Object.getContentLength());
+        }
+
+        S3Object indexObject;
+        try {
+            indexObject = new S3Object(this.toDir + "/" + PackIndex.INDEX, index.toBytes());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        if (this.publicRead) {
+            indexObject.setAcl(AccessControlList.REST_CANNED_PUBLIC_READ);
+        }
+        service.putObject(bucket, indexObject);
+        result.completed(indexObject.getKey(), indexObject.getContentLength());
+        this.project.log("Packed " + index.getEntries().size() + " files into s3://" + bucket.getName() + "/" + this.toDir + "/"
+            + PackIndex.DIRECTORY, Project.MSG_INFO);
+    }
+
+    private S3Object createPackObject(S3Bucket bucket, String pack, List<File> files, long length) {
+        S3Object destination = new S3Object(bucket, this.toDir + "/" + pack);
+        if (this.publicRead) {
+            destination.setAcl(AccessControlList.REST_CANNED_PUBLIC_READ);
+        }
+        destination.setContentType("application/octet-stream");
+        destination.setDataInputStream(new SequenceInputStream(new FileInputStreamEnumeration(files)));
+        destination.setContentLength(length);
+        this.project.log("Packing " + files.size() + " files (" + TransferUtils.getFormattedSize(length) + ") into s3://" + bucket.getName()
+            + "/" + destination.getKey(), Project.MSG_VERBOSE);
+        return destination;
     }
 
     private void putFile(S3Service service, S3Bucket bucket, File source, String key) throws ServiceException, IOException {
+        putFile(service, bucket, source, key, Project.MSG_INFO);
+    }
+
+    private void putFile(S3Service service, S3Bucket bucket, File source, String key, int logLevel) throws ServiceException, IOException {
+        String state = getState(source);
+        if (skipJournaled(source.getAbsolutePath(), key, state, logLevel)) {
+            return;
+        }
+        if ((this.deltaDir != null) && (source.length() > this.partSize)) {
+            putFileDelta(service, bucket, source, key, logLevel);
+            journalCompleted(key, state);
+            return;
+        }
         S3Object destination = createS3Object(service, bucket, source, key);
 
-        logStart(source, destination);
+        logStart(source, destination, logLevel);
         long startTime = System.currentTimeMillis();
         service.putObject(bucket, destination);
         long endTime = System.currentTimeMillis();
-        logEnd(source.length(), startTime, endTime);
+        logEnd(source.length(), startTime, endTime, logLevel);
+        journalCompleted(key, state);
     }
 
-    private void putFiles(S3Service service, S3Bucket bucket, S3Object[] s3objects, long totalLength) throws ServiceException {
-        SimpleThreadedStorageService multiService = new SimpleThreadedStorageService(service);
-
-        this.project.log("Starting multithreaded upload of " + s3objects.length + " objects to s3://" + bucket.getName(), Project.MSG_INFO);
+    private void putFileDelta(S3Service service, S3Bucket bucket, File source, String key, int logLevel) throws ServiceException,
+        IOException {
+        int index = key.lastIndexOf('/');
+        if (index != -1) {
+            buildDestinationPath(service, bucket, key.substring(0, index));
+        }
+        this.project.log("Uploading changes to " + source.getAbsolutePath() + " (" + TransferUtils.getFormattedSize(source.length())
+            + ") to s3://" + bucket.getName() + "/" + key, logLevel);
         long startTime = System.currentTimeMillis();
-        multiService.putObjects(bucket.getName(), s3objects);
+        DeltaFileUpload upload = new DeltaFileUpload(getTransport(service), bucket.getName(), key, createHeaders(), source, this.partSize,
+            this.deltaDir);
+        upload.upload();
         long endTime = System.currentTimeMillis();
-        logEnd(totalLength, startTime, endTime);
+        this.project.log("Uploaded " + upload.getUploadedBlocks() + " changed blocks, copied " + upload.getCopiedBlocks()
+            + " unchanged blocks" + (upload.isRestarted() ? ", after restarting as the object was replaced during the upload" : ""),
+            logLevel);
+        logEnd(source.length(), startTime, endTime, logLevel);
+    }
+
+    /**
+     * Returns the ACL and metadata of the objects uploaded as request headers, for uploads made through a transport
+     */
+    private Map<String, String> createHeaders() {
+        Map<String, String> headers = new HashMap<String, String>();
+        if (this.publicRead) {
+            headers.put("x-amz-acl", "public-read");
+        }
+        for (Metadata metadata : this.metadatas) {
+            String name = metadata.getName().toLowerCase(Locale.ENGLISH);
+            if (!JetS3tTransport.HTTP_HEADERS.contains(name) && !name.startsWith("x-amz-")) {
+                name = "x-amz-meta-" + name;
+            }
+            headers.put(name, metadata.getValue());
+        }
+        return headers;
+    }
+
+    /**
+     * Returns whether the journal records a key as uploaded from a source in the given state, logging the skip if so
+     */
+    private boolean skipJournaled(String source, String key, String state, int logLevel) {
+        if ((this.transferJournal == null) || !this.transferJournal.isCompleted(key, state)) {
+            return false;
+        }
+        this.project.log("s3://" + this.bucketName + "/" + key + " was uploaded by an earlier run, skipping upload of " + source, logLevel);
+        return true;
+    }
+
+    private void journalCompleted(String key, String state) throws IOException {
+        if (this.transferJournal != null) {
+            this.transferJournal.completed(key, state);
+        }
+    }
+
+    private static String getState(File source) {
+        return source.length() + ":" + source.lastModified();
+    }
+
+    private static String getState(Resource source) {
+        return source.getSize() + ":" + source.getLastModified();
+    }
+
+    /**
+     * Uploads objects with jets3t's multithreaded service. Each object is recorded in the journal as soon as it has been
+     * uploaded, so that a run stopped part way through can be resumed.
+     * 
+     * @param states The states of the source files, keyed by object key, to record in the journal, or <code>null</code>
+     */
+    private void putFiles(S3Service service, S3Bucket bucket, S3Object[] s3objects, long totalLength, final Map<String, String> states)
+        throws ServiceException, IOException {
+        // The threads take objects in order, so start the largest first rather than have one finish the run on its own
+        Arrays.sort(s3objects, new Comparator<S3Object>() {
+
+            public int compare(S3Object a, S3Object b) {
+                return a.getContentLength() < b.getContentLength() ? 1 : (a.getContentLength() == b.getContentLength() ? 0 : -1);
+            }
+        });
+        final ProgressReporter progress = startProgressReporter("Uploaded");
+        progress.addExpected(s3objects.length, totalLength);
+        final List<IOException> journalFailures = Collections.synchronizedList(new ArrayList<IOException>());
+        StorageServiceEventAdaptor adaptor = new StorageServiceEventAdaptor() {
+
+            public void event(CreateObjectsEvent event) {
+                super.event(event);
+                if (event.getEventCode() == ServiceEvent.EVENT_IN_PROGRESS) {
+                    for (StorageObject object : event.getCreatedObjects()) {
+                        progress.completed(object.getContentLength());
+                        if (states != null) {
+                            try {
+                                journalCompleted(object.getKey(), states.get(object.getKey()));
+                            } catch (IOException e) {
+                                journalFailures.add(e);
+                            }
+                        }
+                    }
+                }
+            }
+        };
+
+        this.project.log("Starting multithreaded upload of " + s3objects.length + " objects to s3://" + bucket.getName(), Project.MSG_INFO);
+        try {
+            new ThreadedStorageService(service, adaptor).putObjects(bucket.getName(), s3objects);
+            adaptor.throwErrorIfPresent();
+        } catch (ServiceException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ServiceException(e);
+        } finally {
+            progress.stop();
+        }
+        if (!journalFailures.isEmpty()) {
+            throw journalFailures.get(0);
+        }
     }
 
     private S3Object createS3Object(S3Service service, S3Bucket bucket, File source, String key) throws ServiceException, IOException {
-        buildDestinationPath(service, bucket, getDestinationPath(key));
+        S3Object destination = createS3Object(service, bucket, key);
+        destination.setDataInputFile(source);
+        destination.setContentLength(source.length());
+        return destination;
+    }
+
+    private S3Object createS3Object(S3Service service, S3Bucket bucket, String key) throws ServiceException, IOException {
+        int index = key.lastIndexOf('/');
+        if (index != -1) {
+            buildDestinationPath(service, bucket, key.substring(0, index));
+        }
 
         S3Object destination = new S3Object(bucket, key);
         if (this.publicRead) {
             destination.setAcl(AccessControlList.REST_CANNED_PUBLIC_READ);
         }
-        destination.setDataInputFile(source);
-        destination.setContentLength(source.length());
-
         for (Metadata metadata : this.metadatas) {
             destination.addMetadata(metadata.getName(), metadata.getValue());
         }
         return destination;
     }
 
-    private String getDestinationPath(String destination) {
-        return destination.substring(0, destination.lastIndexOf('/'));
-    }
-
     private void buildDestinationPath(S3Service service, S3Bucket bucket, String destination) throws ServiceException, IOException {
         S3Object object;
         try {
@@ -260,15 +948,51 @@ public class Upload extends AbstractS3Operation {
         }
     }
 
-    private void logStart(File source, S3Object destination) throws IOException {
-        this.project.log("Uploading " + source.getCanonicalPath() + " (" + TransferUtils.getFormattedSize(source.length()) + ") to s3://"
-            + destination.getBucketName() + "/" + destination.getKey(), Project.MSG_INFO);
+    private void logSkipped(File source, String key, int logLevel) {
+        this.project.log("s3://" + this.bucketName + "/" + key + " is unchanged, skipping upload of " + source.getAbsolutePath(), logLevel);
+    }
+
+    private void logSkipped(int skipped) {
+        if (skipped > 0) {
+            this.project.log("Skipped " + skipped + " unchanged files", Project.MSG_INFO);
+        }
+    }
+
+    private void logStart(File source, S3Object destination, int logLevel) {
+        this.project.log("Uploading " + source.getAbsolutePath() + " (" + TransferUtils.getFormattedSize(source.length()) + ") to s3://"
+            + destination.getBucketName() + "/" + destination.getKey(), logLevel);
     }
 
-    private void logEnd(long sourceLength, long startTime, long endTime) {
+    private void logEnd(long sourceLength, long startTime, long endTime, int logLevel) {
         long transferTime = endTime - startTime;
         this.project.log(
             "Transfer Time: " + TransferUtils.getFormattedTime(transferTime) + " - Transfer Rate: "
-                + TransferUtils.getFormattedSpeed(sourceLength, transferTime), Project.MSG_INFO);
+                + TransferUtils.getFormattedSpeed(sourceLength, transferTime), logLevel);
+    }
+
+    /**
+     * Opens each file of a pack only when the previous one has been read, so that a pack never holds more than one file
+     * handle.
+     */
+    private static final class FileInputStreamEnumeration implements Enumeration<InputStream> {
+
+        private final Iterator<File> files;
+
+        private FileInputStreamEnumeration(List<File> files) {
+            this.files = files.iterator();
+        }
+
+        public boolean hasMoreElements() {
+            return this.files.hasNext();
+        }
+
+        public InputStream nextElement() {
+            File file = this.files.next();
+            try {
+                return new FileInputStream(file);
+            } catch (FileNotFoundException e) {
+                throw new BuildException("Unable to read " + file + " for packing", e);
+            }
+        }
     }
 }
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.jets3t.service.ServiceException;
+import org.jets3t.service.model.S3Object;
+import org.jets3t.service.utils.ServiceUtils;
+
+/**
+ * An input stream over the data of a downloaded object that computes the MD5 digest of the data as it is read and,
+ * when the end of the stream is reached, compares it with the MD5 hash known for the object. The expected hash is
+ * taken from the <code>Content-MD5</code> header, from the ETag when the object was not uploaded in parts, or from the
+ * <code>md5-hash</code> metadata, in that order. The ETag of an object encrypted with SSE-KMS or with a key provided by
+ * the customer (SSE-C) is not its MD5 hash, so such objects are only checked against the header or the metadata.
+ * Objects without any of these are passed through unchecked.
+ * <p />
+ * Skipped bytes are read and digested, so the stream must be consumed to its end for the check to take place.
+ */
+final class VerifyingInputStream extends FilterInputStream {
+
+    private static final String SERVER_SIDE_ENCRYPTION = "x-amz-server-side-encryption";
+
+    private static final String CUSTOMER_ALGORITHM = "x-amz-server-side-encryption-customer-algorithm";
+
+    private final String description;
+
+    private final byte[] expected;
+
+    private final MessageDigest digest;
+
+    private boolean verified;
+
+    private VerifyingInputStream(InputStream in, String description, byte[] expected) {
+        super(in);
+        this.description = description;
+        this.expected = expected;
+        try {
+            this.digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns a stream over the data of an object that is verified against the object's MD5 hash, or the plain data
+     * stream when no hash is known
+     *
+     * @param object The object, as returned by a full (not ranged) GET
+     * @return The data stream
+     * @throws ServiceException
+     */
+    static InputStream create(S3Object object) throws ServiceException {
+        String md5;
+        if (isEncryptedWithOwnKey(object)) {
+            md5 = (String) object.getMetadata("Content-MD5");
+            if ((md5 == null) && (object.getMd5HashAsHex() != null)) {
+                md5 = ServiceUtils.toBase64(ServiceUtils.fromHex(object.getMd5HashAsHex()));
+            }
+        } else {
+            md5 = object.getMd5HashAsBase64();
+        }
+        if (md5 == null) {
+            return object.getDataInputStream();
+        }
+        return new VerifyingInputStream(object.getDataInputStream(), "s3://" + object.getBucketName() + "/" + object.getKey(),
+            ServiceUtils.fromBase64(md5));
+    }
+
+    /**
+     * Returns whether an object is encrypted with SSE-KMS or SSE-C, whose ETags are not MD5 hashes even when the
+     * object was not uploaded in parts
+     */
+    private static boolean isEncryptedWithOwnKey(S3Object object) {
+        for (Map.Entry<String, Object> header : object.getMetadataMap().entrySet()) {
+            String name = header.getKey();
+            if (SERVER_SIDE_ENCRYPTION.equalsIgnoreCase(name)) {
+                if (String.valueOf(header.getValue()).startsWith("aws:kms")) {
+                    return true;
+                }
+            } else if (CUSTOMER_ALGORITHM.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int read() throws IOException {
+        int b = super.read();
+        if (b == -1) {
+            verify();
+        } else {
+            this.digest.update((byte) b);
+        }
+        return b;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        int read = super.read(b, off, len);
+        if (read == -1) {
+            verify();
+        } else {
+            this.digest.update(b, off, read);
+        }
+        return read;
+    }
+
+    public long skip(long n) throws IOException {
+        byte[] buffer = new byte[(int) Math.min(8192, Math.max(n, 1))];
+        long skipped = 0;
+        while (skipped < n) {
+            int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+            if (read == -1) {
+                break;
+            }
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    public boolean markSupported() {
+        return false;
+    }
+
+    private void verify() throws IOException {
+        if (this.verified) {
+            return;
+        }
+        this.verified = true;
+        byte[] actual = this.digest.digest();
+        if (!Arrays.equals(this.expected, actual)) {
+            throw new IOException("Integrity check failed for " + this.description + ": expected MD5 "
+                + ServiceUtils.toHex(this.expected) + " but received " + ServiceUtils.toHex(actual));
+        }
+    }
+
+}
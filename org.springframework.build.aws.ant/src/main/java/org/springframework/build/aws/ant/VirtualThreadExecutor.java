@@ -0,0 +1,125 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An executor that runs every task on its own virtual thread, with the number of tasks running at once limited by a
+ * semaphore rather than by the size of a pool. Tasks waiting for a permit are parked virtual threads and cost almost
+ * nothing, so thousands of small transfers can be queued without tying up platform threads.
+ * <p />
+ * Virtual threads are only available on Java 21 and later and are looked up reflectively. On older JVMs a fixed pool
+ * of daemon platform threads, as large as the concurrency limit, is used instead.
+ */
+final class VirtualThreadExecutor extends AbstractExecutorService {
+
+    private static final Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = findNewVirtualThreadPerTaskExecutor();
+
+    private final ExecutorService delegate;
+
+    private final Semaphore permits;
+
+    private VirtualThreadExecutor(ExecutorService delegate, int maxConcurrency) {
+        this.delegate = delegate;
+        // Fair, so that tasks start in the order they were submitted, largest transfers first
+        this.permits = new Semaphore(maxConcurrency, true);
+    }
+
+    /**
+     * Returns whether this JVM supports virtual threads
+     *
+     * @return <code>true</code> if tasks will run on virtual threads
+     */
+    static boolean isSupported() {
+        return NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null;
+    }
+
+    /**
+     * Creates a new executor
+     *
+     * @param maxConcurrency The maximum number of tasks running at once
+     * @return The executor
+     */
+    static ExecutorService create(int maxConcurrency) {
+        if (isSupported()) {
+            try {
+                return new VirtualThreadExecutor((ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invoke(null), maxConcurrency);
+            } catch (Exception e) {
+                throw new IllegalStateException("Unable to create a virtual thread executor", e);
+            }
+        }
+        return new VirtualThreadExecutor(Executors.newFixedThreadPool(maxConcurrency, new ThreadFactory() {
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "s3-transfer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }), maxConcurrency);
+    }
+
+    private static Method findNewVirtualThreadPerTaskExecutor() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    public void execute(final Runnable command) {
+        this.delegate.execute(new Runnable() {
+
+            public void run() {
+                VirtualThreadExecutor.this.permits.acquireUninterruptibly();
+                try {
+                    command.run();
+                } finally {
+                    VirtualThreadExecutor.this.permits.release();
+                }
+            }
+        });
+    }
+
+    public void shutdown() {
+        this.delegate.shutdown();
+    }
+
+    public List<Runnable> shutdownNow() {
+        return this.delegate.shutdownNow();
+    }
+
+    public boolean isShutdown() {
+        return this.delegate.isShutdown();
+    }
+
+    public boolean isTerminated() {
+        return this.delegate.isTerminated();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return this.delegate.awaitTermination(timeout, unit);
+    }
+
+}
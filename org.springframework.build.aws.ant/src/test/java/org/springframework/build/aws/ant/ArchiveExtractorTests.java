@@ -0,0 +1,182 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.tools.tar.TarEntry;
+import org.apache.tools.tar.TarOutputStream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ArchiveExtractorTests {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File toDir;
+
+    @Before
+    public void createToDir() throws IOException {
+        this.toDir = this.temporaryFolder.newFolder("extracted");
+    }
+
+    @Test
+    public void zipIsExtracted() throws IOException {
+        byte[] archive = zip("a.txt", "a", "dir/", null, "dir/b.txt", "b", "dir/sub/c.txt", "c");
+        assertEquals(3, new ArchiveExtractor(this.toDir, null, null).extract("archive.zip", stream(archive)));
+        assertContent("a", "a.txt");
+        assertContent("b", "dir/b.txt");
+        assertContent("c", "dir/sub/c.txt");
+    }
+
+    @Test
+    public void tarGzIsExtracted() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TarOutputStream out = new TarOutputStream(new GZIPOutputStream(bytes));
+        putTarEntry(out, "a.txt", "a");
+        putTarEntry(out, "dir/b.txt", "b");
+        out.close();
+        assertEquals(2, new ArchiveExtractor(this.toDir, null, null).extract("archive.tgz", stream(bytes.toByteArray())));
+        assertContent("a", "a.txt");
+        assertContent("b", "dir/b.txt");
+    }
+
+    @Test
+    public void formatIsGivenByTheExtension() throws IOException {
+        byte[] archive = zip("a.txt", "a");
+        assertEquals(1, new ArchiveExtractor(this.toDir, null, null).extract("dir/ARCHIVE.JAR", stream(archive)));
+        try {
+            new ArchiveExtractor(this.toDir, null, null).extract("archive.rar", stream(archive));
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("archive.rar"));
+        }
+    }
+
+    @Test
+    public void includesAndExcludesSelectEntries() throws IOException {
+        byte[] archive = zip("a.txt", "a", "dir/b.txt", "b", "dir/c.log", "c", "other/d.txt", "d");
+        ArchiveExtractor extractor = new ArchiveExtractor(this.toDir, Arrays.asList("dir/", "a.*"),
+            Arrays.asList("**/*.log"));
+        assertEquals(2, extractor.extract("archive.zip", stream(archive)));
+        assertContent("a", "a.txt");
+        assertContent("b", "dir/b.txt");
+        assertFalse(new File(this.toDir, "dir/c.log").exists());
+        assertFalse(new File(this.toDir, "other").exists());
+    }
+
+    @Test
+    public void leadingSlashesAreIgnored() throws IOException {
+        byte[] archive = zip("/a.txt", "a", "\\dir\\b.txt", "b");
+        assertEquals(2, new ArchiveExtractor(this.toDir, null, null).extract("archive.zip", stream(archive)));
+        assertContent("a", "a.txt");
+        assertContent("b", "dir/b.txt");
+    }
+
+    @Test
+    public void entryOutsideTheDirectoryIsRejected() throws IOException {
+        assertRejected(zip("a.txt", "a", "../x.txt", "x"));
+    }
+
+    @Test
+    public void nestedEntryOutsideTheDirectoryIsRejected() throws IOException {
+        assertRejected(zip("a.txt", "a", "dir/../../x.txt", "x"));
+    }
+
+    @Test
+    public void trailingDataIsRead() throws IOException {
+        byte[] archive = zip("a.txt", "a");
+        byte[] padded = new byte[archive.length + 10000];
+        System.arraycopy(archive, 0, padded, 0, archive.length);
+        InputStream in = stream(padded);
+        new ArchiveExtractor(this.toDir, null, null).extract("archive.zip", in);
+        assertEquals(-1, in.read());
+    }
+
+    private void assertRejected(byte[] archive) {
+        try {
+            new ArchiveExtractor(this.toDir, null, null).extract("archive.zip", stream(archive));
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("outside"));
+        }
+        // Entries extracted before the rejected one are removed again
+        assertFalse(new File(this.toDir, "a.txt").exists());
+        assertFalse(new File(this.temporaryFolder.getRoot(), "x.txt").exists());
+    }
+
+    private void assertContent(String content, String path) throws IOException {
+        File file = new File(this.toDir, path);
+        assertTrue(path, file.isFile());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = new FileInputStream(file);
+        try {
+            TransferUtils.copy(in, out);
+        } finally {
+            in.close();
+        }
+        assertEquals(content, out.toString("UTF-8"));
+    }
+
+    private static void putTarEntry(TarOutputStream out, String name, String content) throws IOException {
+        byte[] data = content.getBytes("UTF-8");
+        TarEntry entry = new TarEntry(name);
+        entry.setSize(data.length);
+        out.putNextEntry(entry);
+        out.write(data);
+        out.closeEntry();
+    }
+
+    /**
+     * Creates a zip of alternating entry names and contents, where a <code>null</code> content makes a directory
+     */
+    private static byte[] zip(String... namesAndContents) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream out = new ZipOutputStream(bytes);
+        for (int i = 0; i < namesAndContents.length; i += 2) {
+            out.putNextEntry(new ZipEntry(namesAndContents[i]));
+            if (namesAndContents[i + 1] != null) {
+                out.write(namesAndContents[i + 1].getBytes("UTF-8"));
+            }
+            out.closeEntry();
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static InputStream stream(byte[] data) {
+        return new ByteArrayInputStream(data);
+    }
+
+}
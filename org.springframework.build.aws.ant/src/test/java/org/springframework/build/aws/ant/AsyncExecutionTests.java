@@ -0,0 +1,242 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class AsyncExecutionTests {
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    private final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+
+    @After
+    public void shutdownExecutor() {
+        this.executor.shutdownNow();
+    }
+
+    @Test
+    public void completesOnceEveryTaskHasRun() throws Exception {
+        final AsyncExecution execution = new AsyncExecution(this.executor);
+        execution.onComplete(record("complete"));
+        execution.start(new AsyncExecution.Task() {
+
+            public void run() {
+                for (final String key : Arrays.asList("a", "b", "c")) {
+                    execution.submit(key, new AsyncExecution.Task() {
+
+                        public void run() {
+                            execution.getResult().completed(key, 1);
+                        }
+                    });
+                }
+            }
+        });
+        S3OperationResult result = execution.get(10, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList("a", "b", "c"), result.getKeys());
+        assertEquals(3, result.getBytes());
+        assertTrue(result.isSuccessful());
+        awaitEvents(1);
+        assertEquals(Collections.singletonList("complete"), this.events);
+    }
+
+    @Test
+    public void failedTaskIsRecordedAgainstItsKey() throws Exception {
+        final AsyncExecution execution = new AsyncExecution(this.executor);
+        final IllegalStateException failure = new IllegalStateException();
+        execution.start(new AsyncExecution.Task() {
+
+            public void run() {
+                execution.submit("a", new AsyncExecution.Task() {
+
+                    public void run() {
+                        throw failure;
+                    }
+                });
+            }
+        });
+        S3OperationResult result = execution.get(10, TimeUnit.SECONDS);
+        assertFalse(result.isSuccessful());
+        assertSame(failure, result.getFailures().get("a"));
+    }
+
+    @Test
+    public void failedPlannerFailsTheOperation() throws Exception {
+        AsyncExecution execution = new AsyncExecution(this.executor);
+        execution.start(new AsyncExecution.Task() {
+
+            public void run() throws Exception {
+                throw new IOException("listing failed");
+            }
+        });
+        try {
+            execution.get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertEquals("listing failed", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void callbackRegisteredAfterCompletionRuns() throws Exception {
+        AsyncExecution execution = new AsyncExecution(this.executor);
+        execution.start(new AsyncExecution.Task() {
+
+            public void run() {
+            }
+        });
+        execution.get(10, TimeUnit.SECONDS);
+        execution.onComplete(record("late"));
+        awaitEvents(1);
+        assertEquals(Collections.singletonList("late"), this.events);
+    }
+
+    @Test
+    public void cancelWaitsForRunningTasksBeforeCallbacks() throws Exception {
+        final AsyncExecution execution = new AsyncExecution(this.executor);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        execution.onComplete(record("complete"));
+        execution.start(new AsyncExecution.Task() {
+
+            public void run() throws InterruptedException {
+                execution.submit("queued", new AsyncExecution.Task() {
+
+                    public void run() {
+                        AsyncExecutionTests.this.events.add("queued ran");
+                    }
+                });
+                started.countDown();
+                release.await();
+                AsyncExecutionTests.this.events.add("planner finished");
+            }
+        });
+        started.await();
+
+        assertTrue(execution.cancel(false));
+        assertTrue(execution.isDone());
+        assertTrue(execution.isCancelled());
+        assertFalse(execution.cancel(false));
+        try {
+            execution.get();
+            fail();
+        } catch (CancellationException e) {
+            // Expected
+        }
+        assertEquals(Collections.emptyList(), this.events);
+
+        release.countDown();
+        awaitEvents(2);
+        assertEquals(Arrays.asList("planner finished", "complete"), this.events);
+    }
+
+    @Test
+    public void cancelInterruptsRunningTasks() throws Exception {
+        final AsyncExecution execution = new AsyncExecution(this.executor);
+        final CountDownLatch started = new CountDownLatch(1);
+        execution.onComplete(record("complete"));
+        execution.start(new AsyncExecution.Task() {
+
+            public void run() {
+                started.countDown();
+                try {
+                    new CountDownLatch(1).await();
+                } catch (InterruptedException e) {
+                    AsyncExecutionTests.this.events.add("interrupted");
+                }
+            }
+        });
+        started.await();
+        assertTrue(execution.cancel(true));
+        awaitEvents(2);
+        assertEquals(Arrays.asList("interrupted", "complete"), this.events);
+    }
+
+    @Test
+    public void cancelBeforeStartRunsCallbacks() {
+        AsyncExecution execution = new AsyncExecution(this.executor);
+        execution.onComplete(record("complete"));
+        assertTrue(execution.cancel(true));
+        assertEquals(Collections.singletonList("complete"), this.events);
+    }
+
+    @Test
+    public void rejectedTaskIsRecordedAsFailed() throws Exception {
+        this.executor.shutdown();
+        AsyncExecution execution = new AsyncExecution(this.executor);
+        execution.onComplete(record("complete"));
+        execution.start(new AsyncExecution.Task() {
+
+            public void run() {
+            }
+        });
+        try {
+            execution.get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        assertEquals(Collections.singletonList("complete"), this.events);
+    }
+
+    @Test(expected = TimeoutException.class)
+    public void getTimesOut() throws Exception {
+        AsyncExecution execution = new AsyncExecution(this.executor);
+        execution.get(10, TimeUnit.MILLISECONDS);
+    }
+
+    private Runnable record(final String event) {
+        return new Runnable() {
+
+            public void run() {
+                AsyncExecutionTests.this.events.add(event);
+            }
+        };
+    }
+
+    /**
+     * Waits for the callbacks, which run after the future completes
+     */
+    private void awaitEvents(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while ((this.events.size() < count) && (System.currentTimeMillis() < deadline)) {
+            Thread.sleep(1);
+        }
+    }
+
+}
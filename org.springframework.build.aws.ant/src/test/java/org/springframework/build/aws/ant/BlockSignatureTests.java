@@ -0,0 +1,143 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BlockSignatureTests {
+
+    private static final long BLOCK_SIZE = 1000;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File directory;
+
+    private File file;
+
+    @Before
+    public void createFile() throws IOException {
+        this.directory = this.temporaryFolder.newFolder("signatures");
+        this.file = this.temporaryFolder.newFile("file");
+        OutputStream out = new FileOutputStream(this.file);
+        try {
+            for (int i = 0; i < 2500; i++) {
+                out.write(i * 31);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void blocksCoverTheFile() throws IOException {
+        BlockSignature signature = signature();
+        assertEquals(2500, signature.getLength());
+        assertEquals(3, signature.getBlockCount());
+        assertEquals(1000, signature.getBlockLength(0));
+        assertEquals(1000, signature.getBlockLength(1));
+        assertEquals(500, signature.getBlockLength(2));
+    }
+
+    @Test
+    public void etagIsTheMultipartETag() throws IOException {
+        assertEquals(MultipartETag.calculate(this.file, BLOCK_SIZE), signature().getETag());
+    }
+
+    @Test
+    public void signatureIsReadBack() throws IOException {
+        BlockSignature signature = signature();
+        signature.write(this.directory, "bucket", "key");
+
+        BlockSignature read = BlockSignature.read(this.directory, "bucket", "key", BLOCK_SIZE);
+        assertNotNull(read);
+        assertEquals(signature.getLength(), read.getLength());
+        assertEquals(signature.getBlockCount(), read.getBlockCount());
+        for (int i = 0; i < signature.getBlockCount(); i++) {
+            assertArrayEquals(signature.getDigest(i), read.getDigest(i));
+        }
+        assertEquals(signature.getETag(), read.getETag());
+    }
+
+    @Test
+    public void writeReplacesEarlierSignature() throws IOException {
+        new BlockSignature(0, BLOCK_SIZE, new byte[0][]).write(this.directory, "bucket", "key");
+        signature().write(this.directory, "bucket", "key");
+        assertEquals(2500, BlockSignature.read(this.directory, "bucket", "key", BLOCK_SIZE).getLength());
+    }
+
+    @Test
+    public void missingSignatureIsNotRead() {
+        assertNull(BlockSignature.read(this.directory, "bucket", "key", BLOCK_SIZE));
+    }
+
+    @Test
+    public void signatureOfAnotherObjectIsNotRead() throws IOException {
+        signature().write(this.directory, "bucket", "key");
+        assertNull(BlockSignature.read(this.directory, "bucket", "other", BLOCK_SIZE));
+        assertNull(BlockSignature.read(this.directory, "other", "key", BLOCK_SIZE));
+    }
+
+    @Test
+    public void signatureForAnotherBlockSizeIsNotRead() throws IOException {
+        signature().write(this.directory, "bucket", "key");
+        assertNull(BlockSignature.read(this.directory, "bucket", "key", BLOCK_SIZE * 2));
+    }
+
+    @Test
+    public void truncatedSignatureIsNotRead() throws IOException {
+        signature().write(this.directory, "bucket", "key");
+        File written = findSignatureFile();
+        // Only the final newline can be lost without losing part of a digest
+        for (long length = written.length() - 2; length >= 0; length -= 7) {
+            RandomAccessFile out = new RandomAccessFile(written, "rw");
+            try {
+                out.setLength(length);
+            } finally {
+                out.close();
+            }
+            assertNull("Length " + length, BlockSignature.read(this.directory, "bucket", "key", BLOCK_SIZE));
+        }
+    }
+
+    private BlockSignature signature() throws IOException {
+        return new BlockSignature(this.file.length(), BLOCK_SIZE, MultipartETag.digestParts(this.file, BLOCK_SIZE));
+    }
+
+    private File findSignatureFile() {
+        File[] directories = this.directory.listFiles();
+        assertEquals(1, directories.length);
+        File[] files = directories[0].listFiles();
+        assertEquals(1, files.length);
+        return files[0];
+    }
+
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jets3t.service.utils.ServiceUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DeltaFileUploadTests {
+
+    private static final int BLOCK_SIZE = 1024;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final FakeTransport transport = new FakeTransport();
+
+    private File source;
+
+    private File signatures;
+
+    @Before
+    public void createFiles() throws IOException {
+        this.source = this.temporaryFolder.newFile("source");
+        this.signatures = this.temporaryFolder.newFolder("signatures");
+    }
+
+    @Test
+    public void unchangedBlocksAreCopied() throws IOException {
+        write(this.source, 4 * BLOCK_SIZE, 2 * BLOCK_SIZE);
+        DeltaFileUpload first = upload();
+        assertEquals(4, first.getUploadedBlocks());
+        assertEquals(0, first.getCopiedBlocks());
+        write(this.source, 4 * BLOCK_SIZE, 2 * BLOCK_SIZE + 1);
+        DeltaFileUpload second = upload();
+        assertEquals(1, second.getUploadedBlocks());
+        assertEquals(3, second.getCopiedBlocks());
+        assertFalse(second.isRestarted());
+    }
+
+    @Test
+    public void uploadRestartsWhenTheObjectIsReplaced() throws IOException {
+        write(this.source, 4 * BLOCK_SIZE, 2 * BLOCK_SIZE);
+        upload();
+        write(this.source, 4 * BLOCK_SIZE, 2 * BLOCK_SIZE + 1);
+        this.transport.failCopies = true;
+        DeltaFileUpload upload = upload();
+        assertTrue(upload.isRestarted());
+        assertEquals(4, upload.getUploadedBlocks());
+        assertEquals(0, upload.getCopiedBlocks());
+        assertEquals(1, this.transport.aborted);
+    }
+
+    @Test
+    public void fileNeedingTooManyBlocksIsRejectedBeforeUploading() throws IOException {
+        write(this.source, (MultipartUploader.MAX_PARTS + 1) * 8, 0);
+        try {
+            new DeltaFileUpload(this.transport, "bucket", "key", new HashMap<String, String>(), this.source, 8, this.signatures).upload();
+            fail();
+        } catch (IOException e) {
+            assertEquals("s3://bucket/key needs more than " + MultipartUploader.MAX_PARTS + " blocks, use a larger part size",
+                e.getMessage());
+        }
+        assertEquals(0, this.transport.started);
+    }
+
+    private DeltaFileUpload upload() throws IOException {
+        DeltaFileUpload upload = new DeltaFileUpload(this.transport, "bucket", "key", new HashMap<String, String>(), this.source,
+            BLOCK_SIZE, this.signatures);
+        upload.upload();
+        return upload;
+    }
+
+    /**
+     * Writes a file of zeros, with a single one at a given offset
+     */
+    private static void write(File file, int length, int changedOffset) throws IOException {
+        byte[] data = new byte[length];
+        data[changedOffset] = 1;
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] md5(byte[] data) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A transport holding a single object, whose multipart uploads copy parts from it
+     */
+    private static final class FakeTransport implements S3Transport {
+
+        private final Map<Integer, byte[]> parts = Collections.synchronizedMap(new HashMap<Integer, byte[]>());
+
+        private byte[] object;
+
+        private String etag;
+
+        private volatile boolean failCopies;
+
+        private int started;
+
+        private int aborted;
+
+        public S3ObjectInfo head(String bucket, String key) {
+            return this.object == null ? null : new S3ObjectInfo(key, this.object.length, this.etag, null,
+                new HashMap<String, String>());
+        }
+
+        public String startMultipartUpload(String bucket, String key, Map<String, String> headers) {
+            this.started++;
+            this.parts.clear();
+            return "upload" + this.started;
+        }
+
+        public String uploadPart(String bucket, String key, String uploadId, int partNumber, S3RequestBody body) throws IOException {
+            byte[] data = new byte[(int) body.getLength()];
+            InputStream in = body.open();
+            try {
+                int read = 0;
+                while (read < data.length) {
+                    read += in.read(data, read, data.length - read);
+                }
+            } finally {
+                in.close();
+            }
+            this.parts.put(partNumber, data);
+            return ServiceUtils.toHex(md5(data));
+        }
+
+        public String copyPart(String sourceBucket, String sourceKey, String sourceETag, long rangeStart, long rangeEnd, String bucket,
+            String key, String uploadId, int partNumber) throws IOException {
+            if (this.failCopies || !sourceETag.equals(this.etag)) {
+                throw new S3TransportException("Precondition failed", 412, "PreconditionFailed", null);
+            }
+            byte[] data = new byte[(int) (rangeEnd - rangeStart + 1)];
+            System.arraycopy(this.object, (int) rangeStart, data, 0, data.length);
+            this.parts.put(partNumber, data);
+            return "part" + partNumber;
+        }
+
+        public String completeMultipartUpload(String bucket, String key, String uploadId, List<String> partETags) {
+            byte[][] digests = new byte[partETags.size()][];
+            List<byte[]> data = new ArrayList<byte[]>();
+            int length = 0;
+            for (int i = 0; i < digests.length; i++) {
+                byte[] part = this.parts.get(i + 1);
+                digests[i] = md5(part);
+                data.add(part);
+                length += part.length;
+            }
+            this.object = new byte[length];
+            int offset = 0;
+            for (byte[] part : data) {
+                System.arraycopy(part, 0, this.object, offset, part.length);
+                offset += part.length;
+            }
+            this.etag = MultipartETag.calculate(digests);
+            return "\"" + this.etag + "\"";
+        }
+
+        public void abortMultipartUpload(String bucket, String key, String uploadId) {
+            this.aborted++;
+        }
+
+        public S3ObjectListing list(String bucket, String prefix, String delimiter, String marker, int maxKeys) {
+            throw new UnsupportedOperationException();
+        }
+
+        public S3ObjectContent get(String bucket, String key, long rangeStart, long rangeEnd, String ifMatch) {
+            throw new UnsupportedOperationException();
+        }
+
+        public String put(String bucket, String key, S3RequestBody body, Map<String, String> headers) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void delete(String bucket, String key) {
+            throw new UnsupportedOperationException();
+        }
+
+        public String copy(String sourceBucket, String sourceKey, String bucket, String key, Map<String, String> headers) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void close() {
+        }
+    }
+
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DownloadCacheTests {
+
+    private static final String ETAG = "\"0123456789abcdef0123456789abcdef\"";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private DownloadCache cache;
+
+    private File downloads;
+
+    @Before
+    public void createCache() throws IOException {
+        this.cache = DownloadCache.get(new File(this.temporaryFolder.getRoot(), "cache"), 1024 * 1024);
+        this.downloads = this.temporaryFolder.newFolder("downloads");
+    }
+
+    @Test
+    public void sameDirectoryGivesSameCache() throws IOException {
+        assertSame(this.cache, DownloadCache.get(new File(this.temporaryFolder.getRoot(), "cache/../cache"), 1024));
+    }
+
+    @Test
+    public void storedCopyIsRetrieved() throws IOException {
+        byte[] data = data(1000, 1);
+        File downloaded = write("downloaded", data);
+        this.cache.store("bucket", "key", ETAG, downloaded, false);
+        assertTrue(this.cache.contains("bucket", "key", ETAG, data.length));
+
+        File destination = new File(this.downloads, "sub/retrieved");
+        assertTrue(this.cache.retrieve("bucket", "key", ETAG, data.length, destination, false));
+        assertArrayEquals(data, read(destination));
+    }
+
+    @Test
+    public void storedLinkIsRetrieved() throws IOException {
+        byte[] data = data(1000, 2);
+        File downloaded = write("downloaded", data);
+        this.cache.store("bucket", "key", ETAG, downloaded, true);
+
+        File destination = new File(this.downloads, "retrieved");
+        assertTrue(this.cache.retrieve("bucket", "key", ETAG, data.length, destination, true));
+        assertArrayEquals(data, read(destination));
+    }
+
+    @Test
+    public void linkedEntryModifiedInPlaceIsNotServed() throws IOException {
+        byte[] data = data(1000, 9);
+        File downloaded = write("downloaded", data);
+        this.cache.store("bucket", "key", ETAG, downloaded, true);
+        // Modified through the link, keeping its length
+        write("downloaded", data(1000, 10));
+
+        File destination = new File(this.downloads, "retrieved");
+        assertFalse(this.cache.retrieve("bucket", "key", ETAG, data.length, destination, false));
+        assertFalse(destination.exists());
+        assertFalse(this.cache.contains("bucket", "key", ETAG, data.length));
+    }
+
+    @Test
+    public void retrievingALinkedEntryLeavesTheTimeOfTheDownloadedFile() throws IOException {
+        byte[] data = data(1000, 11);
+        File downloaded = write("downloaded", data);
+        downloaded.setLastModified(1000000000000L);
+        this.cache.store("bucket", "key", ETAG, downloaded, true);
+        assertTrue(this.cache.retrieve("bucket", "key", ETAG, data.length, new File(this.downloads, "retrieved"), false));
+        assertEquals(1000000000000L, downloaded.lastModified());
+    }
+
+    @Test
+    public void etagQuotesAndCaseDoNotMatter() throws IOException {
+        byte[] data = data(10, 3);
+        this.cache.store("bucket", "key", ETAG, write("downloaded", data), false);
+        assertTrue(this.cache.contains("bucket", "key", ETAG.replace("\"", "").toUpperCase(), data.length));
+    }
+
+    @Test
+    public void otherVersionsAreNotRetrieved() throws IOException {
+        byte[] data = data(100, 4);
+        this.cache.store("bucket", "key", ETAG, write("downloaded", data), false);
+
+        File destination = new File(this.downloads, "retrieved");
+        assertFalse(this.cache.retrieve("bucket", "key", "\"ffffffffffffffffffffffffffffffff\"", data.length, destination, false));
+        assertFalse(this.cache.retrieve("bucket", "other", ETAG, data.length, destination, false));
+        assertFalse(this.cache.retrieve("other", "key", ETAG, data.length, destination, false));
+        assertFalse(this.cache.retrieve("bucket", "key", ETAG, data.length + 1, destination, false));
+        assertFalse(destination.exists());
+    }
+
+    @Test
+    public void retrieveReplacesTheDestination() throws IOException {
+        byte[] data = data(100, 5);
+        this.cache.store("bucket", "key", ETAG, write("downloaded", data), false);
+
+        File destination = write("retrieved", data(5000, 6));
+        assertTrue(this.cache.retrieve("bucket", "key", ETAG, data.length, destination, false));
+        assertArrayEquals(data, read(destination));
+    }
+
+    @Test
+    public void copiedEntryIsIndependentOfTheDownload() throws IOException {
+        byte[] data = data(100, 7);
+        File downloaded = write("downloaded", data);
+        this.cache.store("bucket", "key", ETAG, downloaded, false);
+        write("downloaded", data(100, 8));
+
+        File destination = new File(this.downloads, "retrieved");
+        assertTrue(this.cache.retrieve("bucket", "key", ETAG, data.length, destination, false));
+        assertArrayEquals(data, read(destination));
+    }
+
+    @Test
+    public void leastRecentlyUsedEntriesAreEvicted() throws IOException {
+        File directory = this.temporaryFolder.newFolder("small");
+        DownloadCache small = DownloadCache.get(directory, 2500);
+        long now = System.currentTimeMillis();
+        small.store("bucket", "key-0", ETAG, write("downloaded-0", data(1000, 0)), false);
+        setTimeOfUse(new File(directory, "objects"), now - 20000);
+        small.store("bucket", "key-1", ETAG, write("downloaded-1", data(1000, 1)), false);
+        setTimeOfUse(new File(directory, "objects"), now - 10000);
+        small.store("bucket", "key-2", ETAG, write("downloaded-2", data(1000, 2)), false);
+
+        assertFalse(small.contains("bucket", "key-0", ETAG, 1000));
+        assertTrue(small.contains("bucket", "key-1", ETAG, 1000));
+        assertTrue(small.contains("bucket", "key-2", ETAG, 1000));
+    }
+
+    /**
+     * Moves the time of use of the entries used since {@code time} back to it, so that the order of use does not
+     * depend on the resolution of file times.
+     */
+    private static void setTimeOfUse(File objectsDirectory, long time) {
+        for (File directory : objectsDirectory.listFiles()) {
+            for (File entryDirectory : directory.listFiles()) {
+                for (File entry : entryDirectory.listFiles()) {
+                    if (entry.lastModified() > time) {
+                        entry.setLastModified(time);
+                    }
+                }
+            }
+        }
+    }
+
+    private File write(String name, byte[] data) throws IOException {
+        File file = new File(this.downloads, name);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < data.length) {
+                read += in.read(data, read, data.length - read);
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    private static byte[] data(int length, int seed) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + seed);
+        }
+        return data;
+    }
+
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.jets3t.service.ServiceException;
+import org.junit.Test;
+
+public class HedgedRequestsTests {
+
+    private static final long SLOW = 300;
+
+    @Test
+    public void requestsAreNotHedgedUntilEnoughLatenciesHaveBeenSeen() throws ServiceException {
+        HedgedRequests hedging = new HedgedRequests(50, 1);
+        for (int i = 0; i < 31; i++) {
+            hedging.execute(new ScriptedRequest(0, "fast"));
+        }
+        ScriptedRequest slow = new ScriptedRequest(50, "slow");
+        assertEquals("slow", hedging.execute(slow));
+        assertEquals(1, slow.calls.get());
+        assertEquals(32, hedging.getRequests());
+        assertEquals(0, hedging.getHedged());
+    }
+
+    @Test
+    public void slowRequestIsHedgedAndTheHedgeWins() throws ServiceException {
+        HedgedRequests hedging = warmedUp(1);
+        ScriptedRequest request = new ScriptedRequest(SLOW, "primary", 0, "hedge");
+        assertEquals("hedge", hedging.execute(request));
+        assertEquals(2, request.calls.get());
+        assertEquals(1, hedging.getWon());
+        assertEquals(Collections.singletonList("primary"), request.discarded);
+    }
+
+    @Test
+    public void hedgingIsLimitedToTheMaximumRate() throws ServiceException {
+        HedgedRequests hedging = warmedUp(0);
+        ScriptedRequest request = new ScriptedRequest(50, "primary", 0, "hedge");
+        assertEquals("primary", hedging.execute(request));
+        assertEquals(1, request.calls.get());
+        assertEquals(0, hedging.getHedged());
+    }
+
+    @Test
+    public void hedgeIsUsedWhenTheRequestFails() throws ServiceException {
+        HedgedRequests hedging = warmedUp(1);
+        ScriptedRequest request = new ScriptedRequest(SLOW, null, 0, "hedge");
+        assertEquals("hedge", hedging.execute(request));
+        assertTrue(request.discarded.isEmpty());
+    }
+
+    @Test
+    public void failureOfTheRequestIsThrownWhenTheHedgeFailsToo() {
+        HedgedRequests hedging = warmedUp(1);
+        ScriptedRequest request = new ScriptedRequest(SLOW, null, 0, null);
+        try {
+            hedging.execute(request);
+            fail();
+        } catch (ServiceException e) {
+            assertEquals("Call 0 failed", e.getMessage());
+        }
+        assertEquals(2, request.calls.get());
+        assertEquals(1, hedging.getHedged());
+        assertEquals(0, hedging.getWon());
+    }
+
+    @Test
+    public void httpRequestOfTheLosingAttemptIsAborted() throws ServiceException {
+        HedgedRequests hedging = warmedUp(1);
+        final GetMethod method = new GetMethod("http://localhost/");
+        ScriptedRequest request = new ScriptedRequest(SLOW, "primary", 0, "hedge") {
+
+            protected void started(int call) {
+                if (call == 0) {
+                    HedgedRequests.requestStarted(method);
+                }
+            }
+        };
+        assertEquals("hedge", hedging.execute(request));
+        assertTrue(method.isAborted());
+    }
+
+    @Test
+    public void requestStartedOutsideAnAttemptIsIgnored() {
+        GetMethod method = new GetMethod("http://localhost/");
+        HedgedRequests.requestStarted(method);
+        assertFalse(method.isAborted());
+    }
+
+    private static HedgedRequests warmedUp(double maxRate) {
+        HedgedRequests hedging = new HedgedRequests(50, maxRate);
+        for (int i = 0; i < 32; i++) {
+            try {
+                hedging.execute(new ScriptedRequest(0, "fast"));
+            } catch (ServiceException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return hedging;
+    }
+
+    /**
+     * A request whose calls each take a given time, then return a given result or fail if it is <code>null</code>
+     */
+    private static class ScriptedRequest implements HedgedRequests.Request<String> {
+
+        private final Object[] script;
+
+        private final AtomicInteger calls = new AtomicInteger();
+
+        private final List<String> discarded = Collections.synchronizedList(new ArrayList<String>());
+
+        private ScriptedRequest(Object... script) {
+            this.script = script;
+        }
+
+        public String call() throws ServiceException {
+            int call = this.calls.getAndIncrement();
+            started(call);
+            long delay = ((Number) this.script[call * 2]).longValue();
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            String result = (String) this.script[call * 2 + 1];
+            if (result == null) {
+                throw new ServiceException("Call " + call + " failed");
+            }
+            return result;
+        }
+
+        public void discard(String result) {
+            this.discarded.add(result);
+        }
+
+        protected void started(int call) {
+        }
+    }
+
+}
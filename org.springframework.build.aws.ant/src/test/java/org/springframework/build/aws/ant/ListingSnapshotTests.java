@@ -0,0 +1,195 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ListingSnapshotTests {
+
+    private static final String MD5 = "0123456789abcdef0123456789abcdef";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File file;
+
+    private final List<String> keys = new ArrayList<String>();
+
+    @Before
+    public void createKeys() {
+        this.file = new File(this.temporaryFolder.getRoot(), "listing.snapshot");
+        for (int i = 0; i < 100; i++) {
+            // Shared prefixes of several lengths, across the restart points of the front coding
+            this.keys.add("dir" + (i % 3) + "/file-" + i + ".txt");
+        }
+        this.keys.add("dir1/caf\u00e9");
+        this.keys.add("dir1/" + new String(Character.toChars(0x1F600)));
+        Collections.sort(this.keys, new Comparator<String>() {
+
+            public int compare(String a, String b) {
+                return SortedFileWalker.compareKeys(a, b);
+            }
+        });
+    }
+
+    @Test
+    public void writtenSnapshotIsReadBack() throws IOException {
+        write();
+        ListingSnapshot snapshot = ListingSnapshot.load(this.file);
+        assertEquals("bucket", snapshot.getBucket());
+        assertEquals("prefix/", snapshot.getPrefix());
+        assertEquals(1234L, snapshot.getCreated());
+        assertEquals(this.keys.size(), snapshot.size());
+
+        ListingSnapshot.Cursor cursor = snapshot.cursor();
+        for (int i = 0; i < this.keys.size(); i++) {
+            assertTrue(cursor.next());
+            assertEquals(i, cursor.getIndex());
+            assertEquals(this.keys.get(i), cursor.getKey());
+            assertEquals(i * 10L, snapshot.getSize(i));
+            assertEquals(i * 1000L, snapshot.getLastModified(i));
+        }
+        assertFalse(cursor.next());
+    }
+
+    @Test
+    public void etagsAreKeptOnlyWhenTheyAreAnMd5() throws IOException {
+        ListingSnapshot.Writer writer = new ListingSnapshot.Writer(this.file, "bucket", "", 0);
+        writer.add("a", 1, "\"" + MD5 + "\"", null);
+        writer.add("b", 1, MD5.toUpperCase() + "-12", null);
+        writer.add("c", 1, "not-an-md5", null);
+        writer.add("d", 1, null, null);
+        writer.commit();
+
+        ListingSnapshot snapshot = ListingSnapshot.load(this.file);
+        assertEquals(MD5, snapshot.getETag(0));
+        assertEquals(MD5 + "-12", snapshot.getETag(1));
+        assertNull(snapshot.getETag(2));
+        assertNull(snapshot.getETag(3));
+        assertEquals(0, snapshot.getLastModified(3));
+    }
+
+    @Test
+    public void seekFindsEveryKey() throws IOException {
+        write();
+        ListingSnapshot snapshot = ListingSnapshot.load(this.file);
+        for (int i = 0; i < this.keys.size(); i++) {
+            ListingSnapshot.Cursor cursor = snapshot.seek(this.keys.get(i));
+            assertTrue(cursor.next());
+            assertEquals(this.keys.get(i), cursor.getKey());
+            assertEquals(i, cursor.getIndex());
+        }
+    }
+
+    @Test
+    public void seekStopsBeforeTheNextKey() throws IOException {
+        write();
+        ListingSnapshot snapshot = ListingSnapshot.load(this.file);
+
+        ListingSnapshot.Cursor cursor = snapshot.seek("");
+        assertTrue(cursor.next());
+        assertEquals(this.keys.get(0), cursor.getKey());
+
+        // Between dir0/... and dir1/...
+        cursor = snapshot.seek("dir0/\uffff");
+        assertTrue(cursor.next());
+        assertTrue(cursor.getKey().startsWith("dir1/"));
+        assertTrue(this.keys.get(cursor.getIndex() - 1).startsWith("dir0/"));
+
+        cursor = snapshot.seek("dir9");
+        assertFalse(cursor.next());
+    }
+
+    @Test
+    public void cursorCanTestAPrefix() throws IOException {
+        write();
+        ListingSnapshot snapshot = ListingSnapshot.load(this.file);
+        ListingSnapshot.Cursor cursor = snapshot.seek("dir2/");
+        assertTrue(cursor.next());
+        assertTrue(cursor.startsWith("dir2/".getBytes("UTF-8")));
+        assertFalse(cursor.startsWith("dir1/".getBytes("UTF-8")));
+    }
+
+    @Test
+    public void emptySnapshotIsReadBack() throws IOException {
+        new ListingSnapshot.Writer(this.file, "bucket", "", 0).commit();
+        ListingSnapshot snapshot = ListingSnapshot.load(this.file);
+        assertEquals(0, snapshot.size());
+        assertFalse(snapshot.cursor().next());
+        assertFalse(snapshot.seek("a").next());
+    }
+
+    @Test
+    public void keysOutOfOrderAreRejected() throws IOException {
+        ListingSnapshot.Writer writer = new ListingSnapshot.Writer(this.file, "bucket", "", 0);
+        writer.add("b", 1, null, null);
+        try {
+            writer.add("a", 1, null, null);
+            fail("Out of order key accepted");
+        } catch (IOException e) {
+            // Expected
+        } finally {
+            writer.abort();
+        }
+        assertFalse(this.file.exists());
+        assertEquals(0, this.temporaryFolder.getRoot().list().length);
+    }
+
+    @Test
+    public void truncatedSnapshotIsNotLoaded() throws IOException {
+        write();
+        RandomAccessFile out = new RandomAccessFile(this.file, "rw");
+        try {
+            out.setLength(out.length() - 1);
+        } finally {
+            out.close();
+        }
+        assertNull(ListingSnapshot.load(this.file));
+    }
+
+    @Test
+    public void missingSnapshotIsNotLoaded() throws IOException {
+        assertNull(ListingSnapshot.load(this.file));
+    }
+
+    private void write() throws IOException {
+        ListingSnapshot.Writer writer = new ListingSnapshot.Writer(this.file, "bucket", "prefix/", 1234);
+        for (int i = 0; i < this.keys.size(); i++) {
+            writer.add(this.keys.get(i), i * 10L, MD5, new Date(i * 1000L));
+        }
+        assertEquals(this.keys.size(), writer.commit());
+    }
+
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.jets3t.service.utils.ServiceUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MultipartETagTests {
+
+    private static final int MEGABYTE = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void singlePartETagIsTheMd5() throws Exception {
+        byte[] data = data(1000);
+        File file = write(data);
+        String etag = ServiceUtils.toHex(md5(data, 0, data.length));
+        assertEquals(etag, MultipartETag.calculate(file));
+        assertTrue(MultipartETag.matches(file, "\"" + etag.toUpperCase() + "\""));
+        assertFalse(MultipartETag.matches(file, "0123456789abcdef0123456789abcdef"));
+    }
+
+    @Test
+    public void multipartETagIsTheMd5OfThePartMd5s() throws Exception {
+        byte[] data = data(2500);
+        assertEquals(multipartETag(data, 1000), MultipartETag.calculate(write(data), 1000));
+    }
+
+    @Test
+    public void partsAreDigestedInOrder() throws Exception {
+        byte[] data = data(2500);
+        byte[][] digests = MultipartETag.digestParts(write(data), 1000);
+        assertEquals(3, digests.length);
+        assertArrayEquals(md5(data, 0, 1000), digests[0]);
+        assertArrayEquals(md5(data, 1000, 1000), digests[1]);
+        assertArrayEquals(md5(data, 2000, 500), digests[2]);
+    }
+
+    @Test
+    public void partCountCoversTheLength() {
+        assertEquals(1, MultipartETag.getPartCount(0, 1000));
+        assertEquals(1, MultipartETag.getPartCount(1000, 1000));
+        assertEquals(2, MultipartETag.getPartCount(1001, 1000));
+    }
+
+    @Test
+    public void defaultPartSizeIsPreferred() throws Exception {
+        // Two parts of 5 MB would cover the file as well
+        byte[] data = data(9 * MEGABYTE);
+        assertTrue(MultipartETag.matches(write(data), multipartETag(data, 8 * MEGABYTE)));
+    }
+
+    @Test
+    public void smallerCommonPartSizeIsInferredFromThePartCount() throws Exception {
+        byte[] data = data(11 * MEGABYTE);
+        assertTrue(MultipartETag.matches(write(data), multipartETag(data, 5 * MEGABYTE)));
+    }
+
+    @Test
+    public void evenSplitIsInferredForUncommonPartSizes() throws Exception {
+        byte[] data = data(30 * MEGABYTE);
+        assertTrue(MultipartETag.matches(write(data), multipartETag(data, 3 * MEGABYTE)));
+    }
+
+    @Test
+    public void changedFileDoesNotMatch() throws Exception {
+        byte[] data = data(11 * MEGABYTE);
+        String etag = multipartETag(data, 5 * MEGABYTE);
+        data[6 * MEGABYTE] ^= 1;
+        assertFalse(MultipartETag.matches(write(data), etag));
+    }
+
+    @Test
+    public void impossiblePartCountsDoNotMatch() throws Exception {
+        File file = write(data(10));
+        assertFalse(MultipartETag.matches(file, "0123456789abcdef0123456789abcdef-11"));
+        assertFalse(MultipartETag.matches(file, "0123456789abcdef0123456789abcdef-0"));
+        assertFalse(MultipartETag.matches(file, "0123456789abcdef0123456789abcdef-x"));
+    }
+
+    private File write(byte[] data) throws IOException {
+        File file = this.temporaryFolder.newFile("file-" + data.length);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static String multipartETag(byte[] data, int partSize) throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+        int parts = 0;
+        for (int offset = 0; offset < data.length; offset += partSize) {
+            digest.update(md5(data, offset, Math.min(partSize, data.length - offset)));
+            parts++;
+        }
+        return ServiceUtils.toHex(digest.digest()) + "-" + parts;
+    }
+
+    private static byte[] md5(byte[] data, int offset, int length) throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+        digest.update(data, offset, length);
+        return digest.digest();
+    }
+
+    private static byte[] data(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + i / 7919);
+        }
+        return data;
+    }
+
+}
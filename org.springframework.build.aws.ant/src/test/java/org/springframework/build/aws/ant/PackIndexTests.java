@@ -0,0 +1,78 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Test;
+
+public class PackIndexTests {
+
+    @Test
+    public void indexIsReadBack() throws IOException {
+        PackIndex index = new PackIndex();
+        index.add("a.txt", PackIndex.getPackName(0), 0, 10);
+        index.add("dir/b.txt", PackIndex.getPackName(1), 10, 0);
+
+        List<PackIndex.Entry> entries = PackIndex.read(new ByteArrayInputStream(index.toBytes())).getEntries();
+        assertEquals(2, entries.size());
+        assertEquals("a.txt", entries.get(0).getPath());
+        assertEquals(".pack/pack-00000", entries.get(0).getPack());
+        assertEquals(0, entries.get(0).getOffset());
+        assertEquals(10, entries.get(0).getLength());
+        assertEquals("dir/b.txt", entries.get(1).getPath());
+        assertEquals(10, entries.get(1).getOffset());
+        assertEquals(0, entries.get(1).getLength());
+    }
+
+    @Test
+    public void malformedNumbersAreRejected() {
+        assertRejected("p\t0\t1\ta.txt\np\tx\t1\tb.txt\n", "line 2");
+        assertRejected("p\t0\t\ta.txt\n", "line 1");
+        assertRejected("p\t0\t-1\ta.txt\n", "line 1");
+    }
+
+    @Test
+    public void missingFieldsAreRejected() {
+        assertRejected("p\t0\t1\n", "line 1");
+    }
+
+    @Test
+    public void pathsOutsideTheDirectoryAreRejected() {
+        assertRejected("p\t0\t1\t../a.txt\n", "../a.txt");
+        assertRejected("p\t0\t1\tdir/../../a.txt\n", "dir/../../a.txt");
+        assertRejected("p\t0\t1\tdir\\..\\..\\a.txt\n", "a.txt");
+        assertRejected("p\t0\t1\t/etc/a.txt\n", "/etc/a.txt");
+        assertRejected("p\t0\t1\tC:/a.txt\n", "C:/a.txt");
+    }
+
+    private static void assertRejected(String index, String message) {
+        try {
+            PackIndex.read(new ByteArrayInputStream(index.getBytes()));
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.FileSet;
+import org.apache.tools.ant.types.selectors.FilenameSelector;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ParallelDirectoryScannerTests {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Project project;
+
+    private File root;
+
+    @Before
+    public void createTree() throws IOException {
+        this.project = new Project();
+        this.root = this.temporaryFolder.newFolder("root");
+        create("a.txt");
+        create("b.log");
+        create("dir/c.txt");
+        create("dir/d.log");
+        create("dir/sub/e.txt");
+        create("other/f.txt");
+        create("other/deep/g.txt");
+        create(".svn/entries");
+        create("dir/CVS/Root");
+        new File(this.root, "empty").mkdir();
+    }
+
+    @Test
+    public void findsTheFilesOfADirectoryScanner() throws IOException {
+        FileSet fileSet = fileSet();
+        assertScansLikeDirectoryScanner(fileSet);
+        assertEquals(7, ParallelDirectoryScanner.getIncludedFiles(fileSet, this.project).length);
+    }
+
+    @Test
+    public void appliesIncludesAndExcludes() throws IOException {
+        FileSet fileSet = fileSet();
+        fileSet.setIncludes("**/*.txt");
+        fileSet.setExcludes("other/deep/**");
+        assertScansLikeDirectoryScanner(fileSet);
+        assertArrayEquals(new String[] { "a.txt", path("dir/c.txt"), path("dir/sub/e.txt"), path("other/f.txt") },
+            ParallelDirectoryScanner.getIncludedFiles(fileSet, this.project));
+    }
+
+    @Test
+    public void appliesDefaultExcludesOnlyWhenAsked() throws IOException {
+        FileSet fileSet = fileSet();
+        fileSet.setDefaultexcludes(false);
+        assertScansLikeDirectoryScanner(fileSet);
+        assertEquals(9, ParallelDirectoryScanner.getIncludedFiles(fileSet, this.project).length);
+    }
+
+    @Test
+    public void appliesSelectors() throws IOException {
+        FileSet fileSet = fileSet();
+        FilenameSelector selector = new FilenameSelector();
+        selector.setName("**/*.log");
+        fileSet.addFilename(selector);
+        assertScansLikeDirectoryScanner(fileSet);
+        assertArrayEquals(new String[] { "b.log", path("dir/d.log") }, ParallelDirectoryScanner.getIncludedFiles(fileSet, this.project));
+    }
+
+    @Test
+    public void nextReturnsNullOnceEveryFileHasBeenReturned() throws IOException {
+        ParallelDirectoryScanner scanner = ParallelDirectoryScanner.start(fileSet(), this.project);
+        List<String> files = new ArrayList<String>();
+        String file;
+        while ((file = scanner.next()) != null) {
+            files.add(file);
+        }
+        assertEquals(7, files.size());
+        assertNull(scanner.next());
+        assertEquals(this.root, scanner.getBasedir());
+    }
+
+    @Test
+    public void emptyDirectoryHasNoFiles() throws IOException {
+        FileSet fileSet = new FileSet();
+        fileSet.setDir(new File(this.root, "empty"));
+        assertEquals(0, ParallelDirectoryScanner.getIncludedFiles(fileSet, this.project).length);
+    }
+
+    @Test
+    public void missingDirectoryIsRejected() {
+        FileSet fileSet = new FileSet();
+        fileSet.setDir(new File(this.root, "missing"));
+        try {
+            ParallelDirectoryScanner.start(fileSet, this.project);
+            fail();
+        } catch (BuildException e) {
+            assertEquals(new File(this.root, "missing").getAbsolutePath() + " not found.", e.getMessage());
+        }
+    }
+
+    @Test
+    public void fileIsRejectedAsADirectory() {
+        FileSet fileSet = new FileSet();
+        fileSet.setDir(new File(this.root, "a.txt"));
+        try {
+            ParallelDirectoryScanner.start(fileSet, this.project);
+            fail();
+        } catch (BuildException e) {
+            assertEquals(new File(this.root, "a.txt").getAbsolutePath() + " is not a directory.", e.getMessage());
+        }
+    }
+
+    private void assertScansLikeDirectoryScanner(FileSet fileSet) throws IOException {
+        String[] expected = fileSet.getDirectoryScanner(this.project).getIncludedFiles();
+        Arrays.sort(expected);
+        assertEquals(Arrays.asList(expected), Arrays.asList(ParallelDirectoryScanner.getIncludedFiles(fileSet, this.project)));
+    }
+
+    private FileSet fileSet() {
+        FileSet fileSet = new FileSet();
+        fileSet.setDir(this.root);
+        return fileSet;
+    }
+
+    private void create(String path) throws IOException {
+        File file = new File(this.root, path);
+        file.getParentFile().mkdirs();
+        file.createNewFile();
+    }
+
+    private static String path(String path) {
+        return path.replace('/', File.separatorChar);
+    }
+
+}
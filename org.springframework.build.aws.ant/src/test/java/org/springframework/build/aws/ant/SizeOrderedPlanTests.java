@@ -0,0 +1,93 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class SizeOrderedPlanTests {
+
+    private final List<String> submitted = new ArrayList<String>();
+
+    private final SizeOrderedPlan plan = new SizeOrderedPlan();
+
+    @Test
+    public void largestTransfersAreSubmittedFirst() throws Exception {
+        add("small", 10);
+        add("largest", Long.MAX_VALUE);
+        add("empty", 0);
+        add("large", 1000);
+        this.plan.submit();
+        assertEquals(Arrays.asList("largest", "large", "small", "empty"), this.submitted);
+    }
+
+    @Test
+    public void transfersOfTheSameSizeKeepTheirOrder() throws Exception {
+        add("a", 10);
+        add("b", 20);
+        add("c", 10);
+        add("d", 20);
+        this.plan.submit();
+        assertEquals(Arrays.asList("b", "d", "a", "c"), this.submitted);
+    }
+
+    @Test
+    public void submittedTransfersAreNotSubmittedAgain() throws Exception {
+        add("a", 10);
+        this.plan.submit();
+        add("b", 20);
+        this.plan.submit();
+        assertEquals(Arrays.asList("a", "b"), this.submitted);
+    }
+
+    @Test
+    public void failedSubmissionStopsThePlan() {
+        add("a", 30);
+        this.plan.add(20, new AsyncExecution.Task() {
+
+            public void run() throws IOException {
+                throw new IOException("rejected");
+            }
+        });
+        add("c", 10);
+        try {
+            this.plan.submit();
+            fail();
+        } catch (Exception e) {
+            assertEquals("rejected", e.getMessage());
+        }
+        assertEquals(Collections.singletonList("a"), this.submitted);
+    }
+
+    private void add(final String name, long size) {
+        this.plan.add(size, new AsyncExecution.Task() {
+
+            public void run() {
+                SizeOrderedPlanTests.this.submitted.add(name);
+            }
+        });
+    }
+
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.jets3t.service.model.S3Bucket;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SortedFileWalkerTests {
+
+    private static final Comparator<String> KEY_ORDER = new Comparator<String>() {
+
+        public int compare(String a, String b) {
+            return SortedFileWalker.compareKeys(a, b);
+        }
+    };
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void equalKeysCompareEqual() {
+        assertEquals(0, SortedFileWalker.compareKeys("", ""));
+        assertEquals(0, SortedFileWalker.compareKeys("a/b.txt", "a/b.txt"));
+    }
+
+    @Test
+    public void prefixSortsFirst() {
+        assertTrue(SortedFileWalker.compareKeys("a", "a/b") < 0);
+        assertTrue(SortedFileWalker.compareKeys("a/b", "a") > 0);
+        assertTrue(SortedFileWalker.compareKeys("", "a") < 0);
+    }
+
+    @Test
+    public void separatorSortsByItsCodePoint() {
+        // '-' (0x2D) < '/' (0x2F) < '0' (0x30), so a directory's contents sort between its siblings
+        List<String> keys = sort("a0", "a/b", "a-b", "a.b");
+        assertEquals(Arrays.asList("a-b", "a.b", "a/b", "a0"), keys);
+    }
+
+    @Test
+    public void supplementaryCharactersSortAfterTheBasicPlane() {
+        // UTF-16 order puts the surrogates of U+1F600 before U+FFFD, but S3 lists by UTF-8 bytes, so after
+        String emoji = new String(Character.toChars(0x1F600));
+        assertTrue(emoji.compareTo("\ufffd") < 0);
+        assertTrue(SortedFileWalker.compareKeys(emoji, "\ufffd") > 0);
+        assertTrue(SortedFileWalker.compareKeys("\ufffd", emoji) < 0);
+        assertTrue(SortedFileWalker.compareKeys("a" + emoji, "a\ufffdz") > 0);
+    }
+
+    @Test
+    public void orderMatchesUtf8ByteOrder() throws IOException {
+        String[] keys = { "b", "\u00e9", "a\u00e9", "ae", "A", "\ufffd", new String(Character.toChars(0x10400)), "z/y", "z-y", "" };
+        for (String a : keys) {
+            for (String b : keys) {
+                assertEquals(a + " vs " + b, Integer.signum(compareBytes(a.getBytes("UTF-8"), b.getBytes("UTF-8"))),
+                    Integer.signum(SortedFileWalker.compareKeys(a, b)));
+            }
+        }
+    }
+
+    @Test
+    public void walkReturnsFilesInKeyOrder() throws IOException {
+        File root = this.temporaryFolder.getRoot();
+        touch(root, "a0");
+        touch(root, "a/b");
+        touch(root, "a/c/d");
+        touch(root, "a-b");
+        touch(root, "b");
+
+        S3Scanner scanner = new S3Scanner(new S3Bucket("bucket"), "prefix/", null, null);
+        SortedFileWalker walker = new SortedFileWalker(root, scanner, "prefix/", true);
+        List<String> paths = new ArrayList<String>();
+        String path;
+        while ((path = walker.next()) != null) {
+            paths.add(path);
+        }
+        assertEquals(Arrays.asList("a-b", "a/b", "a/c/d", "a0", "b"), paths);
+        assertNull(walker.next());
+    }
+
+    @Test
+    public void walkAppliesTheScannerPatterns() throws IOException {
+        File root = this.temporaryFolder.getRoot();
+        touch(root, "keep/a.txt");
+        touch(root, "keep/b.log");
+        touch(root, "skip/c.txt");
+
+        S3Scanner scanner = new S3Scanner(new S3Bucket("bucket"), "", new String[] { "**/*.txt" }, new String[] { "skip/**" });
+        SortedFileWalker walker = new SortedFileWalker(root, scanner, "", true);
+        assertEquals("keep/a.txt", walker.next());
+        assertNull(walker.next());
+    }
+
+    private static List<String> sort(String... keys) {
+        List<String> sorted = new ArrayList<String>(Arrays.asList(keys));
+        Collections.sort(sorted, KEY_ORDER);
+        return sorted;
+    }
+
+    private static int compareBytes(byte[] a, byte[] b) {
+        for (int i = 0; (i < a.length) && (i < b.length); i++) {
+            if (a[i] != b[i]) {
+                return (a[i] & 0xff) - (b[i] & 0xff);
+            }
+        }
+        return a.length - b.length;
+    }
+
+    private static void touch(File root, String path) throws IOException {
+        File file = new File(root, path);
+        file.getParentFile().mkdirs();
+        assertTrue(file.createNewFile());
+    }
+
+}
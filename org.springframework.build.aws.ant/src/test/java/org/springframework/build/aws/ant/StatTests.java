@@ -0,0 +1,254 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.FileSet;
+import org.jets3t.service.ServiceException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class StatTests {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final FakeTransport transport = new FakeTransport();
+
+    private Project project;
+
+    private Stat stat;
+
+    @Before
+    public void createStat() {
+        this.project = new Project();
+        this.stat = new Stat();
+        this.stat.setProject(this.project);
+        this.stat.setBucketName("bucket");
+        this.stat.setTransport(this.transport);
+    }
+
+    @Test
+    public void bucketNameIsRequired() {
+        this.stat.setBucketName(null);
+        this.stat.setFile("a");
+        assertInitFails("bucketName must be set");
+    }
+
+    @Test
+    public void keysAreRequired() {
+        assertInitFails("At least one of file, keys and <fileset> must be set");
+    }
+
+    @Test
+    public void listThresholdMustBePositive() {
+        this.stat.setFile("a");
+        this.stat.setListThreshold(0);
+        assertInitFails("listThreshold must be positive");
+    }
+
+    @Test
+    public void threadsMustBePositive() {
+        this.stat.setFile("a");
+        this.stat.setThreads(0);
+        assertInitFails("threads must be positive");
+    }
+
+    @Test
+    public void directoryWithEnoughKeysIsListed() throws ServiceException, IOException {
+        this.transport.put("dir/a", 1);
+        this.transport.put("dir/b", 2);
+        this.transport.put("top", 3);
+        this.stat.setKeys("dir/a, dir/b,dir/c,top");
+        this.stat.setListThreshold(3);
+        this.stat.setProperty("stat");
+        execute();
+        assertEquals(Arrays.asList("dir/"), this.transport.listed);
+        assertEquals(Arrays.asList("top"), this.transport.headed);
+        assertEquals("true", this.project.getProperty("stat.dir/a.exists"));
+        assertEquals("2", this.project.getProperty("stat.dir/b.size"));
+        assertEquals("\"etag-top\"", this.project.getProperty("stat.top.etag"));
+        assertEquals("3000", this.project.getProperty("stat.top.lastModified"));
+        assertNull(this.project.getProperty("stat.dir/c.exists"));
+        assertEquals("dir/c", this.project.getProperty("stat.missing"));
+        assertNull(this.project.getProperty("stat.allExist"));
+    }
+
+    @Test
+    public void listingFollowsMarkers() throws ServiceException, IOException {
+        this.transport.put("dir/a", 1);
+        this.transport.put("dir/b", 2);
+        this.transport.pageSize = 1;
+        this.stat.setKeys("dir/a,dir/b");
+        this.stat.setListThreshold(1);
+        this.stat.setProperty("stat");
+        execute();
+        assertEquals(Arrays.asList("dir/", "dir/"), this.transport.listed);
+        assertEquals("", this.project.getProperty("stat.missing"));
+        assertEquals("true", this.project.getProperty("stat.allExist"));
+    }
+
+    @Test
+    public void filesOfAFileSetAreCheckedUnderToDir() throws ServiceException, IOException {
+        File dir = this.temporaryFolder.newFolder("files");
+        new File(dir, "sub").mkdir();
+        new File(dir, "a.jar").createNewFile();
+        new File(dir, "sub/b.jar").createNewFile();
+        FileSet fileSet = new FileSet();
+        fileSet.setDir(dir);
+        this.stat.addFileSet(fileSet);
+        this.stat.setToDir("release");
+        this.transport.put("release/sub/b.jar", 5);
+        this.stat.setProperty("stat");
+        execute();
+        Collections.sort(this.transport.headed);
+        assertEquals(Arrays.asList("release/a.jar", "release/sub/b.jar"), this.transport.headed);
+        assertEquals("release/a.jar", this.project.getProperty("stat.missing"));
+        assertEquals("5", this.project.getProperty("stat.release/sub/b.jar.size"));
+    }
+
+    @Test
+    public void reportHasALinePerKey() throws ServiceException, IOException {
+        this.transport.put("a", 7);
+        File report = new File(this.temporaryFolder.getRoot(), "reports/stat.txt");
+        this.stat.setKeys("b,a");
+        this.stat.setReport(report);
+        execute();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(report), "UTF-8"));
+        try {
+            assertEquals("# key\texists\tsize\tetag\tlastModified", in.readLine());
+            assertEquals("a\ttrue\t7\t\"etag-a\"\t1970-01-01T00:00:07.000Z", in.readLine());
+            assertEquals("b\tfalse\t\t\t", in.readLine());
+            assertNull(in.readLine());
+        } finally {
+            in.close();
+        }
+    }
+
+    private void execute() throws ServiceException, IOException {
+        this.stat.init();
+        this.stat.execute(null);
+    }
+
+    private void assertInitFails(String message) {
+        try {
+            this.stat.init();
+            fail();
+        } catch (BuildException e) {
+            assertEquals(message, e.getMessage());
+        }
+    }
+
+    private static final class FakeTransport implements S3Transport {
+
+        private final Map<String, S3ObjectInfo> objects = new TreeMap<String, S3ObjectInfo>();
+
+        private final List<String> listed = Collections.synchronizedList(new ArrayList<String>());
+
+        private final List<String> headed = Collections.synchronizedList(new ArrayList<String>());
+
+        private volatile int pageSize = 1000;
+
+        void put(String key, long size) {
+            this.objects.put(key, new S3ObjectInfo(key, size, "\"etag-" + key + "\"", new Date(size * 1000), new HashMap<String, String>()));
+        }
+
+        public S3ObjectListing list(String bucket, String prefix, String delimiter, String marker, int maxKeys) {
+            this.listed.add(prefix);
+            List<S3ObjectInfo> page = new ArrayList<S3ObjectInfo>();
+            String nextMarker = null;
+            for (S3ObjectInfo object : this.objects.values()) {
+                String key = object.getKey();
+                if (key.startsWith(prefix) && (key.indexOf('/', prefix.length()) < 0) && ((marker == null) || (key.compareTo(marker) > 0))) {
+                    if (page.size() == Math.min(maxKeys, this.pageSize)) {
+                        nextMarker = page.get(page.size() - 1).getKey();
+                        break;
+                    }
+                    page.add(object);
+                }
+            }
+            return new S3ObjectListing(page, new ArrayList<String>(), nextMarker != null, nextMarker);
+        }
+
+        public S3ObjectInfo head(String bucket, String key) {
+            this.headed.add(key);
+            return this.objects.get(key);
+        }
+
+        public S3ObjectContent get(String bucket, String key, long rangeStart, long rangeEnd, String ifMatch) {
+            throw new UnsupportedOperationException();
+        }
+
+        public String put(String bucket, String key, S3RequestBody body, Map<String, String> headers) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void delete(String bucket, String key) {
+            throw new UnsupportedOperationException();
+        }
+
+        public String copy(String sourceBucket, String sourceKey, String bucket, String key, Map<String, String> headers) {
+            throw new UnsupportedOperationException();
+        }
+
+        public String startMultipartUpload(String bucket, String key, Map<String, String> headers) {
+            throw new UnsupportedOperationException();
+        }
+
+        public String uploadPart(String bucket, String key, String uploadId, int partNumber, S3RequestBody body) {
+            throw new UnsupportedOperationException();
+        }
+
+        public String copyPart(String sourceBucket, String sourceKey, String sourceETag, long rangeStart, long rangeEnd, String bucket,
+            String key, String uploadId, int partNumber) {
+            throw new UnsupportedOperationException();
+        }
+
+        public String completeMultipartUpload(String bucket, String key, String uploadId, List<String> partETags) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void abortMultipartUpload(String bucket, String key, String uploadId) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void close() {
+        }
+    }
+
+}
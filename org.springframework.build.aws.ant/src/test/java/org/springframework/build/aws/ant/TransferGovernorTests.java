@@ -0,0 +1,191 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class TransferGovernorTests {
+
+    private final TransferGovernor governor = TransferGovernor.get();
+
+    private final List<String> granted = Collections.synchronizedList(new ArrayList<String>());
+
+    private final List<TransferGovernor.Tenant> tenants = new ArrayList<TransferGovernor.Tenant>();
+
+    @After
+    public void resetGovernor() {
+        this.governor.setMaxRequests(0);
+        this.governor.setMaxBytes(0);
+        Collections.reverse(this.tenants);
+        for (TransferGovernor.Tenant tenant : this.tenants) {
+            this.governor.exit(tenant);
+        }
+    }
+
+    @Test
+    public void requestsAreNotHeldBackWithoutLimits() throws InterruptedException {
+        List<TransferGovernor.Permit> permits = new ArrayList<TransferGovernor.Permit>();
+        for (int i = 0; i < 100; i++) {
+            permits.add(this.governor.acquire(Long.MAX_VALUE));
+        }
+        for (TransferGovernor.Permit permit : permits) {
+            permit.release();
+        }
+    }
+
+    @Test
+    public void tasksAreServedInTurn() throws InterruptedException {
+        this.governor.setMaxRequests(1);
+        Holder holder = startHolder(0);
+
+        TransferGovernor.Tenant busy = enter();
+        Thread[] busyWorkers = new Thread[] { startWaitingWorker("A1", 0), startWaitingWorker("A2", 0),
+            startWaitingWorker("A3", 0) };
+        TransferGovernor.Tenant quiet = enter();
+        Thread quietWorker = startWaitingWorker("B1", 0);
+
+        holder.finish();
+        for (Thread worker : busyWorkers) {
+            join(worker);
+        }
+        join(quietWorker);
+
+        assertEquals(Arrays.asList("A1", "B1", "A2", "A3"), this.granted);
+        assertEquals(3, busy.getWaits());
+        assertEquals(1, quiet.getWaits());
+    }
+
+    @Test
+    public void requestsOverTheByteBudgetWait() throws InterruptedException {
+        this.governor.setMaxBytes(100);
+        Holder holder = startHolder(60);
+        Thread worker = startWaitingWorker("worker", 50);
+        assertEquals(0, this.granted.size());
+        holder.finish();
+        join(worker);
+        assertEquals(Collections.singletonList("worker"), this.granted);
+    }
+
+    @Test
+    public void requestLargerThanTheByteBudgetRunsAlone() throws InterruptedException {
+        this.governor.setMaxBytes(100);
+        Holder holder = startHolder(1000);
+        Thread worker = startWaitingWorker("worker", 1);
+        holder.finish();
+        join(worker);
+        assertEquals(Collections.singletonList("worker"), this.granted);
+    }
+
+    @Test
+    public void threadHoldingAPermitDoesNotWait() throws InterruptedException {
+        this.governor.setMaxRequests(1);
+        TransferGovernor.Permit first = this.governor.acquire(0);
+        TransferGovernor.Permit second = this.governor.acquire(0);
+        second.release();
+        // Releasing twice must not make room for another request
+        second.release();
+        Thread worker = startWaitingWorker("worker", 0);
+        first.release();
+        join(worker);
+    }
+
+    private TransferGovernor.Tenant enter() {
+        TransferGovernor.Tenant tenant = this.governor.enter();
+        this.tenants.add(tenant);
+        return tenant;
+    }
+
+    private Holder startHolder(long length) throws InterruptedException {
+        Holder holder = new Holder(length);
+        holder.start();
+        holder.acquired.await();
+        return holder;
+    }
+
+    /**
+     * Starts a thread that records its name once granted a request, and returns once it waits for the request
+     */
+    private Thread startWaitingWorker(final String name, final long length) throws InterruptedException {
+        Thread worker = new Thread(name) {
+
+            public void run() {
+                try {
+                    TransferGovernor.Permit permit = TransferGovernor.get().acquire(length);
+                    TransferGovernorTests.this.granted.add(name);
+                    permit.release();
+                } catch (InterruptedException e) {
+                    // Ends the test
+                }
+            }
+        };
+        worker.setDaemon(true);
+        worker.start();
+        while ((worker.getState() != Thread.State.WAITING) && worker.isAlive()) {
+            Thread.sleep(1);
+        }
+        return worker;
+    }
+
+    private static void join(Thread thread) throws InterruptedException {
+        thread.join(10000);
+        assertFalse(thread.getName() + " is still waiting", thread.isAlive());
+    }
+
+    /**
+     * A thread that holds a request until it is told to finish
+     */
+    private static final class Holder extends Thread {
+
+        private final long length;
+
+        private final CountDownLatch acquired = new CountDownLatch(1);
+
+        private final CountDownLatch finish = new CountDownLatch(1);
+
+        private Holder(long length) {
+            this.length = length;
+            setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                TransferGovernor.Permit permit = TransferGovernor.get().acquire(this.length);
+                this.acquired.countDown();
+                this.finish.await();
+                permit.release();
+            } catch (InterruptedException e) {
+                // Ends the test
+            }
+        }
+
+        private void finish() throws InterruptedException {
+            this.finish.countDown();
+            TransferGovernorTests.join(this);
+        }
+    }
+
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.Map;
+
+import org.jets3t.service.model.MultipartPart;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TransferJournalTests {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File file;
+
+    @Before
+    public void createFile() {
+        this.file = new File(this.temporaryFolder.getRoot(), "transfer.journal");
+    }
+
+    @Test
+    public void recordsAreReadBackByTheNextRun() throws IOException {
+        TransferJournal journal = TransferJournal.open(this.file, "upload");
+        journal.completed("a/b c", "10:1");
+        journal.uploadStarted("large", "100:2", "upload-1");
+        journal.partCompleted("upload-1", part(1, "etag-1", 50));
+        journal.partCompleted("upload-1", part(2, "etag-2", 50));
+        journal.close();
+
+        journal = TransferJournal.open(this.file, "upload");
+        assertEquals(1, journal.getCompletedCount());
+        assertTrue(journal.isCompleted("a/b c", "10:1"));
+        assertFalse(journal.isCompleted("a/b c", "10:2"));
+        assertEquals("upload-1", journal.getUploadId("large", "100:2"));
+        assertNull(journal.getUploadId("large", "100:3"));
+        Map<Integer, MultipartPart> parts = journal.getParts("upload-1");
+        assertEquals(2, parts.size());
+        assertEquals("etag-2", parts.get(Integer.valueOf(2)).getEtag());
+        assertEquals(Long.valueOf(50), parts.get(Integer.valueOf(2)).getSize());
+        journal.close();
+    }
+
+    @Test
+    public void completingAKeyForgetsItsUpload() throws IOException {
+        TransferJournal journal = TransferJournal.open(this.file, "upload");
+        journal.uploadStarted("large", "100:2", "upload-1");
+        journal.partCompleted("upload-1", part(1, "etag-1", 50));
+        journal.completed("large", "100:2");
+        journal.close();
+
+        journal = TransferJournal.open(this.file, "upload");
+        assertTrue(journal.isCompleted("large", "100:2"));
+        assertNull(journal.getUploadId("large", "100:2"));
+        assertTrue(journal.getParts("upload-1").isEmpty());
+        journal.close();
+    }
+
+    @Test
+    public void journalOfAnotherConfigurationIsDiscarded() throws IOException {
+        TransferJournal journal = TransferJournal.open(this.file, "upload to a");
+        journal.completed("key", "1:1");
+        journal.close();
+
+        journal = TransferJournal.open(this.file, "upload to b");
+        assertEquals(0, journal.getCompletedCount());
+        journal.close();
+    }
+
+    @Test
+    public void unterminatedLastRecordIsIgnored() throws IOException {
+        TransferJournal journal = TransferJournal.open(this.file, "upload");
+        journal.completed("first", "1:1");
+        journal.uploadStarted("large", "100:2", "upload-1");
+        journal.partCompleted("upload-1", part(1, "etag-1", 1234));
+        journal.partCompleted("upload-1", part(2, "etag-2", 1234));
+        journal.close();
+
+        // Cut the last part record inside its size, leaving a record that still parses
+        truncate(this.file, this.file.length() - 3);
+
+        journal = TransferJournal.open(this.file, "upload");
+        assertTrue(journal.isCompleted("first", "1:1"));
+        Map<Integer, MultipartPart> parts = journal.getParts("upload-1");
+        assertEquals(1, parts.size());
+        assertEquals(Long.valueOf(1234), parts.get(Integer.valueOf(1)).getSize());
+        journal.close();
+    }
+
+    @Test
+    public void recordCutInsideAnEscapeIsIgnored() throws IOException {
+        TransferJournal journal = TransferJournal.open(this.file, "upload");
+        journal.completed("first", "1:1");
+        journal.completed("a b", "2:2");
+        journal.close();
+
+        // "done a+b 2%3A2\n" cut to "done a+b 2%3"
+        truncate(this.file, this.file.length() - 3);
+
+        journal = TransferJournal.open(this.file, "upload");
+        assertEquals(1, journal.getCompletedCount());
+        assertTrue(journal.isCompleted("first", "1:1"));
+        journal.close();
+    }
+
+    @Test
+    public void recordsAfterACutRecordAreKept() throws IOException {
+        TransferJournal journal = TransferJournal.open(this.file, "upload");
+        journal.completed("first", "1:1");
+        journal.completed("second", "2:2");
+        journal.close();
+        truncate(this.file, this.file.length() - 2);
+
+        journal = TransferJournal.open(this.file, "upload");
+        journal.completed("third", "3:3");
+        journal.close();
+
+        journal = TransferJournal.open(this.file, "upload");
+        assertEquals(2, journal.getCompletedCount());
+        assertTrue(journal.isCompleted("first", "1:1"));
+        assertFalse(journal.isCompleted("second", "2:2"));
+        assertTrue(journal.isCompleted("third", "3:3"));
+        journal.close();
+    }
+
+    @Test
+    public void journalWithACutHeaderIsDiscarded() throws IOException {
+        TransferJournal journal = TransferJournal.open(this.file, "upload");
+        journal.completed("first", "1:1");
+        journal.close();
+        truncate(this.file, 5);
+
+        journal = TransferJournal.open(this.file, "upload");
+        assertEquals(0, journal.getCompletedCount());
+        journal.close();
+    }
+
+    @Test
+    public void deleteRemovesTheJournal() throws IOException {
+        TransferJournal journal = TransferJournal.open(this.file, "upload");
+        journal.completed("first", "1:1");
+        journal.delete();
+        assertFalse(this.file.exists());
+    }
+
+    @Test(expected = IOException.class)
+    public void closedJournalCannotBeWritten() throws IOException {
+        TransferJournal journal = TransferJournal.open(this.file, "upload");
+        journal.close();
+        journal.completed("first", "1:1");
+    }
+
+    private static MultipartPart part(int number, String etag, long size) {
+        return new MultipartPart(Integer.valueOf(number), new Date(0), etag, Long.valueOf(size));
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        byte[] data = new byte[(int) length];
+        InputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < data.length) {
+                read += in.read(data, read, data.length - read);
+            }
+        } finally {
+            in.close();
+        }
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2013 SpringSource
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.springframework.build.aws.ant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.jets3t.service.model.S3Object;
+import org.jets3t.service.utils.ServiceUtils;
+import org.junit.Test;
+
+public class VerifyingInputStreamTests {
+
+    private static final byte[] DATA = "The quick brown fox jumps over the lazy dog".getBytes();
+
+    @Test
+    public void dataMatchingTheETagIsRead() throws Exception {
+        assertEquals(DATA.length, readFully(VerifyingInputStream.create(object(DATA, md5Hex(DATA)))));
+    }
+
+    @Test
+    public void dataNotMatchingTheETagFails() throws Exception {
+        assertFails(VerifyingInputStream.create(object(corrupted(), md5Hex(DATA))));
+    }
+
+    @Test
+    public void contentMd5IsPreferredToTheETag() throws Exception {
+        S3Object object = object(DATA, md5Hex(corrupted()));
+        object.addMetadata("Content-MD5", ServiceUtils.toBase64(md5(DATA)));
+        assertEquals(DATA.length, readFully(VerifyingInputStream.create(object)));
+    }
+
+    @Test
+    public void multipartETagIsNotChecked() throws Exception {
+        InputStream in = VerifyingInputStream.create(object(corrupted(), md5Hex(DATA) + "-2"));
+        assertFalse(in instanceof VerifyingInputStream);
+        assertEquals(DATA.length, readFully(in));
+    }
+
+    @Test
+    public void md5HashMetadataIsCheckedWithoutAnETag() throws Exception {
+        S3Object object = object(corrupted(), null);
+        object.addMetadata("md5-hash", md5Hex(DATA));
+        assertFails(VerifyingInputStream.create(object));
+    }
+
+    @Test
+    public void etagOfKmsEncryptedObjectIsNotChecked() throws Exception {
+        S3Object object = object(DATA, md5Hex(corrupted()));
+        object.addMetadata("x-amz-server-side-encryption", "aws:kms");
+        assertEquals(DATA.length, readFully(VerifyingInputStream.create(object)));
+    }
+
+    @Test
+    public void etagOfCustomerKeyEncryptedObjectIsNotChecked() throws Exception {
+        S3Object object = object(DATA, md5Hex(corrupted()));
+        object.addMetadata("X-Amz-Server-Side-Encryption-Customer-Algorithm", "AES256");
+        assertEquals(DATA.length, readFully(VerifyingInputStream.create(object)));
+    }
+
+    @Test
+    public void etagOfS3EncryptedObjectIsChecked() throws Exception {
+        S3Object object = object(corrupted(), md5Hex(DATA));
+        object.addMetadata("x-amz-server-side-encryption", "AES256");
+        assertFails(VerifyingInputStream.create(object));
+    }
+
+    @Test
+    public void kmsEncryptedObjectIsCheckedAgainstMetadata() throws Exception {
+        S3Object object = object(corrupted(), md5Hex(corrupted()));
+        object.addMetadata("x-amz-server-side-encryption", "aws:kms");
+        object.addMetadata("md5-hash", md5Hex(DATA));
+        assertFails(VerifyingInputStream.create(object));
+    }
+
+    @Test
+    public void skippedBytesAreChecked() throws Exception {
+        InputStream in = VerifyingInputStream.create(object(corrupted(), md5Hex(DATA)));
+        assertEquals(10, in.skip(10));
+        assertFails(in);
+    }
+
+    private static S3Object object(byte[] data, String etag) {
+        S3Object object = new S3Object("key");
+        object.setBucketName("bucket");
+        object.setDataInputStream(new ByteArrayInputStream(data));
+        if (etag != null) {
+            object.setETag("\"" + etag + "\"");
+        }
+        return object;
+    }
+
+    private static void assertFails(InputStream in) throws IOException {
+        try {
+            readFully(in);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("s3://bucket/key"));
+        }
+    }
+
+    private static int readFully(InputStream in) throws IOException {
+        byte[] buffer = new byte[7];
+        int total = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            total += read;
+        }
+        return total;
+    }
+
+    private static byte[] corrupted() {
+        byte[] corrupted = DATA.clone();
+        corrupted[corrupted.length - 1] ^= 1;
+        return corrupted;
+    }
+
+    private static String md5Hex(byte[] data) throws NoSuchAlgorithmException {
+        return ServiceUtils.toHex(md5(data));
+    }
+
+    private static byte[] md5(byte[] data) throws NoSuchAlgorithmException {
+        return MessageDigest.getInstance("MD5").digest(data);
+    }
+
+}